@@ -86,22 +86,108 @@ public class DRUMSParameterSet<Data extends AbstractKVStorable> {
     public long MAX_MEMORY_PER_BUCKET;
     /** the size of one chunk in memory */
     public int MEMORY_CHUNK;
+    /**
+     * If true, the memory chunks of all buckets are allocated as direct {@link java.nio.ByteBuffer}s outside the Java
+     * heap. This keeps large bucket memories away from the garbage collector.
+     */
+    public boolean BUCKET_MEMORY_OFF_HEAP = false;
+    /**
+     * If true, elements with equal keys are merged already when they are added to a bucket. So the memory of a bucket
+     * scales with the number of distinct keys. Adding elements to the same bucket is serialized in this mode.
+     */
+    public boolean BUCKET_COMBINING = false;
+    /**
+     * If true, the elements in the buckets are indexed by their keys, so {@link com.unister.semweb.drums.api.DRUMS#select}
+     * and {@link com.unister.semweb.drums.api.DRUMSReader#get} also find elements, which are not synchronized yet. The
+     * index needs about 8 additional bytes of heap per element.
+     */
+    public boolean READ_FROM_BUCKETS = false;
     /** the number of retries if a file is locked by another process */
     public int HEADER_FILE_LOCK_RETRY = 100;
     /** The number of bytes, which are read and written at once during synchronization */
     public long SYNC_CHUNK_SIZE;
+    /**
+     * If true, a synchronization reads the next chunk of the file and writes the last merged chunk by one of the I/O
+     * threads of the {@link com.unister.semweb.drums.sync.SyncManager}, while the merge goes on. If false, the merging
+     * thread reads and writes itself.
+     */
+    public boolean PIPELINED_SYNC = true;
     /** The size of one chunk in an {@link HeaderIndexFile} */
     public long FILE_CHUNK_SIZE;
+    /**
+     * If true, new files store each chunk as a block compressed by {@link java.util.zip.Deflater}. Chunks are
+     * decompressed, when they are read. Existing files keep the format they were created with.
+     */
+    public boolean COMPRESSED_CHUNKS = false;
+    /**
+     * If true, new files store each key only with the bytes, in which it differs from the key before. Every
+     * KEY_RESTART_INTERVAL-th key is stored completely, so a chunk can be searched without decoding it completely.
+     * Existing files keep the format they were created with.
+     */
+    public boolean PREFIX_ENCODED_KEYS = false;
+    /** The number of records between two completely stored keys of a prefix encoded chunk. */
+    public int KEY_RESTART_INTERVAL = 16;
+    /**
+     * The number of bits per key of the Bloom filter, which is stored next to each file. Lookups of keys, which are
+     * not in the filter, don't read the file. 10 bits lead to about 1% false positives, 0 disables the filters.
+     */
+    public int BLOOM_FILTER_BITS_PER_KEY = 10;
     /** The number of threads used for synchronizing. */
     public int NUMBER_OF_SYNCHRONIZER_THREADS = 1;
+    /**
+     * The minimal number of elements of a bucket, which is merged with its file by several threads in parallel. The
+     * merge is split into ranges at the borders of the chunks of the file. 0 disables the parallel merge.
+     */
+    public int PARALLEL_SYNC_THRESHOLD = 100000;
+    /**
+     * The number of threads, which update the files of different buckets in parallel (see
+     * {@link com.unister.semweb.drums.api.DRUMS#update}). 1 means, that all files are updated by the calling thread.
+     */
+    public int NUMBER_OF_UPDATE_THREADS = 4;
+    /**
+     * The number of sorted runs of similar size, which are merged into one run, if the table is synchronized by a
+     * {@link com.unister.semweb.drums.sync.synchronizer.RunSynchronizerFactory}. The runs are merged into their file,
+     * when they reach a fraction of 1/RUN_COMPACTION_FANOUT of its size.
+     */
+    public int RUN_COMPACTION_FANOUT = 4;
+    /** The maximal number of sorted runs per file. If there are more runs, they are merged into the file. */
+    public int MAX_RUNS_PER_BUCKET = 12;
     /** The minimal number of elements which must be in one bucket, before this bucket is allowed to be synchronized. */
     public int MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC = 1;
+    /**
+     * The policy, which chooses the buckets to synchronize: LARGEST_FIRST, OLDEST_FIRST, BEST_RATIO or ADAPTIVE. See
+     * {@link com.unister.semweb.drums.sync.policy.AbstractSyncPolicy#create}.
+     */
+    public String SYNC_POLICY = "LARGEST_FIRST";
     /** the initial size by which the file is enlarged, when no more records will fit into the file. */
     public int INITIAL_INCREMENT_SIZE;
     /** the initial size of a {@link HeaderIndexFile}. */
     public int INITIAL_FILE_SIZE;
     /** The maximal time in milliseconds a bucket is held in memory without synchronization attempt. */
     public long MAX_BUCKET_STORAGE_TIME;
+    /**
+     * The maximal time in milliseconds an insert waits for free memory in the buckets, before it fails. 0 means, that
+     * the insert waits forever.
+     */
+    public long INSERT_TIMEOUT = 0;
+    /**
+     * The time in milliseconds, after which a record expires. The age of a record is given by
+     * {@link com.unister.semweb.drums.storable.AbstractKVStorable#getTimestamp()}. Expired records are dropped, when
+     * their chunks are merged by a synchronization or swept in the background. 0 means, that records never expire.
+     */
+    public long TIME_TO_LIVE = 0;
+    /**
+     * The minimal time in milliseconds between the start of two sweeps over all files, which drop the expired records.
+     * Only used, if {@link #TIME_TO_LIVE} is set.
+     */
+    public long EXPIRY_SWEEP_INTERVAL = 3600000;
+    /**
+     * If true, all inserted records are written to a write-ahead log, before the insert returns. Records, which weren't
+     * synchronized before a crash, are replayed when the table is opened again.
+     */
+    public boolean WRITE_AHEAD_LOG = false;
+    /** The size in bytes, after which a new segment of the write-ahead log is started. */
+    public long WAL_SEGMENT_SIZE;
 
     /**
      * Initialize global parameters by those from the given parameter-file.
@@ -200,15 +286,33 @@ public class DRUMSParameterSet<Data extends AbstractKVStorable> {
         BUCKET_MEMORY = parseSize(props.getProperty("BUCKET_MEMORY", "1G"));
         MEMORY_CHUNK = (int) parseSize(props.getProperty("MEMORY_CHUNK", "10K"));
         MAX_MEMORY_PER_BUCKET = parseSize(props.getProperty("MAX_MEMORY_PER_BUCKET", "100M"));
+        BUCKET_MEMORY_OFF_HEAP = Boolean.valueOf(props.getProperty("BUCKET_MEMORY_OFF_HEAP", "false").trim());
+        BUCKET_COMBINING = Boolean.valueOf(props.getProperty("BUCKET_COMBINING", "false").trim());
+        READ_FROM_BUCKETS = Boolean.valueOf(props.getProperty("READ_FROM_BUCKETS", "false").trim());
         SYNC_CHUNK_SIZE = parseSize(props.getProperty("SYNC_CHUNK_SIZE", "2M"));
+        PIPELINED_SYNC = Boolean.valueOf(props.getProperty("PIPELINED_SYNC", "true").trim());
         FILE_CHUNK_SIZE = parseSize(props.getProperty("FILE_CHUNK_SIZE", "32K"));
         // determine exact index size
         FILE_CHUNK_SIZE = FILE_CHUNK_SIZE - FILE_CHUNK_SIZE % prototype.getSize();
+        COMPRESSED_CHUNKS = Boolean.valueOf(props.getProperty("COMPRESSED_CHUNKS", "false").trim());
+        PREFIX_ENCODED_KEYS = Boolean.valueOf(props.getProperty("PREFIX_ENCODED_KEYS", "false").trim());
+        KEY_RESTART_INTERVAL = Integer.valueOf(props.getProperty("KEY_RESTART_INTERVAL", "16").trim());
+        BLOOM_FILTER_BITS_PER_KEY = Integer.valueOf(props.getProperty("BLOOM_FILTER_BITS_PER_KEY", "10").trim());
         NUMBER_OF_SYNCHRONIZER_THREADS = Integer.valueOf(props.getProperty("NUMBER_OF_SYNCHRONIZER_THREADS", "1"));
+        PARALLEL_SYNC_THRESHOLD = Integer.valueOf(props.getProperty("PARALLEL_SYNC_THRESHOLD", "100000").trim());
+        NUMBER_OF_UPDATE_THREADS = Integer.valueOf(props.getProperty("NUMBER_OF_UPDATE_THREADS", "4").trim());
+        RUN_COMPACTION_FANOUT = Integer.valueOf(props.getProperty("RUN_COMPACTION_FANOUT", "4").trim());
+        MAX_RUNS_PER_BUCKET = Integer.valueOf(props.getProperty("MAX_RUNS_PER_BUCKET", "12").trim());
         MAX_BUCKET_STORAGE_TIME = Long.valueOf(props.getProperty("MAX_BUCKET_STORAGE_TIME", "84000000"));
         MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC = Integer
                 .valueOf(props.getProperty("MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC", "1"));
+        SYNC_POLICY = props.getProperty("SYNC_POLICY", "LARGEST_FIRST").trim();
         HEADER_FILE_LOCK_RETRY = Integer.valueOf(props.getProperty("HEADER_FILE_LOCK_RETRY", "100"));
+        INSERT_TIMEOUT = Long.valueOf(props.getProperty("INSERT_TIMEOUT", "0").trim());
+        TIME_TO_LIVE = Long.valueOf(props.getProperty("TIME_TO_LIVE", "0").trim());
+        EXPIRY_SWEEP_INTERVAL = Long.valueOf(props.getProperty("EXPIRY_SWEEP_INTERVAL", "3600000").trim());
+        WRITE_AHEAD_LOG = Boolean.valueOf(props.getProperty("WRITE_AHEAD_LOG", "false").trim());
+        WAL_SEGMENT_SIZE = parseSize(props.getProperty("WAL_SEGMENT_SIZE", "64M"));
 
         INITIAL_FILE_SIZE = (int) parseSize(props.getProperty("INITIAL_FILE_SIZE", "16M"));
         INITIAL_INCREMENT_SIZE = (int) parseSize(props.getProperty("INITIAL_INCREMENT_SIZE", "16M"));
@@ -223,12 +327,30 @@ public class DRUMSParameterSet<Data extends AbstractKVStorable> {
         logger.info("BUCKET_MEMORY = {}", BUCKET_MEMORY);
         logger.info("MEMORY_CHUNK = {}", MEMORY_CHUNK);
         logger.info("MAX_MEMORY_PER_BUCKET = {}", MAX_MEMORY_PER_BUCKET);
+        logger.info("BUCKET_MEMORY_OFF_HEAP = {}", BUCKET_MEMORY_OFF_HEAP);
+        logger.info("BUCKET_COMBINING = {}", BUCKET_COMBINING);
+        logger.info("READ_FROM_BUCKETS = {}", READ_FROM_BUCKETS);
         logger.info("CHUNKSIZE = {}", SYNC_CHUNK_SIZE);
+        logger.info("PIPELINED_SYNC = {}", PIPELINED_SYNC);
+        logger.info("INSERT_TIMEOUT = {}", INSERT_TIMEOUT);
+        logger.info("TIME_TO_LIVE = {}", TIME_TO_LIVE);
+        logger.info("EXPIRY_SWEEP_INTERVAL = {}", EXPIRY_SWEEP_INTERVAL);
+        logger.info("SYNC_POLICY = {}", SYNC_POLICY);
+        logger.info("PARALLEL_SYNC_THRESHOLD = {}", PARALLEL_SYNC_THRESHOLD);
+        logger.info("NUMBER_OF_UPDATE_THREADS = {}", NUMBER_OF_UPDATE_THREADS);
+        logger.info("RUN_COMPACTION_FANOUT = {}", RUN_COMPACTION_FANOUT);
+        logger.info("MAX_RUNS_PER_BUCKET = {}", MAX_RUNS_PER_BUCKET);
+        logger.info("WRITE_AHEAD_LOG = {}", WRITE_AHEAD_LOG);
+        logger.info("WAL_SEGMENT_SIZE = {}", WAL_SEGMENT_SIZE);
 
         logger.info("----- HeaderIndexFile -----");
         logger.info("INITIAL_FILE_SIZE = {}", INITIAL_FILE_SIZE);
         logger.info("INITIAL_INCREMENT_SIZE = {}", INITIAL_INCREMENT_SIZE);
         logger.info("CHUNK_SIZE = {}", FILE_CHUNK_SIZE);
+        logger.info("COMPRESSED_CHUNKS = {}", COMPRESSED_CHUNKS);
+        logger.info("PREFIX_ENCODED_KEYS = {}", PREFIX_ENCODED_KEYS);
+        logger.info("KEY_RESTART_INTERVAL = {}", KEY_RESTART_INTERVAL);
+        logger.info("BLOOM_FILTER_BITS_PER_KEY = {}", BLOOM_FILTER_BITS_PER_KEY);
     }
 
     private static Pattern p_mem = Pattern.compile("(\\d+)(K|M|G|)");
@@ -274,12 +396,30 @@ public class DRUMSParameterSet<Data extends AbstractKVStorable> {
         props.setProperty("BUCKET_MEMORY", BUCKET_MEMORY + "");
         props.setProperty("MEMORY_CHUNK", MEMORY_CHUNK + "");
         props.setProperty("MAX_MEMORY_PER_BUCKET", MAX_MEMORY_PER_BUCKET + "");
+        props.setProperty("BUCKET_MEMORY_OFF_HEAP", BUCKET_MEMORY_OFF_HEAP + "");
+        props.setProperty("BUCKET_COMBINING", BUCKET_COMBINING + "");
+        props.setProperty("READ_FROM_BUCKETS", READ_FROM_BUCKETS + "");
         props.setProperty("SYNC_CHUNK_SIZE", SYNC_CHUNK_SIZE + "");
+        props.setProperty("PIPELINED_SYNC", PIPELINED_SYNC + "");
         props.setProperty("FILE_CHUNK_SIZE", FILE_CHUNK_SIZE + "");
+        props.setProperty("COMPRESSED_CHUNKS", COMPRESSED_CHUNKS + "");
+        props.setProperty("PREFIX_ENCODED_KEYS", PREFIX_ENCODED_KEYS + "");
+        props.setProperty("KEY_RESTART_INTERVAL", KEY_RESTART_INTERVAL + "");
+        props.setProperty("BLOOM_FILTER_BITS_PER_KEY", BLOOM_FILTER_BITS_PER_KEY + "");
         props.setProperty("NUMBER_OF_SYNCHRONIZER_THREADS", NUMBER_OF_SYNCHRONIZER_THREADS + "");
+        props.setProperty("PARALLEL_SYNC_THRESHOLD", PARALLEL_SYNC_THRESHOLD + "");
+        props.setProperty("NUMBER_OF_UPDATE_THREADS", NUMBER_OF_UPDATE_THREADS + "");
+        props.setProperty("RUN_COMPACTION_FANOUT", RUN_COMPACTION_FANOUT + "");
+        props.setProperty("MAX_RUNS_PER_BUCKET", MAX_RUNS_PER_BUCKET + "");
         props.setProperty("MAX_BUCKET_STORAGE_TIME", MAX_BUCKET_STORAGE_TIME + "");
         props.setProperty("MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC", MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC + "");
+        props.setProperty("SYNC_POLICY", SYNC_POLICY);
         props.setProperty("HEADER_FILE_LOCK_RETRY", HEADER_FILE_LOCK_RETRY + "");
+        props.setProperty("INSERT_TIMEOUT", INSERT_TIMEOUT + "");
+        props.setProperty("TIME_TO_LIVE", TIME_TO_LIVE + "");
+        props.setProperty("EXPIRY_SWEEP_INTERVAL", EXPIRY_SWEEP_INTERVAL + "");
+        props.setProperty("WRITE_AHEAD_LOG", WRITE_AHEAD_LOG + "");
+        props.setProperty("WAL_SEGMENT_SIZE", WAL_SEGMENT_SIZE + "");
         props.setProperty("INITIAL_FILE_SIZE", INITIAL_FILE_SIZE + "");
         props.setProperty("INITIAL_INCREMENT_SIZE", INITIAL_INCREMENT_SIZE + "");
         return props;
@@ -0,0 +1,461 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.RecordSorter;
+import com.unister.semweb.drums.bucket.hashfunction.RangeHashFunction;
+import com.unister.semweb.drums.file.BloomFilter;
+import com.unister.semweb.drums.file.SortedFileWriter;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Fills a new table in one sequential pass, without the {@link com.unister.semweb.drums.bucket.BucketContainer}, the
+ * {@link com.unister.semweb.drums.sync.SyncManager} and repeated merges. Use
+ * {@link DRUMSInstantiator#createBulkLoader(RangeHashFunction, DRUMSParameterSet)} to get an instance.<br>
+ * <br>
+ * The records are collected in {@link DRUMSParameterSet#BUCKET_MEMORY} bytes of memory. If the memory is full, it is
+ * sorted and spilled to a temporary file. {@link #finish()} merges all spilled batches and the remaining memory bucket
+ * by bucket, combines records with equal keys by {@link AbstractKVStorable#merge(AbstractKVStorable)} in the order
+ * they were added, and writes each file, its index and its Bloom filter exactly once. Afterwards the table can be
+ * opened by {@link DRUMSInstantiator#openTable(DRUMS.AccessMode, DRUMSParameterSet)}. Already sorted input is
+ * recognized and not sorted again.<br>
+ * <br>
+ * A {@link BulkLoader} may only be used by one thread.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}
+ */
+public class BulkLoader<Data extends AbstractKVStorable> {
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoader.class);
+
+    private final RangeHashFunction hashFunction;
+
+    private final DRUMSParameterSet<Data> gp;
+
+    private final int elementSize;
+    private final int keyLength;
+
+    /** the number of records in one chunk of {@link #memory} */
+    private final int recordsPerChunk;
+
+    /** the memory, where the records are collected. The chunks are allocated, when they are needed */
+    private final ByteBuffer[] memory;
+
+    /** the number of records in {@link #memory} */
+    private int elementsInMemory;
+
+    /** the sorted batches, which were spilled to disk. Ordered by age */
+    private final List<SpilledBatch> spilled = new ArrayList<SpilledBatch>();
+
+    /** true, if {@link #finish()} was called */
+    private boolean finished;
+
+    /**
+     * This constructor should only be called by factory methods from this package.
+     * 
+     * @param hashFunction
+     *            the hash function of the table, decides into which file a record is written
+     * @param gp
+     *            the parameters of the table
+     */
+    BulkLoader(RangeHashFunction hashFunction, DRUMSParameterSet<Data> gp) {
+        this.hashFunction = hashFunction;
+        this.gp = gp;
+        this.elementSize = gp.getElementSize();
+        this.keyLength = gp.getKeySize();
+        this.recordsPerChunk = Math.max(1, gp.MEMORY_CHUNK / elementSize);
+        long chunks = Math.max(1, gp.BUCKET_MEMORY / ((long) recordsPerChunk * elementSize));
+        // the sorter addresses the records by int
+        this.memory = new ByteBuffer[(int) Math.min(chunks, Integer.MAX_VALUE / recordsPerChunk)];
+    }
+
+    /**
+     * Adds the given records. If the memory is full, it is sorted and spilled to disk.
+     * 
+     * @param records
+     *            the records to add, in any order
+     * @throws IOException
+     *             if the memory can't be spilled
+     */
+    public void add(Data... records) throws IOException {
+        checkNotFinished();
+        for (Data record : records) {
+            record.writeTo(nextSlot());
+            elementsInMemory++;
+        }
+    }
+
+    /**
+     * Adds the serialized records in the given buffer. The records are read from the actual position of the buffer
+     * till its limit and copied directly into the memory, so no objects are built.
+     * 
+     * @param records
+     *            the serialized records to add, each of {@link DRUMSParameterSet#getElementSize()} bytes starting with
+     *            its key
+     * @throws IOException
+     *             if the memory can't be spilled
+     */
+    public void add(ByteBuffer records) throws IOException {
+        checkNotFinished();
+        if (records.remaining() % elementSize != 0) {
+            throw new IllegalArgumentException("The number of bytes (" + records.remaining()
+                    + ") is not a multiple of the element size " + elementSize);
+        }
+        ByteBuffer source = records.duplicate();
+        while (source.hasRemaining()) {
+            source.limit(source.position() + elementSize);
+            nextSlot().put(source);
+            source.limit(records.limit());
+            elementsInMemory++;
+        }
+        records.position(records.limit());
+    }
+
+    /**
+     * Writes all added records into the files of the table and deletes the temporary files. No records can be added
+     * afterwards.
+     * 
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        checkNotFinished();
+        finished = true;
+        List<Batch> batches = new ArrayList<Batch>(spilled);
+        try {
+            if (elementsInMemory > 0) {
+                new RecordSorter(allocatedChunks(), elementsInMemory, elementSize, keyLength).sort();
+                batches.add(new MemoryBatch(batches.size()));
+            }
+            logger.info("Writing {} buckets from {} spilled batches and {} records in memory.", new Object[] {
+                    hashFunction.getNumberOfBuckets(), spilled.size(), elementsInMemory });
+            PriorityQueue<Batch> queue = new PriorityQueue<Batch>(Math.max(1, batches.size()), new Comparator<Batch>() {
+                @Override
+                public int compare(Batch b1, Batch b2) {
+                    int cmp = KeyUtils.compareKey(b1.record, b2.record, keyLength);
+                    // equal keys are merged in the order they were added
+                    return cmp != 0 ? cmp : b1.age - b2.age;
+                }
+            });
+            RecordCombiner combiner = new RecordCombiner();
+            for (int bucketId = 0; bucketId < hashFunction.getNumberOfBuckets(); bucketId++) {
+                writeBucket(bucketId, batches, queue, combiner);
+            }
+        } finally {
+            for (SpilledBatch batch : spilled) {
+                batch.delete();
+            }
+            spilled.clear();
+            for (int i = 0; i < memory.length; i++) {
+                memory[i] = null;
+            }
+        }
+    }
+
+    /** merges the records of the given bucket from all batches into its file */
+    private void writeBucket(int bucketId, List<Batch> batches, PriorityQueue<Batch> queue, RecordCombiner combiner)
+            throws IOException {
+        String filename = gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(bucketId);
+        long expectedElements = 0;
+        for (Batch batch : batches) {
+            expectedElements += batch.count(bucketId);
+        }
+        SortedFileWriter<Data> writer = new SortedFileWriter<Data>(filename, expectedElements, gp);
+        boolean closed = false;
+        try {
+            for (Batch batch : batches) {
+                batch.seek(bucketId);
+                if (batch.next()) {
+                    queue.add(batch);
+                }
+            }
+            boolean pending = false;
+            while (!queue.isEmpty()) {
+                Batch batch = queue.poll();
+                if (pending && KeyUtils.compareKey(combiner.element, batch.record, keyLength) == 0) {
+                    combiner.merge(batch.record);
+                } else {
+                    if (pending) {
+                        writer.write(combiner.element, 0);
+                    }
+                    System.arraycopy(batch.record, 0, combiner.element, 0, elementSize);
+                    pending = true;
+                }
+                if (batch.next()) {
+                    queue.add(batch);
+                }
+            }
+            if (pending) {
+                writer.write(combiner.element, 0);
+            }
+            long filledUpTo = writer.close(0);
+            closed = true;
+            BloomFilter filter = writer.getBloomFilter();
+            if (filter != null && filledUpTo > 0) {
+                filter.store(filename, filledUpTo, 0);
+            }
+            logger.debug("Wrote {} bytes to {}.", filledUpTo, filename);
+        } finally {
+            queue.clear();
+            if (!closed) {
+                writer.abort();
+            }
+        }
+    }
+
+    /** @return the memory for the next record. If the memory is full, it is spilled before */
+    private ByteBuffer nextSlot() throws IOException {
+        if (elementsInMemory == memory.length * recordsPerChunk) {
+            spill();
+        }
+        int chunk = elementsInMemory / recordsPerChunk;
+        if (memory[chunk] == null) {
+            memory[chunk] = gp.BUCKET_MEMORY_OFF_HEAP ? ByteBuffer.allocateDirect(recordsPerChunk * elementSize)
+                    : ByteBuffer.allocate(recordsPerChunk * elementSize);
+        }
+        return memory[chunk];
+    }
+
+    /** @return the chunks of {@link #memory} holding records. The chunks behind them may not be allocated yet */
+    private ByteBuffer[] allocatedChunks() {
+        return Arrays.copyOf(memory, (elementsInMemory + recordsPerChunk - 1) / recordsPerChunk);
+    }
+
+    /** sorts the memory and writes it to a new temporary file */
+    private void spill() throws IOException {
+        new RecordSorter(allocatedChunks(), elementsInMemory, elementSize, keyLength).sort();
+        SpilledBatch batch = new SpilledBatch(spilled.size(), File.createTempFile("bulkload", ".tmp", new File(
+                gp.DATABASE_DIRECTORY)));
+        spilled.add(batch);
+        FileChannel channel = batch.file.getChannel();
+        for (int c = 0, written = 0; written < elementsInMemory; c++) {
+            ByteBuffer chunk = memory[c].duplicate();
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            written += recordsPerChunk;
+            memory[c].clear();
+        }
+        logger.info("Spilled {} sorted records to {}.", batch.size(), batch.filename);
+        elementsInMemory = 0;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("The bulk load is already finished.");
+        }
+    }
+
+    /**
+     * A sorted batch of records. The records of one bucket form one or more segments of the batch, because keys beyond
+     * the last range belong to the first bucket. The batch is also a cursor over the records of one bucket.
+     */
+    private abstract class Batch {
+        /** the position of the batch in the order of adding */
+        final int age;
+
+        /** the bucket of each segment */
+        final IntArrayList segmentBuckets = new IntArrayList();
+
+        /** the index of the first record of each segment, followed by the number of records in the batch */
+        final LongArrayList segmentStarts = new LongArrayList();
+
+        /** the actual record of the cursor */
+        final byte[] record = new byte[elementSize];
+
+        private int bucketId, segment;
+        private long index, end;
+
+        /** splits the sorted records in {@link BulkLoader#memory} into segments */
+        Batch(int age) {
+            this.age = age;
+            byte[] key = new byte[keyLength];
+            for (int i = 0; i < elementsInMemory; i++) {
+                ByteBuffer chunk = memory[i / recordsPerChunk].duplicate();
+                chunk.position(i % recordsPerChunk * elementSize);
+                chunk.get(key);
+                int id = hashFunction.getBucketId(key);
+                if (segmentBuckets.isEmpty() || segmentBuckets.get(segmentBuckets.size() - 1) != id) {
+                    segmentBuckets.add(id);
+                    segmentStarts.add(i);
+                }
+            }
+            segmentStarts.add(elementsInMemory);
+        }
+
+        /** @return the number of records in this batch */
+        long size() {
+            return segmentStarts.get(segmentStarts.size() - 1);
+        }
+
+        /** @return the number of records of the given bucket in this batch */
+        long count(int bucketId) {
+            long count = 0;
+            for (int s = 0; s < segmentBuckets.size(); s++) {
+                if (segmentBuckets.get(s) == bucketId) {
+                    count += segmentStarts.get(s + 1) - segmentStarts.get(s);
+                }
+            }
+            return count;
+        }
+
+        /** positions the cursor before the first record of the given bucket */
+        void seek(int bucketId) {
+            this.bucketId = bucketId;
+            this.segment = -1;
+            this.index = 0;
+            this.end = 0;
+        }
+
+        /** @return true, if the next record of the bucket was read into {@link #record} */
+        boolean next() throws IOException {
+            while (index >= end) {
+                do {
+                    if (++segment >= segmentBuckets.size()) {
+                        return false;
+                    }
+                } while (segmentBuckets.get(segment) != bucketId);
+                index = segmentStarts.get(segment);
+                end = segmentStarts.get(segment + 1);
+                jump(index);
+            }
+            read(index++, record);
+            return true;
+        }
+
+        /** prepares sequential reads starting at the given record */
+        abstract void jump(long index) throws IOException;
+
+        /** reads the record with the given index, which follows the previously read record */
+        abstract void read(long index, byte[] dst) throws IOException;
+    }
+
+    /** the last batch, which is read directly from {@link BulkLoader#memory} */
+    private class MemoryBatch extends Batch {
+        MemoryBatch(int age) {
+            super(age);
+        }
+
+        @Override
+        void jump(long index) {
+        }
+
+        @Override
+        void read(long index, byte[] dst) {
+            ByteBuffer chunk = memory[(int) (index / recordsPerChunk)].duplicate();
+            chunk.position((int) (index % recordsPerChunk) * elementSize);
+            chunk.get(dst);
+        }
+    }
+
+    /** a batch spilled to a temporary file. It is read sequentially through a buffer */
+    private class SpilledBatch extends Batch {
+        final File filename;
+        final RandomAccessFile file;
+
+        /** the buffer for sequential reads. Allocated with the first read */
+        private ByteBuffer readBuffer;
+
+        /** the position in the file behind the content of {@link #readBuffer} */
+        private long filePosition;
+
+        SpilledBatch(int age, File filename) throws IOException {
+            super(age);
+            this.filename = filename;
+            this.file = new RandomAccessFile(filename, "rw");
+        }
+
+        @Override
+        void jump(long index) {
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate((int) Math.max(1, gp.SYNC_CHUNK_SIZE / elementSize) * elementSize);
+            }
+            filePosition = index * elementSize;
+            readBuffer.clear().flip();
+        }
+
+        @Override
+        void read(long index, byte[] dst) throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.clear();
+                FileChannel channel = file.getChannel();
+                while (readBuffer.hasRemaining()) {
+                    int read = channel.read(readBuffer, filePosition);
+                    if (read < 0) {
+                        break;
+                    }
+                    filePosition += read;
+                }
+                readBuffer.flip();
+            }
+            readBuffer.get(dst);
+        }
+
+        /** closes and deletes the file */
+        void delete() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.warn("Can't close {}. {}", filename, e);
+            }
+            if (!filename.delete()) {
+                logger.warn("Can't delete {}.", filename);
+            }
+        }
+    }
+
+    /** merges records with equal keys. The arrays and objects are reused for all records */
+    private class RecordCombiner {
+        /** the combined element, which is written next */
+        final byte[] element = new byte[elementSize];
+        private final byte[] other = new byte[elementSize];
+        private final ByteBuffer elementView = ByteBuffer.wrap(element);
+        private final ByteBuffer otherView = ByteBuffer.wrap(other);
+        private final AbstractKVStorable elementObject = gp.getPrototype().clone();
+        private final AbstractKVStorable otherObject = gp.getPrototype().clone();
+
+        /** merges the given record, which was added later, into {@link #element} */
+        void merge(byte[] record) {
+            System.arraycopy(record, 0, other, 0, elementSize);
+            elementView.clear();
+            elementObject.initFromByteBuffer(elementView);
+            otherView.clear();
+            otherObject.initFromByteBuffer(otherView);
+            AbstractKVStorable merged = elementObject.merge(otherObject);
+            elementView.clear();
+            merged.writeTo(elementView);
+        }
+    }
+}
@@ -15,12 +15,26 @@
  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
 package com.unister.semweb.drums.api;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,9 +47,15 @@ import com.unister.semweb.drums.bucket.BucketContainer;
 import com.unister.semweb.drums.bucket.BucketContainerException;
 import com.unister.semweb.drums.bucket.DynamicMemoryAllocater;
 import com.unister.semweb.drums.bucket.hashfunction.AbstractHashFunction;
+import com.unister.semweb.drums.file.BloomFilter;
 import com.unister.semweb.drums.file.FileLockException;
 import com.unister.semweb.drums.file.HeaderIndexFile;
+import com.unister.semweb.drums.file.ILogReplayer;
 import com.unister.semweb.drums.file.IndexForHeaderIndexFile;
+import com.unister.semweb.drums.file.PrefixEncodedChunk;
+import com.unister.semweb.drums.file.ReplacingElements;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.file.WriteAheadLog;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
 import com.unister.semweb.drums.sync.SyncManager;
@@ -45,6 +65,7 @@ import com.unister.semweb.drums.sync.synchronizer.UpdateOnlySynchronizer;
 import com.unister.semweb.drums.util.AbstractKVStorableComparator;
 import com.unister.semweb.drums.util.ByteArrayComparator;
 import com.unister.semweb.drums.util.KeyUtils;
+import com.unister.semweb.drums.util.NamedThreadFactory;
 
 /**
  * An instance of this class provides access to a DRUMS-table. The instance allows managing the storage of
@@ -84,6 +105,15 @@ public class DRUMS<Data extends AbstractKVStorable> {
     /** the buffer manages the different synchronize-processes */
     private SyncManager<Data> syncManager;
 
+    /** the log of all records in the buckets, if {@link DRUMSParameterSet#WRITE_AHEAD_LOG} is set. Otherwise null */
+    private WriteAheadLog writeAheadLog;
+
+    /**
+     * the loaded Bloom filters of the files, indexed by the bucket id. A filter is loaded again, if the file was
+     * synchronized in the meantime. Read and replaced concurrently by all selecting threads
+     */
+    private AtomicReferenceArray<LoadedBloomFilter> bloomFilters;
+
     /** a prototype of the elements to store */
     private Data prototype;
 
@@ -92,6 +122,9 @@ public class DRUMS<Data extends AbstractKVStorable> {
 
     protected DRUMSReader<Data> reader_instance;
 
+    /** the threads updating the files of different buckets in parallel. Created by the first update, null before */
+    private ExecutorService updateThreads;
+
     /**
      * This constructor should only be called by factory methods from this package.
      * 
@@ -108,6 +141,7 @@ public class DRUMS<Data extends AbstractKVStorable> {
         this.prototype = gp.getPrototype();
         this.hashFunction = hashFunction;
         this.gp = gp;
+        this.bloomFilters = new AtomicReferenceArray<LoadedBloomFilter>(hashFunction.getNumberOfBuckets());
         DynamicMemoryAllocater.instantiate(gp);
         gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC = (int) ((gp.BUCKET_MEMORY - gp.BUCKET_MEMORY % gp.MEMORY_CHUNK)
                 / hashFunction.getNumberOfBuckets() / prototype.getSize() / 2);
@@ -116,8 +150,11 @@ public class DRUMS<Data extends AbstractKVStorable> {
             @SuppressWarnings("unchecked")
             Bucket<Data>[] tmp = new Bucket[hashFunction.getNumberOfBuckets()];
             buckets = tmp;
+            long[] syncedGenerations = new long[hashFunction.getNumberOfBuckets()];
+            long[] fileSizes = new long[hashFunction.getNumberOfBuckets()];
+            // runs might have been written or merged by another process
+            SortedRuns.open(gp.DATABASE_DIRECTORY, gp);
             for (int i = 0; i < hashFunction.getNumberOfBuckets(); i++) {
-                buckets[i] = new Bucket<Data>(i, gp);
                 String tmpFileName = gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(i);
                 if (!new File(tmpFileName).exists()) {
                     HeaderIndexFile<Data> tmpFile;
@@ -130,12 +167,66 @@ public class DRUMS<Data extends AbstractKVStorable> {
                         logger.error("Can't create file {}. {}", tmpFileName, e);
                         throw e;
                     }
+                } else {
+                    // also needed without log, reads skip buckets older than the file
+                    readHeader(tmpFileName, i, syncedGenerations, fileSizes);
+                }
+            }
+            if (gp.WRITE_AHEAD_LOG) {
+                writeAheadLog = new WriteAheadLog(gp.DATABASE_DIRECTORY, buckets.length, gp.getElementSize(),
+                        gp.WAL_SEGMENT_SIZE, syncedGenerations);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                // the generations must be larger than all generations in the files and in the log
+                long generation = syncedGenerations[i];
+                if (writeAheadLog != null) {
+                    generation = Math.max(generation, writeAheadLog.getMaxGeneration(i));
                 }
+                buckets[i] = new Bucket<Data>(i, generation + 1, gp);
             }
             bucketContainer = new BucketContainer<Data>(buckets, hashFunction);
+            bucketContainer.setInsertTimeout(gp.INSERT_TIMEOUT);
+            // with a global memory limit, other tables might free the memory this table waits for
+            final BucketContainer<Data> container = bucketContainer;
+            DynamicMemoryAllocater.getInstance(gp.instanceID).setReleaseListener(new Runnable() {
+                @Override
+                public void run() {
+                    container.signalSpaceAvailable();
+                }
+            });
             synchronizerFactory = new SynchronizerFactory<Data>();
             syncManager = new SyncManager<Data>(bucketContainer, synchronizerFactory, gp);
+            syncManager.setWriteAheadLog(writeAheadLog);
+            for (int i = 0; i < fileSizes.length; i++) {
+                syncManager.setFileSize(i, fileSizes[i]);
+            }
             syncManager.start();
+            if (writeAheadLog != null) {
+                writeAheadLog.replay(new ILogReplayer() {
+                    @Override
+                    public long replay(int bucketId, ByteBuffer record) throws Exception {
+                        return container.addToBucket(bucketId, record).getGeneration();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Reads the generation of the last bucket synchronized into the given file or its sorted runs and the filled size
+     * of the file into the given arrays.
+     */
+    private void readHeader(String filename, int bucketId, long[] syncedGenerations, long[] fileSizes)
+            throws IOException {
+        try {
+            HeaderIndexFile<Data> file = new HeaderIndexFile<Data>(filename, HeaderIndexFile.AccessMode.READ_ONLY,
+                    gp.HEADER_FILE_LOCK_RETRY, gp);
+            syncedGenerations[bucketId] = Math.max(file.getSyncedGeneration(),
+                    SortedRuns.get(filename, gp).getMaxGeneration());
+            fileSizes[bucketId] = file.getFilledUpFromContentStart();
+            file.close();
+        } catch (FileLockException e) {
+            throw new IOException("Can't read the header of " + filename, e);
         }
     }
 
@@ -160,40 +251,257 @@ public class DRUMS<Data extends AbstractKVStorable> {
     }
 
     /**
-     * Adds or merges the given data. If all memory buckets are full, this method is blocking the calling thread. <br>
+     * Adds or merges the given data. If all memory buckets are full, this method is blocking the calling thread, till
+     * memory is freed, but at most {@link DRUMSParameterSet#INSERT_TIMEOUT} milliseconds. <br>
      * <br>
      * A merge calls the method {@link Data#merge(AbstractKVStorable)}.
      * 
      * @param toPersist
      *            data to insert or update
      * @throws DRUMSException
-     *             if an unexpected error occurs
+     *             if an unexpected error occurs or the insert timeout was exceeded
      * @throws InterruptedException
      *             if the call blocks and the current thread is interrupted
      */
     public void insertOrMerge(Data... toPersist) throws DRUMSException, InterruptedException {
         try {
-            bucketContainer.addToCache(toPersist);
+            if (writeAheadLog == null) {
+                bucketContainer.addToCache(toPersist);
+            } else {
+                Bucket<Data>[] targets = newTargets(toPersist.length);
+                bucketContainer.addToCache(toPersist, targets);
+                log(toPersist, targets, toPersist.length);
+            }
+        } catch (BucketContainerException ex) {
+            throw new DRUMSException(ex);
+        }
+    }
+
+    /**
+     * Adds or merges the given data as {@link #insertOrMerge(AbstractKVStorable...)} does, but returns a
+     * {@link SyncFuture}, which is done as soon as all given records were merged into their files. So a producer can
+     * keep many batches in flight and still knows, when each batch is persisted. The data is synchronized as usual,
+     * this method doesn't force any synchronization.
+     * 
+     * @param toPersist
+     *            data to insert or update
+     * @return a future, which is done when the records are persisted
+     * @throws DRUMSException
+     *             if an unexpected error occurs or the insert timeout was exceeded
+     * @throws InterruptedException
+     *             if the call blocks and the current thread is interrupted
+     */
+    public SyncFuture insertOrMergeAsync(Data... toPersist) throws DRUMSException, InterruptedException {
+        Bucket<Data>[] targets = newTargets(toPersist.length);
+        try {
+            bucketContainer.addToCache(toPersist, targets);
+        } catch (BucketContainerException ex) {
+            throw new DRUMSException(ex);
+        }
+        log(toPersist, targets, toPersist.length);
+        SyncFuture future = new SyncFuture();
+        for (Bucket<Data> bucket : new HashSet<Bucket<Data>>(Arrays.asList(targets))) {
+            future.register(bucket);
+        }
+        future.arm();
+        return future;
+    }
+
+    /**
+     * Adds or merges the serialized records in the given buffer. The records are read from the actual position of the
+     * buffer till its limit and copied directly into the memory buckets, so no objects are built. If all memory
+     * buckets are full, this method is blocking as {@link #insertOrMerge(AbstractKVStorable...)} does. <br>
+     * <br>
+     * A merge calls the method {@link Data#merge(AbstractKVStorable)} during synchronization.
+     * 
+     * @param records
+     *            the serialized records to insert or update, each of {@link DRUMSParameterSet#getElementSize()} bytes
+     *            starting with its key
+     * @throws DRUMSException
+     *             if the number of remaining bytes is not a multiple of the element size, an unexpected error occurs
+     *             or the insert timeout was exceeded
+     * @throws InterruptedException
+     *             if the call blocks and the current thread is interrupted
+     */
+    public void insertOrMerge(ByteBuffer records) throws DRUMSException, InterruptedException {
+        if (records.remaining() % gp.getElementSize() != 0) {
+            throw new DRUMSException("The number of bytes (" + records.remaining()
+                    + ") is not a multiple of the element size " + gp.getElementSize());
+        }
+        try {
+            if (writeAheadLog == null) {
+                bucketContainer.addToCache(records, gp.getElementSize(), gp.getKeySize());
+            } else {
+                int start = records.position();
+                Bucket<Data>[] targets = newTargets(records.remaining() / gp.getElementSize());
+                bucketContainer.addToCache(records, gp.getElementSize(), gp.getKeySize(), targets);
+                ByteBuffer added = records.duplicate();
+                added.position(start);
+                log(targets, targets.length, added);
+            }
+        } catch (BucketContainerException ex) {
+            throw new DRUMSException(ex);
+        }
+    }
+
+    /**
+     * Adds or merges <code>count</code> serialized records from the given array, starting at <code>offset</code>. See
+     * {@link #insertOrMerge(ByteBuffer)}.
+     * 
+     * @param records
+     *            the array containing the serialized records
+     * @param offset
+     *            the position of the first record in the array
+     * @param count
+     *            the number of records to insert or update
+     * @throws DRUMSException
+     *             if an unexpected error occurs or the insert timeout was exceeded
+     * @throws InterruptedException
+     *             if the call blocks and the current thread is interrupted
+     */
+    public void insertOrMerge(byte[] records, int offset, int count) throws DRUMSException, InterruptedException {
+        insertOrMerge(ByteBuffer.wrap(records, offset, count * gp.getElementSize()));
+    }
+
+    /**
+     * Deletes the records with the given keys. For each key a tombstone, a clone of the prototype marked by
+     * {@link AbstractKVStorable#markAsDeleted()}, is added to the memory buckets like an insert. The synchronization
+     * drops the tombstone together with the record from the file, so the space is reclaimed by the same merge, which
+     * writes the bucket. Records with the same key, which are added after the delete, replace the deleted record.
+     * 
+     * @param keys
+     *            the keys of the records to delete, each of {@link DRUMSParameterSet#getKeySize()} bytes
+     * @throws DRUMSException
+     *             if a key has the wrong size, an unexpected error occurs or the insert timeout was exceeded
+     * @throws InterruptedException
+     *             if the call blocks and the current thread is interrupted
+     * @throws UnsupportedOperationException
+     *             if the prototype can't be marked as deleted, see {@link AbstractKVStorable#canBeMarkedAsDeleted()}
+     */
+    public void delete(byte[]... keys) throws DRUMSException, InterruptedException {
+        if (!prototype.canBeMarkedAsDeleted()) {
+            throw new UnsupportedOperationException(prototype.getClass().getName() + " can't be marked as deleted.");
+        }
+        @SuppressWarnings("unchecked")
+        Data[] tombstones = (Data[]) new AbstractKVStorable[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].length != gp.getKeySize()) {
+                throw new DRUMSException("The key size (" + keys[i].length + ") differs from the key size "
+                        + gp.getKeySize());
+            }
+            @SuppressWarnings("unchecked")
+            Data tombstone = (Data) prototype.clone();
+            tombstone.setKey(keys[i].clone());
+            tombstone.markAsDeleted();
+            tombstones[i] = tombstone;
+        }
+        insertOrMerge(tombstones);
+    }
+
+    /**
+     * Adds or merges the given data as long as this is possible without blocking. The data is added in the given order.
+     * If the memory bucket for one element is full, this method returns immediately.
+     * 
+     * @param toPersist
+     *            data to insert or update
+     * @return the number of added elements. These are the first elements of <code>toPersist</code>
+     * @throws DRUMSException
+     *             if an unexpected error occurs
+     */
+    public int tryInsertOrMerge(Data... toPersist) throws DRUMSException {
+        try {
+            if (writeAheadLog == null) {
+                return bucketContainer.tryAddToCache(toPersist);
+            }
+            Bucket<Data>[] targets = newTargets(toPersist.length);
+            int added = bucketContainer.tryAddToCache(toPersist, targets);
+            log(toPersist, targets, added);
+            return added;
         } catch (BucketContainerException ex) {
-            // This exception should never be thrown because the hash function should map all keys to a bucket.
             throw new DRUMSException(ex);
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private Bucket<Data>[] newTargets(int length) {
+        return new Bucket[length];
+    }
+
+    /**
+     * Writes the first <code>count</code> of the given records to the {@link WriteAheadLog} and waits, till they are
+     * forced to disk. Does nothing, if there is no log.
+     */
+    private void log(Data[] records, Bucket<Data>[] targets, int count) throws DRUMSException {
+        if (writeAheadLog == null || count == 0) {
+            return;
+        }
+        ByteBuffer serialized = ByteBuffer.allocate(count * gp.getElementSize());
+        for (int i = 0; i < count; i++) {
+            records[i].writeTo(serialized);
+        }
+        log(targets, count, ByteBuffer.wrap(serialized.array()));
+    }
+
+    /**
+     * Writes the given serialized records to the {@link WriteAheadLog} and waits, till they are forced to disk. Does
+     * nothing, if there is no log.
+     */
+    private void log(Bucket<Data>[] targets, int count, ByteBuffer records) throws DRUMSException {
+        if (writeAheadLog == null || count == 0) {
+            return;
+        }
+        int[] bucketIds = new int[count];
+        long[] generations = new long[count];
+        for (int i = 0; i < count; i++) {
+            bucketIds[i] = targets[i].getBucketId();
+            generations[i] = targets[i].getGeneration();
+        }
+        try {
+            writeAheadLog.sync(writeAheadLog.append(bucketIds, generations, records));
+        } catch (IOException ex) {
+            throw new DRUMSException("Could not write to the write-ahead log", ex);
+        }
+    }
+
     /**
      * Updates the given data. Be careful, ONLY updates are provided. If the given array contains elements, which are
      * not already stored in the underlying DRUMS-table, they will be not taken into account during synchronization.<br>
      * <br>
      * This method uses the {@link UpdateOnlySynchronizer}, which by itself uses the Data's implemented update-function
      * ({@link Data#update(AbstractKVStorable)}) to update elements. If you want to merge objects, use
-     * {@link #insertOrMerge(Data ...)} instead.
+     * {@link #insertOrMerge(Data ...)} instead.<br>
+     * <br>
+     * The files of different buckets are updated in parallel by {@link DRUMSParameterSet#NUMBER_OF_UPDATE_THREADS}
+     * threads. This method returns, when all files were updated.
      * 
      * @param records
      *            the data to update
      * 
+     * @throws UpdateException
+     *             if the files of some buckets couldn't be updated. The files of all other buckets were updated
      * @throws IOException
      */
     public void update(Data... records) throws IOException {
+        try {
+            updateAsync(records).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the update, it is finished in background.");
+        } catch (ExecutionException ex) {
+            throw (UpdateException) ex.getCause();
+        }
+    }
+
+    /**
+     * Updates the given data as {@link #update(AbstractKVStorable...)} does, but returns an {@link UpdateFuture}, which
+     * is done as soon as the files of all buckets were updated. If only one update thread is configured, the files are
+     * updated by the calling thread and the returned future is already done.
+     * 
+     * @param records
+     *            the data to update
+     * @return a future, which is done when all files were updated
+     */
+    public UpdateFuture updateAsync(Data... records) {
         // ############ reorder data
         IntObjectOpenHashMap<ArrayList<Data>> bucketDataMapping = new IntObjectOpenHashMap<ArrayList<Data>>();
         int bucketId;
@@ -205,18 +513,48 @@ public class DRUMS<Data extends AbstractKVStorable> {
             bucketDataMapping.get(bucketId).add(d);
         }
 
+        UpdateFuture future = new UpdateFuture(bucketDataMapping.size());
+        ExecutorService executor = getUpdateThreads();
         for (IntObjectCursor<ArrayList<Data>> entry : bucketDataMapping) {
-            UpdateOnlySynchronizer<Data> synchronizer = new UpdateOnlySynchronizer<Data>(gp.DATABASE_DIRECTORY + "/"
-                    + hashFunction.getFilename(entry.key), gp);
-            @SuppressWarnings("unchecked")
-            Data[] toUpdate = (Data[]) entry.value.toArray(new AbstractKVStorable[entry.value.size()]);
-            Arrays.sort(toUpdate, new AbstractKVStorableComparator());
-            synchronizer.upsert(toUpdate);
+            Runnable task = future.newTask(entry.key, newBucketUpdate(entry.key, entry.value));
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+        }
+        return future;
+    }
+
+    /** @return the update of the file of the given bucket by the given records */
+    private Callable<Void> newBucketUpdate(final int bucketId, final List<Data> records) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                UpdateOnlySynchronizer<Data> synchronizer = new UpdateOnlySynchronizer<Data>(gp.DATABASE_DIRECTORY
+                        + "/" + hashFunction.getFilename(bucketId), gp);
+                @SuppressWarnings("unchecked")
+                Data[] toUpdate = (Data[]) records.toArray(new AbstractKVStorable[records.size()]);
+                Arrays.sort(toUpdate, new AbstractKVStorableComparator());
+                synchronizer.upsert(toUpdate);
+                return null;
+            }
+        };
+    }
+
+    /** @return the threads updating the files in parallel, or null if the files are updated by the calling thread */
+    private synchronized ExecutorService getUpdateThreads() {
+        if (updateThreads == null && gp.NUMBER_OF_UPDATE_THREADS > 1) {
+            updateThreads = Executors.newFixedThreadPool(gp.NUMBER_OF_UPDATE_THREADS, new NamedThreadFactory(
+                    "DRUMS-update"));
         }
+        return updateThreads;
     }
 
     /**
-     * Selects all existing records to the keys in the given array.
+     * Selects all existing records to the keys in the given array. If {@link DRUMSParameterSet#READ_FROM_BUCKETS} is
+     * set, records which are not synchronized yet are found too. They are merged with the record from the file, as the
+     * synchronization would do.
      * 
      * @param keys
      *            the keys to look for
@@ -231,11 +569,21 @@ public class DRUMS<Data extends AbstractKVStorable> {
             filename = gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(entry.key);
             HeaderIndexFile<Data> indexFile = null;
             try {
-                indexFile = new HeaderIndexFile<Data>(filename, HeaderIndexFile.AccessMode.READ_ONLY,
-                        gp.HEADER_FILE_LOCK_RETRY, gp);
-
                 ArrayList<byte[]> keyList = entry.value;
-                result.addAll(searchForData(indexFile, keyList.toArray(new byte[keyList.size()][])));
+                byte[][] keyArray = keyList.toArray(new byte[keyList.size()][]);
+                Arrays.sort(keyArray, new ByteArrayComparator());
+                // the buckets must be read before the file, a bucket synchronized meanwhile is found in the file then
+                BucketRecords fromBuckets = lookupInBuckets(entry.key, keyArray);
+                // the file and its runs must not be compacted, while they are read
+                Lock lock = SortedRuns.get(filename, gp).getLock().readLock();
+                lock.lock();
+                try {
+                    indexFile = new HeaderIndexFile<Data>(filename, HeaderIndexFile.AccessMode.READ_ONLY,
+                            gp.HEADER_FILE_LOCK_RETRY, gp);
+                    result.addAll(mergeWithBuckets(entry.key, indexFile, keyArray, fromBuckets));
+                } finally {
+                    lock.unlock();
+                }
             } catch (FileLockException ex) {
                 logger.error("Could not access the file {} within {} retries. The file seems to be locked.", filename,
                         gp.HEADER_FILE_LOCK_RETRY);
@@ -252,6 +600,241 @@ public class DRUMS<Data extends AbstractKVStorable> {
         return result;
     }
 
+    /**
+     * Looks up the given keys in all buckets with the given id, which are not synchronized yet. These are the buckets
+     * in the synchronization process and the actual bucket of the {@link BucketContainer}. Must be called before the
+     * file of the bucket is read. Otherwise a bucket could be synchronized in between and its records would be missed.
+     * 
+     * @param bucketId
+     *            the id of the buckets to look in
+     * @param keys
+     *            the keys to look for, sorted ascending
+     * @return the found records. <code>null</code>, if {@link DRUMSParameterSet#READ_FROM_BUCKETS} is not set or this
+     *         table is opened for reading only
+     */
+    BucketRecords lookupInBuckets(int bucketId, byte[][] keys) {
+        if (!gp.READ_FROM_BUCKETS || bucketContainer == null) {
+            return null;
+        }
+        // the actual bucket first, it might be moved to the processing buckets in the meantime
+        List<Bucket<Data>> unsynchronized = new ArrayList<Bucket<Data>>();
+        unsynchronized.add(bucketContainer.getBucket(bucketId));
+        Set<Bucket<Data>> processing = syncManager.getActualProcessingBuckets();
+        synchronized (processing) {
+            for (Bucket<Data> bucket : processing) {
+                if (bucket.getBucketId() == bucketId && !unsynchronized.contains(bucket)) {
+                    unsynchronized.add(bucket);
+                }
+            }
+        }
+        Collections.sort(unsynchronized, new Comparator<Bucket<Data>>() {
+            @Override
+            public int compare(Bucket<Data> b1, Bucket<Data> b2) {
+                return Long.compare(b1.getGeneration(), b2.getGeneration());
+            }
+        });
+        BucketRecords found = new BucketRecords(unsynchronized.size());
+        for (int b = 0; b < unsynchronized.size(); b++) {
+            Bucket<Data> bucket = unsynchronized.get(b);
+            found.generations[b] = bucket.getGeneration();
+            List<List<byte[]>> byKey = new ArrayList<List<byte[]>>(keys.length);
+            for (int k = 0; k < keys.length; k++) {
+                byKey.add(bucket.lookup(keys[k]));
+            }
+            found.records.add(byKey);
+        }
+        return found;
+    }
+
+    /**
+     * Searches the given keys in the given file and merges the found records with the records, which were found in the
+     * buckets before. The records of buckets, which are already synchronized into the file, are skipped. The records
+     * are merged in the order of the synchronization: the record from the file first, then the records of the
+     * buckets by their generation and the order they were added. Keys, which are not in the Bloom filter of the file,
+     * are not searched in the file. If the file has sorted runs, the records from the runs are merged after the record
+     * from the file, ordered by the age of the runs. Records marked as deleted in a run or a bucket are dropped.
+     * 
+     * @param bucketId
+     *            the id of the bucket belonging to the file
+     * @param indexFile
+     *            the file to search in
+     * @param keys
+     *            the keys to search for, sorted ascending
+     * @param fromBuckets
+     *            the records found by {@link #lookupInBuckets(int, byte[][])} for the same keys, might be
+     *            <code>null</code>
+     * @return the merged records, ascending by their keys
+     * @throws IOException
+     */
+    List<Data> mergeWithBuckets(int bucketId, HeaderIndexFile<Data> indexFile, byte[][] keys,
+            BucketRecords fromBuckets) throws IOException {
+        SortedRuns sortedRuns = SortedRuns.get(gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(bucketId), gp);
+        List<SortedRuns.Run> runs;
+        List<Data> fromFile;
+        Lock lock = sortedRuns.getLock().readLock();
+        lock.lock();
+        try {
+            runs = sortedRuns.getRuns();
+            fromFile = search(indexFile, getBloomFilter(bucketId, indexFile), keys);
+            if (!runs.isEmpty()) {
+                fromFile = mergeWithRuns(fromFile, runs, keys);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (fromBuckets == null) {
+            return runs.isEmpty() ? fromFile : removeDeleted(fromFile);
+        }
+        long syncedGeneration = Math.max(indexFile.getSyncedGeneration(), sortedRuns.getMaxGeneration());
+        List<Data> result = new ArrayList<Data>();
+        int f = 0;
+        for (int k = 0; k < keys.length; k++) {
+            if (k > 0 && KeyUtils.compareKey(keys[k - 1], keys[k]) == 0) {
+                continue;
+            }
+            Data merged = null;
+            while (f < fromFile.size() && KeyUtils.compareKey(fromFile.get(f).getKey(), keys[k]) < 0) {
+                f++;
+            }
+            if (f < fromFile.size() && KeyUtils.compareKey(fromFile.get(f).getKey(), keys[k]) == 0) {
+                merged = fromFile.get(f);
+            }
+            for (int b = 0; b < fromBuckets.generations.length; b++) {
+                if (fromBuckets.generations[b] <= syncedGeneration) {
+                    continue;
+                }
+                for (byte[] record : fromBuckets.records.get(b).get(k)) {
+                    @SuppressWarnings("unchecked")
+                    Data fromBucket = (Data) prototype.fromByteBuffer(ByteBuffer.wrap(record));
+                    merged = merged == null ? fromBucket : AbstractKVStorable.mergeInOrder(merged, fromBucket);
+                }
+            }
+            if (merged != null) {
+                result.add(merged);
+            }
+        }
+        return removeDeleted(result);
+    }
+
+    /**
+     * Searches the given keys in the given file. Keys, which are not in the given Bloom filter, are not searched.
+     * 
+     * @param filter
+     *            the Bloom filter of the file, might be <code>null</code>
+     * @return the found records, ascending by their keys
+     */
+    private List<Data> search(HeaderIndexFile<Data> file, BloomFilter filter, byte[][] keys) throws IOException {
+        if (filter == null) {
+            return searchForData(file, keys);
+        }
+        List<byte[]> probablyInFile = new ArrayList<byte[]>();
+        for (byte[] key : keys) {
+            if (filter.mightContain(key)) {
+                probablyInFile.add(key);
+            }
+        }
+        return probablyInFile.isEmpty() ? new ArrayList<Data>() : searchForData(file,
+                probablyInFile.toArray(new byte[probablyInFile.size()][]));
+    }
+
+    /**
+     * Searches the given keys in the given runs and merges the found records with the records from the file, the
+     * oldest run first. A record, which replaces older records (see {@link ReplacingElements}), is not merged.
+     * 
+     * @return the merged records, ascending by their keys
+     */
+    private List<Data> mergeWithRuns(List<Data> fromFile, List<SortedRuns.Run> runs, byte[][] keys)
+            throws IOException {
+        TreeMap<byte[], Data> merged = new TreeMap<byte[], Data>(new ByteArrayComparator());
+        for (Data record : fromFile) {
+            merged.put(record.getKey(), record);
+        }
+        for (SortedRuns.Run run : runs) {
+            HeaderIndexFile<Data> runFile;
+            try {
+                runFile = new HeaderIndexFile<Data>(run.filename, HeaderIndexFile.AccessMode.READ_ONLY,
+                        gp.HEADER_FILE_LOCK_RETRY, gp);
+            } catch (FileLockException e) {
+                throw new IOException("Can't open the run " + run.filename, e);
+            }
+            try {
+                ReplacingElements replacing = run.getReplacingElements();
+                for (Data record : search(runFile, run.getBloomFilter(), keys.clone())) {
+                    Data older = merged.get(record.getKey());
+                    Data newer = older == null || replacing.contains(record.getKey()) ? record : AbstractKVStorable
+                            .mergeInOrder(older, record);
+                    merged.put(record.getKey(), newer);
+                }
+            } finally {
+                runFile.close();
+            }
+        }
+        return new ArrayList<Data>(merged.values());
+    }
+
+    /** @return the given records without the records marked as deleted */
+    private List<Data> removeDeleted(List<Data> records) {
+        List<Data> result = new ArrayList<Data>(records.size());
+        for (Data record : records) {
+            if (!record.isMarkedAsDeleted()) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param bucketId
+     *            the id of the bucket belonging to the file
+     * @param indexFile
+     *            the opened file
+     * @return the Bloom filter of the given file, if it matches the actual content of the file. Otherwise
+     *         <code>null</code>
+     */
+    private BloomFilter getBloomFilter(int bucketId, HeaderIndexFile<Data> indexFile) {
+        if (gp.BLOOM_FILTER_BITS_PER_KEY <= 0) {
+            return null;
+        }
+        long filledUpTo = indexFile.getFilledUpFromContentStart();
+        long generation = indexFile.getSyncedGeneration();
+        LoadedBloomFilter loaded = bloomFilters.get(bucketId);
+        if (loaded == null || !loaded.isLoadedFor(filledUpTo, generation)) {
+            BloomFilter filter = BloomFilter.load(gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(bucketId));
+            if (filter != null && !filter.isValidFor(filledUpTo, generation)) {
+                filter = null;
+            }
+            loaded = new LoadedBloomFilter(filter, filledUpTo, generation);
+            bloomFilters.set(bucketId, loaded);
+        }
+        return loaded.filter;
+    }
+
+    /**
+     * The result of loading the Bloom filter of a file for one state of the file. A missing or outdated filter is
+     * remembered as well, so it isn't looked for again until the file is synchronized.
+     */
+    private static class LoadedBloomFilter {
+        /** the loaded filter, <code>null</code> if the file has no valid filter */
+        private final BloomFilter filter;
+
+        /** the size of the file, the filter was loaded for */
+        private final long filledUpTo;
+
+        /** the synchronized generation of the file, the filter was loaded for */
+        private final long generation;
+
+        private LoadedBloomFilter(BloomFilter filter, long filledUpTo, long generation) {
+            this.filter = filter;
+            this.filledUpTo = filledUpTo;
+            this.generation = generation;
+        }
+
+        /** @return true, if the filter was loaded for the given state of the file */
+        private boolean isLoadedFor(long filledUpTo, long generation) {
+            return this.filledUpTo == filledUpTo && this.generation == generation;
+        }
+    }
+
     /**
      * Reads <code>numberToRead</code> elements (or less if there are not enough elements) from the bucket with the
      * given <code>bucketId</code> beginning at the element offset.
@@ -335,6 +918,7 @@ public class DRUMS<Data extends AbstractKVStorable> {
         int indexInChunk = 0;
         ByteBuffer workingBuffer = ByteBuffer.allocate((int) indexFile.getChunkSize());
         byte[] tmpB = new byte[gp.getElementSize()]; // stores temporarily the bytestream of an object
+        boolean encoded = false; // true, if the workingBuffer contains a prefix encoded chunk
         for (byte[] key : keys) {
             // get actual chunkIndex
             actualChunkIdx = index.getChunkId(key);
@@ -348,18 +932,27 @@ public class DRUMS<Data extends AbstractKVStorable> {
                     indexFile.read(oldChunkOffset, workingBuffer);
                     indexInChunk = 0;
                 }
-                // read a new part to the readBuffer
-                indexFile.read(actualChunkOffset, workingBuffer);
+                // read a new part to the readBuffer, prefix encoded chunks are only decoded while searching
+                encoded = indexFile.readEncodedChunk(actualChunkOffset, workingBuffer);
+                if (!encoded) {
+                    indexFile.read(actualChunkOffset, workingBuffer);
+                }
             }
-            // find offset in workingBuffer
-            indexInChunk = findElementInReadBuffer(workingBuffer, key, indexInChunk);
-            if (indexInChunk == -1) {
-                indexInChunk = 0;
-                continue;
+            if (encoded) {
+                if (!findElementInEncodedBuffer(workingBuffer, key, tmpB)) {
+                    continue;
+                }
+            } else {
+                // find offset in workingBuffer
+                indexInChunk = findElementInReadBuffer(workingBuffer, key, indexInChunk);
+                if (indexInChunk == -1) {
+                    indexInChunk = 0;
+                    continue;
+                }
+                // read element from workingBuffer
+                workingBuffer.position(indexInChunk);
+                workingBuffer.get(tmpB);
             }
-            // read element from workingBuffer
-            workingBuffer.position(indexInChunk);
-            workingBuffer.get(tmpB);
             @SuppressWarnings("unchecked")
             Data copy = (Data) prototype.fromByteBuffer(ByteBuffer.wrap(tmpB));
             result.add(copy);
@@ -434,6 +1027,22 @@ public class DRUMS<Data extends AbstractKVStorable> {
         return -1;
     }
 
+    /**
+     * Searches for the given key in a prefix encoded chunk (see {@link PrefixEncodedChunk}). Only the keys at the
+     * restart points and the records behind the nearest restart point are decoded.
+     * 
+     * @param workingBuffer
+     *            the encoded chunk, read by {@link HeaderIndexFile#readEncodedChunk(long, ByteBuffer)}
+     * @param key
+     *            the key to find
+     * @param record
+     *            the array, where the found record is decoded to
+     * @return true, if the key was found
+     */
+    public boolean findElementInEncodedBuffer(ByteBuffer workingBuffer, byte[] key, byte[] record) {
+        return PrefixEncodedChunk.find(workingBuffer, key, gp.getElementSize(), gp.getKeySize(), record);
+    }
+
     /**
      * Instantiates a new {@link DRUMSIterator} and returns it.
      * 
@@ -484,11 +1093,36 @@ public class DRUMS<Data extends AbstractKVStorable> {
         }
         reader_instance = null;
 
+        // running updates are finished first
+        synchronized (this) {
+            if (updateThreads != null) {
+                updateThreads.shutdown();
+                updateThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                updateThreads = null;
+            }
+        }
+
         // you can only close a syncmanager, when drums was opened for READ_WRITE
         if (syncManager != null) {
             syncManager.shutdown();
             syncManager.join();
         }
+        if (synchronizerFactory instanceof Closeable) {
+            try {
+                ((Closeable) synchronizerFactory).close();
+            } catch (IOException e) {
+                logger.error("Could not close the synchronizer factory", e);
+            }
+        }
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                logger.error("Could not close the write-ahead log", e);
+            }
+            writeAheadLog = null;
+        }
+        DynamicMemoryAllocater.release(gp.instanceID);
     }
 
     /**
@@ -574,4 +1208,18 @@ public class DRUMS<Data extends AbstractKVStorable> {
     public DRUMSParameterSet<Data> getGlobalParameters() {
         return gp;
     }
+
+    /** The records found in the unsynchronized buckets by {@link DRUMS#lookupInBuckets(int, byte[][])}. */
+    static class BucketRecords {
+        /** the generations of the buckets, ascending */
+        final long[] generations;
+
+        /** for each bucket and each key the raw records in the order they were added */
+        final List<List<List<byte[]>>> records;
+
+        BucketRecords(int numberOfBuckets) {
+            this.generations = new long[numberOfBuckets];
+            this.records = new ArrayList<List<List<byte[]>>>(numberOfBuckets);
+        }
+    }
 }
@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import com.unister.semweb.drums.DRUMSParameterSet;
 import com.unister.semweb.drums.api.DRUMS.AccessMode;
 import com.unister.semweb.drums.bucket.hashfunction.AbstractHashFunction;
+import com.unister.semweb.drums.bucket.hashfunction.RangeHashFunction;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 
 /**
@@ -70,6 +71,33 @@ public class DRUMSInstantiator {
         return table;
     }
 
+    /**
+     * Creates the directory of a new table as {@link #createTable(AbstractHashFunction, DRUMSParameterSet)} does, but
+     * returns a {@link BulkLoader} to fill the table in one sequential pass. After {@link BulkLoader#finish()} the table
+     * can be opened by {@link #openTable(AccessMode, DRUMSParameterSet)}.
+     * 
+     * @param hashFunction
+     *            the hash function, decides where to store/search elements
+     * @param gp
+     *            pointer to the {@link DRUMSParameterSet} used by the {@link DRUMS} to open
+     * @return a new {@link BulkLoader}
+     * @throws IOException
+     *             if the directory already exists or the configuration can't be written
+     */
+    public static <Data extends AbstractKVStorable> BulkLoader<Data> createBulkLoader(RangeHashFunction hashFunction,
+            DRUMSParameterSet<Data> gp) throws IOException {
+        File databaseDirectoryFile = new File(gp.DATABASE_DIRECTORY);
+        if (databaseDirectoryFile.exists()) {
+            throw new IOException("The directory " + databaseDirectoryFile + " already exist. Can't create a DRUMS.");
+        }
+        databaseDirectoryFile.mkdirs();
+        logger.info("Created directory {}.", gp.DATABASE_DIRECTORY);
+
+        gp.store();
+        storeHashFunction(gp, hashFunction);
+        return new BulkLoader<Data>(hashFunction, gp);
+    }
+
     /**
      * This method creates a new {@link DRUMS} object. The old {@link DRUMS} will be overwritten. <br/>
      * If the given directory doesn't exist, it will be created.<br/>
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.carrotsearch.hppc.IntObjectOpenHashMap;
@@ -27,6 +28,7 @@ import com.unister.semweb.drums.file.FileLockException;
 import com.unister.semweb.drums.file.HeaderIndexFile;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
+import com.unister.semweb.drums.util.ByteArrayComparator;
 import com.unister.semweb.drums.util.KeyUtils;
 
 /**
@@ -220,7 +222,9 @@ public class DRUMSReader<Data extends AbstractKVStorable> {
     }
 
     /**
-     * Takes a list of keys and searches for that in all buckets.
+     * Takes a list of keys and searches for that in all buckets. If
+     * {@link com.unister.semweb.drums.DRUMSParameterSet#READ_FROM_BUCKETS} is set, records which are not synchronized
+     * yet are found and merged too.
      * 
      * @param keys
      * @return {@link ArrayList}
@@ -235,7 +239,10 @@ public class DRUMSReader<Data extends AbstractKVStorable> {
         IntObjectOpenHashMap<ArrayList<byte[]>> bucketKeyMapping = drums.getBucketKeyMapping(keys);
         for (IntObjectCursor<ArrayList<byte[]>> entry : bucketKeyMapping) {
             ArrayList<byte[]> keyList = entry.value;
-            List<Data> readData = drums.searchForData(files[entry.key], keyList.toArray(new byte[keyList.size()][]));
+            byte[][] keyArray = keyList.toArray(new byte[keyList.size()][]);
+            Arrays.sort(keyArray, new ByteArrayComparator());
+            DRUMS.BucketRecords fromBuckets = drums.lookupInBuckets(entry.key, keyArray);
+            List<Data> readData = drums.mergeWithBuckets(entry.key, files[entry.key], keyArray, fromBuckets);
             result.addAll(readData);
         }
         return result;
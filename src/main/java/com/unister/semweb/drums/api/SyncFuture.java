@@ -0,0 +1,116 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.api;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.bucket.ISyncListener;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * The result of {@link DRUMS#insertOrMergeAsync(AbstractKVStorable...)}. The future is done, when all {@link Bucket}s
+ * containing the inserted records were synchronized with their files. If the synchronization of one of these buckets
+ * failed, {@link #get()} throws an {@link ExecutionException}. The future can't be cancelled.
+ * 
+ * @author Martin Nettling
+ */
+public class SyncFuture implements Future<Void>, ISyncListener {
+
+    /** the number of buckets still to synchronize, plus one until all buckets are registered */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    /** released, when the future is done */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /** the first failure of a synchronization, or null */
+    private volatile Exception failure;
+
+    /**
+     * Registers this future at the given bucket. All buckets must be registered before {@link #arm()} is called.
+     * 
+     * @param bucket
+     *            a bucket containing some of the records
+     */
+    void register(Bucket<?> bucket) {
+        pending.incrementAndGet();
+        bucket.addSyncListener(this);
+    }
+
+    /** Signals, that all buckets are registered. The future is done, as soon as all of them are synchronized. */
+    void arm() {
+        if (pending.decrementAndGet() == 0) {
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void synchronizationFinished(Bucket<?> bucket) {
+        if (pending.decrementAndGet() == 0) {
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void synchronizationFailed(Bucket<?> bucket, Exception cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        done.countDown();
+    }
+
+    /** Does nothing, records already added to the buckets can't be removed. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException("The synchronization of at least one bucket failed.", failure);
+        }
+        return null;
+    }
+}
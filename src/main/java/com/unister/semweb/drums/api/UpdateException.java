@@ -0,0 +1,62 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * Is thrown by {@link DRUMS#update(AbstractKVStorable...)}, if the files of some buckets couldn't be updated. The
+ * files of all other buckets were updated. The failure of each bucket is given by {@link #getFailures()}, the first
+ * one is the cause of this exception.
+ *
+ * @author Martin Nettling
+ */
+public class UpdateException extends IOException {
+    private static final long serialVersionUID = 2916513428260412350L;
+
+    /** the failures, indexed by the id of the bucket */
+    private final SortedMap<Integer, Exception> failures;
+
+    /**
+     * @param failures
+     *            the failures, indexed by the id of the bucket. Must not be empty
+     * @param numberOfBuckets
+     *            the number of buckets, which should be updated
+     */
+    public UpdateException(Map<Integer, Exception> failures, int numberOfBuckets) {
+        super("The update of " + failures.size() + " of " + numberOfBuckets + " buckets failed: "
+                + new TreeMap<Integer, Exception>(failures).keySet());
+        this.failures = Collections.unmodifiableSortedMap(new TreeMap<Integer, Exception>(failures));
+        for (Exception failure : this.failures.values()) {
+            if (getCause() == null) {
+                initCause(failure);
+            } else {
+                addSuppressed(failure);
+            }
+        }
+    }
+
+    /** @return the failures, indexed by the id of the bucket, whose file couldn't be updated */
+    public SortedMap<Integer, Exception> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.api;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * The result of {@link DRUMS#updateAsync(AbstractKVStorable...)}. The future is done, when the files of all buckets
+ * containing the given records were updated. If the update of some buckets failed, {@link #get()} throws an
+ * {@link ExecutionException}, whose cause is an {@link UpdateException} giving the failure of each bucket.<br>
+ * <br>
+ * Cancelling the future skips the buckets, whose update didn't start yet. Updates already started are finished, so no
+ * file is left half written.
+ *
+ * @author Martin Nettling
+ */
+public class UpdateFuture implements Future<Void> {
+
+    /** the number of buckets to update */
+    private final int numberOfBuckets;
+
+    /** released, when the update of each bucket is finished or skipped */
+    private final CountDownLatch done;
+
+    /** the failures, indexed by the id of the bucket */
+    private final ConcurrentHashMap<Integer, Exception> failures = new ConcurrentHashMap<Integer, Exception>();
+
+    /** true, if the buckets not updated yet are skipped */
+    private volatile boolean cancelled;
+
+    /**
+     * @param numberOfBuckets
+     *            the number of buckets to update. For each bucket one task must be created by {@link #newTask}
+     */
+    UpdateFuture(int numberOfBuckets) {
+        this.numberOfBuckets = numberOfBuckets;
+        this.done = new CountDownLatch(numberOfBuckets);
+    }
+
+    /**
+     * Creates the task, which updates the file of one bucket and reports its result to this future.
+     *
+     * @param bucketId
+     *            the id of the bucket
+     * @param update
+     *            updates the file of the bucket
+     * @return the task
+     */
+    Runnable newTask(final int bucketId, final Callable<?> update) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!cancelled) {
+                        update.call();
+                    }
+                } catch (Exception ex) {
+                    failures.put(bucketId, ex);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Skips the update of all buckets, which didn't start yet. The parameter is ignored, a running update is never
+     * interrupted.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return cancelled || done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        if (!cancelled) {
+            done.await();
+        }
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!cancelled && !done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("The update was cancelled.");
+        }
+        if (!failures.isEmpty()) {
+            throw new ExecutionException(new UpdateException(failures, numberOfBuckets));
+        }
+        return null;
+    }
+}
@@ -17,7 +17,11 @@ package com.unister.semweb.drums.bucket;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import com.unister.semweb.drums.DRUMSParameterSet;
 import com.unister.semweb.drums.api.DRUMS;
@@ -25,11 +29,12 @@ import com.unister.semweb.drums.bucket.hashfunction.AbstractHashFunction;
 import com.unister.semweb.drums.file.FileLockException;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
-import com.unister.semweb.drums.util.AbstractKVStorableComparator;
-import com.unister.semweb.drums.util.KeyUtils;
 
 /**
- * An instance of this class is a container of {@link AbstractKVStorable}s.
+ * An instance of this class is a container of {@link AbstractKVStorable}s. Several threads may add elements at the
+ * same time. Each thread reserves the slot for its element by a compare-and-set on {@link #elementsInBucket} and copies
+ * the element directly into the memory of the bucket. Before the content of a bucket is read for synchronizing, the
+ * bucket must be sealed by {@link #seal()}.
  * 
  * @author Martin Nettling, Nils Thieme
  * @param <Data>
@@ -37,21 +42,82 @@ import com.unister.semweb.drums.util.KeyUtils;
  */
 public class Bucket<Data extends AbstractKVStorable> {
 
+    /** atomic access to {@link #elementsInBucket} */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Bucket> ELEMENTS_UPDATER = AtomicIntegerFieldUpdater.newUpdater(
+            Bucket.class, "elementsInBucket");
+
     /**
-     * contains all memory chunks and its elements to store. We use byte-arrays to save memory, because mostly the whole
-     * object-structure takes double memory for small objects.
+     * contains all memory chunks and its elements to store. We use raw bytes to save memory, because mostly the whole
+     * object-structure takes double memory for small objects. The chunks are handed out by the
+     * {@link DynamicMemoryAllocater} and might be direct buffers outside the Java heap. The array is only replaced,
+     * never changed, after it was published.
      */
-    private byte[][] memory;
+    private volatile ByteBuffer[] memory;
+
+    /** the number of elements fitting in one memory chunk. Set when the first chunk is allocated */
+    private int elementsPerChunk;
 
-    private int lastChunkIndex = -1;
-    private int position_in_chunk = 0;
     private long memorySizeInBytes = 0;
 
     /** the id of the bucket. Should be known by its {@link BucketContainer} and its {@link AbstractHashFunction} */
     private final int bucketId;
 
-    /** the number of elements in this bucket. For faster access, should be public */
-    public int elementsInBucket;
+    /**
+     * counts the buckets, which replaced each other under the same {@link #bucketId}. Each new empty bucket gets the
+     * next generation, so records can be assigned to the synchronization, which persisted them
+     */
+    private final long generation;
+
+    /**
+     * the number of elements in this bucket. For faster access, should be public. The number contains also reserved
+     * slots, whose elements are still copied. After {@link #seal()} returned, all elements are completely written.
+     */
+    public volatile int elementsInBucket;
+
+    /** the number of threads actually adding an element to this bucket */
+    private final AtomicInteger writersInFlight = new AtomicInteger();
+
+    /** notified by the last thread leaving {@link #writersInFlight}, after this bucket was sealed */
+    private final Object writersFinished = new Object();
+
+    /** true, if this bucket doesn't accept elements anymore */
+    private volatile boolean sealed;
+
+    /**
+     * maps the keys of the elements to their slots, if elements with equal keys are merged while adding (see
+     * {@link DRUMSParameterSet#BUCKET_COMBINING}). Otherwise <code>null</code>
+     */
+    private final BucketIndex combiningIndex;
+
+    /**
+     * maps the keys, which were added again after a tombstone, to the slot of the element added after the tombstone.
+     * The tombstone stays in the slot indexed by {@link #combiningIndex}, so it still deletes the element on disk.
+     * <code>null</code>, if elements are not merged while adding
+     */
+    private final BucketIndex reinsertIndex;
+
+    /**
+     * one index per memory chunk, which maps the keys of the elements to their slots, if the elements must be found by
+     * {@link #lookup(byte[])} (see {@link DRUMSParameterSet#READ_FROM_BUCKETS}). Otherwise <code>null</code>. A new
+     * array is published before the {@link #memory} containing the new chunk
+     */
+    private volatile ChunkIndex[] chunkIndexes;
+
+    /**
+     * is run, when this bucket gets its first element or reaches
+     * {@link DRUMSParameterSet#MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC} elements. Might be <code>null</code>
+     */
+    private volatile Runnable syncTrigger;
+
+    /** the listeners to inform, when this bucket was synchronized. Guarded by this bucket */
+    private List<ISyncListener> syncListeners;
+
+    /** true, if the synchronization of this bucket is finished, successfully or not. Guarded by this bucket */
+    private boolean syncFinished;
+
+    /** the reason, why the synchronization failed, or null. Guarded by this bucket */
+    private Exception syncFailure;
 
     /** prototype of type Data (extending {@link AbstractKVStorable}) for instantiating correct arrays */
     private Data prototype;
@@ -71,24 +137,46 @@ public class Bucket<Data extends AbstractKVStorable> {
      *            a pointer to the {@link DRUMSParameterSet}
      */
     public Bucket(final int bucketId, DRUMSParameterSet<Data> gp) {
+        this(bucketId, 1, gp);
+    }
+
+    /**
+     * Constructor. Needs to know the id of the {@link Bucket}, its generation and the maximum size of the
+     * {@link Bucket}.
+     * 
+     * @param bucketId
+     *            the identification number of this bucket. Used in {@link BucketContainer} and other classes
+     * @param generation
+     *            the generation of this bucket, must be larger than the generation of all previous buckets with the
+     *            same id
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     */
+    public Bucket(final int bucketId, long generation, DRUMSParameterSet<Data> gp) {
         this.bucketId = bucketId;
-        this.memory = new byte[0][];
+        this.generation = generation;
+        this.memory = new ByteBuffer[0];
         this.elementsInBucket = 0;
         this.prototype = gp.getPrototype();
         this.creationTime = System.currentTimeMillis();
         this.gp = gp;
+        this.combiningIndex = gp.BUCKET_COMBINING ? new BucketIndex(this) : null;
+        this.reinsertIndex = gp.BUCKET_COMBINING ? new BucketIndex(this) : null;
+        // in combining mode the combining index already knows the slot of each key
+        this.chunkIndexes = gp.READ_FROM_BUCKETS && !gp.BUCKET_COMBINING ? new ChunkIndex[0] : null;
     }
 
     /**
      * returns a new empty Bucket with the same properties of this bucket
      * 
-     * @return a new {@link Bucket} with the same {@link #bucketId}
+     * @return a new {@link Bucket} with the same {@link #bucketId} and the next generation
      * 
      * @throws IOException
      * @throws FileLockException
      */
     public Bucket<Data> getEmptyBucketWithSameProperties() throws FileLockException, IOException {
-        Bucket<Data> newBucket = new Bucket<Data>(this.bucketId, gp);
+        Bucket<Data> newBucket = new Bucket<Data>(this.bucketId, this.generation + 1, gp);
+        newBucket.setSyncTrigger(syncTrigger);
         return newBucket;
     }
 
@@ -100,95 +188,396 @@ public class Bucket<Data extends AbstractKVStorable> {
     }
 
     /**
-     * Adds one {@link AbstractKVStorable}-object. This method have to be synchronized, because it is possible to access
-     * the backend in the same moment with the function {@link #getBackend()}.
+     * Sets the trigger, which is run when this bucket gets its first element, reaches
+     * {@link DRUMSParameterSet#MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC} elements or doubles its number of elements. The
+     * trigger is run by the adding thread and must not block. Empty buckets returned by
+     * {@link #getEmptyBucketWithSameProperties()} get the same trigger.
+     * 
+     * @param syncTrigger
+     *            the trigger, or <code>null</code>
+     */
+    public void setSyncTrigger(Runnable syncTrigger) {
+        this.syncTrigger = syncTrigger;
+    }
+
+    /** @return the generation of this bucket. Buckets replacing this bucket have a larger generation */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Adds one {@link AbstractKVStorable}-object. This method is not blocking other threads adding elements. Only if a
+     * new memory chunk is needed, the threads are synchronized.
      * 
      * @param toAdd
      *            the Data to add
-     * @return true, if adding the element to the buffer was successful
+     * @return true, if adding the element to the buffer was successful. false, if no memory is left or this bucket
+     *         was sealed. In the latter case the element must be added to the new bucket with the same id.
      */
-    public synchronized boolean add(AbstractKVStorable toAdd) {
-        if (memorySizeInBytes >= gp.MAX_MEMORY_PER_BUCKET) {
-            return false;
-        }
-        // no memory is available
+    public boolean add(AbstractKVStorable toAdd) {
+        writersInFlight.incrementAndGet();
         try {
-            if (lastChunkIndex == -1 || position_in_chunk == memory[lastChunkIndex].length) {
-                boolean allocatingSuccessful = enlargeMemory();
+            if (combiningIndex != null) {
+                return combine(toAdd);
+            }
+            int slot = reserveSlot();
+            if (slot < 0) {
+                return false;
+            }
+            writeAt(slot, toAdd);
+            index(slot);
+            return true;
+        } finally {
+            leave();
+        }
+    }
 
-                // No more memory was left so we don't add the element and return false.
-                if (!allocatingSuccessful) {
+    /**
+     * Adds one serialized element. The element is copied from the actual position of the given buffer. If the element
+     * was added, the position of the buffer is moved behind the element, otherwise the buffer is not changed. This
+     * method is not blocking other threads adding elements.
+     * 
+     * @param record
+     *            the buffer containing the element. At least {@link DRUMSParameterSet#getElementSize()} bytes must be
+     *            remaining
+     * @return true, if adding the element to the buffer was successful. false, if no memory is left or this bucket
+     *         was sealed. In the latter case the element must be added to the new bucket with the same id.
+     */
+    public boolean add(ByteBuffer record) {
+        writersInFlight.incrementAndGet();
+        try {
+            if (combiningIndex != null) {
+                if (!combine(prototype.fromByteBuffer(record.duplicate()))) {
                     return false;
                 }
+                record.position(record.position() + gp.getElementSize());
+                return true;
+            }
+            int slot = reserveSlot();
+            if (slot < 0) {
+                return false;
             }
-        } catch (InterruptedException e) {
-            // TODO: error log
-            e.printStackTrace();
+            ByteBuffer chunk = memory[slot / elementsPerChunk];
+            int offset = (slot % elementsPerChunk) * gp.getElementSize();
+            if (chunk.hasArray()) {
+                record.get(chunk.array(), chunk.arrayOffset() + offset, gp.getElementSize());
+            } else {
+                chunk = chunk.duplicate();
+                chunk.clear();
+                chunk.position(offset);
+                int limit = record.limit();
+                record.limit(record.position() + gp.getElementSize());
+                chunk.put(record);
+                record.limit(limit);
+            }
+            index(slot);
+            return true;
+        } finally {
+            leave();
         }
+    }
 
-        byte[] b = toAdd.toByteBuffer().array();
-        for (int i = 0; i < b.length; i++, position_in_chunk++) {
-            memory[lastChunkIndex][position_in_chunk] = b[i];
+    /**
+     * Adds the given element in combining mode. If an element with the same key is already in this bucket, both are
+     * merged by {@link AbstractKVStorable#mergeInOrder} and the result replaces the stored element. An element added
+     * after a tombstone gets its own slot behind the tombstone, so the tombstone still deletes the element on disk.
+     * Elements are combined one after the other, so this method is synchronized.
+     * 
+     * @param toAdd
+     *            the element to add. The element itself is not changed by merging
+     * @return true, if the element was added or merged
+     */
+    private synchronized boolean combine(AbstractKVStorable toAdd) {
+        if (sealed) {
+            return false;
+        }
+        int reinserted = reinsertIndex.get(toAdd.getKey());
+        int slot = reinserted >= 0 ? reinserted : combiningIndex.get(toAdd.getKey());
+        if (slot >= 0) {
+            AbstractKVStorable stored = prototype.fromByteBuffer(getElementAt(slot));
+            if (!stored.isMarkedAsDeleted() || toAdd.isMarkedAsDeleted()) {
+                // merge a copy, because implementations of merge might change the given element
+                writeAt(slot, AbstractKVStorable.mergeInOrder(stored, toAdd.clone()));
+                return true;
+            }
+            if (reinserted >= 0) {
+                // a tombstone is kept in the slot of the combining index already
+                writeAt(slot, toAdd);
+                return true;
+            }
+        }
+        int newSlot = reserveSlot();
+        if (newSlot < 0) {
+            return false;
+        }
+        writeAt(newSlot, toAdd);
+        if (slot >= 0) {
+            reinsertIndex.put(toAdd.getKey(), newSlot);
+        } else {
+            combiningIndex.put(toAdd.getKey(), newSlot);
         }
-        elementsInBucket++;
         return true;
     }
 
+    /** Writes the given element to the given slot. The slot must already be reserved. */
+    private void writeAt(int slot, AbstractKVStorable element) {
+        ByteBuffer chunk = memory[slot / elementsPerChunk].duplicate();
+        chunk.clear();
+        chunk.position((slot % elementsPerChunk) * gp.getElementSize());
+        element.writeTo(chunk);
+    }
+
+    /** Adds the completely written element in the given slot to the index of its chunk, if there is one. */
+    private void index(int slot) {
+        ChunkIndex[] indexes = chunkIndexes;
+        if (indexes != null) {
+            int chunk = slot / elementsPerChunk;
+            int slotInChunk = slot % elementsPerChunk;
+            indexes[chunk].add(slotInChunk,
+                    BucketIndex.hash(memory[chunk], slotInChunk * gp.getElementSize(), gp.getKeySize()));
+        }
+    }
+
+    /**
+     * @param slot
+     *            the slot of an element in this bucket
+     * @param key
+     *            the key to compare with
+     * @return true, if the element in the given slot has the given key
+     */
+    boolean keyEquals(int slot, byte[] key) {
+        ByteBuffer chunk = memory[slot / elementsPerChunk];
+        int offset = (slot % elementsPerChunk) * gp.getElementSize();
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters the calling thread from {@link #writersInFlight}. The last thread wakes up the threads waiting in
+     * {@link #seal()}.
+     */
+    private void leave() {
+        if (writersInFlight.decrementAndGet() == 0 && sealed) {
+            synchronized (writersFinished) {
+                writersFinished.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reserves the slot for one element. The caller must be registered in {@link #writersInFlight}.
+     * 
+     * @return the index of the reserved slot, or -1 if no memory is left or this bucket was sealed
+     */
+    private int reserveSlot() {
+        if (sealed || memorySizeInBytes >= gp.MAX_MEMORY_PER_BUCKET) {
+            return -1;
+        }
+        while (true) {
+            int slot = elementsInBucket;
+            ByteBuffer[] mem = memory;
+            if (slot >= mem.length * elementsPerChunk) {
+                // no memory is available
+                if (!enlargeMemory(mem.length)) {
+                    return -1;
+                }
+                continue;
+            }
+            if (ELEMENTS_UPDATER.compareAndSet(this, slot, slot + 1)) {
+                // exactly one thread reserves each slot, so the trigger runs once per threshold. The doublings let
+                // sync policies with own thresholds notice a growing bucket
+                Runnable trigger = syncTrigger;
+                int size = slot + 1;
+                if (trigger != null && ((size & slot) == 0 || size == gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC)) {
+                    trigger.run();
+                }
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Seals this bucket. Afterwards no element is accepted anymore. The method waits until all threads, which are
+     * actually adding elements, are finished. So all elements are completely written, when this method returns.
+     */
+    public void seal() {
+        sealed = true;
+        boolean interrupted = false;
+        synchronized (writersFinished) {
+            while (writersInFlight.get() > 0) {
+                try {
+                    writersFinished.wait();
+                } catch (InterruptedException ex) {
+                    // the elements must be written completely, before the bucket is synchronized
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return true, if this bucket was sealed by {@link #seal()} and doesn't accept elements anymore */
+    public boolean isSealed() {
+        return sealed;
+    }
+
     /**
      * @param element
      *            the element to look for
      * 
-     * @return true, if this bucket, contains the given element
+     * @return true, if this bucket contains an element with the key of the given element
      */
     public boolean contains(Data element) {
-        boolean contains = false;
-        byte[] dst = new byte[gp.getElementSize()];
-        for (int m = 0; m < memory.length; m++) {
-            ByteBuffer bb = ByteBuffer.wrap(memory[m]);
-            if (m == memory.length - 1) {
-                bb.limit(position_in_chunk);
+        return !lookup(element.getKey()).isEmpty();
+    }
+
+    /**
+     * Returns copies of all elements with the given key in the order they were added. The elements are found by the
+     * index of the bucket, if {@link DRUMSParameterSet#READ_FROM_BUCKETS} or {@link DRUMSParameterSet#BUCKET_COMBINING}
+     * is set. Otherwise all elements are scanned, which is only safe if no other thread adds elements.
+     * 
+     * @param key
+     *            the key to look for
+     * @return the raw elements with the given key, an empty list if there is none or the memory was freed already
+     */
+    public synchronized List<byte[]> lookup(byte[] key) {
+        List<byte[]> found = new ArrayList<byte[]>();
+        ByteBuffer[] mem = memory;
+        if (mem == null) {
+            return found;
+        }
+        if (combiningIndex != null) {
+            int slot = combiningIndex.get(key);
+            if (slot >= 0) {
+                found.add(copyOf(slot));
             }
-            while (bb.remaining() > 0) {
-                bb.get(dst);
-                if (KeyUtils.compareKey(element.toByteBuffer().array(), dst) > 0) {
-                    contains = true;
-                    break;
+            slot = reinsertIndex.get(key);
+            if (slot >= 0) {
+                found.add(copyOf(slot));
+            }
+            return found;
+        }
+        ChunkIndex[] indexes = chunkIndexes;
+        int elements = elementsInBucket;
+        if (indexes == null) {
+            for (int slot = 0; slot < elements; slot++) {
+                if (keyEquals(slot, key)) {
+                    found.add(copyOf(slot));
                 }
             }
-            if (contains) {
-                break;
+            return found;
+        }
+        int hash = BucketIndex.hash(key);
+        int[] slots = new int[4];
+        for (int c = 0; c < mem.length; c++) {
+            int n = 0;
+            for (int s = indexes[c].first(hash); s >= 0; s = indexes[c].next(s)) {
+                int slot = c * elementsPerChunk + s;
+                if (keyEquals(slot, key)) {
+                    if (n == slots.length) {
+                        slots = Arrays.copyOf(slots, n * 2);
+                    }
+                    slots[n++] = slot;
+                }
+            }
+            // the chains are ordered by the time of indexing, not by the slots
+            Arrays.sort(slots, 0, n);
+            for (int i = 0; i < n; i++) {
+                found.add(copyOf(slots[i]));
             }
         }
-        return contains;
+        return found;
+    }
+
+    /** @return a copy of the element in the given slot */
+    private byte[] copyOf(int slot) {
+        ByteBuffer chunk = memory[slot / elementsPerChunk].duplicate();
+        chunk.clear();
+        chunk.position((slot % elementsPerChunk) * gp.getElementSize());
+        byte[] element = new byte[gp.getElementSize()];
+        chunk.get(element);
+        return element;
     }
 
     /**
-     * Enlarges the memory by one chunk. If this was successful <code>true</code> will be returned, otherwise
-     * <code>false</code>.
+     * Enlarges the memory by one chunk, if the memory still contains the given number of chunks. If this was successful
+     * or another thread already enlarged the memory <code>true</code> will be returned, otherwise <code>false</code>.
      * 
-     * @throws InterruptedException
+     * @param knownChunks
+     *            the number of chunks, the calling thread has seen
      */
-    private boolean enlargeMemory() throws InterruptedException {
-        int bytesAllocated = DynamicMemoryAllocater.INSTANCES[gp.instanceID].allocateNextChunk();
-        if (bytesAllocated > 0) {
-
-            byte[] mem = new byte[bytesAllocated];
-            byte[][] new_mem = new byte[memory.length + 1][];
-            for (int i = 0; i < memory.length; i++) {
-                new_mem[i] = memory[i];
+    private synchronized boolean enlargeMemory(int knownChunks) {
+        if (memory.length > knownChunks) {
+            return true;
+        }
+        ByteBuffer mem = DynamicMemoryAllocater.getInstance(gp.instanceID).allocateChunk();
+        if (mem != null) {
+            ByteBuffer[] newMemory = Arrays.copyOf(memory, memory.length + 1);
+            newMemory[newMemory.length - 1] = mem;
+            elementsPerChunk = mem.capacity() / gp.getElementSize();
+            if (chunkIndexes != null) {
+                ChunkIndex[] newIndexes = Arrays.copyOf(chunkIndexes, newMemory.length);
+                newIndexes[newIndexes.length - 1] = new ChunkIndex(elementsPerChunk);
+                chunkIndexes = newIndexes;
             }
-            lastChunkIndex++;
-            new_mem[lastChunkIndex] = mem;
-            memory = new_mem;
-            position_in_chunk = 0;
+            memory = newMemory;
             return true;
         } else {
             return false;
         }
     }
 
-    private void sort() {
+    /**
+     * Returns a view on the memory chunk with the given index. The view starts at the beginning of the chunk and ends
+     * after the last written element in this chunk. The position of the chunk itself is not changed.
+     * 
+     * @param mem
+     *            the memory of this bucket
+     * @param chunkIndex
+     *            the index of the chunk in <code>mem</code>
+     * @return a new {@link ByteBuffer} sharing its content with the chunk
+     */
+    private ByteBuffer readableChunk(ByteBuffer[] mem, int chunkIndex) {
+        ByteBuffer bb = mem[chunkIndex].duplicate();
+        bb.clear();
+        int elementsInChunk = Math.min(elementsPerChunk, elementsInBucket - chunkIndex * elementsPerChunk);
+        bb.limit(Math.max(0, elementsInChunk) * gp.getElementSize());
+        return bb;
+    }
 
+    /**
+     * Sorts the elements in the memory of this bucket ascending by their keys without rebuilding any objects. The
+     * elements are moved, so the indexes are rebuilt afterwards.
+     */
+    private void sort() {
+        new RecordSorter(memory, elementsInBucket, gp.getElementSize(), gp.getKeySize()).sort();
+        if (combiningIndex != null) {
+            combiningIndex.clear();
+            reinsertIndex.clear();
+            for (int slot = 0; slot < elementsInBucket; slot++) {
+                byte[] key = Arrays.copyOf(copyOf(slot), gp.getKeySize());
+                // the sort is stable, so an element added after a tombstone follows it
+                if (combiningIndex.get(key) >= 0) {
+                    reinsertIndex.put(key, slot);
+                } else {
+                    combiningIndex.put(key, slot);
+                }
+            }
+        }
+        if (chunkIndexes != null) {
+            for (int c = 0; c < chunkIndexes.length; c++) {
+                chunkIndexes[c].clear();
+            }
+            for (int slot = 0; slot < elementsInBucket; slot++) {
+                index(slot);
+            }
+        }
     }
 
     /**
@@ -202,61 +591,188 @@ public class Bucket<Data extends AbstractKVStorable> {
         if (index >= elementsInBucket) {
             return null;
         } else {
-            int chunk = index * gp.getElementSize() / memory[0].length;
-            int offset = index * gp.getElementSize() % memory[0].length;
-            return ByteBuffer.wrap(memory[chunk], offset, gp.getElementSize()).asReadOnlyBuffer();
+            ByteBuffer bb = memory[index / elementsPerChunk].duplicate();
+            int offset = (index % elementsPerChunk) * gp.getElementSize();
+            bb.limit(offset + gp.getElementSize()).position(offset);
+            return bb.slice().asReadOnlyBuffer();
         }
     }
 
     /**
-     * Returns the in <code>backend</code> stored {@link AbstractKVStorable}s. First it rebuilds all objects from their
-     * byte-arrays and then sorts them.
+     * Returns the in <code>backend</code> stored {@link AbstractKVStorable}s. First it sorts the memory and then
+     * rebuilds all objects from their byte-arrays. For synchronizing use {@link #getSortedRecords()}, which doesn't
+     * need any objects.
      * 
      * @return {@link AbstractKVStorable}[] all {@link AbstractKVStorable}s ascending sorted
      */
-    // TODO: handle backend internally as long byte-array
     @SuppressWarnings("unchecked")
     public synchronized Data[] getBackend() {
         sort();
         AbstractKVStorable[] data = new AbstractKVStorable[elementsInBucket];
         byte[] dst = new byte[gp.getElementSize()];
         int i = 0;
-        for (int m = 0; m < memory.length; m++) {
-            ByteBuffer bb = ByteBuffer.wrap(memory[m]);
-            if (m == memory.length - 1) {
-                bb.limit(position_in_chunk);
-            }
+        ByteBuffer[] mem = memory;
+        for (int m = 0; m < mem.length; m++) {
+            ByteBuffer bb = readableChunk(mem, m);
             while (bb.remaining() > 0) {
                 bb.get(dst);
                 data[i++] = prototype.fromByteBuffer(ByteBuffer.wrap(dst));
             }
         }
-        Arrays.sort(data, new AbstractKVStorableComparator());
         return (Data[]) data;
     }
 
+    /**
+     * Sorts the memory of this bucket ascending by the keys of the stored elements and returns a view on the raw
+     * elements. Elements with equal keys keep the order in which they were added. The returned view is only valid
+     * until the memory of this bucket is freed and must not be shared between threads. If other threads might still add
+     * elements, the bucket must be sealed by {@link #seal()} before.
+     * 
+     * @return the sorted elements of this bucket
+     */
+    public synchronized ISortedRecords getSortedRecords() {
+        sort();
+        return new SortedRecords();
+    }
+
     /** @return the number of elements, actually stored */
     public int size() {
         return elementsInBucket;
     }
 
     /**
-     * This method frees the allocated memory.
+     * This method frees the allocated memory. All memory chunks are given back to the {@link DynamicMemoryAllocater}.
+     * The bucket is sealed before, if not already done.
      * 
      * @return the number of bytes which are available now
      */
-    public int freeMemory() {
-        int size = 0;
-        for (int m = 0; m < memory.length; m++) {
-            size += memory[m].length;
-            memory[m] = null;
+    public long freeMemory() {
+        // don't hold the lock while sealing, threads combining elements need it to finish
+        seal();
+        synchronized (this) {
+            if (memory == null) {
+                return 0;
+            }
+            long size = 0;
+            DynamicMemoryAllocater<?> allocater = DynamicMemoryAllocater.getInstance(gp.instanceID);
+            for (int m = 0; m < memory.length; m++) {
+                size += memory[m].capacity();
+                // the allocater is gone, if the table was closed already
+                if (allocater != null) {
+                    allocater.releaseChunk(memory[m]);
+                }
+                memory[m] = null;
+            }
+            memory = null;
+            return size;
+        }
+    }
+
+    /**
+     * Registers a listener, which is informed when this bucket was synchronized with its file. If the synchronization
+     * is already finished, the listener is informed immediately by the calling thread.
+     * 
+     * @param listener
+     *            the listener to register
+     */
+    public void addSyncListener(ISyncListener listener) {
+        synchronized (this) {
+            if (!syncFinished) {
+                if (syncListeners == null) {
+                    syncListeners = new ArrayList<ISyncListener>();
+                }
+                syncListeners.add(listener);
+                return;
+            }
+        }
+        inform(listener);
+    }
+
+    /**
+     * Marks the synchronization of this bucket as finished and informs all registered {@link ISyncListener}s. Must be
+     * called once, after all records were written to the file or the synchronization failed.
+     * 
+     * @param failure
+     *            the reason, why the synchronization failed, or <code>null</code> if it was successful
+     */
+    public void synchronizationFinished(Exception failure) {
+        List<ISyncListener> listeners;
+        synchronized (this) {
+            syncFinished = true;
+            syncFailure = failure;
+            listeners = syncListeners;
+            syncListeners = null;
+        }
+        if (listeners != null) {
+            for (ISyncListener listener : listeners) {
+                inform(listener);
+            }
+        }
+    }
+
+    /** informs the given listener about the result of the synchronization */
+    private void inform(ISyncListener listener) {
+        if (syncFailure == null) {
+            listener.synchronizationFinished(this);
+        } else {
+            listener.synchronizationFailed(this, syncFailure);
         }
-        memory = null;
-        return size;
     }
 
     /** @return the creation time of this bucket. */
     public long getCreationTime() {
         return creationTime;
     }
+
+    /** A view on the sorted memory of this bucket, which reads the elements by its own duplicates of the chunks. */
+    private class SortedRecords implements ISortedRecords {
+        private final ByteBuffer[] chunks;
+        private final int size;
+        private final int elementSize;
+        private final int elementsPerChunk;
+
+        SortedRecords() {
+            this.size = elementsInBucket;
+            this.elementSize = gp.getElementSize();
+            this.chunks = new ByteBuffer[memory.length];
+            for (int i = 0; i < memory.length; i++) {
+                chunks[i] = memory[i].duplicate();
+                chunks[i].clear();
+            }
+            this.elementsPerChunk = chunks.length == 0 ? 0 : chunks[0].capacity() / elementSize;
+        }
+
+        /** creates a view on the same chunks as the given records */
+        SortedRecords(SortedRecords source) {
+            this.size = source.size;
+            this.elementSize = source.elementSize;
+            this.elementsPerChunk = source.elementsPerChunk;
+            this.chunks = new ByteBuffer[source.chunks.length];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = source.chunks[i].duplicate();
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int getElementSize() {
+            return elementSize;
+        }
+
+        @Override
+        public void getRecord(int index, byte[] dst) {
+            ByteBuffer chunk = chunks[index / elementsPerChunk];
+            chunk.position((index % elementsPerChunk) * elementSize);
+            chunk.get(dst, 0, elementSize);
+        }
+
+        @Override
+        public ISortedRecords view() {
+            return new SortedRecords(this);
+        }
+    }
 }
@@ -15,6 +15,13 @@
  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
 package com.unister.semweb.drums.bucket;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,13 +46,31 @@ public class BucketContainer<Data extends AbstractKVStorable> {
      * Array containing all {@link Bucket}s. The index of the bucket in this array should be the bucketId of the related
      * {@link Bucket}.
      */
-    protected final Bucket<Data>[] buckets;
+    protected final AtomicReferenceArray<Bucket<Data>> buckets;
 
     /** the HashFunction to determine the bucket-id */
     protected final AbstractHashFunction hashFunction;
 
     protected boolean shutDownInitiated = false;
 
+    /** the maximal time in milliseconds a producer waits for free memory. 0 means forever */
+    private long insertTimeout = 0;
+
+    /** guards {@link #spaceAvailable} */
+    private final ReentrantLock spaceLock = new ReentrantLock();
+
+    /** signaled, if memory was freed or a bucket was replaced */
+    private final Condition spaceAvailable = spaceLock.newCondition();
+
+    /** incremented each time {@link #spaceAvailable} is signaled. Prevents lost signals */
+    private volatile long spaceEpoch = 0;
+
+    /** the time in nanoseconds producers were blocked, because no memory was available */
+    private final AtomicLong stallTime = new AtomicLong();
+
+    /** the number of times producers were blocked, because no memory was available */
+    private final AtomicLong numberOfStalls = new AtomicLong();
+
     /**
      * @param buckets
      *            the buckets, where to store the {@link AbstractKVStorable}
@@ -54,13 +79,15 @@ public class BucketContainer<Data extends AbstractKVStorable> {
      *            the relevant {@link Bucket}
      */
     public BucketContainer(final Bucket<Data>[] buckets, final AbstractHashFunction hashFunction) {
-        this.buckets = buckets;
+        this.buckets = new AtomicReferenceArray<Bucket<Data>>(buckets);
         this.hashFunction = hashFunction;
     }
 
     /**
      * Add the given records to the {@link Bucket}s, if possible. If all {@link Bucket}s are full the method is
-     * blocking.
+     * blocking, till memory is freed by synchronizing a bucket. If the insert timeout (see
+     * {@link #setInsertTimeout(long)}) is exceeded, a {@link BucketContainerException} is thrown. In this case all
+     * records before the failing one were already added.
      * 
      * @param toAdd
      *            the data to add
@@ -68,18 +95,40 @@ public class BucketContainer<Data extends AbstractKVStorable> {
      * @throws InterruptedException
      */
     public void addToCache(Data... toAdd) throws BucketContainerException, InterruptedException {
+        addToCache(toAdd, null);
+    }
+
+    /**
+     * Adds the given records to the {@link Bucket}s as {@link #addToCache(AbstractKVStorable...)} does and remembers
+     * for each record the {@link Bucket} it was added to.
+     * 
+     * @param toAdd
+     *            the data to add
+     * @param targets
+     *            an array of at least the length of <code>toAdd</code>. Receives the bucket of each added record, or
+     *            <code>null</code>. May be <code>null</code> itself
+     * @throws BucketContainerException
+     * @throws InterruptedException
+     */
+    public void addToCache(Data[] toAdd, Bucket<Data>[] targets) throws BucketContainerException,
+            InterruptedException {
         if (shutDownInitiated) {
             throw new BucketContainerException("Shutdown was already initiated. Could not add the given elements.");
         }
         int throwBucketException = -1;
-        for (AbstractKVStorable date : toAdd) {
+        for (int i = 0; i < toAdd.length; i++) {
+            AbstractKVStorable date = toAdd[i];
             int indexOfCache = hashFunction.getBucketId(date.getKey());
             // safety first, check if the bucket exists. If not, try to move on. Throw exception at the end
-            if (indexOfCache < buckets.length) {
-                Bucket<Data> bucket = buckets[indexOfCache];
+            if (indexOfCache < buckets.length()) {
                 // Blocking process, try to add element
-                while (!bucket.add(date)) {
-                    Thread.sleep(1000);
+                Bucket<Data> bucket = add(indexOfCache, date, true);
+                if (bucket == null) {
+                    throw new BucketContainerException("Could not insert element within " + insertTimeout
+                            + " ms, because no memory was freed.");
+                }
+                if (targets != null) {
+                    targets[i] = bucket;
                 }
             } else {
                 throwBucketException = indexOfCache;
@@ -92,6 +141,274 @@ public class BucketContainer<Data extends AbstractKVStorable> {
         }
     }
 
+    /**
+     * Adds the serialized records in the given buffer to the {@link Bucket}s. Each record is routed by its key and
+     * copied directly into the memory of its bucket, no objects are built. The records are read from the actual
+     * position of the buffer till its limit. If all {@link Bucket}s are full the method is blocking, as
+     * {@link #addToCache(AbstractKVStorable...)} does.
+     * 
+     * @param records
+     *            the serialized records. The number of remaining bytes must be a multiple of <code>elementSize</code>
+     * @param elementSize
+     *            the size of one record in bytes
+     * @param keySize
+     *            the size of the key of one record in bytes. The key is expected at the beginning of each record
+     * @throws BucketContainerException
+     * @throws InterruptedException
+     */
+    public void addToCache(ByteBuffer records, int elementSize, int keySize) throws BucketContainerException,
+            InterruptedException {
+        addToCache(records, elementSize, keySize, null);
+    }
+
+    /**
+     * Adds the serialized records in the given buffer to the {@link Bucket}s as
+     * {@link #addToCache(ByteBuffer, int, int)} does and remembers for each record the {@link Bucket} it was added to.
+     * 
+     * @param records
+     *            the serialized records. The number of remaining bytes must be a multiple of <code>elementSize</code>
+     * @param elementSize
+     *            the size of one record in bytes
+     * @param keySize
+     *            the size of the key of one record in bytes. The key is expected at the beginning of each record
+     * @param targets
+     *            an array with one entry per record. Receives the bucket of each added record, or <code>null</code>.
+     *            May be <code>null</code> itself
+     * @throws BucketContainerException
+     * @throws InterruptedException
+     */
+    public void addToCache(ByteBuffer records, int elementSize, int keySize, Bucket<Data>[] targets)
+            throws BucketContainerException, InterruptedException {
+        if (shutDownInitiated) {
+            throw new BucketContainerException("Shutdown was already initiated. Could not add the given elements.");
+        }
+        int throwBucketException = -1;
+        byte[] key = new byte[keySize];
+        for (int r = 0; records.remaining() >= elementSize; r++) {
+            int position = records.position();
+            for (int i = 0; i < keySize; i++) {
+                key[i] = records.get(position + i);
+            }
+            int indexOfCache = hashFunction.getBucketId(key);
+            // safety first, check if the bucket exists. If not, try to move on. Throw exception at the end
+            if (indexOfCache < buckets.length()) {
+                Bucket<Data> bucket = add(indexOfCache, records, true);
+                if (bucket == null) {
+                    throw new BucketContainerException("Could not insert element within " + insertTimeout
+                            + " ms, because no memory was freed.");
+                }
+                if (targets != null) {
+                    targets[r] = bucket;
+                }
+            } else {
+                records.position(position + elementSize);
+                throwBucketException = indexOfCache;
+            }
+        }
+
+        if (throwBucketException != -1) {
+            throw new BucketContainerException("Could not insert at least one record. One missing bucket was "
+                    + throwBucketException);
+        }
+    }
+
+    /**
+     * Adds the given records to the {@link Bucket}s as long as this is possible without blocking. The records are
+     * added in the given order. The method stops at the first record, for which no memory is available.
+     * 
+     * @param toAdd
+     *            the data to add
+     * @return the number of records added. These are the first records of <code>toAdd</code>
+     * @throws BucketContainerException
+     */
+    public int tryAddToCache(Data... toAdd) throws BucketContainerException {
+        return tryAddToCache(toAdd, null);
+    }
+
+    /**
+     * Adds the given records to the {@link Bucket}s as {@link #tryAddToCache(AbstractKVStorable...)} does and
+     * remembers for each added record the {@link Bucket} it was added to.
+     * 
+     * @param toAdd
+     *            the data to add
+     * @param targets
+     *            an array of at least the length of <code>toAdd</code>. Receives the bucket of each added record. May
+     *            be <code>null</code>
+     * @return the number of records added. These are the first records of <code>toAdd</code>
+     * @throws BucketContainerException
+     */
+    public int tryAddToCache(Data[] toAdd, Bucket<Data>[] targets) throws BucketContainerException {
+        if (shutDownInitiated) {
+            throw new BucketContainerException("Shutdown was already initiated. Could not add the given elements.");
+        }
+        int added = 0;
+        for (AbstractKVStorable date : toAdd) {
+            int indexOfCache = hashFunction.getBucketId(date.getKey());
+            if (indexOfCache >= buckets.length()) {
+                throw new BucketContainerException("Could not insert LinkData-object. Missing bucket was "
+                        + indexOfCache);
+            }
+            try {
+                Bucket<Data> bucket = add(indexOfCache, date, false);
+                if (bucket == null) {
+                    break;
+                }
+                if (targets != null) {
+                    targets[added] = bucket;
+                }
+            } catch (InterruptedException e) {
+                // not possible, because we don't wait
+                Thread.currentThread().interrupt();
+                break;
+            }
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Adds the serialized record at the actual position of the given buffer to the {@link Bucket} with the given id,
+     * without asking the hash function. Blocks as {@link #addToCache(AbstractKVStorable...)} does. Used to replay
+     * records, whose bucket is already known.
+     * 
+     * @param bucketId
+     *            the id of the bucket
+     * @param record
+     *            the serialized record. The position of the buffer is moved behind the record
+     * @return the bucket the record was added to
+     * @throws BucketContainerException
+     * @throws InterruptedException
+     */
+    public Bucket<Data> addToBucket(int bucketId, ByteBuffer record) throws BucketContainerException,
+            InterruptedException {
+        Bucket<Data> bucket = add(bucketId, record, true);
+        if (bucket == null) {
+            throw new BucketContainerException("Could not insert element within " + insertTimeout
+                    + " ms, because no memory was freed.");
+        }
+        return bucket;
+    }
+
+    /**
+     * Adds the given element to the bucket with the given id. If the bucket was sealed, the element is added to the
+     * bucket replacing it.
+     * 
+     * @param bucketId
+     *            the id of the bucket to add the element to
+     * @param date
+     *            the element to add
+     * @param block
+     *            if true, the method waits for free memory, at most the insert timeout
+     * @return the bucket the element was added to, or <code>null</code> if the element could not be added
+     * @throws InterruptedException
+     */
+    private Bucket<Data> add(int bucketId, AbstractKVStorable date, boolean block) throws InterruptedException {
+        long deadline = insertTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(insertTimeout) : 0;
+        while (true) {
+            // remember the epoch before trying, so a signal between the try and the wait is not lost
+            long epoch = spaceEpoch;
+            Bucket<Data> bucket = buckets.get(bucketId);
+            if (bucket.add(date)) {
+                return bucket;
+            }
+            if (bucket.isSealed()) {
+                // a sealed bucket was already replaced, so try the new one
+                continue;
+            }
+            if (!block || !awaitSpace(epoch, deadline)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adds the serialized element at the actual position of the given buffer to the bucket with the given id. Works as
+     * {@link #add(int, AbstractKVStorable, boolean)}.
+     */
+    private Bucket<Data> add(int bucketId, ByteBuffer record, boolean block) throws InterruptedException {
+        long deadline = insertTimeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(insertTimeout) : 0;
+        while (true) {
+            long epoch = spaceEpoch;
+            Bucket<Data> bucket = buckets.get(bucketId);
+            if (bucket.add(record)) {
+                return bucket;
+            }
+            if (bucket.isSealed()) {
+                continue;
+            }
+            if (!block || !awaitSpace(epoch, deadline)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Waits until {@link #signalSpaceAvailable()} was called after the given epoch was read or the deadline is reached.
+     * The waiting time is added to the stall time.
+     * 
+     * @param epoch
+     *            the value of {@link #spaceEpoch} read before the failed try to add an element
+     * @param deadline
+     *            the deadline in the time of {@link System#nanoTime()}. 0 means no deadline
+     * @return false, if the deadline was reached
+     * @throws InterruptedException
+     */
+    private boolean awaitSpace(long epoch, long deadline) throws InterruptedException {
+        long start = System.nanoTime();
+        spaceLock.lock();
+        try {
+            while (spaceEpoch == epoch) {
+                if (deadline == 0) {
+                    spaceAvailable.await();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    spaceAvailable.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } finally {
+            spaceLock.unlock();
+            stallTime.addAndGet(System.nanoTime() - start);
+            numberOfStalls.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wakes up all producers waiting for memory. Must be called, when memory was freed or a bucket was replaced.
+     */
+    public void signalSpaceAvailable() {
+        spaceLock.lock();
+        try {
+            spaceEpoch++;
+            spaceAvailable.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximal time a producer waits in {@link #addToCache(AbstractKVStorable...)} for free memory.
+     * 
+     * @param insertTimeout
+     *            the timeout in milliseconds. 0 means forever
+     */
+    public void setInsertTimeout(long insertTimeout) {
+        this.insertTimeout = insertTimeout;
+    }
+
+    /** @return the total time in milliseconds producers were blocked, because no memory was available */
+    public long getStallTime() {
+        return TimeUnit.NANOSECONDS.toMillis(stallTime.get());
+    }
+
+    /** @return the number of times producers were blocked, because no memory was available */
+    public long getNumberOfStalls() {
+        return numberOfStalls.get();
+    }
+
     /** @return the number of buckets */
     public int getNumberOfBuckets() {
         return hashFunction.getNumberOfBuckets();
@@ -102,7 +419,7 @@ public class BucketContainer<Data extends AbstractKVStorable> {
      * @return the bucket with the given bucketId
      */
     public Bucket<Data> getBucket(int bucketId) {
-        return buckets[bucketId];
+        return buckets.get(bucketId);
     }
 
     /**
@@ -114,7 +431,8 @@ public class BucketContainer<Data extends AbstractKVStorable> {
      * @throws InterruptedException
      */
     public void setBucket(Bucket<Data> bucket) throws BucketContainerException, InterruptedException {
-        buckets[bucket.getBucketId()] = bucket;
+        buckets.set(bucket.getBucketId(), bucket);
+        signalSpaceAvailable();
     }
 
     /**
@@ -122,7 +440,7 @@ public class BucketContainer<Data extends AbstractKVStorable> {
      * @return Checks, if an record with the key of the given element is already in memory.
      */
     public boolean contains(Data element) {
-        return buckets[hashFunction.getBucketId(element)].contains(element);
+        return buckets.get(hashFunction.getBucketId(element)).contains(element);
     }
 
     /**
@@ -137,6 +455,7 @@ public class BucketContainer<Data extends AbstractKVStorable> {
     /** This method initializes the shutdown of this BucketContainer. No records are accepted anymore. */
     public void shutdown() {
         this.shutDownInitiated = true;
-        log.info("Shutting down the bucket container.");
+        log.info("Shutting down the bucket container. Producers were stalled {} times for {} ms.", numberOfStalls.get(),
+                getStallTime());
     }
 }
@@ -0,0 +1,150 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash index from the key of an element to its slot in the memory of a {@link Bucket}. The keys
+ * are not copied. They are compared against the elements in the memory of the bucket. The index is not thread-safe.
+ * 
+ * @author Martin Nettling
+ */
+class BucketIndex {
+
+    /** the load factor, at which the table is doubled */
+    private static final double MAX_LOAD = 0.5;
+
+    /** the bucket, whose elements are indexed */
+    private final Bucket<?> bucket;
+
+    /** slot + 1 of the indexed elements, 0 marks an empty entry */
+    private int[] slots;
+
+    /** the hash codes of the keys of the indexed elements */
+    private int[] hashes;
+
+    /** the number of indexed elements */
+    private int size;
+
+    /**
+     * @param bucket
+     *            the bucket, whose elements are indexed
+     */
+    BucketIndex(Bucket<?> bucket) {
+        this.bucket = bucket;
+        this.slots = new int[16];
+        this.hashes = new int[16];
+    }
+
+    /**
+     * @param key
+     *            the key to look for
+     * @return the slot of the element with the given key, or -1 if no such element is indexed
+     */
+    int get(byte[] key) {
+        int hash = hash(key);
+        int mask = slots.length - 1;
+        for (int i = hash & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && bucket.keyEquals(slots[i] - 1, key)) {
+                return slots[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indexes the element in the given slot. The key must not be indexed already.
+     * 
+     * @param key
+     *            the key of the element
+     * @param slot
+     *            the slot of the element in the memory of the bucket
+     */
+    void put(byte[] key, int slot) {
+        if (size + 1 > slots.length * MAX_LOAD) {
+            resize();
+        }
+        insert(hash(key), slot + 1);
+        size++;
+    }
+
+    /** Removes all indexed elements. */
+    void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    /** @return the number of indexed elements */
+    int size() {
+        return size;
+    }
+
+    private void insert(int hash, int slotPlusOne) {
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = slotPlusOne;
+        hashes[i] = hash;
+    }
+
+    /** doubles the table and reinserts all entries */
+    private void resize() {
+        int[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new int[oldSlots.length * 2];
+        hashes = new int[oldSlots.length * 2];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                insert(oldHashes[i], oldSlots[i]);
+            }
+        }
+    }
+
+    /** @return a well distributed hash code of the given key */
+    static int hash(byte[] key) {
+        int h = 1;
+        for (int i = 0; i < key.length; i++) {
+            h = 31 * h + key[i];
+        }
+        return spread(h);
+    }
+
+    /**
+     * @param buffer
+     *            the buffer containing the key
+     * @param offset
+     *            the absolute position of the key in the buffer
+     * @param length
+     *            the length of the key
+     * @return the same hash code as {@link #hash(byte[])} for the key in the buffer
+     */
+    static int hash(ByteBuffer buffer, int offset, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer.get(offset + i);
+        }
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
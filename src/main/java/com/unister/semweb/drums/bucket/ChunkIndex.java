@@ -0,0 +1,88 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A chained hash index over the slots of one memory chunk of a {@link Bucket}. The table has a fixed size, because a
+ * chunk holds a fixed number of elements. Several threads may add slots at the same time, each slot is linked into its
+ * chain by a compare-and-set on the head of the chain. A slot must be completely written, before it is added, so
+ * every slot reachable from a head contains a whole element.
+ * 
+ * @author Martin Nettling
+ */
+class ChunkIndex {
+
+    /** slot + 1 of the last added element of each chain, 0 marks an empty chain */
+    private final AtomicIntegerArray heads;
+
+    /** slot + 1 of the next element in the chain of each slot, 0 marks the end of the chain */
+    private final int[] next;
+
+    /**
+     * @param elementsPerChunk
+     *            the number of elements fitting in the indexed chunk
+     */
+    ChunkIndex(int elementsPerChunk) {
+        // the smallest power of two, which is not smaller than the number of elements
+        this.heads = new AtomicIntegerArray(Integer.highestOneBit(Math.max(1, elementsPerChunk) * 2 - 1));
+        this.next = new int[elementsPerChunk];
+    }
+
+    /**
+     * Adds the given slot to the chain of the given hash code. Must be called at most once per slot.
+     * 
+     * @param slot
+     *            the slot of the element in the chunk
+     * @param hash
+     *            the hash code of the key of the element, see {@link BucketIndex#hash(byte[])}
+     */
+    void add(int slot, int hash) {
+        int h = hash & (heads.length() - 1);
+        int head;
+        do {
+            head = heads.get(h);
+            // written before the compare-and-set publishes the slot
+            next[slot] = head;
+        } while (!heads.compareAndSet(h, head, slot + 1));
+    }
+
+    /**
+     * @param hash
+     *            the hash code of a key
+     * @return the last added slot with the given hash code, or -1
+     */
+    int first(int hash) {
+        return heads.get(hash & (heads.length() - 1)) - 1;
+    }
+
+    /**
+     * @param slot
+     *            a slot returned by {@link #first(int)} or {@link #next(int)}
+     * @return the next slot in the same chain, or -1
+     */
+    int next(int slot) {
+        return next[slot] - 1;
+    }
+
+    /** Removes all slots. No other thread may add slots meanwhile. */
+    void clear() {
+        for (int i = 0; i < heads.length(); i++) {
+            heads.set(i, 0);
+        }
+    }
+}
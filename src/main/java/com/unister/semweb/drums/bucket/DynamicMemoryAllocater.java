@@ -15,7 +15,12 @@
  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
 package com.unister.semweb.drums.bucket;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -26,23 +31,43 @@ import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
 
 /**
- * This class manages the dynamic distribution of memory for the Buckets. It should be used as Singelton. This class
- * doesn't really allocate memory. It just allows to manage virtual memory. An object which wants to be controlled
- * easily asks for memory. This object also must give a report, when it doesn't need this memory anymore.
+ * This class manages the dynamic distribution of memory for the Buckets. Each DRUMS-table has its own instance, which
+ * is registered under the {@link DRUMSParameterSet#instanceID} of the table (see {@link #getInstance(int)}). An object
+ * which wants to be controlled easily asks for memory. This object also must give a report, when it doesn't need this
+ * memory anymore.<br>
+ * <br>
+ * The methods {@link #allocateNextChunk()} and {@link #freeMemory(long)} only manage virtual memory. The methods
+ * {@link #allocateChunk()} and {@link #releaseChunk(ByteBuffer)} really hand out memory chunks. Released chunks are
+ * kept in a free list and handed out again, so filling and synchronizing the buckets doesn't produce garbage. If
+ * {@link DRUMSParameterSet#BUCKET_MEMORY_OFF_HEAP} is set, these chunks are direct {@link ByteBuffer}s (slabs), so
+ * the memory of the buckets never touches the Java heap.<br>
+ * <br>
+ * Besides the limit of each table ({@link DRUMSParameterSet#BUCKET_MEMORY}) all tables of the JVM can share one
+ * budget, see {@link #setGlobalMemoryLimit(long)}. Each registered table is guaranteed its fair share of this budget.
+ * A table may use more than its fair share, as long as the unused fair shares of all other tables stay available.
  * 
  * @author Martin Nettling
  * @param <Data>
  *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
  */
-// TODO: share the same memory instead of having all its own memory
 public class DynamicMemoryAllocater<Data extends AbstractKVStorable> {
     private static Logger logger = LoggerFactory.getLogger(DynamicMemoryAllocater.class);
 
-    /**
-     * An array, containing all instances of {@link DynamicMemoryAllocater}. Each DRUMS-table has its own.
-     */
-    @SuppressWarnings("rawtypes")
-    public static DynamicMemoryAllocater[] INSTANCES = new DynamicMemoryAllocater[0];
+    /** All registered instances of {@link DynamicMemoryAllocater}, by the instanceID of their table. */
+    private static final Map<Integer, DynamicMemoryAllocater<?>> INSTANCES =
+            new HashMap<Integer, DynamicMemoryAllocater<?>>();
+
+    /** Guards the global budget, the free lists and the registry */
+    private static final Object LOCK = new Object();
+
+    /** The number of bytes all tables together may use. {@link Long#MAX_VALUE} if there is no global limit */
+    private static long globalMaxBytes = Long.MAX_VALUE;
+
+    /** The number of bytes, handed out by all instances */
+    private static long globalUsedBytes;
+
+    /** The number of bytes, kept in the free lists of all instances */
+    private static long globalPooledBytes;
 
     /** The number of already allocated / used bytes */
     private AtomicLong used_bytes;
@@ -53,9 +78,24 @@ public class DynamicMemoryAllocater<Data extends AbstractKVStorable> {
     /** The size of one memory chunk. The size is a multiple of the buffersize of a prototype */
     private final int mem_chunksize;
 
+    /** true, if the chunks are allocated as direct {@link ByteBuffer}s */
+    private final boolean offHeap;
+
+    /** already allocated chunks, which were released and can be handed out again */
+    private final ArrayDeque<ByteBuffer> freeList;
+
+    /** the number of tables using this instance */
+    private int references;
+
+    /** is run, when another table released memory of the global budget */
+    private volatile Runnable releaseListener;
+
+    /** is run, when a chunk couldn't be allocated, because the memory of this table or the global budget is used up */
+    private volatile Runnable pressureListener;
+
     /**
-     * Instantiates a new {@link DynamicMemoryAllocater}. This method is private, cause we want to this class as
-     * Singelton.
+     * Instantiates a new {@link DynamicMemoryAllocater}. This method is private, use
+     * {@link #instantiate(DRUMSParameterSet)}.
      * 
      * @param gp
      *            a pointer to the GlobalParameters used by this DRUMS
@@ -64,34 +104,185 @@ public class DynamicMemoryAllocater<Data extends AbstractKVStorable> {
         this.used_bytes = new AtomicLong(0);
         this.mem_chunksize = gp.MEMORY_CHUNK - gp.MEMORY_CHUNK % gp.getElementSize();
         this.max_allowed_bytes = gp.BUCKET_MEMORY - gp.BUCKET_MEMORY % this.mem_chunksize;
+        this.offHeap = gp.BUCKET_MEMORY_OFF_HEAP;
+        this.freeList = new ArrayDeque<ByteBuffer>();
     }
 
     /**
-     * Instantiates the {@link DynamicMemoryAllocater}, only if there is not already an instance
+     * Instantiates the {@link DynamicMemoryAllocater} for the table of the given parameters, only if there is not
+     * already an instance. Each call must be paired with a call of {@link #release(int)}.
      * 
      * @param gp
      *            a pointer to the GlobalParameters used by this DRUMS
      */
     public static <Data extends AbstractKVStorable> void instantiate(DRUMSParameterSet<Data> gp) {
-        if (INSTANCES.length <= gp.instanceID) {
-            INSTANCES = Arrays.copyOf(INSTANCES, gp.instanceID + 1);
-            INSTANCES[gp.instanceID] = new DynamicMemoryAllocater<Data>(gp);
+        synchronized (LOCK) {
+            DynamicMemoryAllocater<?> instance = INSTANCES.get(gp.instanceID);
+            if (instance == null) {
+                instance = new DynamicMemoryAllocater<Data>(gp);
+                INSTANCES.put(gp.instanceID, instance);
+            }
+            instance.references++;
         }
     }
 
+    /**
+     * Gives up one reference to the {@link DynamicMemoryAllocater} of the given table. If it was the last one, the
+     * instance is removed from the registry and its free list is dropped.
+     * 
+     * @param instanceID
+     *            the {@link DRUMSParameterSet#instanceID} of the table
+     */
+    public static void release(int instanceID) {
+        synchronized (LOCK) {
+            DynamicMemoryAllocater<?> instance = INSTANCES.get(instanceID);
+            if (instance == null || --instance.references > 0) {
+                return;
+            }
+            INSTANCES.remove(instanceID);
+            globalUsedBytes -= instance.used_bytes.get();
+            globalPooledBytes -= (long) instance.freeList.size() * instance.mem_chunksize;
+            instance.freeList.clear();
+        }
+        notifyOthers(null);
+    }
+
+    /**
+     * @param instanceID
+     *            the {@link DRUMSParameterSet#instanceID} of the table
+     * @return the {@link DynamicMemoryAllocater} of the given table, or <code>null</code> if there is none
+     */
+    public static DynamicMemoryAllocater<?> getInstance(int instanceID) {
+        synchronized (LOCK) {
+            return INSTANCES.get(instanceID);
+        }
+    }
+
+    /**
+     * Sets the number of bytes, all tables of this JVM together may use for their buckets. The default is
+     * {@link Long#MAX_VALUE}, which means that only the limit of each table counts.
+     * 
+     * @param maxBytes
+     *            the global limit in bytes
+     */
+    public static void setGlobalMemoryLimit(long maxBytes) {
+        synchronized (LOCK) {
+            globalMaxBytes = maxBytes;
+            trimFreeLists();
+        }
+        notifyOthers(null);
+    }
+
+    /** @return the number of bytes, all tables of this JVM together may use for their buckets */
+    public static long getGlobalMemoryLimit() {
+        synchronized (LOCK) {
+            return globalMaxBytes;
+        }
+    }
+
+    /** @return the number of bytes, handed out to the buckets of all tables */
+    public static long getGlobalUsedMemory() {
+        synchronized (LOCK) {
+            return globalUsedBytes;
+        }
+    }
+
+    /**
+     * Sets the listener, which is run when another table released memory of the global budget. Only needed if a global
+     * limit is set, because then the memory of this table might be used up by other tables.
+     * 
+     * @param listener
+     *            the listener to run, or <code>null</code>
+     */
+    public void setReleaseListener(Runnable listener) {
+        this.releaseListener = listener;
+    }
+
+    /**
+     * Sets the listener, which is run when a chunk couldn't be allocated by {@link #allocateChunk()}, because no memory
+     * is left. With a global limit the listeners of all tables are run, because the memory might be used by any table.
+     * The listener is run by the allocating thread and must not block.
+     * 
+     * @param listener
+     *            the listener to run, or <code>null</code>
+     */
+    public void setPressureListener(Runnable listener) {
+        this.pressureListener = listener;
+    }
+
     /**
      * This method tries to mark memory as allocated. It allocates as much bytes as defined in <code>MEMORY_CHUNK</code>
      * and returns the number of bytes marked as allocated. This method doesn't really allocate memory.
      * 
      * @return the size of the allocated chunk
      */
-    public synchronized int allocateNextChunk() {
-        if ((used_bytes.longValue() + (long) mem_chunksize) > max_allowed_bytes) {
-            logger.info("No memory left");
-            return 0;
+    public int allocateNextChunk() {
+        synchronized (LOCK) {
+            if (available() < mem_chunksize) {
+                logger.info("No memory left");
+                return 0;
+            }
+            used_bytes.addAndGet(mem_chunksize);
+            globalUsedBytes += mem_chunksize;
+            return mem_chunksize;
+        }
+    }
+
+    /**
+     * This method tries to allocate the next memory chunk. The chunk has the size of <code>MEMORY_CHUNK</code> (rounded
+     * down to a multiple of the element size). Chunks are taken from the free list of released chunks if possible.
+     * 
+     * @return a cleared chunk, or <code>null</code> if no memory is left
+     */
+    public ByteBuffer allocateChunk() {
+        List<Runnable> listeners;
+        synchronized (LOCK) {
+            if (allocateNextChunk() > 0) {
+                ByteBuffer chunk = freeList.poll();
+                if (chunk != null) {
+                    globalPooledBytes -= mem_chunksize;
+                    chunk.clear();
+                    return chunk;
+                }
+                listeners = null;
+            } else {
+                listeners = new ArrayList<Runnable>();
+                for (DynamicMemoryAllocater<?> instance : INSTANCES.values()) {
+                    if (instance.pressureListener != null && (instance == this || globalMaxBytes != Long.MAX_VALUE)) {
+                        listeners.add(instance.pressureListener);
+                    }
+                }
+            }
+        }
+        if (listeners != null) {
+            // run the listeners outside the lock
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+            return null;
+        }
+        // allocate outside the lock, the memory is already accounted for
+        return offHeap ? ByteBuffer.allocateDirect(mem_chunksize) : ByteBuffer.allocate(mem_chunksize);
+    }
+
+    /**
+     * Gives the given chunk, obtained by {@link #allocateChunk()}, back to this {@link DynamicMemoryAllocater}. The
+     * chunk is kept for reuse, as long as all used and kept chunks fit into the global limit. The caller must not
+     * access the chunk anymore.
+     * 
+     * @param chunk
+     *            the chunk to release
+     */
+    public void releaseChunk(ByteBuffer chunk) {
+        synchronized (LOCK) {
+            giveBack(chunk.capacity());
+            if (chunk.capacity() == mem_chunksize
+                    && globalUsedBytes + globalPooledBytes + mem_chunksize <= globalMaxBytes) {
+                freeList.push(chunk);
+                globalPooledBytes += mem_chunksize;
+            }
         }
-        used_bytes.set(used_bytes.longValue() + (long) mem_chunksize);
-        return mem_chunksize;
+        notifyOthers(this);
     }
 
     /**
@@ -101,7 +292,10 @@ public class DynamicMemoryAllocater<Data extends AbstractKVStorable> {
      *            the size of memory (in bytes) to free
      */
     public void freeMemory(long size) {
-        used_bytes.set(used_bytes.longValue() - size);
+        synchronized (LOCK) {
+            giveBack(size);
+        }
+        notifyOthers(this);
     }
 
     /** @return the number of used bytes, allocated by this {@link DynamicMemoryAllocater} */
@@ -114,8 +308,82 @@ public class DynamicMemoryAllocater<Data extends AbstractKVStorable> {
         return max_allowed_bytes;
     }
 
-    /** @return the number of bytes not allocated by the {@link DynamicMemoryAllocater} */
+    /**
+     * @return the number of bytes, which can still be allocated by this {@link DynamicMemoryAllocater}. This is a
+     *         multiple of the chunk size and respects the global limit.
+     */
     public long getFreeMemory() {
-        return max_allowed_bytes - used_bytes.longValue();
+        synchronized (LOCK) {
+            long available = available();
+            return available - available % mem_chunksize;
+        }
+    }
+
+    /** @return the number of chunks in the free list */
+    public int getNumberOfFreeChunks() {
+        synchronized (LOCK) {
+            return freeList.size();
+        }
+    }
+
+    /**
+     * Computes the number of bytes this instance can still allocate. Must be called, holding {@link #LOCK}. Up to its
+     * fair share, the table may use all free memory of the global budget. Beyond, it may only use the memory, which
+     * isn't reserved for the unused fair shares of the other tables.
+     */
+    private long available() {
+        long ownFree = max_allowed_bytes - used_bytes.get();
+        if (globalMaxBytes == Long.MAX_VALUE) {
+            return ownFree;
+        }
+        long globalFree = Math.max(0, globalMaxBytes - globalUsedBytes);
+        long fairShare = globalMaxBytes / Math.max(1, INSTANCES.size());
+        long withinShare = Math.min(globalFree, Math.max(0, fairShare - used_bytes.get()));
+        long reserved = 0;
+        for (DynamicMemoryAllocater<?> other : INSTANCES.values()) {
+            if (other != this) {
+                reserved += Math.max(0, Math.min(fairShare, other.max_allowed_bytes) - other.used_bytes.get());
+            }
+        }
+        long borrowable = Math.max(0, globalFree - reserved);
+        return Math.min(ownFree, Math.max(withinShare, borrowable));
+    }
+
+    /** Gives back the given amount of used memory. Must be called, holding {@link #LOCK}. */
+    private void giveBack(long size) {
+        used_bytes.addAndGet(-size);
+        globalUsedBytes -= size;
+        trimFreeLists();
+    }
+
+    /** Drops kept chunks, until all used and kept chunks fit into the global limit. Must be called, holding LOCK. */
+    private static void trimFreeLists() {
+        for (DynamicMemoryAllocater<?> instance : INSTANCES.values()) {
+            while (globalUsedBytes + globalPooledBytes > globalMaxBytes && instance.freeList.poll() != null) {
+                globalPooledBytes -= instance.mem_chunksize;
+            }
+        }
+    }
+
+    /**
+     * Runs the release listeners of all instances except the given one. Only needed if a global limit is set. Must not
+     * be called, holding {@link #LOCK}.
+     */
+    private static void notifyOthers(DynamicMemoryAllocater<?> releasing) {
+        List<Runnable> listeners;
+        synchronized (LOCK) {
+            if (globalMaxBytes == Long.MAX_VALUE) {
+                return;
+            }
+            listeners = new ArrayList<Runnable>();
+            for (DynamicMemoryAllocater<?> instance : INSTANCES.values()) {
+                if (instance != releasing && instance.releaseListener != null) {
+                    listeners.add(instance.releaseListener);
+                }
+            }
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
     }
 }
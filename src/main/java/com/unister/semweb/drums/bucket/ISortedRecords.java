@@ -0,0 +1,52 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.sync.synchronizer.Synchronizer;
+
+/**
+ * A read-only sequence of serialized {@link AbstractKVStorable}s of fixed size, ascending sorted by their keys. Records
+ * with equal keys are allowed and keep the order in which they were added. This is the form in which a {@link Bucket}
+ * hands its content to the {@link Synchronizer} without rebuilding any objects.
+ * 
+ * @author Martin Nettling
+ */
+public interface ISortedRecords {
+
+    /** @return the number of records */
+    int size();
+
+    /** @return the size of one record in bytes */
+    int getElementSize();
+
+    /**
+     * Copies the record with the given index into the given array.
+     * 
+     * @param index
+     *            the index of the record, between 0 and {@link #size()} - 1
+     * @param dst
+     *            the array to copy the record to. Must have at least the length {@link #getElementSize()}
+     */
+    void getRecord(int index, byte[] dst);
+
+    /**
+     * The records may be read by only one thread at a time. Other threads must read them through their own view.
+     * 
+     * @return a view on the same records, which can be read independently of this one
+     */
+    ISortedRecords view();
+}
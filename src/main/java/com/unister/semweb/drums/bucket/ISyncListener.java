@@ -0,0 +1,42 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+/**
+ * Is informed, when a {@link Bucket} was synchronized with its file. See {@link Bucket#addSyncListener(ISyncListener)}.
+ * 
+ * @author Martin Nettling
+ */
+public interface ISyncListener {
+
+    /**
+     * Called, when all records of the given bucket were written to its file.
+     * 
+     * @param bucket
+     *            the synchronized bucket
+     */
+    void synchronizationFinished(Bucket<?> bucket);
+
+    /**
+     * Called, when the synchronization of the given bucket failed. The records of the bucket might be lost.
+     * 
+     * @param bucket
+     *            the bucket, which couldn't be synchronized
+     * @param cause
+     *            the reason of the failure
+     */
+    void synchronizationFailed(Bucket<?> bucket, Exception cause);
+}
@@ -0,0 +1,203 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.nio.ByteBuffer;
+
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Sorts fixed-size records, which are stored in a row in several memory chunks, by their keys. The key is expected at
+ * the beginning of each record and is compared on the basis of unsigned bytes, as
+ * {@link KeyUtils#compareKey(byte[], byte[])} does.<br>
+ * <br>
+ * The sort is a stable LSD radix sort over a permutation of record indices. Afterwards the permutation is applied to
+ * the chunks in place by following its cycles, so every record is moved at most once and no objects are created for
+ * the records. Radix passes over a key byte, which has the same value in all records, are skipped.
+ * 
+ * @author Martin Nettling
+ */
+public class RecordSorter {
+
+    /** duplicates of the chunks to sort, so that the positions of the original chunks are not touched */
+    private final ByteBuffer[] chunks;
+
+    /** the number of records to sort */
+    private final int size;
+
+    /** the size of one record in bytes */
+    private final int elementSize;
+
+    /** the size of the key of one record in bytes */
+    private final int keySize;
+
+    /** the number of records in one chunk. All chunks, except the last one, are completely filled */
+    private final int recordsPerChunk;
+
+    /**
+     * @param memory
+     *            the chunks containing the records. All chunks must have the same capacity, which is a multiple of
+     *            <code>elementSize</code>. Chunks behind the ones holding the records may be missing or null
+     * @param size
+     *            the number of records in the chunks
+     * @param elementSize
+     *            the size of one record in bytes
+     * @param keySize
+     *            the size of the key of one record in bytes
+     */
+    public RecordSorter(ByteBuffer[] memory, int size, int elementSize, int keySize) {
+        int used = 0;
+        while (used < memory.length && memory[used] != null) {
+            used++;
+        }
+        this.chunks = new ByteBuffer[used];
+        for (int i = 0; i < used; i++) {
+            this.chunks[i] = memory[i].duplicate();
+            this.chunks[i].clear();
+        }
+        this.size = size;
+        this.elementSize = elementSize;
+        this.keySize = keySize;
+        this.recordsPerChunk = used == 0 ? 0 : memory[0].capacity() / elementSize;
+        if ((long) used * recordsPerChunk < size) {
+            throw new IllegalArgumentException("The " + used + " chunks can't hold " + size + " records.");
+        }
+    }
+
+    /** Sorts the records ascending by their keys. Records with equal keys keep their order. */
+    public void sort() {
+        if (size < 2 || isSorted()) {
+            return;
+        }
+        int[] histograms = buildHistograms();
+        int[] permutation = new int[size];
+        int[] buffer = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+
+        int[] offsets = new int[256];
+        for (int b = keySize - 1; b >= 0; b--) {
+            int base = b * 256;
+            if (isSingleValue(histograms, base)) {
+                continue;
+            }
+            int sum = 0;
+            for (int v = 0; v < 256; v++) {
+                offsets[v] = sum;
+                sum += histograms[base + v];
+            }
+            for (int i = 0; i < size; i++) {
+                int record = permutation[i];
+                buffer[offsets[byteAt(record, b)]++] = record;
+            }
+            int[] tmp = permutation;
+            permutation = buffer;
+            buffer = tmp;
+        }
+        applyPermutation(permutation);
+    }
+
+    /** @return true, if the records are already in ascending order */
+    private boolean isSorted() {
+        for (int i = 1; i < size; i++) {
+            for (int b = 0; b < keySize; b++) {
+                int diff = byteAt(i - 1, b) - byteAt(i, b);
+                if (diff < 0) {
+                    break;
+                } else if (diff > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the occurrences of all byte values for all key positions in one sequential pass over the records.
+     * 
+     * @return an array containing 256 counters for each key position
+     */
+    private int[] buildHistograms() {
+        int[] histograms = new int[keySize * 256];
+        for (int c = 0, record = 0; record < size; c++) {
+            ByteBuffer chunk = chunks[c];
+            int end = Math.min(recordsPerChunk, size - record);
+            for (int i = 0; i < end; i++, record++) {
+                int offset = i * elementSize;
+                for (int b = 0; b < keySize; b++) {
+                    histograms[b * 256 + (chunk.get(offset + b) & 0xFF)]++;
+                }
+            }
+        }
+        return histograms;
+    }
+
+    /** @return true, if all records have the same byte value at the key position belonging to <code>base</code> */
+    private boolean isSingleValue(int[] histograms, int base) {
+        for (int v = 0; v < 256; v++) {
+            if (histograms[base + v] == size) {
+                return true;
+            } else if (histograms[base + v] != 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the records to their sorted positions. <code>permutation[i]</code> contains the index of the record, which
+     * must be placed at position i. The permutation is destroyed.
+     */
+    private void applyPermutation(int[] permutation) {
+        byte[] hold = new byte[elementSize];
+        byte[] move = new byte[elementSize];
+        for (int start = 0; start < size; start++) {
+            if (permutation[start] == start) {
+                continue;
+            }
+            readRecord(start, hold);
+            int target = start;
+            while (true) {
+                int source = permutation[target];
+                permutation[target] = target;
+                if (source == start) {
+                    writeRecord(target, hold);
+                    break;
+                }
+                readRecord(source, move);
+                writeRecord(target, move);
+                target = source;
+            }
+        }
+    }
+
+    private int byteAt(int record, int b) {
+        return chunks[record / recordsPerChunk].get((record % recordsPerChunk) * elementSize + b) & 0xFF;
+    }
+
+    private void readRecord(int record, byte[] dst) {
+        ByteBuffer chunk = chunks[record / recordsPerChunk];
+        chunk.position((record % recordsPerChunk) * elementSize);
+        chunk.get(dst, 0, elementSize);
+    }
+
+    private void writeRecord(int record, byte[] src) {
+        ByteBuffer chunk = chunks[record / recordsPerChunk];
+        chunk.position((record % recordsPerChunk) * elementSize);
+        chunk.put(src, 0, elementSize);
+    }
+}
@@ -0,0 +1,265 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Bloom filter over the keys of one {@link HeaderIndexFile}. If the filter doesn't contain a key, the key is not in
+ * the file and the file must not be read. The filter is built by the synchronizer, while it writes the file, and is
+ * stored next to the file in <code>&lt;filename&gt;.bloom</code>:<br/>
+ * <br/>
+ * <code>
+ * +-------------+------------+------------------+-----------------+---------------------------+<br/>
+ * | FilledUpTo  | Generation | Number of Hashes | Number of Longs | Bits                      |<br/>
+ * | 8 bytes ... | 8 bytes .. | 4 bytes ........ | 4 bytes ....... | Number of Longs * 8 bytes |<br/>
+ * +-------------+------------+------------------+-----------------+---------------------------+<br/>
+ * </code><br/>
+ * The filled size and the synced generation of the file are stored with the filter. A filter is only used, if both
+ * still match the file. Otherwise the file was changed afterwards and the filter is ignored.
+ * 
+ * @author Martin Nettling
+ */
+public class BloomFilter {
+    private static final Logger logger = LoggerFactory.getLogger(BloomFilter.class);
+
+    /** the suffix of the files storing the filters */
+    public static final String SUFFIX = ".bloom";
+
+    /** the size of the header of a stored filter in bytes */
+    private static final int HEADER_SIZE = 24;
+
+    /** the bits of the filter */
+    private final long[] bits;
+
+    /** the number of bits of the filter */
+    private final long numberOfBits;
+
+    /** the number of bits set per key */
+    private final int numberOfHashes;
+
+    /** the filled size of the file, this filter belongs to. -1 if not known yet */
+    private long filledUpTo = -1;
+
+    /** the synced generation of the file, this filter belongs to. -1 if not known yet */
+    private long generation = -1;
+
+    /**
+     * Creates an empty filter.
+     * 
+     * @param expectedKeys
+     *            the number of keys, which will be added
+     * @param bitsPerKey
+     *            the number of bits per key. 10 bits lead to about 1% false positives
+     */
+    public BloomFilter(long expectedKeys, int bitsPerKey) {
+        this(new long[(int) Math.min((Integer.MAX_VALUE - HEADER_SIZE) / 8, Math.max(1, (expectedKeys * bitsPerKey + 63) / 64))],
+                Math.max(1, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    private BloomFilter(long[] bits, int numberOfHashes) {
+        this.bits = bits;
+        this.numberOfBits = bits.length * 64L;
+        this.numberOfHashes = numberOfHashes;
+    }
+
+    /**
+     * Adds the key at the beginning of the given array.
+     * 
+     * @param record
+     *            the array starting with the key
+     * @param keyLength
+     *            the length of the key
+     */
+    public void add(byte[] record, int keyLength) {
+        add(record, 0, keyLength);
+    }
+
+    /**
+     * Adds the key starting at the given offset of the array.
+     * 
+     * @param array
+     *            the array containing the key
+     * @param offset
+     *            the position of the key in the array
+     * @param keyLength
+     *            the length of the key
+     */
+    public void add(byte[] array, int offset, int keyLength) {
+        long hash = hash(array, offset, keyLength);
+        for (int i = 0; i < numberOfHashes; i++) {
+            long bit = bit(hash, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param key
+     *            the key to look for
+     * @return false, if the key was never added. true, if the key was probably added
+     */
+    public boolean mightContain(byte[] key) {
+        long hash = hash(key, 0, key.length);
+        for (int i = 0; i < numberOfHashes; i++) {
+            long bit = bit(hash, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of bits of this filter */
+    public long getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    /**
+     * @param filledUpTo
+     *            the actual filled size of the file, see {@link AbstractHeaderFile#getFilledUpFromContentStart()}
+     * @param generation
+     *            the actual synced generation of the file, see {@link HeaderIndexFile#getSyncedGeneration()}
+     * @return true, if this filter still belongs to the file with the given state
+     */
+    public boolean isValidFor(long filledUpTo, long generation) {
+        return this.filledUpTo == filledUpTo && this.generation == generation;
+    }
+
+    /** @return the i-th bit for the given hash. The bits are derived from the two halves of the hash */
+    private long bit(long hash, int i) {
+        long combined = (int) hash + (long) i * (int) (hash >>> 32);
+        return (combined & Long.MAX_VALUE) % numberOfBits;
+    }
+
+    /** @return a 64 bit FNV-1a hash of <code>length</code> bytes of the given array, starting at the offset */
+    private static long hash(byte[] key, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= key[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        // spreads the bits, because both halves are used
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Stores this filter for the given file. The filter is written to a temporary file first, which replaces the old
+     * filter afterwards. So readers never see a partially written filter.
+     * 
+     * @param dataFilename
+     *            the name of the file, this filter belongs to
+     * @param filledUpTo
+     *            the filled size of the file, see {@link AbstractHeaderFile#getFilledUpFromContentStart()}
+     * @param generation
+     *            the synced generation of the file, see {@link HeaderIndexFile#getSyncedGeneration()}
+     * @throws IOException
+     */
+    public void store(String dataFilename, long filledUpTo, long generation) throws IOException {
+        this.filledUpTo = filledUpTo;
+        this.generation = generation;
+        File target = new File(dataFilename + SUFFIX);
+        File tmp = new File(dataFilename + SUFFIX + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bits.length * 8);
+        buffer.putLong(filledUpTo).putLong(generation).putInt(numberOfHashes).putInt(bits.length);
+        buffer.asLongBuffer().put(bits);
+        buffer.clear();
+        RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(target)) {
+            // some file systems don't replace existing files
+            target.delete();
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Can't rename " + tmp + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * Loads the filter of the given file.
+     * 
+     * @param dataFilename
+     *            the name of the file, the filter belongs to
+     * @return the filter, or <code>null</code> if there is no stored filter or it can't be read
+     */
+    public static BloomFilter load(String dataFilename) {
+        File source = new File(dataFilename + SUFFIX);
+        if (!source.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(source, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (readFully(channel, header, 0) < HEADER_SIZE) {
+                    return null;
+                }
+                header.flip();
+                long filledUpTo = header.getLong();
+                long generation = header.getLong();
+                int numberOfHashes = header.getInt();
+                int numberOfLongs = header.getInt();
+                if (numberOfHashes <= 0 || numberOfLongs <= 0 || channel.size() != HEADER_SIZE + numberOfLongs * 8L) {
+                    return null;
+                }
+                ByteBuffer content = ByteBuffer.allocate(numberOfLongs * 8);
+                readFully(channel, content, HEADER_SIZE);
+                content.flip();
+                long[] bits = new long[numberOfLongs];
+                content.asLongBuffer().get(bits);
+                BloomFilter filter = new BloomFilter(bits, numberOfHashes);
+                filter.filledUpTo = filledUpTo;
+                filter.generation = generation;
+                return filter;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Can't read the Bloom filter {}. The file is read without it.", source, e);
+            return null;
+        }
+    }
+
+    /** reads from the given position until the buffer is full or the end of the channel is reached */
+    private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int read = 0;
+        while (dst.hasRemaining()) {
+            int r = channel.read(dst, position + read);
+            if (r < 0) {
+                break;
+            }
+            read += r;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,514 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the chunks of a compressed {@link HeaderIndexFile}. Each chunk of {@link HeaderIndexFile#getChunkSize()}
+ * bytes is stored as one block, compressed by {@link Deflater}. The block table lies directly behind the
+ * {@link IndexForHeaderIndexFile} and contains one entry per chunk:<br/>
+ * <br/>
+ * <code>
+ * +-----------------+----------+---------------+------------+<br/>
+ * | Physical offset | Capacity | Stored length | Raw length |<br/>
+ * | 8 bytes ....... | 4 bytes  | 4 bytes ..... | 4 bytes .. |<br/>
+ * +-----------------+----------+---------------+------------+<br/>
+ * </code><br/>
+ * Depending on the format of the file, the keys of a chunk are prefix encoded first (see {@link PrefixEncodedChunk}),
+ * and the result is deflated. A block is stored uncompressed, if encoding doesn't save anything. Then the stored
+ * length equals the raw length. A raw length of 0 marks a chunk, which was never written.<br>
+ * <br>
+ * The file is still read and written at logical offsets. The chunk, which is actually written, is collected in memory
+ * and compressed, when another chunk is written or the file is closed. A new block is written in place, if it fits
+ * into the capacity of the old one. Otherwise it is appended behind all blocks. The space of the old block is
+ * reclaimed, when the file is closed and more than half of the blocks region is unused.<br>
+ * <br>
+ * All methods are synchronized, because a pipelined synchronization reads and writes by its own I/O thread.
+ * 
+ * @author Martin Nettling
+ */
+class CompressedChunks {
+    /** the size of one entry of the block table */
+    static final int ENTRY_SIZE = 20;
+
+    /** format flag, the blocks are compressed by {@link Deflater} */
+    static final byte DEFLATE = 1;
+
+    /** format flag, the keys of the chunks are prefix encoded, if a chunk contains only complete records */
+    static final byte PREFIX_ENCODED_KEYS = 2;
+
+    private final HeaderIndexFile<?> file;
+
+    /** the mapped block table */
+    private final ByteBuffer table;
+
+    private final int chunkSize;
+
+    /** the number of chunks, the table has entries for */
+    private final int maxChunks;
+
+    /** the combination of {@link #DEFLATE} and {@link #PREFIX_ENCODED_KEYS} */
+    private final byte format;
+
+    private final int elementSize;
+    private final int keySize;
+    private final int restartInterval;
+
+    /** the codecs are created with the first write or read of a block, many files are opened only for a lookup */
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /** the compressed bytes of the actual block */
+    private byte[] compressed;
+
+    /** the prefix encoded chunk, before it is deflated or after it was inflated */
+    private byte[] encoded;
+
+    /** the content of the chunk, which is actually written */
+    private byte[] writeCache;
+    private int writeChunk = -1;
+    private int writeLength;
+    /** false, if the old content of the written chunk was not loaded yet, because it is overwritten from its start */
+    private boolean writeComplete;
+    /** the number of bytes written from the start of the chunk, while {@link #writeComplete} is false */
+    private int writtenPrefix;
+    /** true, if the written chunk differs from its stored block */
+    private boolean dirty;
+
+    /** the content of the chunk, which was read last */
+    private byte[] readCache;
+    private int readChunk = -1;
+    private int readLength;
+
+    /**
+     * @param file
+     *            the file, the blocks belong to
+     * @param table
+     *            the mapped region of the block table
+     * @param chunkSize
+     *            the size of one uncompressed chunk
+     * @param format
+     *            the combination of {@link #DEFLATE} and {@link #PREFIX_ENCODED_KEYS}
+     * @param restartInterval
+     *            the number of records between two restart points of a prefix encoded chunk
+     */
+    CompressedChunks(HeaderIndexFile<?> file, ByteBuffer table, int chunkSize, byte format, int restartInterval) {
+        this.file = file;
+        this.table = table;
+        this.chunkSize = chunkSize;
+        this.maxChunks = table.capacity() / ENTRY_SIZE;
+        this.format = format;
+        this.elementSize = file.getElementSize();
+        this.keySize = file.keySize;
+        this.restartInterval = Math.max(1, restartInterval);
+    }
+
+    /**
+     * Reads the uncompressed bytes beginning at the given logical offset into the remaining space of the buffer.
+     * 
+     * @return the number of read bytes
+     * @throws IOException
+     */
+    synchronized int read(long offset, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            int chunk = (int) (offset / chunkSize);
+            int from = (int) (offset % chunkSize);
+            byte[] data;
+            int length;
+            if (chunk == writeChunk) {
+                completeWriteCache();
+                data = writeCache;
+                length = writeLength;
+            } else {
+                loadReadCache(chunk);
+                data = readCache;
+                length = readLength;
+            }
+            int n = Math.min(dst.remaining(), length - from);
+            if (n <= 0) {
+                break;
+            }
+            dst.put(data, from, n);
+            offset += n;
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer beginning at the given logical offset.
+     * 
+     * @throws IOException
+     */
+    synchronized void write(long offset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int chunk = (int) (offset / chunkSize);
+            int from = (int) (offset % chunkSize);
+            int n = Math.min(src.remaining(), chunkSize - from);
+            if (chunk >= maxChunks) {
+                throw new IOException("File-Enlargement not possible. The index becomes too large.");
+            }
+            if (chunk != writeChunk) {
+                flush();
+                startWrite(chunk, from);
+            } else if (!writeComplete && from > writtenPrefix) {
+                completeWriteCache();
+            }
+            if (writeComplete && from > writeLength) {
+                Arrays.fill(writeCache, writeLength, from, (byte) 0);
+            }
+            src.get(writeCache, from, n);
+            if (!writeComplete) {
+                writtenPrefix = Math.max(writtenPrefix, from + n);
+            }
+            writeLength = Math.max(writeLength, from + n);
+            dirty = true;
+            if (readChunk == chunk) {
+                readChunk = -1;
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * Compresses and stores the actually written chunk.
+     * 
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        if (writeChunk < 0 || !dirty) {
+            return;
+        }
+        completeWriteCache();
+        byte[] block = writeCache;
+        int length = writeLength;
+        if (encodesKeys(writeLength)) {
+            ensureEncodedBuffer();
+            length = PrefixEncodedChunk.encode(writeCache, writeLength, encoded, elementSize, keySize,
+                    restartInterval);
+            block = encoded;
+        }
+        if ((format & DEFLATE) != 0) {
+            if (compressed == null) {
+                compressed = new byte[chunkSize];
+            }
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            length = deflater.deflate(compressed, 0, compressed.length);
+            block = compressed;
+            if (!deflater.finished()) {
+                length = writeLength;
+            }
+        }
+        if (length < writeLength) {
+            store(writeChunk, block, length, writeLength);
+        } else {
+            store(writeChunk, writeCache, writeLength, writeLength);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Removes the blocks of all chunks behind the given logical offset. Their space is reclaimed by the next compaction.
+     * 
+     * @param end
+     *            the new end of the content
+     */
+    synchronized void truncate(long end) {
+        int firstRemoved = (int) ((end + chunkSize - 1) / chunkSize);
+        for (int chunk = firstRemoved; chunk < maxChunks; chunk++) {
+            if (rawLength(chunk) > 0) {
+                setEntry(chunk, 0, 0, 0, 0);
+            }
+        }
+        if (writeChunk >= firstRemoved) {
+            writeChunk = -1;
+            dirty = false;
+        }
+        if (readChunk >= firstRemoved) {
+            readChunk = -1;
+        }
+    }
+
+    /**
+     * Flushes the written chunk and moves all blocks together, if more than half of the blocks region is unused.
+     * 
+     * @param numberOfChunks
+     *            the number of chunks of the file
+     * @throws IOException
+     */
+    synchronized void close(int numberOfChunks) throws IOException {
+        flush();
+        long used = 0;
+        List<Integer> chunks = new ArrayList<Integer>();
+        for (int chunk = 0; chunk < Math.min(numberOfChunks, maxChunks); chunk++) {
+            if (rawLength(chunk) > 0) {
+                used += capacity(chunk);
+                chunks.add(chunk);
+            }
+        }
+        long region = file.getBlocksEnd() - file.contentStart;
+        if (region - used <= used || region - used < chunkSize) {
+            return;
+        }
+        Collections.sort(chunks, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer c1, Integer c2) {
+                return Long.compare(offset(c1), offset(c2));
+            }
+        });
+        // the blocks are only moved to smaller offsets, so no block is overwritten before it is moved
+        long position = file.contentStart;
+        byte[] block = new byte[chunkSize];
+        for (int chunk : chunks) {
+            int stored = storedLength(chunk);
+            if (offset(chunk) != position) {
+                file.readBlock(offset(chunk), ByteBuffer.wrap(block, 0, stored));
+                file.writeBlock(position, ByteBuffer.wrap(block, 0, stored));
+            }
+            setEntry(chunk, position, stored, stored, rawLength(chunk));
+            position += stored;
+        }
+        file.logger.debug("Compacted the blocks of {} from {} to {} bytes", new Object[] { file.getName(), region,
+                position - file.contentStart });
+        file.setBlocksEnd(position);
+    }
+
+    /** prepares the write cache for writing the given chunk, starting at the given position in the chunk */
+    private void startWrite(int chunk, int from) throws IOException {
+        if (writeCache == null) {
+            writeCache = new byte[chunkSize];
+        }
+        writeChunk = chunk;
+        dirty = false;
+        writtenPrefix = 0;
+        if (from == 0 || rawLength(chunk) == 0) {
+            // the old content is only loaded, if it is not overwritten completely
+            writeComplete = rawLength(chunk) == 0;
+            writeLength = 0;
+        } else {
+            writeLength = loadBlock(chunk, writeCache);
+            writeComplete = true;
+        }
+    }
+
+    /** adds the old content behind the written prefix to the write cache */
+    private void completeWriteCache() throws IOException {
+        if (writeComplete) {
+            return;
+        }
+        int oldLength = rawLength(writeChunk);
+        if (oldLength > writtenPrefix) {
+            loadReadCache(writeChunk);
+            System.arraycopy(readCache, writtenPrefix, writeCache, writtenPrefix, oldLength - writtenPrefix);
+            writeLength = Math.max(writeLength, oldLength);
+            // the read cache would differ from the written chunk
+            readChunk = -1;
+        }
+        writeComplete = true;
+    }
+
+    private void loadReadCache(int chunk) throws IOException {
+        if (readChunk == chunk) {
+            return;
+        }
+        if (readCache == null) {
+            readCache = new byte[chunkSize];
+        }
+        readChunk = -1;
+        readLength = chunk < maxChunks ? loadBlock(chunk, readCache) : 0;
+        readChunk = chunk;
+    }
+
+    /**
+     * Reads the prefix encoded form of the chunk at the given logical offset into the buffer, without decoding it. The
+     * position of the buffer is set to 0 and the limit to the length of the encoded chunk.
+     * 
+     * @param offset
+     *            the logical offset of the chunk
+     * @param limit
+     *            the number of valid bytes beginning at the offset
+     * @param dst
+     *            a buffer backed by an array
+     * @return false, if the chunk is not stored prefix encoded or doesn't fit into the buffer. The content of the
+     *         buffer is undefined then.
+     * @throws IOException
+     */
+    synchronized boolean readEncoded(long offset, long limit, ByteBuffer dst) throws IOException {
+        int chunk = (int) (offset / chunkSize);
+        if (offset % chunkSize != 0 || chunk >= maxChunks || chunk == writeChunk) {
+            return false;
+        }
+        int raw = rawLength(chunk);
+        int stored = storedLength(chunk);
+        if (raw == 0 || raw > limit || stored == raw || !encodesKeys(raw)) {
+            return false;
+        }
+        int length;
+        if ((format & DEFLATE) == 0) {
+            if (stored > dst.capacity()) {
+                return false;
+            }
+            dst.clear();
+            dst.limit(stored);
+            file.readBlock(offset(chunk), dst);
+            length = stored;
+        } else {
+            length = inflate(chunk, dst.array(), dst.arrayOffset(), dst.capacity());
+            if (length < 0) {
+                return false;
+            }
+        }
+        dst.position(0);
+        dst.limit(length);
+        return true;
+    }
+
+    /** true, if a chunk with the given number of bytes is prefix encoded */
+    private boolean encodesKeys(int rawLength) {
+        return (format & PREFIX_ENCODED_KEYS) != 0 && rawLength % elementSize == 0;
+    }
+
+    private void ensureEncodedBuffer() {
+        if (encoded == null) {
+            encoded = new byte[PrefixEncodedChunk.maxEncodedLength(chunkSize, elementSize, restartInterval)];
+        }
+    }
+
+    /** reads and decompresses the block of the given chunk. Returns the uncompressed length */
+    private int loadBlock(int chunk, byte[] dst) throws IOException {
+        int raw = rawLength(chunk);
+        if (raw == 0) {
+            return 0;
+        }
+        int stored = storedLength(chunk);
+        if (stored == raw) {
+            file.readBlock(offset(chunk), ByteBuffer.wrap(dst, 0, raw));
+            return raw;
+        }
+        if (!encodesKeys(raw)) {
+            if (inflate(chunk, dst, 0, raw) != raw) {
+                throw new IOException("The block of chunk " + chunk + " in " + file.getName() + " is truncated.");
+            }
+            return raw;
+        }
+        ensureEncodedBuffer();
+        if ((format & DEFLATE) == 0) {
+            file.readBlock(offset(chunk), ByteBuffer.wrap(encoded, 0, stored));
+        } else if (inflate(chunk, encoded, 0, encoded.length) < 0) {
+            throw new IOException("The block of chunk " + chunk + " in " + file.getName() + " is too large.");
+        }
+        if (PrefixEncodedChunk.decode(encoded, dst, elementSize, keySize) != raw) {
+            throw new IOException("The block of chunk " + chunk + " in " + file.getName() + " is truncated.");
+        }
+        return raw;
+    }
+
+    /**
+     * Reads and inflates the block of the given chunk into the given array. Returns the inflated length or -1, if the
+     * inflated block is longer than <code>length</code>.
+     */
+    private int inflate(int chunk, byte[] dst, int offset, int length) throws IOException {
+        int stored = storedLength(chunk);
+        if (compressed == null) {
+            compressed = new byte[chunkSize];
+        }
+        file.readBlock(offset(chunk), ByteBuffer.wrap(compressed, 0, stored));
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, stored);
+        try {
+            int inflated = inflater.inflate(dst, offset, length);
+            // if the output is exactly full, the end of the stream may not have been read yet
+            if (!inflater.finished()
+                    && (inflated < length || inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                return -1;
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException("The block of chunk " + chunk + " in " + file.getName() + " is corrupted.", e);
+        }
+    }
+
+    /** writes the given block of the given chunk in place or behind all blocks */
+    private void store(int chunk, byte[] block, int stored, int raw) throws IOException {
+        long end = file.getBlocksEnd();
+        long position = offset(chunk);
+        int capacity = capacity(chunk);
+        if (rawLength(chunk) == 0 || stored > capacity && position + capacity != end) {
+            position = end;
+            capacity = stored + stored / 8;
+        } else if (stored > capacity) {
+            // the last block grows in place
+            capacity = stored + stored / 8;
+        }
+        file.writeBlock(position, ByteBuffer.wrap(block, 0, stored));
+        file.setBlocksEnd(Math.max(end, position + capacity));
+        setEntry(chunk, position, capacity, stored, raw);
+    }
+
+    private long offset(int chunk) {
+        return table.getLong(chunk * ENTRY_SIZE);
+    }
+
+    private int capacity(int chunk) {
+        return table.getInt(chunk * ENTRY_SIZE + 8);
+    }
+
+    private int storedLength(int chunk) {
+        return table.getInt(chunk * ENTRY_SIZE + 12);
+    }
+
+    private int rawLength(int chunk) {
+        return table.getInt(chunk * ENTRY_SIZE + 16);
+    }
+
+    private void setEntry(int chunk, long offset, int capacity, int stored, int raw) {
+        int position = chunk * ENTRY_SIZE;
+        table.putLong(position, offset);
+        table.putInt(position + 8, capacity);
+        table.putInt(position + 12, stored);
+        table.putInt(position + 16, raw);
+    }
+
+    /** releases the native memory of the codecs */
+    synchronized void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
@@ -36,12 +36,21 @@ import com.unister.semweb.drums.util.KeyUtils;
  * Header structure:<br/>
  * <br/>
  * <code>
- * +-----------+--------------+---------------+---------------+-------------+---------+<br/>
- * | FILE SIZE | FILLED UP TO | Closed Softly | ReadChunkSize | ElementSize | KeySize |<br/>
- * | 8 bytes . | 8 bytes .... | 1 bytes ..... | 4 bytes ..... | 4 bytes ... | 4 bytes |<br/>
- * +-----------+--------------+---------------+---------------+-------------+---------+<br/>
+ * +-----------+--------------+---------------+---------------+-------------+---------+-------------------+<br/>
+ * | FILE SIZE | FILLED UP TO | Closed Softly | ReadChunkSize | ElementSize | KeySize | Synced Generation |<br/>
+ * | 8 bytes . | 8 bytes .... | 1 bytes ..... | 4 bytes ..... | 4 bytes ... | 4 bytes | 8 bytes ......... |<br/>
+ * +-----------+--------------+---------------+---------------+-------------+---------+-------------------+<br/>
+ * +------------+------------+<br/>
+ * | Compressed | Blocks End |<br/>
+ * | 1 bytes .. | 8 bytes .. |<br/>
+ * +------------+------------+<br/>
  * </code> = 1024 bytes (to have enough space for more values)<br/>
  * <br/>
+ * If {@link DRUMSParameterSet#COMPRESSED_CHUNKS} or {@link DRUMSParameterSet#PREFIX_ENCODED_KEYS} was set, when the
+ * file was created, each chunk is stored as a compressed block (see {@link CompressedChunks}). The block table lies
+ * between the index and the content. Offsets and sizes, e.g. {@link #getFilledUpFromContentStart()}, are still given in
+ * uncompressed bytes.<br/>
+ * <br/>
  * To use this class correctly, have a look at the following methods: <li>read(long offset, ByteBuffer destBuffer) <li>
  * write(long offset, ByteBuffer sourceBuffer) <li>append(ByteBuffer sourceBuffer) <li>dbfile.getFilledUpToExclHeader()
  * <br>
@@ -92,6 +101,18 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
     /** in bytes */
     protected int chunkSize;
 
+    /** the generation of the last bucket synchronized into this file, 0 if unknown */
+    private long syncedGeneration; // PART OF HEADER (8 bytes)
+
+    /** the format of the compressed blocks, see {@link CompressedChunks#DEFLATE}, 0 if the file is not compressed */
+    private byte compressed; // PART OF HEADER (1 bytes)
+
+    /** the position in the file behind the last compressed block */
+    private long blocksEnd; // PART OF HEADER (8 bytes)
+
+    /** reads and writes the compressed blocks, null if the file is not compressed */
+    private CompressedChunks compressedChunks;
+
     /** a constant size, by which the file will be resized in byte */
     protected int incrementSize;
 
@@ -199,6 +220,9 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
      * @throws IOException
      */
     public MappedByteBuffer map(long offset, int length) throws IOException {
+        if (compressedChunks != null) {
+            throw new IOException("The compressed file " + osFile + " can't be mapped.");
+        }
         offset += contentStart;
         if (mode == AccessMode.READ_ONLY) {
             return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
@@ -217,6 +241,13 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
      */
     @Override
     public void write(long offset, ByteBuffer sourceBuffer) throws IOException {
+        if (compressedChunks != null) {
+            sourceBuffer.position(0);
+            compressedChunks.write(offset, sourceBuffer);
+            filledUpTo = Math.max(filledUpTo, contentStart + offset + sourceBuffer.limit());
+            writeHeader();
+            return;
+        }
         offset += contentStart;
         sourceBuffer.position(0);
 
@@ -286,10 +317,109 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
             destBuffer.limit((int) (filledUpTo - offset));
         }
         offset = checkRegions(offset, destBuffer.limit());
+        if (compressedChunks != null) {
+            return compressedChunks.read(offset - contentStart, destBuffer);
+        }
         int readBytes = channel.read(destBuffer, offset);
         return readBytes;
     }
 
+    /**
+     * Reads the compressed block at the given position in the file into the remaining space of the buffer.
+     * 
+     * @param position
+     *            the position in the file, including the header
+     * @param destBuffer
+     *            the buffer to fill
+     * @throws IOException
+     */
+    void readBlock(long position, ByteBuffer destBuffer) throws IOException {
+        while (destBuffer.hasRemaining()) {
+            int read = channel.read(destBuffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + osFile + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer as compressed block to the given position in the file. The file is
+     * enlarged, if needed.
+     *
+     * @param position
+     *            the position in the file, including the header
+     * @param sourceBuffer
+     *            the block to write
+     * @throws IOException
+     */
+    void writeBlock(long position, ByteBuffer sourceBuffer) throws IOException {
+        long end = position + sourceBuffer.remaining();
+        if (end > contentEnd) {
+            this.enlargeFile(end - contentEnd);
+        }
+        while (sourceBuffer.hasRemaining()) {
+            position += channel.write(sourceBuffer, position);
+        }
+    }
+
+    /** @return the position in the file behind the last compressed block */
+    long getBlocksEnd() {
+        return blocksEnd;
+    }
+
+    void setBlocksEnd(long blocksEnd) {
+        this.blocksEnd = blocksEnd;
+        writeHeader();
+    }
+
+    /**
+     * Cuts off the content behind the given offset, e.g. after a synchronization dropped deleted elements. The chunks
+     * behind the new end are removed from the index. The file itself is not shrinked.
+     * 
+     * @param offset
+     *            the new end of the content
+     */
+    public void truncate(long offset) {
+        if (contentStart + offset >= filledUpTo) {
+            return;
+        }
+        filledUpTo = contentStart + offset;
+        index.truncate(offset == 0 ? -1 : getChunkIndex(offset - 1));
+        if (compressedChunks != null) {
+            compressedChunks.truncate(offset);
+        }
+        writeHeader();
+    }
+
+    /** @return true, if the chunks of this file are stored as compressed blocks */
+    public boolean isCompressed() {
+        return compressed != 0;
+    }
+
+    /** @return true, if the keys in the chunks of this file are prefix encoded */
+    public boolean hasPrefixEncodedKeys() {
+        return (compressed & CompressedChunks.PREFIX_ENCODED_KEYS) != 0;
+    }
+
+    /**
+     * Reads the chunk beginning at the given offset into the given buffer in its prefix encoded form, which can be
+     * searched by {@link PrefixEncodedChunk#find(ByteBuffer, byte[], int, int, byte[])}. The chunk is not decoded.
+     * 
+     * @param offset
+     *            the file offset of the chunk, a multiple of the chunk size
+     * @param destBuffer
+     *            the buffer to fill, backed by an array
+     * @return false, if the chunk is not stored prefix encoded. Then it must be read by {@link #read(long, ByteBuffer)}
+     * @throws IOException
+     */
+    public boolean readEncodedChunk(long offset, ByteBuffer destBuffer) throws IOException {
+        if (!hasPrefixEncodedKeys()) {
+            return false;
+        }
+        return compressedChunks.readEncoded(offset, getFilledUpFromContentStart() - offset, destBuffer);
+    }
+
     /**
      * 
      * Reads x bytes from the file to the given ByteBuffer (position was set to zero), where x is the minimum of the
@@ -333,6 +463,14 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
         } else {
             indexBuffer = channel.map(FileChannel.MapMode.READ_WRITE, INDEX_OFFSET, indexSizeInBytes);
         }
+        if (compressed != 0) {
+            long tableOffset = INDEX_OFFSET + MAX_INDEX_SIZE_IN_BYTES;
+            int tableSize = indexSize * CompressedChunks.ENTRY_SIZE;
+            ByteBuffer table = channel.map(mode == AccessMode.READ_ONLY ? FileChannel.MapMode.READ_ONLY
+                    : FileChannel.MapMode.READ_WRITE, tableOffset, tableSize);
+            contentStart = tableOffset + tableSize;
+            compressedChunks = new CompressedChunks(this, table, chunkSize, compressed, gp.KEY_RESTART_INTERVAL);
+        }
 
         if (readIndex) {
             readIndex();
@@ -363,12 +501,23 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
 
     protected void createFile() throws FileLockException, IOException {
         size = gp.INITIAL_FILE_SIZE;
-        filledUpTo = contentStart;
         chunkSize = (int) gp.FILE_CHUNK_SIZE;
+        compressed = 0;
+        if (gp.COMPRESSED_CHUNKS) {
+            compressed |= CompressedChunks.DEFLATE;
+        }
+        if (gp.PREFIX_ENCODED_KEYS) {
+            compressed |= CompressedChunks.PREFIX_ENCODED_KEYS;
+        }
         openChannel(false, false);
+        // the content of a compressed file starts behind the block table
+        filledUpTo = contentStart;
+        blocksEnd = contentStart;
+        size = Math.max(size, contentStart);
+        contentEnd = size;
         setSoftlyClosed(true);
         // have to reset the informations, because in #openchannel the empty header was read
-        accessFile.setLength(gp.INITIAL_FILE_SIZE);
+        accessFile.setLength(size);
         writeHeader();
         readIndex(); // index should be empty
     }
@@ -391,6 +540,9 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
         chunkSize = headerBuffer.getInt();
         elementSize = headerBuffer.getInt();
         keySize = headerBuffer.getInt();
+        syncedGeneration = headerBuffer.getLong();
+        compressed = headerBuffer.get();
+        blocksEnd = headerBuffer.getLong();
     }
 
     protected void writeHeader() {
@@ -401,6 +553,29 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
         headerBuffer.putInt(chunkSize);
         headerBuffer.putInt(elementSize);
         headerBuffer.putInt(keySize);
+        headerBuffer.putLong(syncedGeneration);
+        headerBuffer.put(compressed);
+        headerBuffer.putLong(blocksEnd);
+    }
+
+    /**
+     * @return the generation of the last {@link com.unister.semweb.drums.bucket.Bucket} synchronized into this file,
+     *         0 if unknown
+     */
+    public long getSyncedGeneration() {
+        return syncedGeneration;
+    }
+
+    /**
+     * Sets the generation of the last {@link com.unister.semweb.drums.bucket.Bucket} synchronized into this file.
+     * Needed to replay the {@link WriteAheadLog} correctly.
+     * 
+     * @param syncedGeneration
+     *            the generation of the synchronized bucket
+     */
+    public void setSyncedGeneration(long syncedGeneration) {
+        this.syncedGeneration = syncedGeneration;
+        writeHeader();
     }
 
     /**
@@ -506,6 +681,9 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
     public void clear() {
         this.filledUpTo = 0;
         this.contentStart = HEADER_SIZE + MAX_INDEX_SIZE_IN_BYTES;
+        if (compressedChunks != null) {
+            this.contentStart += indexSize * CompressedChunks.ENTRY_SIZE;
+        }
         this.filledUpTo = contentStart;
     }
 
@@ -517,7 +695,7 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
      * @return the determined index
      */
     public int getChunkIndex(long offset) {
-        return (int) offset / this.chunkSize;
+        return (int) (offset / this.chunkSize);
     }
 
     /** @return the size of one element. We assume that all elements are equal sized */
@@ -543,7 +721,38 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
         this.writeHeader();
     }
 
+    /**
+     * Writes the actual block of compressed chunks and moves the blocks together, if much space is unused. Does
+     * nothing, if the file is not compressed or opened for reading only. Must be called before {@link #close()}, when
+     * compressed chunks were written, so a failure is reported to the writer.
+     * 
+     * @throws IOException
+     *             if the block can't be written
+     */
+    public void flush() throws IOException {
+        if (compressedChunks != null && mode == AccessMode.READ_WRITE && headerBuffer != null) {
+            compressedChunks.close(getChunkIndex(getFilledUpFromContentStart() + chunkSize - 1));
+        }
+    }
+
+    /**
+     * Closes the file. The actual block of compressed chunks is written before, see {@link #flush()}.
+     * 
+     * @throws IllegalStateException
+     *             if the actual block of compressed chunks can't be written. The file is closed anyway
+     */
     public void close() {
+        IOException failure = null;
+        if (compressedChunks != null) {
+            try {
+                flush();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                compressedChunks.end();
+                compressedChunks = null;
+            }
+        }
         if (this.index != null) {
             index.indexBuffer = null;
             index = null;
@@ -555,5 +764,9 @@ public class HeaderIndexFile<Data extends AbstractKVStorable> extends AbstractHe
             // TODO: write ByteBuffer to file
         }
         super.close();
+        if (failure != null) {
+            // the file is closed anyway, but the last block is lost
+            throw new IllegalStateException("Can't write the last block of " + osFile + ".", failure);
+        }
     }
 }
@@ -0,0 +1,39 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the records of a {@link WriteAheadLog}, which weren't synchronized into their files yet. See
+ * {@link WriteAheadLog#replay(ILogReplayer)}.
+ * 
+ * @author Martin Nettling
+ */
+public interface ILogReplayer {
+
+    /**
+     * Adds the given record again to the bucket with the given id.
+     * 
+     * @param bucketId
+     *            the id of the bucket, the record belongs to
+     * @param record
+     *            the serialized record. Its position is at the start of the record
+     * @return the generation of the bucket, the record was added to
+     * @throws Exception
+     */
+    long replay(int bucketId, ByteBuffer record) throws Exception;
+}
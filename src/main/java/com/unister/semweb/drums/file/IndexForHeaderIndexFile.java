@@ -103,7 +103,7 @@ public class IndexForHeaderIndexFile {
      * @return long, the byte-offset of the chunk
      */
     public long getStartOffsetOfChunk(int chunkIndex) {
-        return chunkIndex * chunkSize;
+        return (long) chunkIndex * chunkSize;
     }
 
     /**
@@ -158,6 +158,32 @@ public class IndexForHeaderIndexFile {
         return true;
     }
 
+    /**
+     * Returns the largest key in the chunk with the given index. The returned array must not be changed.
+     * 
+     * @param chunkIdx
+     * @return the largest key
+     */
+    public byte[] getLargestKey(int chunkIdx) {
+        return maxKeyPerChunk[chunkIdx];
+    }
+
+    /**
+     * Removes all chunks behind the given chunk from the index, e.g. after the content of the file was truncated.
+     * 
+     * @param lastChunkIdx
+     *            the index of the last remaining chunk, -1 if no chunk remains
+     */
+    public void truncate(int lastChunkIdx) {
+        byte[] nullKey = new byte[keySize];
+        for (int i = Math.max(lastChunkIdx + 1, 0); i <= filledUpTo; i++) {
+            maxKeyPerChunk[i] = new byte[keySize];
+            indexBuffer.position(i * keySize);
+            indexBuffer.put(nullKey);
+        }
+        filledUpTo = Math.max(lastChunkIdx, 0);
+    }
+
     /**
      * Sets a new largest key in the chunk with the given index.
      * 
@@ -0,0 +1,190 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.nio.ByteBuffer;
+
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Encodes a chunk of sorted records, so that each key only stores the bytes, in which it differs from the key before.
+ * Every <code>restartInterval</code>-th record is a restart point, which stores its full key. The offsets of the
+ * restart points allow a binary search in the encoded chunk, without decoding it completely (see
+ * {@link #find(ByteBuffer, byte[], int, int, byte[])}).<br/>
+ * <br/>
+ * <code>
+ * +-------------------+------------------+----------------+---------+<br/>
+ * | Number of records | Restart interval | Restart offset | Records |<br/>
+ * | 4 bytes ......... | 4 bytes ........ | 4 bytes * n .. | ....... |<br/>
+ * +-------------------+------------------+----------------+---------+<br/>
+ * </code><br/>
+ * Each record consists of one byte, giving the length of the prefix shared with the key before, the remaining bytes of
+ * the key and the value.
+ * 
+ * @author Martin Nettling
+ */
+public class PrefixEncodedChunk {
+    /** the size of the two counters in front of the restart offsets */
+    private static final int HEADER_SIZE = 8;
+
+    /** the longest prefix, which can be stored in the first byte of a record */
+    private static final int MAX_SHARED = 255;
+
+    /**
+     * @return the maximal size of an encoded chunk with the given number of raw bytes
+     */
+    static int maxEncodedLength(int rawLength, int elementSize, int restartInterval) {
+        int records = rawLength / elementSize;
+        return HEADER_SIZE + 4 * (records / restartInterval + 1) + records * (elementSize + 1);
+    }
+
+    /**
+     * Encodes the sorted records in the first <code>rawLength</code> bytes of <code>raw</code>.
+     * 
+     * @param raw
+     *            the records to encode
+     * @param rawLength
+     *            the number of bytes to encode, a multiple of the element size
+     * @param dst
+     *            the array to write to, at least {@link #maxEncodedLength(int, int, int)} bytes long
+     * @param elementSize
+     *            the size of one record
+     * @param keySize
+     *            the size of the key of one record
+     * @param restartInterval
+     *            the number of records between two restart points
+     * @return the length of the encoded chunk
+     */
+    static int encode(byte[] raw, int rawLength, byte[] dst, int elementSize, int keySize, int restartInterval) {
+        int records = rawLength / elementSize;
+        int restarts = (records + restartInterval - 1) / restartInterval;
+        ByteBuffer out = ByteBuffer.wrap(dst);
+        out.putInt(records);
+        out.putInt(restartInterval);
+        int position = HEADER_SIZE + 4 * restarts;
+        int valueSize = elementSize - keySize;
+        for (int i = 0; i < records; i++) {
+            int record = i * elementSize;
+            int shared = 0;
+            if (i % restartInterval == 0) {
+                out.putInt(HEADER_SIZE + 4 * (i / restartInterval), position);
+            } else {
+                int maxShared = Math.min(keySize, MAX_SHARED);
+                while (shared < maxShared && raw[record + shared] == raw[record - elementSize + shared]) {
+                    shared++;
+                }
+            }
+            dst[position++] = (byte) shared;
+            System.arraycopy(raw, record + shared, dst, position, keySize - shared);
+            position += keySize - shared;
+            System.arraycopy(raw, record + keySize, dst, position, valueSize);
+            position += valueSize;
+        }
+        return position;
+    }
+
+    /**
+     * Decodes the encoded chunk completely.
+     * 
+     * @param src
+     *            the encoded chunk
+     * @param dst
+     *            the array to write the records to
+     * @param elementSize
+     *            the size of one record
+     * @param keySize
+     *            the size of the key of one record
+     * @return the number of decoded bytes
+     */
+    static int decode(byte[] src, byte[] dst, int elementSize, int keySize) {
+        ByteBuffer in = ByteBuffer.wrap(src);
+        int records = in.getInt(0);
+        int restartInterval = in.getInt(4);
+        int position = HEADER_SIZE + 4 * ((records + restartInterval - 1) / restartInterval);
+        for (int i = 0; i < records; i++) {
+            position = decodeRecord(src, position, dst, i * elementSize, i == 0 ? -1 : (i - 1) * elementSize,
+                    elementSize, keySize);
+        }
+        return records * elementSize;
+    }
+
+    /**
+     * Searches the given key in the encoded chunk. Only the restart points are compared by a binary search, afterwards
+     * the records behind the nearest restart point are decoded, until the key is found or exceeded.
+     * 
+     * @param encoded
+     *            the encoded chunk, a buffer backed by an array
+     * @param key
+     *            the key to search for
+     * @param elementSize
+     *            the size of one record
+     * @param keySize
+     *            the size of the key of one record
+     * @param record
+     *            an array of <code>elementSize</code> bytes, where the found record is written to
+     * @return true, if the key was found
+     */
+    public static boolean find(ByteBuffer encoded, byte[] key, int elementSize, int keySize, byte[] record) {
+        byte[] src = encoded.array();
+        int base = encoded.arrayOffset();
+        int records = encoded.getInt(0);
+        if (records == 0) {
+            return false;
+        }
+        int restartInterval = encoded.getInt(4);
+        int restarts = (records + restartInterval - 1) / restartInterval;
+        // find the last restart point with a key not larger than the searched one
+        int min = 0, max = restarts - 1;
+        while (min < max) {
+            int mid = (min + max + 1) >>> 1;
+            int restartKey = base + encoded.getInt(HEADER_SIZE + 4 * mid) + 1;
+            if (KeyUtils.compareKey(key, src, restartKey, keySize) < 0) {
+                max = mid - 1;
+            } else {
+                min = mid;
+            }
+        }
+        int position = base + encoded.getInt(HEADER_SIZE + 4 * min);
+        int end = Math.min(records, (min + 1) * restartInterval);
+        for (int i = min * restartInterval; i < end; i++) {
+            position = decodeRecord(src, position, record, 0, 0, elementSize, keySize);
+            int comp = KeyUtils.compareKey(key, record, 0, keySize);
+            if (comp == 0) {
+                return true;
+            } else if (comp < 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the record at the given position into <code>dst</code>. The shared prefix is copied from the key at
+     * <code>previous</code> in <code>dst</code>, which may be the same record.
+     * 
+     * @return the position behind the decoded record
+     */
+    private static int decodeRecord(byte[] src, int position, byte[] dst, int offset, int previous, int elementSize,
+            int keySize) {
+        int shared = src[position++] & 0xFF;
+        if (shared > 0 && previous != offset) {
+            System.arraycopy(dst, previous, dst, offset, shared);
+        }
+        int length = elementSize - shared;
+        System.arraycopy(src, position, dst, offset + shared, length);
+        return position + length;
+    }
+}
@@ -0,0 +1,198 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * The elements of a run, which replace the older elements with the same key instead of being merged with them. An
+ * element replaces the older ones, if it was added after a tombstone of its key (see
+ * {@link AbstractKVStorable#markAsDeleted()}). The run holds each key only once, so it doesn't keep the tombstone
+ * itself. These elements are stored next to the run, like its {@link BloomFilter}.
+ * 
+ * @author Martin Nettling
+ */
+public class ReplacingElements {
+    /** the suffix of the file, the replacing elements of a run are stored in */
+    public static final String SUFFIX = ".replacing";
+
+    /** no element of the run replaces older elements */
+    public static final ReplacingElements NONE = new ReplacingElements(new int[0], new byte[0][]);
+
+    /** the indexes of the replacing elements in the run, ascending */
+    private final int[] indexes;
+
+    /** the keys of the replacing elements, in the same order as {@link #indexes} */
+    private final byte[][] keys;
+
+    /**
+     * @param indexes
+     *            the indexes of the replacing elements in the run, ascending
+     * @param keys
+     *            the keys of the replacing elements, in the same order as the indexes
+     */
+    public ReplacingElements(int[] indexes, byte[][] keys) {
+        this.indexes = indexes;
+        this.keys = keys;
+    }
+
+    /** @return the number of replacing elements */
+    public int size() {
+        return indexes.length;
+    }
+
+    /**
+     * @param i
+     *            the number of the replacing element, between 0 and {@link #size()} - 1
+     * @return the index of the i-th replacing element in the run
+     */
+    public int getIndex(int i) {
+        return indexes[i];
+    }
+
+    /**
+     * @param i
+     *            the number of the replacing element, between 0 and {@link #size()} - 1
+     * @return the key of the i-th replacing element
+     */
+    public byte[] getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @param key
+     *            the key to look for
+     * @return true, if the element of the run with the given key replaces the older elements
+     */
+    public boolean contains(byte[] key) {
+        int low = 0, high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = KeyUtils.compareKey(keys[mid], key);
+            if (compare == 0) {
+                return true;
+            } else if (compare < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores the replacing elements for the given run. If there are none, an old file is deleted. Must be called before
+     * the run is published under its name.
+     * 
+     * @param runFilename
+     *            the name of the run
+     * @throws IOException
+     */
+    public void store(String runFilename) throws IOException {
+        File target = new File(runFilename + SUFFIX);
+        if (indexes.length == 0) {
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Can't delete " + target);
+            }
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try {
+            out.writeInt(indexes.length);
+            out.writeInt(keys[0].length);
+            for (int i = 0; i < indexes.length; i++) {
+                out.writeInt(indexes[i]);
+                out.write(keys[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the replacing elements of the given run.
+     * 
+     * @param runFilename
+     *            the name of the run
+     * @return the replacing elements, {@link #NONE} if none were stored
+     * @throws IOException
+     *             if the stored elements can't be read
+     */
+    public static ReplacingElements load(String runFilename) throws IOException {
+        File source = new File(runFilename + SUFFIX);
+        if (!source.exists()) {
+            return NONE;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+        try {
+            int size = in.readInt();
+            int keyLength = in.readInt();
+            int[] indexes = new int[size];
+            byte[][] keys = new byte[size][keyLength];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = in.readInt();
+                in.readFully(keys[i]);
+            }
+            return new ReplacingElements(indexes, keys);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Collects the replacing elements, while a run is written. */
+    public static class Builder {
+        private int[] indexes = new int[16];
+        private byte[][] keys = new byte[16][];
+        private int size;
+
+        /**
+         * Adds a replacing element. The elements must be added ascending by their index.
+         * 
+         * @param index
+         *            the index of the element in the run
+         * @param array
+         *            the array containing the element
+         * @param offset
+         *            the position of the element in the array
+         * @param keyLength
+         *            the length of the key
+         */
+        public void add(int index, byte[] array, int offset, int keyLength) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            indexes[size] = index;
+            keys[size++] = Arrays.copyOfRange(array, offset, offset + keyLength);
+        }
+
+        /** @return the collected replacing elements */
+        public ReplacingElements build() {
+            return size == 0 ? NONE : new ReplacingElements(Arrays.copyOf(indexes, size), Arrays.copyOf(keys, size));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.file.AbstractHeaderFile.AccessMode;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Writes ascending sorted elements sequentially into a new {@link HeaderIndexFile}. The largest key of each chunk is
+ * set in the index, when the chunk is completely written, and a Bloom filter over all keys is built. So the file is
+ * written once and can be read as if it was synchronized.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}
+ */
+public class SortedFileWriter<Data extends AbstractKVStorable> {
+    private final String filename;
+
+    private final HeaderIndexFile<Data> file;
+
+    /** collects the elements, until they are appended to the file */
+    private final ByteBuffer buffer;
+
+    /** the Bloom filter over all keys of the file, or null if no filter is built */
+    private final BloomFilter bloomFilter;
+
+    private final int elementSize;
+    private final int keyLength;
+
+    /** the largest key in the actual chunk */
+    private final byte[] largestKeyInChunk;
+
+    /** the chunk of the file, which is actually written. -1 if nothing was written yet */
+    private int actualChunkId = -1;
+
+    /** the position in the file, where the buffer is appended */
+    private long writeOffset;
+
+    /**
+     * Creates the file. It must not exist.
+     * 
+     * @param filename
+     *            the name of the file to write
+     * @param expectedElements
+     *            the number of elements, which are written at most. Needed to size the Bloom filter
+     * @param gp
+     *            the parameters of the table
+     * @throws IOException
+     *             if the file can't be created
+     */
+    public SortedFileWriter(String filename, long expectedElements, DRUMSParameterSet<Data> gp) throws IOException {
+        this.filename = filename;
+        this.elementSize = gp.getElementSize();
+        this.keyLength = gp.getKeySize();
+        this.largestKeyInChunk = new byte[keyLength];
+        this.buffer = ByteBuffer.allocate(Math.max(1, (int) (gp.SYNC_CHUNK_SIZE / elementSize)) * elementSize);
+        this.bloomFilter = gp.BLOOM_FILTER_BITS_PER_KEY > 0 ? new BloomFilter(Math.max(1, expectedElements),
+                gp.BLOOM_FILTER_BITS_PER_KEY) : null;
+        try {
+            this.file = new HeaderIndexFile<Data>(filename, AccessMode.READ_WRITE, 1, gp);
+        } catch (FileLockException e) {
+            throw new IOException("Can't create the file " + filename, e);
+        }
+    }
+
+    /**
+     * Writes the element starting at the given offset of the given array. Elements with a null key are skipped.
+     * 
+     * @param array
+     *            the array containing the element
+     * @param offset
+     *            the position of the element in the array
+     * @return false, if the element was skipped
+     * @throws IOException
+     */
+    public boolean write(byte[] array, int offset) throws IOException {
+        if (KeyUtils.isNull(array, offset, keyLength)) {
+            return false;
+        }
+        if (bloomFilter != null) {
+            bloomFilter.add(array, offset, keyLength);
+        }
+        int chunkId = file.getChunkIndex(writeOffset + buffer.position());
+        if (chunkId != actualChunkId) {
+            finishChunk();
+            actualChunkId = chunkId;
+        }
+        System.arraycopy(array, offset, largestKeyInChunk, 0, keyLength);
+        buffer.put(array, offset, elementSize);
+        if (buffer.remaining() == 0) {
+            flush();
+        }
+        return true;
+    }
+
+    /** @return the Bloom filter over all written keys, or <code>null</code> if no filter is built */
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Writes the remaining elements and closes the file.
+     * 
+     * @param generation
+     *            the generation of the newest bucket written into the file, stored in its header
+     * @return the filled size of the file
+     * @throws IOException
+     */
+    public long close(long generation) throws IOException {
+        flush();
+        finishChunk();
+        file.setSyncedGeneration(generation);
+        long size = file.getFilledUpFromContentStart();
+        file.flush();
+        file.close();
+        return size;
+    }
+
+    /** Closes and deletes the file. */
+    public void abort() {
+        if (file.isOpen()) {
+            file.close();
+        }
+        new File(filename).delete();
+    }
+
+    /** appends the buffered elements to the file */
+    private void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        file.write(writeOffset, buffer);
+        writeOffset += buffer.limit();
+        buffer.clear();
+    }
+
+    /** sets the largest key of the actually written chunk in the index of the file */
+    private void finishChunk() {
+        if (actualChunkId >= 0) {
+            file.getIndex().setLargestKey(actualChunkId, Arrays.copyOf(largestKeyInChunk, keyLength));
+        }
+    }
+}
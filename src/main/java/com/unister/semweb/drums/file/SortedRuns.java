@@ -0,0 +1,513 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * The immutable sorted runs of one file. A run is a {@link HeaderIndexFile} next to the file, which contains the
+ * elements of one or more synchronized buckets. The runs are newer than the file and are ordered by their age. Reading
+ * a key means merging the element from the file with the elements from all runs in this order.<br>
+ * <br>
+ * A run is named <code>&lt;filename&gt;.run.&lt;first&gt;-&lt;last&gt;</code>. Each synchronization creates a run with
+ * a new sequence number as first and last number. A run merged from other runs covers their sequence numbers. So runs,
+ * which were merged but not deleted before a crash, are recognized and deleted, when the directory is scanned. A run
+ * is marked, while it is merged into the file. So a run, which is older than its file, is only deleted, if it was
+ * merged into the file before a crash. A run, which is older than its file without being merged, is kept and merged
+ * into the file by the next synchronization.<br>
+ * <br>
+ * A run holds each key only once. An element added after a tombstone of its key replaces the older elements instead of
+ * being merged with them, see {@link ReplacingElements}.<br>
+ * <br>
+ * There is exactly one instance per file in the JVM, see {@link #get(String, DRUMSParameterSet)}. Readers hold the read
+ * lock, while they read the file and its runs. Each change of the runs is done under the write lock.
+ * 
+ * @author Martin Nettling
+ */
+public class SortedRuns {
+    private static final Logger logger = LoggerFactory.getLogger(SortedRuns.class);
+
+    /** the infix between the name of the file and the sequence numbers of its runs */
+    public static final String INFIX = ".run.";
+
+    /** the suffix of runs, which are not completely written yet */
+    public static final String TMP_SUFFIX = ".tmp";
+
+    /** the suffix of the file marking a run, which is merged into its file */
+    public static final String MERGING_SUFFIX = ".merging";
+
+    /** matches the names of runs: name of the file, first and last sequence number */
+    private static final Pattern RUN_NAME = Pattern.compile("(.+)\\.run\\.(\\d+)-(\\d+)");
+
+    /** the runs of all files, by the name of the file */
+    private static final ConcurrentMap<String, SortedRuns> instances = new ConcurrentHashMap<String, SortedRuns>();
+
+    /** makes the names of unfinished runs unique */
+    private static final AtomicLong tmpCounter = new AtomicLong();
+
+    /** the directories, which were scanned for runs already */
+    private static final Set<String> scannedDirectories = new HashSet<String>();
+
+    /** One immutable run. */
+    public static class Run {
+        /** the name of the run */
+        public final String filename;
+
+        /** the sequence number of the first synchronization merged into this run */
+        public final long first;
+
+        /** the sequence number of the last synchronization merged into this run */
+        public final long last;
+
+        /** the filled size of the run in bytes */
+        public final long size;
+
+        /** the generation of the newest bucket in this run */
+        public final long generation;
+
+        /** the Bloom filter of the run, loaded on first use */
+        private volatile BloomFilter bloomFilter;
+        private volatile boolean bloomFilterLoaded;
+
+        /** the elements, which replace older elements, loaded on first use */
+        private volatile ReplacingElements replacingElements;
+
+        /**
+         * @param filename
+         *            the name of the run
+         * @param first
+         *            the sequence number of the first synchronization merged into this run
+         * @param last
+         *            the sequence number of the last synchronization merged into this run
+         * @param size
+         *            the filled size of the run in bytes
+         * @param generation
+         *            the generation of the newest bucket in this run
+         */
+        public Run(String filename, long first, long last, long size, long generation) {
+            this.filename = filename;
+            this.first = first;
+            this.last = last;
+            this.size = size;
+            this.generation = generation;
+        }
+
+        /** @return the Bloom filter of this run, or <code>null</code> if there is none */
+        public BloomFilter getBloomFilter() {
+            if (!bloomFilterLoaded) {
+                BloomFilter filter = BloomFilter.load(filename);
+                bloomFilter = filter != null && filter.isValidFor(size, generation) ? filter : null;
+                bloomFilterLoaded = true;
+            }
+            return bloomFilter;
+        }
+
+        /**
+         * @return the elements of this run, which replace the older elements with the same key instead of being merged
+         *         with them
+         * @throws IOException
+         *             if the stored elements can't be read
+         */
+        public ReplacingElements getReplacingElements() throws IOException {
+            if (replacingElements == null) {
+                replacingElements = ReplacingElements.load(filename);
+            }
+            return replacingElements;
+        }
+
+        /** deletes the run, its Bloom filter, its replacing elements and its mark */
+        void delete() {
+            new File(filename + BloomFilter.SUFFIX).delete();
+            new File(filename + ReplacingElements.SUFFIX).delete();
+            new File(filename + MERGING_SUFFIX).delete();
+            if (!new File(filename).delete()) {
+                logger.warn("Can't delete the run {}.", filename);
+            }
+        }
+    }
+
+    /** the name of the file, the runs belong to */
+    private final String dataFilename;
+
+    /** the runs ordered by their age, the oldest first. Only changed under the write lock */
+    private final List<Run> runs = new ArrayList<Run>();
+
+    /** the sequence number of the next synchronization */
+    private long nextSequence = 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** held, while the runs are compacted */
+    private final Lock compactionLock = new ReentrantLock();
+
+    private SortedRuns(String dataFilename) {
+        this.dataFilename = dataFilename;
+    }
+
+    /**
+     * Returns the runs of the given file. The directory of the file is scanned for runs, when a file of this directory
+     * is requested for the first time.
+     * 
+     * @param dataFilename
+     *            the name of the file
+     * @param gp
+     *            the parameters of the table
+     * @return the runs of the file
+     * @throws IOException
+     *             if an existing run can't be read
+     */
+    public static SortedRuns get(String dataFilename, DRUMSParameterSet<?> gp) throws IOException {
+        String key = new File(dataFilename).getAbsolutePath();
+        SortedRuns sortedRuns = instances.get(key);
+        if (sortedRuns != null) {
+            return sortedRuns;
+        }
+        File directory = new File(key).getParentFile();
+        synchronized (scannedDirectories) {
+            if (scannedDirectories.add(directory.getAbsolutePath())) {
+                scan(directory, gp);
+            }
+        }
+        instances.putIfAbsent(key, new SortedRuns(key));
+        return instances.get(key);
+    }
+
+    /**
+     * Scans the given directory for runs, also if it was scanned before. Unfinished runs and runs, which were merged
+     * already, are deleted. Must be called, when a table is opened for writing, because the files might have been
+     * changed by another process.
+     * 
+     * @param directory
+     *            the directory of the table
+     * @param gp
+     *            the parameters of the table
+     * @throws IOException
+     *             if an existing run can't be read
+     */
+    public static void open(String directory, DRUMSParameterSet<?> gp) throws IOException {
+        File dir = new File(directory).getAbsoluteFile();
+        synchronized (scannedDirectories) {
+            scannedDirectories.add(dir.getPath());
+            scan(dir, gp);
+        }
+    }
+
+    /** registers all runs in the given directory. Deletes unfinished runs and runs, which were merged already */
+    private static void scan(File directory, DRUMSParameterSet<?> gp) throws IOException {
+        Map<String, List<Run>> found = new HashMap<String, List<Run>>();
+        for (String key : instances.keySet()) {
+            if (new File(key).getParentFile().equals(directory)) {
+                found.put(key, new ArrayList<Run>());
+            }
+        }
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().contains(INFIX) && file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            if (isOrphan(file, ReplacingElements.SUFFIX) || isOrphan(file, MERGING_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            Matcher matcher = RUN_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            String key = new File(directory, matcher.group(1)).getPath();
+            if (!found.containsKey(key)) {
+                found.put(key, new ArrayList<Run>());
+            }
+            found.get(key).add(readRun(file.getPath(), Long.parseLong(matcher.group(2)),
+                    Long.parseLong(matcher.group(3)), gp));
+        }
+        for (Map.Entry<String, List<Run>> entry : found.entrySet()) {
+            String key = entry.getKey();
+            // runs merged into the file, but not deleted before a crash, are as old as the file
+            long fileGeneration = new File(key).exists() ? readRun(key, 0, 0, gp).generation : 0;
+            instances.putIfAbsent(key, new SortedRuns(key));
+            instances.get(key).reset(entry.getValue(), fileGeneration);
+        }
+    }
+
+    /** @return true, if the given file has the given suffix and the run it belongs to doesn't exist */
+    private static boolean isOrphan(File file, String suffix) {
+        String name = file.getName();
+        return name.endsWith(suffix)
+                && !new File(file.getParentFile(), name.substring(0, name.length() - suffix.length())).exists();
+    }
+
+    /** reads the size and the generation of the given run or file from its header */
+    private static <Data extends AbstractKVStorable> Run readRun(String filename, long first, long last,
+            DRUMSParameterSet<Data> gp) throws IOException {
+        try {
+            HeaderIndexFile<Data> file = new HeaderIndexFile<Data>(filename, AbstractHeaderFile.AccessMode.READ_ONLY,
+                    gp.HEADER_FILE_LOCK_RETRY, gp);
+            try {
+                return new Run(filename, first, last, file.getFilledUpFromContentStart(), file.getSyncedGeneration());
+            } finally {
+                file.close();
+            }
+        } catch (FileLockException e) {
+            throw new IOException("Can't read the run " + filename, e);
+        }
+    }
+
+    /**
+     * replaces the runs by the scanned runs. Deletes runs, which are covered by a merged run or were merged into the
+     * file already. A run older than the file, which is not marked as merged, was left over, while the file was changed
+     * by another synchronizer. It is kept, so it is merged into the file by the next synchronization
+     */
+    private void reset(List<Run> scanned, long fileGeneration) {
+        Collections.sort(scanned, new Comparator<Run>() {
+            @Override
+            public int compare(Run r1, Run r2) {
+                // the merged run first, if it covers the other
+                return r1.first != r2.first ? Long.compare(r1.first, r2.first) : Long.compare(r2.last, r1.last);
+            }
+        });
+        lock.writeLock().lock();
+        try {
+            runs.clear();
+            for (Run run : scanned) {
+                File mark = new File(run.filename + MERGING_SUFFIX);
+                boolean olderThanFile = fileGeneration > 0 && run.generation <= fileGeneration;
+                if (olderThanFile && mark.exists() || !runs.isEmpty() && run.last <= runs.get(runs.size() - 1).last) {
+                    logger.info("Deleting the run {}, it was merged already.", run.filename);
+                    run.delete();
+                    continue;
+                }
+                if (olderThanFile) {
+                    logger.warn("The file {} was changed without its run {}. It's merged by the next synchronization.",
+                            dataFilename, run.filename);
+                }
+                // the merge into the file didn't finish
+                mark.delete();
+                runs.add(run);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        synchronized (this) {
+            // sequence numbers are never reused, the old name might still be in use
+            if (!runs.isEmpty()) {
+                nextSequence = Math.max(nextSequence, runs.get(runs.size() - 1).last + 1);
+            }
+        }
+    }
+
+    /** @return the name of the file, the runs belong to */
+    public String getDataFilename() {
+        return dataFilename;
+    }
+
+    /** @return the lock, which readers hold, while they read the file and its runs */
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    /** @return the lock, which is held while the runs are compacted or merged into the file */
+    public Lock getCompactionLock() {
+        return compactionLock;
+    }
+
+    /**
+     * Marks the given run as being merged into the file. The mark is removed with the run. So the run is recognized as
+     * merged, if the file was synchronized but the run not deleted before a crash.
+     * 
+     * @param run
+     *            the run, which is merged into the file
+     * @throws IOException
+     *             if the mark can't be created
+     */
+    public void markAsMerging(Run run) throws IOException {
+        new File(run.filename + MERGING_SUFFIX).createNewFile();
+    }
+
+    /**
+     * Removes the mark of a run, whose merge into the file failed.
+     * 
+     * @param run
+     *            the run, which was not merged into the file
+     */
+    public void unmarkAsMerging(Run run) {
+        new File(run.filename + MERGING_SUFFIX).delete();
+    }
+
+    /** @return a snapshot of the runs, ordered by their age, the oldest first */
+    public List<Run> getRuns() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<Run>(runs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return a new, unique name for a run, which is not completely written yet */
+    public String newTmpFilename() {
+        return dataFilename + INFIX + "new" + tmpCounter.incrementAndGet() + TMP_SUFFIX;
+    }
+
+    /** @return true, if there are no runs */
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return runs.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return the generation of the newest bucket in any run, 0 if there are no runs */
+    public long getMaxGeneration() {
+        long generation = 0;
+        for (Run run : getRuns()) {
+            generation = Math.max(generation, run.generation);
+        }
+        return generation;
+    }
+
+    /** @return the total size of all runs in bytes */
+    public long getTotalSize() {
+        long size = 0;
+        for (Run run : getRuns()) {
+            size += run.size;
+        }
+        return size;
+    }
+
+    /**
+     * Publishes a completely written run as the newest run. It gets the next sequence number.
+     * 
+     * @param tmpFilename
+     *            the name of the written run, which is closed already
+     * @param size
+     *            the filled size of the run in bytes
+     * @param generation
+     *            the generation of the newest bucket in the run
+     * @param bloomFilter
+     *            the Bloom filter over all keys of the run, might be <code>null</code>
+     * @param replacingElements
+     *            the elements of the run, which replace older elements
+     * @return the published run
+     * @throws IOException
+     *             if the run can't be renamed
+     */
+    public Run add(String tmpFilename, long size, long generation, BloomFilter bloomFilter,
+            ReplacingElements replacingElements) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long sequence;
+            synchronized (this) {
+                sequence = nextSequence++;
+            }
+            Run run = publish(tmpFilename, sequence, sequence, size, generation, bloomFilter, replacingElements);
+            runs.add(run);
+            return run;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the given runs by the run merged from them. The merged runs are deleted.
+     * 
+     * @param merged
+     *            the runs, which were merged. Must be consecutive
+     * @param tmpFilename
+     *            the name of the run merged from the given runs, which is closed already. <code>null</code> if the runs
+     *            were merged into the file
+     * @param size
+     *            the filled size of the merged run in bytes
+     * @param generation
+     *            the generation of the newest bucket in the merged run
+     * @param bloomFilter
+     *            the Bloom filter over all keys of the merged run, might be <code>null</code>
+     * @param replacingElements
+     *            the elements of the merged run, which replace older elements, might be <code>null</code>
+     * @return the merged run, or <code>null</code> if the runs were merged into the file
+     * @throws IOException
+     *             if the merged run can't be renamed
+     */
+    public Run replace(List<Run> merged, String tmpFilename, long size, long generation, BloomFilter bloomFilter,
+            ReplacingElements replacingElements) throws IOException {
+        Run replacement = null;
+        lock.writeLock().lock();
+        try {
+            int position = runs.indexOf(merged.get(0));
+            if (tmpFilename != null) {
+                replacement = publish(tmpFilename, merged.get(0).first, merged.get(merged.size() - 1).last, size,
+                        generation, bloomFilter, replacingElements);
+                runs.set(position++, replacement);
+            }
+            runs.subList(position, runs.indexOf(merged.get(merged.size() - 1)) + 1).clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Run run : merged) {
+            run.delete();
+        }
+        return replacement;
+    }
+
+    /**
+     * renames the written run to its final name and stores its Bloom filter. The replacing elements are stored before,
+     * because the run is not readable correctly without them
+     */
+    private Run publish(String tmpFilename, long first, long last, long size, long generation,
+            BloomFilter bloomFilter, ReplacingElements replacingElements) throws IOException {
+        String filename = dataFilename + INFIX + first + "-" + last;
+        replacingElements.store(filename);
+        if (!new File(tmpFilename).renameTo(new File(filename))) {
+            throw new IOException("Can't rename " + tmpFilename + " to " + filename);
+        }
+        Run run = new Run(filename, first, last, size, generation);
+        run.replacingElements = replacingElements;
+        if (bloomFilter != null) {
+            try {
+                bloomFilter.store(filename, size, generation);
+            } catch (IOException e) {
+                logger.warn("Can't store the Bloom filter of {}.", filename, e);
+            }
+        }
+        return run;
+    }
+}
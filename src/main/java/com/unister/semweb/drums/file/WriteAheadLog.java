@@ -0,0 +1,460 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of all records added to the buckets of one DRUMS-table. The records are logged, so that they
+ * survive a crash before their bucket was synchronized with its file.<br>
+ * <br>
+ * The log consists of segments <code>wal.&lt;sequence number&gt;</code> in the database directory. A segment is a
+ * sequence of frames, one per call of {@link #append(int[], long[], ByteBuffer)}:<br/>
+ * <br/>
+ * <code>
+ * +-------------+---------+-----------------------------------------------------+<br/>
+ * | Body Length | CRC32   | Body: n * (BucketId, Generation, Record)            |<br/>
+ * | 4 bytes ... | 4 bytes | n * (4 bytes ... 8 bytes ... ElementSize bytes) ... |<br/>
+ * +-------------+---------+-----------------------------------------------------+<br/>
+ * </code><br/>
+ * Each record is logged with the generation of the bucket it was added to. Each file stores the generation of the
+ * last bucket synchronized into it (see {@link HeaderIndexFile#getSyncedGeneration()}), so a record is persisted
+ * exactly if its generation is not larger than the synced generation of its file. A segment is deleted, as soon as
+ * all its records are persisted.<br>
+ * <br>
+ * Writers don't force the log on their own. {@link #sync(long)} uses group commit: one thread forces the log for all
+ * threads, which appended in the meantime.
+ * 
+ * @author Martin Nettling
+ */
+public class WriteAheadLog {
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /** the prefix of the names of all segments */
+    public static final String SEGMENT_PREFIX = "wal.";
+
+    /** the size of the header of a frame in bytes */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    /** the size of the bucket id and the generation preceding each record in bytes */
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    /** the directory containing the segments */
+    private final File directory;
+
+    /** the size of one record in bytes */
+    private final int elementSize;
+
+    /** a new segment is started, when the actual segment is larger */
+    private final long maxSegmentSize;
+
+    /** the segments, ordered by their sequence number. The last one is the actual segment. Guarded by this */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /** the largest synchronized generation per bucket. Guarded by this */
+    private final long[] syncedGenerations;
+
+    /** the channel to the actual segment. Guarded by this */
+    private FileChannel channel;
+
+    /** the number of bytes appended, over all segments of this session. Guarded by this */
+    private long written;
+
+    /** all bytes up to this position are forced to disk */
+    private volatile long durable;
+
+    /** the thread holding this lock forces the log for all waiting threads */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    /** true, while the log is replayed. No segments are deleted meanwhile. Guarded by this */
+    private boolean replaying;
+
+    /**
+     * Opens the log in the given directory. Existing segments are read and checked, a new segment is started for the
+     * following records.
+     * 
+     * @param directory
+     *            the database directory
+     * @param numberOfBuckets
+     *            the number of buckets of the table
+     * @param elementSize
+     *            the size of one record in bytes
+     * @param maxSegmentSize
+     *            the size in bytes, after which a new segment is started
+     * @param syncedGenerations
+     *            the synchronized generation of each bucket, as stored in the files
+     * @throws IOException
+     */
+    public WriteAheadLog(String directory, int numberOfBuckets, int elementSize, long maxSegmentSize,
+            long[] syncedGenerations) throws IOException {
+        this.directory = new File(directory);
+        this.elementSize = elementSize;
+        this.maxSegmentSize = maxSegmentSize;
+        this.syncedGenerations = Arrays.copyOf(syncedGenerations, numberOfBuckets);
+        this.directory.mkdirs();
+        recover();
+        startSegment(segments.isEmpty() ? 0 : segments.get(segments.size() - 1).sequence + 1);
+    }
+
+    /**
+     * Reads all existing segments. Each segment is read till its last complete frame with a valid checksum, the rest
+     * is cut off.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        List<Segment> found = new ArrayList<Segment>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.substring(SEGMENT_PREFIX.length()).matches("\\d+")) {
+                found.add(new Segment(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())), file,
+                        syncedGenerations.length));
+            }
+        }
+        while (!found.isEmpty()) {
+            // add the segments in the order of their sequence numbers
+            Segment next = found.get(0);
+            for (Segment segment : found) {
+                if (segment.sequence < next.sequence) {
+                    next = segment;
+                }
+            }
+            found.remove(next);
+            segments.add(next);
+            RandomAccessFile file = new RandomAccessFile(next.file, "rw");
+            try {
+                long valid = scan(file.getChannel(), next, null);
+                if (valid < file.length()) {
+                    logger.warn("Cut off {} corrupted bytes at the end of {}", file.length() - valid, next.file);
+                    file.setLength(valid);
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Reads all frames of the given segment. If a replayer is given, the records not yet persisted are passed to it.
+     * 
+     * @return the position after the last valid frame
+     */
+    private long scan(FileChannel channel, Segment segment, ILogReplayer replayer) throws IOException {
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        int entrySize = ENTRY_HEADER_SIZE + elementSize;
+        long position = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            frameHeader.clear();
+            if (readFully(channel, frameHeader, position) < FRAME_HEADER_SIZE) {
+                return position;
+            }
+            int length = frameHeader.getInt(0);
+            if (length <= 0 || length % entrySize != 0 || position + FRAME_HEADER_SIZE + length > channel.size()) {
+                return position;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(channel, body, position + FRAME_HEADER_SIZE);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != frameHeader.getInt(4)) {
+                return position;
+            }
+            for (int offset = 0; offset < length; offset += entrySize) {
+                int bucketId = body.getInt(offset);
+                long generation = body.getLong(offset + 4);
+                if (bucketId < 0 || bucketId >= syncedGenerations.length) {
+                    continue;
+                }
+                if (replayer == null) {
+                    segment.maxGenerations[bucketId] = Math.max(segment.maxGenerations[bucketId], generation);
+                } else if (generation > syncedGenerations[bucketId]) {
+                    body.limit(offset + entrySize).position(offset + ENTRY_HEADER_SIZE);
+                    try {
+                        long replayedTo = replayer.replay(bucketId, body.slice());
+                        segment.maxGenerations[bucketId] = Math.max(segment.maxGenerations[bucketId], replayedTo);
+                    } catch (Exception e) {
+                        throw new IOException("Could not replay a record of bucket " + bucketId, e);
+                    }
+                    body.clear();
+                }
+            }
+            position += FRAME_HEADER_SIZE + length;
+        }
+    }
+
+    /** reads from the given position, till the buffer is full or the end of the channel is reached */
+    private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int read = 0;
+        while (dst.hasRemaining()) {
+            int r = channel.read(dst, position + read);
+            if (r < 0) {
+                break;
+            }
+            read += r;
+        }
+        return read;
+    }
+
+    /**
+     * @param bucketId
+     *            the id of a bucket
+     * @return the largest generation of the given bucket, found in the log. 0 if the log contains no record of the
+     *         bucket
+     */
+    public synchronized long getMaxGeneration(int bucketId) {
+        long max = 0;
+        for (Segment segment : segments) {
+            max = Math.max(max, segment.maxGenerations[bucketId]);
+        }
+        return max;
+    }
+
+    /**
+     * Passes all records of the existing segments, which are not persisted yet, to the given replayer. The segments
+     * are kept, until the buckets the records were replayed to are synchronized.
+     * 
+     * @param replayer
+     *            adds the records to the buckets
+     * @return the number of replayed records
+     * @throws IOException
+     */
+    public long replay(final ILogReplayer replayer) throws IOException {
+        List<Segment> toReplay;
+        synchronized (this) {
+            replaying = true;
+            toReplay = new ArrayList<Segment>(segments.subList(0, segments.size() - 1));
+        }
+        final long[] replayed = new long[1];
+        ILogReplayer counting = new ILogReplayer() {
+            @Override
+            public long replay(int bucketId, ByteBuffer record) throws Exception {
+                replayed[0]++;
+                return replayer.replay(bucketId, record);
+            }
+        };
+        try {
+            for (Segment segment : toReplay) {
+                RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+                try {
+                    scan(file.getChannel(), segment, counting);
+                } finally {
+                    file.close();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                replaying = false;
+            }
+        }
+        logger.info("Replayed {} records from {} segments of the write-ahead log", replayed[0], toReplay.size());
+        return replayed[0];
+    }
+
+    /**
+     * Appends the given records to the log. The records are not forced to disk, call {@link #sync(long)} with the
+     * returned position.
+     * 
+     * @param bucketIds
+     *            the ids of the buckets, the records were added to
+     * @param generations
+     *            the generations of the buckets, the records were added to
+     * @param records
+     *            the serialized records, from the actual position to the limit of the buffer. There must be one record
+     *            per bucket id
+     * @return the position in the log after the appended records
+     * @throws IOException
+     */
+    public long append(int[] bucketIds, long[] generations, ByteBuffer records) throws IOException {
+        int count = bucketIds.length;
+        int length = count * (ENTRY_HEADER_SIZE + elementSize);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        frame.position(FRAME_HEADER_SIZE);
+        byte[] record = new byte[elementSize];
+        for (int i = 0; i < count; i++) {
+            records.get(record);
+            frame.putInt(bucketIds[i]).putLong(generations[i]).put(record);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), FRAME_HEADER_SIZE, length);
+        frame.putInt(0, length).putInt(4, (int) crc.getValue());
+        frame.clear();
+
+        synchronized (this) {
+            Segment actual = segments.get(segments.size() - 1);
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            written += frame.capacity();
+            actual.size += frame.capacity();
+            for (int i = 0; i < count; i++) {
+                actual.maxGenerations[bucketIds[i]] = Math.max(actual.maxGenerations[bucketIds[i]], generations[i]);
+            }
+            long position = written;
+            if (actual.size >= maxSegmentSize) {
+                startSegment(actual.sequence + 1);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Forces the log to disk, at least up to the given position. If another thread is already forcing the log, the
+     * calling thread waits and then checks, if its records were forced as well.
+     * 
+     * @param position
+     *            the position returned by {@link #append(int[], long[], ByteBuffer)}
+     * @throws IOException
+     */
+    public void sync(long position) throws IOException {
+        if (durable >= position) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (durable >= position) {
+                return;
+            }
+            FileChannel toForce;
+            long target;
+            synchronized (this) {
+                toForce = channel;
+                target = written;
+            }
+            try {
+                toForce.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was finished meanwhile, this forced it already
+            }
+            setDurable(target);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Marks the given bucket generation as synchronized into its file. All segments, whose records are persisted now,
+     * are deleted.
+     * 
+     * @param bucketId
+     *            the id of the synchronized bucket
+     * @param generation
+     *            the generation of the synchronized bucket
+     */
+    public synchronized void bucketSynchronized(int bucketId, long generation) {
+        syncedGenerations[bucketId] = Math.max(syncedGenerations[bucketId], generation);
+        if (replaying) {
+            return;
+        }
+        // the actual segment is never deleted, only finished ones
+        Iterator<Segment> it = segments.subList(0, segments.size() - 1).iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment.isPersisted(syncedGenerations)) {
+                if (!segment.file.delete()) {
+                    logger.warn("Could not delete {}", segment.file);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /** @return the number of segments, including the actual one */
+    public synchronized int getNumberOfSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Closes the log. Segments containing only persisted records are deleted, all other segments are kept for the
+     * next replay.
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+        setDurable(written);
+        Iterator<Segment> it = segments.iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment.isPersisted(syncedGenerations)) {
+                segment.file.delete();
+                it.remove();
+            }
+        }
+    }
+
+    /** finishes the actual segment and starts the segment with the given sequence number. Must hold the lock */
+    private void startSegment(int sequence) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            setDurable(written);
+        }
+        Segment segment = new Segment(sequence, new File(directory, SEGMENT_PREFIX + sequence),
+                syncedGenerations.length);
+        channel = new RandomAccessFile(segment.file, "rw").getChannel();
+        channel.truncate(0);
+        segments.add(segment);
+    }
+
+    private synchronized void setDurable(long position) {
+        if (position > durable) {
+            durable = position;
+        }
+    }
+
+    /** One file of the log. */
+    private static class Segment {
+        private final int sequence;
+        private final File file;
+
+        /** the largest generation of the records of each bucket in this segment. 0 if there is none */
+        private final long[] maxGenerations;
+
+        /** the number of bytes written to this segment in this session */
+        private long size;
+
+        private Segment(int sequence, File file, int numberOfBuckets) {
+            this.sequence = sequence;
+            this.file = file;
+            this.maxGenerations = new long[numberOfBuckets];
+        }
+
+        /** @return true, if all records in this segment are synchronized into their files */
+        private boolean isPersisted(long[] syncedGenerations) {
+            for (int i = 0; i < maxGenerations.length; i++) {
+                if (maxGenerations[i] > syncedGenerations[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
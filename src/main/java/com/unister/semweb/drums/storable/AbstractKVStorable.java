@@ -17,7 +17,9 @@ package com.unister.semweb.drums.storable;
 
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.unister.semweb.drums.util.KeyUtils;
 
@@ -93,6 +95,18 @@ public abstract class AbstractKVStorable implements Serializable, Cloneable {
      */
     public abstract ByteBuffer toByteBuffer();
 
+    /**
+     * Writes the byte representation of this object to the given {@link ByteBuffer}, starting at its actual position.
+     * This method uses {@link #toByteBuffer()} by default. Overwrite it, if your implementation is able to write
+     * directly to the given buffer.
+     *
+     * @param dst
+     *            the buffer to write to. Must have at least {@link #getSize()} bytes remaining
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.put(toByteBuffer().array(), 0, getSize());
+    }
+
     /**
      * Initializes the object from the given {@link ByteBuffer}
      *
@@ -123,6 +137,16 @@ public abstract class AbstractKVStorable implements Serializable, Cloneable {
      */
     public abstract <Data extends AbstractKVStorable> void update(Data element);
 
+    /**
+     * This method returns false by default. This method must be overwritten together with {@link #markAsDeleted()} and
+     * {@link #isMarkedAsDeleted()} in the concrete class.
+     *
+     * @return true, if elements of this class can be marked as deleted
+     */
+    public boolean canBeMarkedAsDeleted() {
+        return false;
+    }
+
     /**
      * This method returns false by default. This method must be overwritten in the concrete class,
      *
@@ -132,6 +156,49 @@ public abstract class AbstractKVStorable implements Serializable, Cloneable {
         return false;
     }
 
+    /**
+     * Marks this element as deleted, so it can be used as tombstone by {@link com.unister.semweb.drums.api.DRUMS#delete}.
+     * This method must be overwritten together with {@link #isMarkedAsDeleted()} in the concrete class.
+     *
+     * @throws UnsupportedOperationException
+     *             if this element can't be marked as deleted, see {@link #canBeMarkedAsDeleted()}
+     */
+    public void markAsDeleted() {
+        throw new UnsupportedOperationException(getClass().getName() + " can't be marked as deleted.");
+    }
+
+    /**
+     * Returns the time in milliseconds since 1970, this element was written or last touched. If
+     * {@link com.unister.semweb.drums.DRUMSParameterSet#TIME_TO_LIVE} is set, elements older than this time are dropped,
+     * when they are merged or swept. This method returns -1 by default, which means that the element never expires.
+     *
+     * @return the timestamp of this element, or a negative number if the element never expires
+     */
+    public long getTimestamp() {
+        return -1;
+    }
+
+    /**
+     * Merges two elements with equal keys in the order they were added. An element marked as deleted replaces the
+     * older element, and an element added after a deleted one replaces the deleted one. Otherwise the older element
+     * is merged with the newer one by {@link #merge(AbstractKVStorable)}.<br>
+     * <br>
+     * If the deleted element must still delete elements on disk, it must be kept in front of the element added after
+     * it, see {@link #merge(AbstractKVStorable[])}.
+     *
+     * @param older
+     *            the element added first
+     * @param newer
+     *            the element added afterwards
+     * @return the merged element
+     */
+    public static <Data extends AbstractKVStorable> Data mergeInOrder(Data older, Data newer) {
+        if (newer.isMarkedAsDeleted() || older.isMarkedAsDeleted()) {
+            return newer;
+        }
+        return older.merge(newer);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (getClass() != obj.getClass())
@@ -146,48 +213,51 @@ public abstract class AbstractKVStorable implements Serializable, Cloneable {
 
     /**
      * This method merges all {@link AbstractKVStorable}s in the given array with same keys. The array must been sorted.
+     * Elements with same keys are merged in the order they appear (see {@link #mergeInOrder}). If an element was added
+     * after an element marked as deleted, the deleted element is kept in front of it, so it still deletes the element
+     * with the same key on disk.
      *
      * @param toAdd
      *            this array might contain duplicate entries concerning the key, which must be merged.
      *
-     * @return a new array containing unique {@link AbstractKVStorable}s. The array is sorted.
+     * @return a new sorted array. Its keys are unique, except for an element marked as deleted followed by the element
+     *         added after it.
      */
     @SuppressWarnings("unchecked")
     public static <Data extends AbstractKVStorable> Data[] merge(Data[] toAdd) {
         if (toAdd.length == 1) {
             return toAdd;
         }
-        // estimate the number of unique elements and check the precondition, that the array must been sorted
-        int count = 1;
+        // check the precondition, that the array must been sorted
         for (int i = 0; i < toAdd.length - 1; i++) {
-            int compare = KeyUtils.compareKey(toAdd[i].key, toAdd[i + 1].key);
-            if (compare > 0) {
+            if (KeyUtils.compareKey(toAdd[i].key, toAdd[i + 1].key) > 0) {
                 throw new RuntimeException("The given array is not sorted.");
-            } else if(compare < 0) {
-                count++;
-            } else { // if compare == 0
-                // do nothing, elements are equal
             }
         }
 
-        AbstractKVStorable[] realToAdd = new AbstractKVStorable[count];
-        count = 0;
-        // merge Elements in toAdd
-        AbstractKVStorable first = toAdd[0];
-        for (int k = 1; k < toAdd.length; k++) {
-            while (k < toAdd.length && KeyUtils.compareKey(toAdd[k].key, first.key) == 0) {
-                first = first.merge(toAdd[k]);
+        List<AbstractKVStorable> realToAdd = new ArrayList<AbstractKVStorable>(toAdd.length);
+        int k = 0;
+        while (k < toAdd.length) {
+            AbstractKVStorable tombstone = null;
+            AbstractKVStorable merged = toAdd[k++];
+            // merge Elements in toAdd
+            while (k < toAdd.length && KeyUtils.compareKey(toAdd[k].key, merged.key) == 0) {
+                if (merged.isMarkedAsDeleted() && !toAdd[k].isMarkedAsDeleted()) {
+                    tombstone = merged;
+                    merged = toAdd[k];
+                } else {
+                    merged = mergeInOrder(merged, toAdd[k]);
+                    if (merged.isMarkedAsDeleted()) {
+                        tombstone = null;
+                    }
+                }
                 k++;
             }
-            realToAdd[count++] = first;
-            if (k < toAdd.length) {
-                first = toAdd[k];
+            if (tombstone != null) {
+                realToAdd.add(tombstone);
             }
+            realToAdd.add(merged);
         }
-
-        if (count < realToAdd.length && KeyUtils.compareKey(realToAdd[realToAdd.length - 2].key, first.key) != 0) {
-            realToAdd[count++] = first;
-        }
-        return (Data[]) realToAdd;
+        return (Data[]) realToAdd.toArray(new AbstractKVStorable[realToAdd.size()]);
     }
 }
@@ -93,6 +93,11 @@ public class GeneralStorable extends AbstractKVStorable {
         return ByteBuffer.allocate(key.length + value.length).put(key).put(value);
     }
 
+    @Override
+    public void writeTo(ByteBuffer dst) {
+        dst.put(key).put(value);
+    }
+
     @Override
     public GeneralStorable clone() {
         return this.fromByteBuffer(toByteBuffer());
@@ -108,6 +113,40 @@ public class GeneralStorable extends AbstractKVStorable {
         element.initFromByteBuffer(this.toByteBuffer());
     }
 
+    /** @return the value part declared by {@link GeneralStructure#setTimestampPart(String)}, or -1 if there is none */
+    @Override
+    public long getTimestamp() {
+        if (structure.timestampIndex < 0) {
+            return -1;
+        }
+        return Bytes.toLong(value, structure.valueByteOffsets.get(structure.timestampIndex));
+    }
+
+    /** @return true, if the structure has a flag added by {@link GeneralStructure#addDeletedFlag()} */
+    @Override
+    public boolean canBeMarkedAsDeleted() {
+        return structure.deletedFlagOffset >= 0;
+    }
+
+    @Override
+    public boolean isMarkedAsDeleted() {
+        return structure.deletedFlagOffset >= 0 && value[structure.deletedFlagOffset] != 0;
+    }
+
+    /**
+     * Sets the flag added by {@link GeneralStructure#addDeletedFlag()}.
+     * 
+     * @throws UnsupportedOperationException
+     *             if the structure has no such flag
+     */
+    @Override
+    public void markAsDeleted() {
+        if (structure.deletedFlagOffset < 0) {
+            super.markAsDeleted();
+        }
+        value[structure.deletedFlagOffset] = 1;
+    }
+
     /**
      * Sets the value belonging to the given field.
      * 
@@ -69,6 +69,15 @@ public class GeneralStructure implements Serializable {
     int keySize = 0;
     int valueSize = 0;
 
+    /** the index of the value part holding the timestamp of an element, or -1 if the elements never expire */
+    int timestampIndex = -1;
+
+    /** the name of the value part added by {@link #addDeletedFlag()} */
+    public static final String DELETED_FLAG = "_deleted";
+
+    /** the offset of the byte in the value, which marks an element as deleted, or -1 if elements can't be deleted */
+    int deletedFlagOffset = -1;
+
     /**
      * Adds a new ValuePart
      * 
@@ -154,4 +163,45 @@ public class GeneralStructure implements Serializable {
     public boolean addKeyPart(String name, Basic_Field_Types type) throws IOException {
         return addKeyPart(name, type.size);
     }
+
+    /**
+     * Declares the given value part as timestamp of the elements (see {@link AbstractKVStorable#getTimestamp()}). The
+     * part must hold a long, the time in milliseconds since 1970. If
+     * {@link com.unister.semweb.drums.DRUMSParameterSet#TIME_TO_LIVE} is set, elements with older timestamps are
+     * dropped.
+     * 
+     * @param name
+     *            the name of an already added value part of the type {@link Basic_Field_Types#Long}
+     * @return true if the value part was declared as timestamp
+     */
+    public boolean setTimestampPart(String name) {
+        Integer index = valueHash2Index.get(Arrays.hashCode(name.getBytes()));
+        if (index == null) {
+            logger.error("A valuePart with the name {} doesn't exist", name);
+            return false;
+        }
+        if (valueSizes.get(index) != Basic_Field_Types.Long.size) {
+            logger.error("The valuePart {} can't hold a timestamp, it is not a long", name);
+            return false;
+        }
+        timestampIndex = index;
+        return true;
+    }
+
+    /**
+     * Adds a value part of one byte named {@link #DELETED_FLAG}, which marks an element as deleted (see
+     * {@link AbstractKVStorable#markAsDeleted()}). Only elements of a structure with this part can be deleted by
+     * {@link com.unister.semweb.drums.api.DRUMS#delete(byte[]...)}.
+     * 
+     * @return true if adding the flag was successful
+     * @throws IOException
+     */
+    public boolean addDeletedFlag() throws IOException {
+        int offset = valueSize;
+        if (!addValuePart(DELETED_FLAG, Basic_Field_Types.Byte)) {
+            return false;
+        }
+        deletedFlagOffset = offset;
+        return true;
+    }
 }
@@ -0,0 +1,86 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+import com.unister.semweb.drums.sync.synchronizer.ISynchronizerFactory;
+import com.unister.semweb.drums.sync.synchronizer.Synchronizer;
+
+/**
+ * Drops the expired elements from the file of one bucket (see {@link DRUMSParameterSet#TIME_TO_LIVE}). Started by the
+ * {@link SyncManager} on a free synchronizer thread, while the bucket itself is not synchronized. The file is swept by
+ * a synchronizer of the configured factory, see {@link Synchronizer#expire()}.
+ *
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
+ */
+class ExpirySweeper<Data extends AbstractKVStorable> implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    /** the manager, which started this sweeper */
+    private final SyncManager<Data> syncManager;
+
+    /** creates the synchronizer sweeping the file */
+    private final ISynchronizerFactory<Data> synchronizerFactory;
+
+    /** the id of the bucket, whose file is swept */
+    private final int bucketId;
+
+    /** A Pointer to the GlobalParameters used by the DRUMS containing this sweeper */
+    private final DRUMSParameterSet<Data> gp;
+
+    /**
+     * @param syncManager
+     *            the manager, which is informed when the sweep is finished
+     * @param synchronizerFactory
+     *            creates the synchronizer sweeping the file
+     * @param bucketId
+     *            the id of the bucket, whose file is swept
+     * @param gp
+     */
+    ExpirySweeper(SyncManager<Data> syncManager, ISynchronizerFactory<Data> synchronizerFactory, int bucketId,
+            DRUMSParameterSet<Data> gp) {
+        this.syncManager = syncManager;
+        this.synchronizerFactory = synchronizerFactory;
+        this.bucketId = bucketId;
+        this.gp = gp;
+    }
+
+    @Override
+    public void run() {
+        try {
+            String filename = syncManager.getPathToDbFiles() + "/"
+                    + syncManager.bucketContainer.getHashFunction().getFilename(bucketId);
+            if (new File(filename).exists()) {
+                Synchronizer<Data> synchronizer = synchronizerFactory.createSynchronizer(filename, gp);
+                synchronizer.expire();
+                log.debug("Dropped {} expired elements from {}.", synchronizer.getNumberOfDeletedEntries(), filename);
+            }
+        } catch (Exception ex) {
+            log.error("An error occurred while sweeping the file of bucket " + bucketId + ".", ex);
+        } finally {
+            syncManager.sweepFinished();
+        }
+    }
+}
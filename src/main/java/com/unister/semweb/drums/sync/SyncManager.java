@@ -16,13 +16,21 @@
 package com.unister.semweb.drums.sync;
 
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,16 +39,32 @@ import com.unister.semweb.drums.DRUMSParameterSet;
 import com.unister.semweb.drums.bucket.Bucket;
 import com.unister.semweb.drums.bucket.BucketContainer;
 import com.unister.semweb.drums.bucket.DynamicMemoryAllocater;
+import com.unister.semweb.drums.file.WriteAheadLog;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
+import com.unister.semweb.drums.sync.policy.AbstractSyncPolicy;
+import com.unister.semweb.drums.sync.policy.ISyncPolicy;
+import com.unister.semweb.drums.sync.policy.SyncContext;
 import com.unister.semweb.drums.sync.synchronizer.ISynchronizerFactory;
 import com.unister.semweb.drums.sync.synchronizer.Synchronizer;
+import com.unister.semweb.drums.util.NamedThreadFactory;
 
 /**
  * An instance of a {@link SyncManager} is a thread, that handles the synchronization of {@link Bucket}s with their
- * corresponding parts on disk. The policy for synchronizing is as following:<br>
- * <li>get the bucket with the most elements and synchronize it, if there are still resources<br> <li>try to synchronize
- * the next full bucket</li><br>
+ * corresponding parts on disk. An {@link ISyncPolicy} decides, which buckets may be synchronized and in which order
+ * (see {@link DRUMSParameterSet#SYNC_POLICY}). Whenever a synchronizer thread is free, the bucket with the largest
+ * priority is synchronized next. If all buckets must be synchronized, every non-empty bucket is synchronized.<br>
+ * <br>
+ * The {@link SyncManager} doesn't poll. It sleeps until one of the following events:<br>
+ * <li>a bucket got its first element, reached the minimal number of elements or doubled its size (see
+ * {@link Bucket#setSyncTrigger(Runnable)})</li> <li>the {@link DynamicMemoryAllocater} ran out of memory</li> <li>a
+ * synchronization finished</li> <li>the oldest bucket reached the maximal storage time</li> <li>the force mode or the
+ * shutdown was initiated</li><li>the next sweep for expired elements is due</li><br>
+ * <br>
+ * If {@link DRUMSParameterSet#TIME_TO_LIVE} is set, a free synchronizer thread sweeps the files one after another and
+ * drops their expired elements (see {@link ExpirySweeper}). Buckets are preferred to sweeps, and a file is never swept
+ * while its bucket is synchronized. After the last file, the next sweep starts
+ * {@link DRUMSParameterSet#EXPIRY_SWEEP_INTERVAL} milliseconds later.<br>
  * <br>
  * The {@link SyncManager} instantiates new {@link SyncThread}s. Each {@link SyncThread} uses a special
  * {@link Synchronizer} to move data from cache to disk.
@@ -64,22 +88,72 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
     /** The factory to use by the {@link SyncThread}. */
     private ISynchronizerFactory<Data> synchronizerFactory;
 
+    /** the log of all records in the buckets, or null if there is none */
+    private volatile WriteAheadLog writeAheadLog;
+
     /** true, if shutdown is initiated. So all buckets will written to HDD. */
-    private boolean shutDownInitiated;
+    private volatile boolean shutDownInitiated;
 
     /**
      * true, if force is initiated. So all buckets will written to HDD. In different to shutDown DRUMS is not blocking
      * inserts.
      */
-    private boolean forceInitiated;
+    private volatile boolean forceInitiated;
+
+    /** guards {@link #eventOccurred}. Only held while waiting for or signaling an event, never while working */
+    private final ReentrantLock eventLock = new ReentrantLock();
+
+    /** signaled, when an event occurred, which might allow to start a synchronization */
+    private final Condition event = eventLock.newCondition();
+
+    /** true, if an event occurred since the last check of the buckets. Guarded by {@link #eventLock} */
+    private boolean eventOccurred;
+
+    /** signals an event to this {@link SyncManager}. Given to the buckets and the {@link DynamicMemoryAllocater} */
+    private final Runnable trigger = new Runnable() {
+        @Override
+        public void run() {
+            signalEvent();
+        }
+    };
+
+    /** chooses the buckets to synchronize */
+    private volatile ISyncPolicy<Data> syncPolicy;
+
+    /** the number of bytes filled in the file of each bucket. Updated after each synchronization */
+    private final AtomicLongArray fileSizes;
+
+    /** the number of {@link SyncThread}s, which were started and are not finished yet */
+    private final AtomicInteger runningSyncThreads = new AtomicInteger();
 
     /** A set of bucketIds, which are actual in process */
     private Set<Bucket<Data>> actualProcessingBuckets;
+
+    /** the id of the bucket, whose file is actually swept for expired elements, or -1 */
+    private volatile int sweptBucketId = -1;
+
+    /** the id of the bucket, whose file is swept next */
+    private int nextBucketToSweep;
+
+    /** the time in milliseconds, when the sweep of the first file may start again */
+    private long nextSweepTime;
     // private Set<Integer> actualProcessingBucketIds;
 
     /** The {@link ThreadPoolExecutor} handling all {@link SyncThread}s */
     private ThreadPoolExecutor bufferThreads;
 
+    /**
+     * The threads merging the ranges of large buckets in parallel, see {@link Synchronizer#setMergeExecutor}. null,
+     * if only one synchronizer thread is used.
+     */
+    private ExecutorService mergeThreads;
+
+    /**
+     * The threads reading and writing the files during pipelined merges, see {@link Synchronizer#setIOExecutor}. null,
+     * if {@link DRUMSParameterSet#PIPELINED_SYNC} is not set.
+     */
+    private ExecutorService ioThreads;
+
     /**
      * the number of allowed buckets waiting for synchronizing. This number should be always larger, than the real
      * number of threads
@@ -144,33 +218,44 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
                 gp.NUMBER_OF_SYNCHRONIZER_THREADS,
                 Integer.MAX_VALUE,
                 TimeUnit.DAYS, queue);
+        if (gp.NUMBER_OF_SYNCHRONIZER_THREADS > 1) {
+            mergeThreads = Executors.newFixedThreadPool(gp.NUMBER_OF_SYNCHRONIZER_THREADS, new NamedThreadFactory(
+                    "SyncManager-merge"));
+        }
+        if (gp.PIPELINED_SYNC) {
+            // each synchronizer uses at most one thread at a time
+            ioThreads = Executors.newFixedThreadPool(gp.NUMBER_OF_SYNCHRONIZER_THREADS, new NamedThreadFactory(
+                    "SyncManager-io"));
+        }
         this.setName("SyncManager:FileStorage");
 
         numberOfElementsInserted = new AtomicLong();
         numberOfElementsUpdated = new AtomicLong();
+        fileSizes = new AtomicLongArray(numberOfBuckets);
+        syncPolicy = AbstractSyncPolicy.create(gp.SYNC_POLICY, gp);
+        nextSweepTime = System.currentTimeMillis() + gp.EXPIRY_SWEEP_INTERVAL;
+
+        for (int i = 0; i < numberOfBuckets; i++) {
+            bucketContainer.getBucket(i).setSyncTrigger(trigger);
+        }
+        DynamicMemoryAllocater<?> allocater = DynamicMemoryAllocater.getInstance(gp.instanceID);
+        if (allocater != null) {
+            allocater.setPressureListener(trigger);
+        }
     }
 
     public void run() {
-        do {
+        while (true) {
             synchronizeBucketsWithHDD();
-
-            // We wait for 1 milli second. This is not much but reduces the CPU load a lot.
+            if (shutDownInitiated && bucketsEmpty()) {
+                break;
+            }
             try {
-                Thread.sleep(1);
+                awaitEvent(Math.min(nanosUntilNextStorageTimeout(), nanosUntilNextSweep()));
             } catch (InterruptedException ex) {
-                log.info("Sync manager was interrupted.");
-                break;
+                log.info("Sync manager was interrupted. Synchronizing the remaining buckets.");
+                shutDownInitiated = true;
             }
-        } while (!shutDownInitiated || !bucketsEmpty());
-
-        // BucketContainer is not receiving new elements, but there can still be waiting elements
-        try {
-            do {
-                Thread.sleep(1);
-                synchronizeBucketsWithHDD();
-            } while (!bucketsEmpty());
-        } catch (Exception ex) {
-            log.error("One exception occurred while synchronizing buckets.", ex);
         }
 
         bufferThreads.shutdown();
@@ -179,6 +264,110 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        if (mergeThreads != null) {
+            mergeThreads.shutdown();
+        }
+        if (ioThreads != null) {
+            ioThreads.shutdown();
+        }
+    }
+
+    /**
+     * Signals an event, which might allow to start a synchronization. Called by the buckets, the
+     * {@link DynamicMemoryAllocater} and the {@link SyncThread}s. Never blocks longer than the {@link SyncManager}
+     * needs to start or stop waiting.
+     */
+    void signalEvent() {
+        eventLock.lock();
+        try {
+            eventOccurred = true;
+            event.signal();
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until an event was signaled by {@link #signalEvent()} or the given time elapsed. Returns immediately, if an
+     * event was signaled since the last call.
+     */
+    private void awaitEvent(long nanos) throws InterruptedException {
+        eventLock.lock();
+        try {
+            while (!eventOccurred && nanos > 0) {
+                nanos = event.awaitNanos(nanos);
+            }
+            eventOccurred = false;
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * @return the time in nanoseconds until the next bucket with elements exceeds the maximal storage time. Infinite,
+     *         if all synchronizer threads are busy. Buckets, whose previous content is still synchronized, are skipped.
+     *         They can't be started before a synchronizer thread finished, which signals an event anyway.
+     */
+    private long nanosUntilNextStorageTimeout() {
+        if (runningSyncThreads.get() >= gp.NUMBER_OF_SYNCHRONIZER_THREADS) {
+            return Long.MAX_VALUE;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < numberOfBuckets; i++) {
+            Bucket<Data> bucket = bucketContainer.getBucket(i);
+            if (bucket.elementsInBucket > 0 && !isBucketProcessed(i)) {
+                oldest = Math.min(oldest, bucket.getCreationTime());
+            }
+        }
+        if (oldest == Long.MAX_VALUE || maxBucketStorageTime >= Long.MAX_VALUE / 2) {
+            return Long.MAX_VALUE;
+        }
+        // a bucket times out, when the elapsed time is larger than the maximal storage time
+        long millis = oldest + maxBucketStorageTime + 1 - System.currentTimeMillis();
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    /**
+     * @return the time in nanoseconds until the next file may be swept. Infinite, if no sweep can be started, because
+     *         elements never expire, a file is swept or all synchronizer threads are busy
+     */
+    private long nanosUntilNextSweep() {
+        if (gp.TIME_TO_LIVE <= 0 || sweptBucketId >= 0 || shutDownInitiated
+                || runningSyncThreads.get() >= gp.NUMBER_OF_SYNCHRONIZER_THREADS) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, nextSweepTime - System.currentTimeMillis()));
+    }
+
+    /**
+     * Called by each {@link SyncThread}, when it finished. A synchronizer thread is free again, so the next bucket can
+     * be synchronized.
+     */
+    void syncThreadFinished() {
+        runningSyncThreads.decrementAndGet();
+        signalEvent();
+    }
+
+    /**
+     * Called by a {@link SyncThread}, when it synchronized its bucket successfully. Reports the costs to the
+     * {@link ISyncPolicy}.
+     * 
+     * @param bucketId
+     *            the id of the synchronized bucket
+     * @param elements
+     *            the number of elements of the bucket
+     * @param bytesRead
+     *            the number of bytes read from the file
+     * @param bytesWritten
+     *            the number of bytes written to the file
+     * @param fileSize
+     *            the filled size of the file after the synchronization
+     * @param nanos
+     *            the duration of the synchronization in nanoseconds
+     */
+    void bucketSynchronized(int bucketId, int elements, long bytesRead, long bytesWritten, long fileSize, long nanos) {
+        fileSizes.set(bucketId, fileSize);
+        syncPolicy.synchronizationFinished(bucketId, elements, bytesRead, bytesWritten, nanos);
     }
 
     /**
@@ -195,51 +384,37 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
         return true;
     }
 
-    /** waits a moment for continuing synchronizing */
-    private void sleep() {
-        try {
-            Thread.sleep(250);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
-     * This method manages the synchronizing-process between {@link BucketContainer} and HDD. It is repeatedly called by
-     * <code>run()</code>, till shutdown is initiated.
+     * This method manages the synchronizing-process between {@link BucketContainer} and HDD. It is called by
+     * <code>run()</code> after each event. The buckets, which may be synchronized, are ordered by the priorities given
+     * by the {@link ISyncPolicy}, and the first ones are synchronized, as long as synchronizer threads are free.
      */
     private void synchronizeBucketsWithHDD() {
+        SyncContext context = createContext();
+        ISyncPolicy<Data> policy = syncPolicy;
+        policy.prepare(context);
         int synchronizedBuckets = 0;
-        // run over all buckets
+        final double[] priorities = new double[numberOfBuckets];
+        // the sizes change while elements are added, so the queue compares the sizes read once
+        final int[] sizes = new int[numberOfBuckets];
+        PriorityQueue<Bucket<Data>> candidates = new PriorityQueue<Bucket<Data>>(16, new Comparator<Bucket<Data>>() {
+            @Override
+            public int compare(Bucket<Data> b1, Bucket<Data> b2) {
+                int compare = Double.compare(priorities[b2.getBucketId()], priorities[b1.getBucketId()]);
+                // equal priorities, e.g. of empty files, are broken by the size
+                return compare != 0 ? compare : Integer.compare(sizes[b2.getBucketId()], sizes[b1.getBucketId()]);
+            }
+        });
         for (int i = 0; i < numberOfBuckets; i++) {
-            Bucket<Data> oldBucket = bucketContainer.getBucket(i);
-
-            // if the bucket is empty, then do nothing
-            if (oldBucket.elementsInBucket == 0) {
+            Bucket<Data> bucket = bucketContainer.getBucket(i);
+            sizes[i] = bucket.elementsInBucket;
+            if (sizes[i] == 0) {
                 synchronizedBuckets++;
                 continue;
             }
-
-            /* ***** TESTING PURPOSE ****** */
-            if (DynamicMemoryAllocater.INSTANCES[gp.instanceID].getFreeMemory() == 0) {
-                log.info("No memory free, theoretically I must force synchronization");
-            }
-            /* **************************** */
-
-            long elapsedTime = System.currentTimeMillis() - oldBucket.getCreationTime();
-            // if the bucket is full, or the bucket is longer then max bucket storage time within the BucketContainer,
-            // or the shutdown was initiated, then try to synchronize the buckets
-            // At this point we prevent starvation of one bucket if it not filled for a long period of time.
-            if (oldBucket.elementsInBucket >= gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC ||
-                    // TODO What do we do if more than one DynamicMemoryAllocator exist???
-                    DynamicMemoryAllocater.INSTANCES[gp.instanceID].getFreeMemory() == 0 ||
-                    // DynamicMemoryAllocater.INSTANCE.getFreeMemory() == 0 ||
-                    elapsedTime > maxBucketStorageTime ||
-                    shutDownInitiated ||
-                    forceInitiated) {
-                if (!startNewThread(i)) {
-                    sleep();
-                }
+            priorities[i] = policy.getPriority(bucket, context);
+            if (priorities[i] >= 0 || context.isSynchronizeAll()) {
+                candidates.add(bucket);
             }
         }
 
@@ -247,25 +422,68 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
             log.info("{} of {} buckets were synchronized.", synchronizedBuckets, bucketContainer.getNumberOfBuckets());
         }
 
-        // if the queue is not full try to fill it
-        if (bufferThreads.getQueue().size() < bufferThreads.getMaximumPoolSize()) {
-            int bucketId = getLargestBucketId();
-            if (bucketId != -1) {
-                Bucket<Data> pointer = bucketContainer.getBucket(bucketId);
-                boolean threadStarted = false;
-                if (DynamicMemoryAllocater.INSTANCES[gp.instanceID].getFreeMemory() == 0 ||
-                        pointer.elementsInBucket >= gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC ||
-                        forceInitiated) {
-                    threadStarted = startNewThread(bucketId);
-                }
+        Bucket<Data> next;
+        while (runningSyncThreads.get() < gp.NUMBER_OF_SYNCHRONIZER_THREADS && (next = candidates.poll()) != null) {
+            startNewThread(next.getBucketId());
+        }
+        if (runningSyncThreads.get() < gp.NUMBER_OF_SYNCHRONIZER_THREADS && !shutDownInitiated) {
+            startSweep();
+        }
+    }
 
-                if (!threadStarted) {
-                    sleep();
-                }
+    /**
+     * Starts an {@link ExpirySweeper} for the next file, if elements expire and the sweep is due. Files, whose buckets
+     * are actually synchronized, are skipped until the next sweep.
+     */
+    private void startSweep() {
+        long now = System.currentTimeMillis();
+        if (gp.TIME_TO_LIVE <= 0 || sweptBucketId >= 0 || now < nextSweepTime) {
+            return;
+        }
+        for (int i = 0; i < numberOfBuckets; i++) {
+            int bucketId = nextBucketToSweep;
+            nextBucketToSweep = (bucketId + 1) % numberOfBuckets;
+            if (nextBucketToSweep == 0) {
+                nextSweepTime = now + gp.EXPIRY_SWEEP_INTERVAL;
+            }
+            if (!isBucketProcessed(bucketId)) {
+                sweptBucketId = bucketId;
+                runningSyncThreads.incrementAndGet();
+                bufferThreads.execute(new ExpirySweeper<Data>(this, synchronizerFactory, bucketId, gp));
+                return;
+            }
+            if (nextBucketToSweep == 0) {
+                return;
             }
         }
     }
 
+    /**
+     * Called by each {@link ExpirySweeper}, when it finished. The bucket may be synchronized again.
+     */
+    void sweepFinished() {
+        sweptBucketId = -1;
+        syncThreadFinished();
+    }
+
+    /** @return the actual state of the memory and the files for the {@link ISyncPolicy} */
+    private SyncContext createContext() {
+        DynamicMemoryAllocater<?> allocater = DynamicMemoryAllocater.getInstance(gp.instanceID);
+        long usedMemory = 0, maxMemory = gp.BUCKET_MEMORY;
+        boolean memoryExhausted = false;
+        if (allocater != null) {
+            usedMemory = allocater.getUsedMemory();
+            maxMemory = allocater.getMaxMemory();
+            memoryExhausted = allocater.getFreeMemory() == 0;
+        }
+        long[] sizes = new long[numberOfBuckets];
+        for (int i = 0; i < numberOfBuckets; i++) {
+            sizes[i] = fileSizes.get(i);
+        }
+        return new SyncContext(System.currentTimeMillis(), usedMemory, maxMemory, memoryExhausted, shutDownInitiated
+                || forceInitiated, maxBucketStorageTime, sizes, gp.getElementSize());
+    }
+
     /**
      * Starts a new {@link SyncThread} with the given <code>bucketId</code>. Returns true if the {@link SyncThread} was
      * successful started, false otherwise.<br>
@@ -289,12 +507,6 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
             return false;
         }
 
-        // BlockingQueue is full
-        if (bufferThreads.getQueue().size() == allowedBucketsInBuffer) {
-            log.debug("Can't add BufferThread. Too many threads in queue. {}", actualProcessingBuckets.toString());
-            return false;
-        }
-
         actualProcessingBuckets.add(oldBucket);
         // actualProcessingBucketIds.add(bucketId);
         // the old Bucket will be replaced by this new bucket
@@ -304,15 +516,35 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        // threads, which still add to the old bucket, must finish before its content is synchronized
+        oldBucket.seal();
 
         SyncThread<Data> bufferThread = new SyncThread<Data>(this, oldBucket, actualProcessingBuckets,
                 synchronizerFactory, gp);
+        // at most one thread per synchronizer is started, so the queue of the executor never overflows
+        runningSyncThreads.incrementAndGet();
         bufferThreads.execute(bufferThread);
         return true;
     }
 
-    /** Gets a bucket id and returns <code>true</code> if the bucket is currently processed, otherwise <code>false</code> */
+    /** @return the threads merging the ranges of large buckets in parallel, or null */
+    ExecutorService getMergeExecutor() {
+        return mergeThreads;
+    }
+
+    /** @return the threads reading and writing the files during pipelined merges, or null */
+    ExecutorService getIOExecutor() {
+        return ioThreads;
+    }
+
+    /**
+     * Gets a bucket id and returns <code>true</code> if the bucket is currently processed or its file is swept,
+     * otherwise <code>false</code>
+     */
     private boolean isBucketProcessed(int bucketId) {
+        if (bucketId == sweptBucketId) {
+            return true;
+        }
         synchronized (actualProcessingBuckets) {
             for (Bucket<Data> oneBucket : this.actualProcessingBuckets) {
                 if (oneBucket.getBucketId() == bucketId) {
@@ -324,30 +556,41 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
     }
 
     /**
-     * Returns the id of the largest bucket. (the bucket with most elements)
+     * overwrites the SynchronizerFactory. Be very careful
      * 
-     * @return int
+     * @param factory
      */
-    private int getLargestBucketId() {
-        int max = 0;
-        int rememberId = -1;
-        for (int i = 0; i < numberOfBuckets; i++) {
-            Bucket<Data> oldBucket = bucketContainer.getBucket(i);
-            if (oldBucket.elementsInBucket > max) {
-                max = oldBucket.elementsInBucket;
-                rememberId = oldBucket.getBucketId();
-            }
-        }
-        return rememberId;
+    public void setSynchronizer(ISynchronizerFactory<Data> factory) {
+        this.synchronizerFactory = factory;
     }
 
     /**
-     * overwrites the SynchronizerFactory. Be very careful
+     * Sets the policy, which chooses the buckets to synchronize.
      * 
-     * @param factory
+     * @param syncPolicy
+     *            the policy
      */
-    public void setSynchronizer(ISynchronizerFactory<Data> factory) {
-        this.synchronizerFactory = factory;
+    public void setSyncPolicy(ISyncPolicy<Data> syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        signalEvent();
+    }
+
+    /** @return the policy, which chooses the buckets to synchronize */
+    public ISyncPolicy<Data> getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Sets the number of bytes filled in the file of the given bucket. Called, when the files are opened. Afterwards
+     * the sizes are updated by each synchronization.
+     * 
+     * @param bucketId
+     *            the id of the bucket
+     * @param size
+     *            the filled size of the file in bytes
+     */
+    public void setFileSize(int bucketId, long size) {
+        fileSizes.set(bucketId, size);
     }
 
     /**
@@ -367,6 +610,7 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
         this.bucketContainer.shutdown();
         log.info("Forcing DRUMS to synchronize its buckets");
         forceInitiated = true;
+        signalEvent();
     }
 
     /**
@@ -377,6 +621,23 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
         this.bucketContainer.shutdown();
         log.info("Shuting down the sync manager");
         shutDownInitiated = true;
+        signalEvent();
+    }
+
+    /**
+     * Sets the log of the records in the buckets. The {@link SyncThread}s report each synchronized bucket to the log,
+     * so it can be truncated.
+     * 
+     * @param writeAheadLog
+     *            the log, or <code>null</code>
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /** @return the log of the records in the buckets, or <code>null</code> if there is none */
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
     }
 
     /** @return the directory of the database files. */
@@ -398,6 +659,7 @@ public class SyncManager<Data extends AbstractKVStorable> extends Thread {
      */
     public void setMaxBucketStorageTime(long maxBucketStorageTime) {
         this.maxBucketStorageTime = maxBucketStorageTime;
+        signalEvent();
     }
 
     /** @return a set of buckets which are currently in a synchronization process. */
@@ -22,7 +22,8 @@ import org.slf4j.LoggerFactory;
 
 import com.unister.semweb.drums.DRUMSParameterSet;
 import com.unister.semweb.drums.bucket.Bucket;
-import com.unister.semweb.drums.bucket.DynamicMemoryAllocater;
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.file.WriteAheadLog;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
 import com.unister.semweb.drums.sync.synchronizer.ISynchronizerFactory;
@@ -87,22 +88,32 @@ public class SyncThread<Data extends AbstractKVStorable> implements Runnable {
      * runs synchronization of a particular {@link Bucket}
      */
     public void run() {
-        AbstractKVStorable[] linkData = bucket.getBackend(); // get all LinkData
+        ISortedRecords linkData = bucket.getSortedRecords(); // get all LinkData, sorted in the memory of the bucket
 
         long startTime = System.nanoTime(); // remember the, time when synchronizing is started (for logging)
 
-        log.debug("Start to synchronize {} objects.", linkData.length);
+        log.debug("Start to synchronize {} objects.", linkData.size());
         try {
             String filename = buffer.bucketContainer.getHashFunction().getFilename(bucket.getBucketId());
             String directoryName = buffer.getPathToDbFiles();
             Synchronizer<Data> synchronizer = synchronizerFactory
                     .createSynchronizer(directoryName + "/" + filename, gp);
+            synchronizer.setGeneration(bucket.getGeneration());
+            synchronizer.setMergeExecutor(buffer.getMergeExecutor(), gp.NUMBER_OF_SYNCHRONIZER_THREADS);
+            synchronizer.setIOExecutor(buffer.getIOExecutor());
             synchronizer.upsert(linkData); // start synchronizing
 
             actualProcessingBuckets.remove(bucket);
             freeMemory(bucket);
             synchronizer.close();
-            log.debug("Synchronized {} objects in {} ms.", linkData.length, ((System.nanoTime() - startTime) / 1e6));
+            WriteAheadLog writeAheadLog = buffer.getWriteAheadLog();
+            if (writeAheadLog != null) {
+                writeAheadLog.bucketSynchronized(bucket.getBucketId(), bucket.getGeneration());
+            }
+            bucket.synchronizationFinished(null);
+            buffer.bucketSynchronized(bucket.getBucketId(), linkData.size(), synchronizer.getNumberOfReadBytes(),
+                    synchronizer.getNumberOfWrittenBytes(), synchronizer.getFileSize(), System.nanoTime() - startTime);
+            log.debug("Synchronized {} objects in {} ms.", linkData.size(), ((System.nanoTime() - startTime) / 1e6));
             /* update messages */
             buffer.sumUpInserted(synchronizer.getNumberOfInsertedEntries());
             buffer.sumUpUpdated(synchronizer.getNumberOfUpdatedEntries());
@@ -110,14 +121,16 @@ public class SyncThread<Data extends AbstractKVStorable> implements Runnable {
             log.error("An error occurred during synchronizing. Synchronizing thread stopped! Some data was lost", ex);
             freeMemory(bucket);
             actualProcessingBuckets.remove(bucket);
-
+            bucket.synchronizationFinished(ex);
+        } finally {
+            buffer.syncThreadFinished();
         }
     }
 
     private void freeMemory(Bucket<Data> bucket) {
         log.debug("Try to free memory from bucket {}.", bucket.getBucketId());
         long mem = bucket.freeMemory();
-        DynamicMemoryAllocater.INSTANCES[gp.instanceID].freeMemory(mem);
+        buffer.bucketContainer.signalSpaceAvailable();
         log.debug("{} bytes are available now.", mem);
 
     }
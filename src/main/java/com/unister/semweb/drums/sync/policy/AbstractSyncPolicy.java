@@ -0,0 +1,102 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+
+/**
+ * An abstract {@link ISyncPolicy}. A bucket may be synchronized, if it contains at least {@link #getThreshold()}
+ * elements, if it is older than the maximal storage time or if no memory is left. Implementations only rank the
+ * buckets, which may be synchronized.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
+ */
+public abstract class AbstractSyncPolicy<Data extends AbstractKVStorable> implements ISyncPolicy<Data> {
+
+    /** A Pointer to the GlobalParameters used by the DRUMS containing this policy */
+    protected final DRUMSParameterSet<Data> gp;
+
+    /**
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     */
+    protected AbstractSyncPolicy(DRUMSParameterSet<Data> gp) {
+        this.gp = gp;
+    }
+
+    @Override
+    public void prepare(SyncContext context) {
+    }
+
+    @Override
+    public double getPriority(Bucket<Data> bucket, SyncContext context) {
+        if (bucket.elementsInBucket >= getThreshold() || context.isMemoryExhausted() || context.isTimedOut(bucket)) {
+            return rank(bucket, context);
+        }
+        return -1;
+    }
+
+    @Override
+    public void synchronizationFinished(int bucketId, int elements, long bytesRead, long bytesWritten, long nanos) {
+    }
+
+    /** @return the minimal number of elements of a bucket, before it is synchronized */
+    public int getThreshold() {
+        return gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC;
+    }
+
+    /**
+     * Ranks a bucket, which may be synchronized.
+     * 
+     * @param bucket
+     *            the bucket
+     * @param context
+     *            the state of the memory and the files
+     * @return the priority of the bucket, not negative
+     */
+    protected abstract double rank(Bucket<Data> bucket, SyncContext context);
+
+    /**
+     * Creates the policy with the given name. Known names are <code>LARGEST_FIRST</code>, <code>OLDEST_FIRST</code>,
+     * <code>BEST_RATIO</code> and <code>ADAPTIVE</code>.
+     * 
+     * @param name
+     *            the name of the policy, see {@link DRUMSParameterSet#SYNC_POLICY}
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     * @return a new policy
+     * @throws IllegalArgumentException
+     *             if the name is unknown
+     */
+    public static <Data extends AbstractKVStorable> ISyncPolicy<Data> create(String name, DRUMSParameterSet<Data> gp) {
+        String policy = name.trim().toUpperCase();
+        if (policy.equals("LARGEST_FIRST")) {
+            return new LargestFirstSyncPolicy<Data>(gp);
+        } else if (policy.equals("OLDEST_FIRST")) {
+            return new OldestFirstSyncPolicy<Data>(gp);
+        } else if (policy.equals("BEST_RATIO")) {
+            return new BestRatioSyncPolicy<Data>(gp);
+        } else if (policy.equals("ADAPTIVE")) {
+            return new AdaptiveSyncPolicy<Data>(gp);
+        }
+        throw new IllegalArgumentException("Unknown sync policy " + name);
+    }
+}
@@ -0,0 +1,122 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+
+/**
+ * Tunes the minimal number of elements of a bucket, before it is synchronized, from the observed merge costs and the
+ * memory pressure. The merge cost of a synchronization is its write amplification, the bytes read and written divided
+ * by the bytes of the bucket. After each synchronization the threshold is
+ * <li>lowered, if the memory usage is above {@link #HIGH_MEMORY_USAGE}, so memory is freed earlier,</li>
+ * <li>raised, if the memory usage is below {@link #LOW_MEMORY_USAGE} and the merge cost is above the target, so more
+ * elements share one merge,</li>
+ * <li>lowered slowly, if the merge cost is below half of the target, so no memory is held without need.</li><br>
+ * The threshold stays between 1 and the share of the memory of one bucket. Buckets are ranked like in the
+ * {@link BestRatioSyncPolicy}.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
+ */
+public class AdaptiveSyncPolicy<Data extends AbstractKVStorable> extends BestRatioSyncPolicy<Data> {
+
+    /** above this fraction of used memory, the threshold is lowered */
+    public static final double HIGH_MEMORY_USAGE = 0.8;
+
+    /** below this fraction of used memory, the threshold may be raised */
+    public static final double LOW_MEMORY_USAGE = 0.5;
+
+    /** the default target of the write amplification of one synchronization */
+    public static final double DEFAULT_TARGET_AMPLIFICATION = 8;
+
+    /** the weight of the latest synchronization in the average merge cost */
+    private static final double SMOOTHING = 0.2;
+
+    /** the write amplification, which should be reached */
+    private final double targetAmplification;
+
+    /** the actual threshold */
+    private volatile int threshold;
+
+    /** the largest allowed threshold, the share of the memory of one bucket */
+    private volatile int maxThreshold;
+
+    /** the memory usage seen by the last call of {@link #prepare(SyncContext)} */
+    private volatile double memoryUsage;
+
+    /** the average write amplification of the synchronizations, -1 if nothing was synchronized yet */
+    private double amplification = -1;
+
+    /**
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     */
+    public AdaptiveSyncPolicy(DRUMSParameterSet<Data> gp) {
+        this(gp, DEFAULT_TARGET_AMPLIFICATION);
+    }
+
+    /**
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     * @param targetAmplification
+     *            the write amplification, which should be reached
+     */
+    public AdaptiveSyncPolicy(DRUMSParameterSet<Data> gp, double targetAmplification) {
+        super(gp);
+        this.targetAmplification = targetAmplification;
+        this.threshold = Math.max(1, gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC);
+        this.maxThreshold = threshold;
+    }
+
+    @Override
+    public void prepare(SyncContext context) {
+        memoryUsage = context.getMemoryUsage();
+        long share = context.getMaxMemory() / Math.max(1, context.getNumberOfBuckets()) / context.getElementSize();
+        long limit = gp.MAX_MEMORY_PER_BUCKET / context.getElementSize();
+        maxThreshold = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.min(share, limit)));
+    }
+
+    @Override
+    public synchronized void synchronizationFinished(int bucketId, int elements, long bytesRead, long bytesWritten,
+            long nanos) {
+        double cost = (double) (bytesRead + bytesWritten) / Math.max(1L, (long) elements * gp.getElementSize());
+        amplification = amplification < 0 ? cost : amplification + SMOOTHING * (cost - amplification);
+
+        int newThreshold = threshold;
+        if (memoryUsage >= HIGH_MEMORY_USAGE) {
+            newThreshold -= newThreshold / 4;
+        } else if (memoryUsage < LOW_MEMORY_USAGE && amplification > targetAmplification) {
+            newThreshold += newThreshold / 4 + 1;
+        } else if (amplification < targetAmplification / 2) {
+            newThreshold -= newThreshold / 8;
+        }
+        threshold = Math.max(1, Math.min(maxThreshold, newThreshold));
+    }
+
+    @Override
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /** @return the average write amplification of the synchronizations, -1 if nothing was synchronized yet */
+    public synchronized double getAmplification() {
+        return amplification;
+    }
+}
@@ -0,0 +1,49 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+
+/**
+ * Synchronizes the buckets first, which move the most bytes to disk per byte of merge I/O. In the worst case a
+ * synchronization reads the whole file and writes it again with the elements of the bucket. So a small bucket of a
+ * large file is expensive, while a large bucket of a small file is cheap.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
+ */
+public class BestRatioSyncPolicy<Data extends AbstractKVStorable> extends AbstractSyncPolicy<Data> {
+
+    /**
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     */
+    public BestRatioSyncPolicy(DRUMSParameterSet<Data> gp) {
+        super(gp);
+    }
+
+    /** @return the bytes of the bucket divided by the bytes read and written by its synchronization */
+    @Override
+    protected double rank(Bucket<Data> bucket, SyncContext context) {
+        long bucketSize = context.getBucketSize(bucket);
+        long fileSize = context.getFileSize(bucket.getBucketId());
+        return (double) bucketSize / (2 * fileSize + bucketSize);
+    }
+}
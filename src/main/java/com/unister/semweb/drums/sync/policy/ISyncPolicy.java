@@ -0,0 +1,70 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+import com.unister.semweb.drums.sync.SyncManager;
+
+/**
+ * The interface for the policies, which decide when a {@link Bucket} is synchronized and which buckets are
+ * synchronized first. The {@link SyncManager} asks the policy after each event for the priorities of all non-empty
+ * buckets and synchronizes the buckets with the largest priorities, as long as synchronizer threads are free.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
+ */
+public interface ISyncPolicy<Data extends AbstractKVStorable> {
+
+    /**
+     * Called once before the priorities of the buckets are requested.
+     * 
+     * @param context
+     *            the state of the memory and the files
+     */
+    void prepare(SyncContext context);
+
+    /**
+     * Returns the priority of the given non-empty bucket. Buckets with larger priorities are synchronized first. A
+     * negative priority means, that the bucket should not be synchronized yet. If all buckets must be synchronized
+     * (see {@link SyncContext#isSynchronizeAll()}), buckets with negative priorities are synchronized last.
+     * 
+     * @param bucket
+     *            the bucket
+     * @param context
+     *            the state of the memory and the files
+     * @return the priority of the bucket
+     */
+    double getPriority(Bucket<Data> bucket, SyncContext context);
+
+    /**
+     * Called after a bucket was synchronized. Policies may learn from the costs of the synchronization.
+     * 
+     * @param bucketId
+     *            the id of the synchronized bucket
+     * @param elements
+     *            the number of elements of the bucket
+     * @param bytesRead
+     *            the number of bytes read from the file
+     * @param bytesWritten
+     *            the number of bytes written to the file
+     * @param nanos
+     *            the duration of the synchronization in nanoseconds
+     */
+    void synchronizationFinished(int bucketId, int elements, long bytesRead, long bytesWritten, long nanos);
+}
@@ -0,0 +1,44 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+
+/**
+ * Synchronizes the buckets with the most elements first. Each synchronization frees as much memory as possible.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}, e.g. {@link GeneralStorable}
+ */
+public class LargestFirstSyncPolicy<Data extends AbstractKVStorable> extends AbstractSyncPolicy<Data> {
+
+    /**
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     */
+    public LargestFirstSyncPolicy(DRUMSParameterSet<Data> gp) {
+        super(gp);
+    }
+
+    @Override
+    protected double rank(Bucket<Data> bucket, SyncContext context) {
+        return bucket.elementsInBucket;
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.sync.SyncManager;
+
+/**
+ * The state of the memory and the files, which is given to an {@link ISyncPolicy}. A {@link SyncContext} is created by
+ * the {@link SyncManager} before each examination of the buckets and doesn't change afterwards.
+ * 
+ * @author Martin Nettling
+ */
+public class SyncContext {
+    /** the time in milliseconds, when this context was created */
+    private final long time;
+
+    /** the number of bytes used by all buckets */
+    private final long usedMemory;
+
+    /** the number of bytes all buckets are allowed to use */
+    private final long maxMemory;
+
+    /** true, if no more memory can be allocated */
+    private final boolean memoryExhausted;
+
+    /** true, if all buckets must be synchronized, because of the force mode or the shutdown */
+    private final boolean synchronizeAll;
+
+    /** the maximal time in milliseconds a bucket is held in memory */
+    private final long maxBucketStorageTime;
+
+    /** the number of bytes filled in the file of each bucket */
+    private final long[] fileSizes;
+
+    /** the size of one element in bytes */
+    private final int elementSize;
+
+    /**
+     * @param time
+     *            the actual time in milliseconds
+     * @param usedMemory
+     *            the number of bytes used by all buckets
+     * @param maxMemory
+     *            the number of bytes all buckets are allowed to use
+     * @param memoryExhausted
+     *            true, if no more memory can be allocated
+     * @param synchronizeAll
+     *            true, if all buckets must be synchronized
+     * @param maxBucketStorageTime
+     *            the maximal time in milliseconds a bucket is held in memory
+     * @param fileSizes
+     *            the number of bytes filled in the file of each bucket. Not copied
+     * @param elementSize
+     *            the size of one element in bytes
+     */
+    public SyncContext(long time, long usedMemory, long maxMemory, boolean memoryExhausted, boolean synchronizeAll,
+            long maxBucketStorageTime, long[] fileSizes, int elementSize) {
+        this.time = time;
+        this.usedMemory = usedMemory;
+        this.maxMemory = maxMemory;
+        this.memoryExhausted = memoryExhausted;
+        this.synchronizeAll = synchronizeAll;
+        this.maxBucketStorageTime = maxBucketStorageTime;
+        this.fileSizes = fileSizes;
+        this.elementSize = elementSize;
+    }
+
+    /** @return the time in milliseconds, when this context was created */
+    public long getTime() {
+        return time;
+    }
+
+    /** @return the fraction of the memory used by all buckets, between 0 and 1 */
+    public double getMemoryUsage() {
+        return maxMemory <= 0 ? 0 : Math.min(1, (double) usedMemory / maxMemory);
+    }
+
+    /** @return the number of bytes all buckets are allowed to use */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /** @return true, if no more memory can be allocated */
+    public boolean isMemoryExhausted() {
+        return memoryExhausted;
+    }
+
+    /** @return true, if all buckets must be synchronized, because of the force mode or the shutdown */
+    public boolean isSynchronizeAll() {
+        return synchronizeAll;
+    }
+
+    /** @return the number of buckets */
+    public int getNumberOfBuckets() {
+        return fileSizes.length;
+    }
+
+    /**
+     * @param bucketId
+     *            the id of a bucket
+     * @return the number of bytes filled in the file of the bucket
+     */
+    public long getFileSize(int bucketId) {
+        return fileSizes[bucketId];
+    }
+
+    /** @return the size of one element in bytes */
+    public int getElementSize() {
+        return elementSize;
+    }
+
+    /**
+     * @param bucket
+     *            a bucket
+     * @return the number of bytes used by the elements of the bucket
+     */
+    public long getBucketSize(Bucket<?> bucket) {
+        return (long) bucket.elementsInBucket * elementSize;
+    }
+
+    /**
+     * @param bucket
+     *            a bucket
+     * @return the time in milliseconds since the bucket was created
+     */
+    public long getAge(Bucket<?> bucket) {
+        return Math.max(0, time - bucket.getCreationTime());
+    }
+
+    /**
+     * @param bucket
+     *            a bucket
+     * @return true, if the bucket is held in memory longer than the maximal storage time
+     */
+    public boolean isTimedOut(Bucket<?> bucket) {
+        return getAge(bucket) > maxBucketStorageTime;
+    }
+}
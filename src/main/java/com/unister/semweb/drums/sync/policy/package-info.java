@@ -0,0 +1,4 @@
+/**
+ * This package contains the policies, which choose the buckets to synchronize next.
+ */
+package com.unister.semweb.drums.sync.policy;
@@ -0,0 +1,151 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.sync.synchronizer.RangeSplitter.Range;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Merges the elements of the bucket belonging to one {@link Range} with the elements read from this range of the file.
+ * The result is kept in memory, until the {@link Synchronizer} writes it to its new place in the file. Several ranges
+ * of one bucket are merged in parallel, each by its own {@link RangeMerge}.
+ *
+ * @author Martin Nettling
+ */
+class RangeMerge implements Callable<RangeMerge> {
+    /** the merged range */
+    final Range range;
+
+    /** the elements of the range read from the file */
+    private final ByteBuffer input;
+
+    /** the merged elements, in read mode after the merge */
+    ByteBuffer output;
+
+    /** the number of elements inserted into the range */
+    long numberOfInsertedEntries;
+
+    /** the number of elements in the range, which were updated */
+    long numberOfUpdatedEntries;
+
+    /** the number of elements in the range, which were deleted by tombstones or expired */
+    long numberOfDeletedEntries;
+
+    /** the number of elements from the file, which were copied unchanged */
+    long numberOfOldEntries;
+
+    private final ISortedRecords records;
+    private final AbstractKVStorable prototype;
+
+    /** elements with a timestamp before this time expired, see {@link RecordMerger#getExpiryTime(long)} */
+    private final long expiredBefore;
+
+    /**
+     * @param range
+     *            the range to merge
+     * @param input
+     *            the elements of the range read from the file, in read mode
+     * @param records
+     *            a view on the elements of the bucket, used only by this merge
+     * @param prototype
+     *            the prototype of the elements
+     * @param expiredBefore
+     *            elements with a timestamp before this time are dropped
+     */
+    RangeMerge(Range range, ByteBuffer input, ISortedRecords records, AbstractKVStorable prototype,
+            long expiredBefore) {
+        this.range = range;
+        this.input = input;
+        this.records = records;
+        this.prototype = prototype;
+        this.expiredBefore = expiredBefore;
+    }
+
+    @Override
+    public RangeMerge call() {
+        RecordMerger merger = new RecordMerger(prototype, expiredBefore);
+        merger.setRecords(records, range.recordFrom, range.recordTo);
+        int elementSize = merger.elementSize;
+        int keyLength = merger.keyLength;
+        output = ByteBuffer.allocate(input.remaining() + (range.recordTo - range.recordFrom) * elementSize);
+        byte[] disk = input.array();
+        int position = input.arrayOffset() + input.position();
+        int limit = input.arrayOffset() + input.limit();
+
+        byte[] dateFromBucket = merger.next();
+        while (dateFromBucket != null && position < limit) {
+            int compare = KeyUtils.compareKey(dateFromBucket, disk, position, keyLength);
+            if (compare < 0) {
+                insert(merger, dateFromBucket, keyLength);
+                dateFromBucket = merger.next();
+            } else if (compare == 0) {
+                if (merger.mergeWithDisk(disk, position)) {
+                    output.put(dateFromBucket);
+                    numberOfUpdatedEntries++;
+                } else {
+                    numberOfDeletedEntries++;
+                }
+                position += elementSize;
+                dateFromBucket = merger.next();
+            } else {
+                position = copyFromDisk(merger, disk, position, limit, dateFromBucket);
+            }
+        }
+        while (dateFromBucket != null) {
+            insert(merger, dateFromBucket, keyLength);
+            dateFromBucket = merger.next();
+        }
+        copyFromDisk(merger, disk, position, limit, null);
+        output.flip();
+        return this;
+    }
+
+    /** inserts the element from the bucket, if its key is not null and it is neither a tombstone nor expired */
+    private void insert(RecordMerger merger, byte[] element, int keyLength) {
+        if (!merger.isDropped() && !KeyUtils.isNull(element, 0, keyLength)) {
+            output.put(element);
+            numberOfInsertedEntries++;
+        }
+    }
+
+    /**
+     * Copies the elements from disk, which are smaller than the given key, to the output. Elements marked as deleted
+     * or expired are dropped.
+     *
+     * @return the position of the first element, which was not copied
+     */
+    private int copyFromDisk(RecordMerger merger, byte[] disk, int position, int limit, byte[] limitKey) {
+        int elementSize = merger.elementSize;
+        int end = position;
+        while (end < limit && (limitKey == null || KeyUtils.compareKey(limitKey, disk, end, merger.keyLength) > 0)) {
+            if (merger.isDeleted(disk, end)) {
+                output.put(disk, position, end - position);
+                numberOfOldEntries += (end - position) / elementSize;
+                numberOfDeletedEntries++;
+                position = end + elementSize;
+            }
+            end += elementSize;
+        }
+        output.put(disk, position, end - position);
+        numberOfOldEntries += (end - position) / elementSize;
+        return end;
+    }
+}
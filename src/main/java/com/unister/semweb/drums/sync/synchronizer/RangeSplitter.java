@@ -0,0 +1,206 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.file.HeaderIndexFile;
+import com.unister.semweb.drums.file.IndexForHeaderIndexFile;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Splits the merge of a bucket with its file into independent {@link Range}s of about the same size. The ranges are
+ * split at the borders of the chunks of the file, as known from the {@link IndexForHeaderIndexFile}. If the elements
+ * of the bucket are concentrated in a few chunks or lie behind the largest key of the file, these elements are split
+ * by their keys. So the ranges are balanced, even if the data is skewed.
+ * 
+ * @author Martin Nettling
+ */
+class RangeSplitter {
+
+    /** A part of the file and the elements of the bucket, which belong to it. */
+    static class Range {
+        /** the position of the first byte in the file, which belongs to this range */
+        final long diskFrom;
+
+        /** the position behind the last byte in the file, which belongs to this range */
+        final long diskTo;
+
+        /** the index of the first element of the bucket, which belongs to this range */
+        final int recordFrom;
+
+        /** the index behind the last element of the bucket, which belongs to this range */
+        final int recordTo;
+
+        Range(long diskFrom, long diskTo, int recordFrom, int recordTo) {
+            this.diskFrom = diskFrom;
+            this.diskTo = diskTo;
+            this.recordFrom = recordFrom;
+            this.recordTo = recordTo;
+        }
+    }
+
+    private final HeaderIndexFile<?> dataFile;
+    private final ISortedRecords records;
+    private final int elementSize;
+    private final int keyLength;
+
+    /** reused to read elements of the bucket */
+    private final byte[] record;
+
+    /** the ranges found so far */
+    private List<Range> ranges;
+
+    /** the start of the actual range in the file */
+    private long diskFrom;
+
+    /** the first element of the bucket in the actual range */
+    private int recordFrom;
+
+    /**
+     * @param dataFile
+     *            the opened file of the bucket
+     * @param records
+     *            the ascending sorted elements of the bucket
+     * @param keyLength
+     *            the length of the keys
+     */
+    RangeSplitter(HeaderIndexFile<?> dataFile, ISortedRecords records, int keyLength) {
+        this.dataFile = dataFile;
+        this.records = records;
+        this.elementSize = records.getElementSize();
+        this.keyLength = keyLength;
+        this.record = new byte[elementSize];
+    }
+
+    /**
+     * Splits the merge into ranges. The ranges cover the file from the start offset to its end and all elements of
+     * the bucket without gaps and in ascending order.
+     * 
+     * @param startOffset
+     *            the position in the file, where the merge starts. Must be the start of a chunk
+     * @param filledUpTo
+     *            the filled size of the file
+     * @param rangeSize
+     *            the number of bytes from disk and from the bucket, which should be merged per range
+     * @return the ranges
+     * @throws IOException
+     */
+    List<Range> split(long startOffset, long filledUpTo, long rangeSize) throws IOException {
+        IndexForHeaderIndexFile index = dataFile.getIndex();
+        int chunkSize = dataFile.getChunkSize();
+        ranges = new ArrayList<Range>();
+        diskFrom = startOffset;
+        recordFrom = 0;
+        long size = 0;
+        int recordIndex = 0;
+        for (long chunkStart = startOffset; chunkStart < filledUpTo; chunkStart += chunkSize) {
+            long chunkEnd = Math.min(chunkStart + chunkSize, filledUpTo);
+            int chunkId = dataFile.getChunkIndex(chunkStart);
+            int recordEnd = upperBound(index.getLargestKey(chunkId), recordIndex, records.size());
+            long chunkBytes = chunkEnd - chunkStart + (long) (recordEnd - recordIndex) * elementSize;
+            if (size > 0 && size + chunkBytes > rangeSize) {
+                close(chunkStart, recordIndex);
+                size = 0;
+            }
+            if ((long) (recordEnd - recordIndex) * elementSize > rangeSize) {
+                splitByKeys(recordEnd, chunkStart, chunkEnd, rangeSize);
+                size = chunkEnd - diskFrom + (long) (recordEnd - recordFrom) * elementSize;
+            } else {
+                size += chunkBytes;
+            }
+            recordIndex = recordEnd;
+        }
+        // the elements behind the largest key of the file are appended
+        if ((long) (records.size() - recordIndex) * elementSize > rangeSize) {
+            splitByKeys(records.size(), filledUpTo, filledUpTo, rangeSize);
+        }
+        close(filledUpTo, records.size());
+        return ranges;
+    }
+
+    /**
+     * Splits the elements of the bucket up to the given index into ranges of the given size. The elements on disk
+     * between the given positions are split at the same keys.
+     */
+    private void splitByKeys(int recordEnd, long chunkStart, long chunkEnd, long rangeSize) throws IOException {
+        int step = (int) Math.max(1, rangeSize / elementSize);
+        ByteBuffer chunk = null;
+        for (int split = recordFrom + step; split < recordEnd; split = recordFrom + step) {
+            // elements with equal keys must stay in the same range
+            records.getRecord(split - 1, record);
+            int boundary = upperBound(record, split, recordEnd);
+            if (boundary >= recordEnd) {
+                break;
+            }
+            records.getRecord(boundary, record);
+            long diskSplit = chunkEnd;
+            if (chunkStart < chunkEnd) {
+                if (chunk == null) {
+                    chunk = ByteBuffer.allocate((int) (chunkEnd - chunkStart));
+                    dataFile.read(chunkStart, chunk);
+                    chunk.flip();
+                }
+                diskSplit = chunkStart + findFirstNotSmaller(chunk, record);
+            }
+            close(Math.max(diskSplit, diskFrom), boundary);
+        }
+    }
+
+    /** closes the actual range at the given positions and starts the next one */
+    private void close(long diskTo, int recordTo) {
+        if (diskTo == diskFrom && recordTo == recordFrom) {
+            return;
+        }
+        ranges.add(new Range(diskFrom, diskTo, recordFrom, recordTo));
+        diskFrom = diskTo;
+        recordFrom = recordTo;
+    }
+
+    /** @return the index of the first element of the bucket between from and to, whose key is larger */
+    private int upperBound(byte[] key, int from, int to) {
+        byte[] candidate = new byte[elementSize];
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            records.getRecord(mid, candidate);
+            if (KeyUtils.compareKey(candidate, key, keyLength) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** @return the position of the first element in the chunk, which is not smaller than the key */
+    private int findFirstNotSmaller(ByteBuffer chunk, byte[] key) {
+        int low = 0, high = chunk.limit() / elementSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (KeyUtils.compareKey(key, chunk.array(), mid * elementSize, keyLength) > 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low * elementSize;
+    }
+}
@@ -0,0 +1,262 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.nio.ByteBuffer;
+
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Reads the elements of a bucket one by one and merges them with elements from disk. Elements with equal keys are
+ * merged in the order they appear (see {@link AbstractKVStorable#mergeInOrder}). Objects are only built, if elements
+ * must be merged or checked for deletion. All arrays and objects are reused, so a {@link RecordMerger} may only be used
+ * by one thread.<br>
+ * <br>
+ * An element of the bucket marked as deleted is a tombstone. It deletes the element with the same key from disk and is
+ * not written itself. Elements added after the tombstone replace the element from disk instead of being merged with
+ * it.<br>
+ * <br>
+ * If an expiry time is given, elements with an older timestamp (see {@link AbstractKVStorable#getTimestamp()}) are
+ * dropped like deleted ones, no matter if they come from disk or from the bucket.
+ * 
+ * @author Martin Nettling
+ */
+class RecordMerger {
+    /** the size of one element in bytes */
+    final int elementSize;
+
+    /** the length of the keys */
+    final int keyLength;
+
+    /**
+     * true, if the elements may be marked as deleted or expire. Otherwise elements from disk are copied without
+     * decoding
+     */
+    final boolean checkDeleted;
+
+    /** elements with a timestamp before this time expired. {@link Long#MIN_VALUE}, if elements never expire */
+    private final long expiredBefore;
+
+    /** the actual element from the bucket. This array is reused for all elements */
+    final byte[] bucketElement;
+
+    /** the element following the actual element from the bucket. Needed to detect equal keys */
+    private final byte[] lookahead;
+
+    /** the actual element from disk, if it must be decoded. This array is reused for all elements */
+    private final byte[] diskElement;
+
+    /** views on the reused arrays, needed for decoding and encoding */
+    private final ByteBuffer bucketView, lookaheadView, diskView;
+
+    /** reused to decode elements from disk */
+    private final AbstractKVStorable diskObject;
+
+    /** reused to decode the element from the bucket, when it is merged with the element from disk */
+    private final AbstractKVStorable bucketObject;
+
+    /** the sorted elements, which are actually merged */
+    private ISortedRecords records;
+
+    /** the index of the next element to read from {@link #records} */
+    private int recordIndex;
+
+    /** the index behind the last element to read from {@link #records} */
+    private int recordEnd;
+
+    /** true, if the actual element from the bucket is a tombstone */
+    private boolean tombstone;
+
+    /** true, if the actual element from the bucket deletes the element from disk, it is a tombstone or follows one */
+    private boolean deletesDiskElement;
+
+    /** true, if the actual element from the bucket expired */
+    private boolean expired;
+
+    /**
+     * @param prototype
+     *            the prototype of the merged elements. It is cloned, so the prototype itself is never changed
+     */
+    RecordMerger(AbstractKVStorable prototype) {
+        this(prototype, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param prototype
+     *            the prototype of the merged elements. It is cloned, so the prototype itself is never changed
+     * @param expiredBefore
+     *            elements with a timestamp before this time are dropped. {@link Long#MIN_VALUE}, if elements never
+     *            expire
+     */
+    RecordMerger(AbstractKVStorable prototype, long expiredBefore) {
+        this.elementSize = prototype.getSize();
+        this.keyLength = prototype.getKey().length;
+        this.expiredBefore = expiredBefore;
+        this.checkDeleted = prototype.canBeMarkedAsDeleted() || expiredBefore != Long.MIN_VALUE;
+        this.bucketElement = new byte[elementSize];
+        this.lookahead = new byte[elementSize];
+        this.diskElement = new byte[elementSize];
+        this.bucketView = ByteBuffer.wrap(bucketElement);
+        this.lookaheadView = ByteBuffer.wrap(lookahead);
+        this.diskView = ByteBuffer.wrap(diskElement);
+        this.diskObject = prototype.clone();
+        this.bucketObject = prototype.clone();
+    }
+
+    /**
+     * @return the time, before which elements expire, if they live the given time in milliseconds.
+     *         {@link Long#MIN_VALUE}, if the time is not positive
+     */
+    static long getExpiryTime(long timeToLive) {
+        return timeToLive > 0 ? System.currentTimeMillis() - timeToLive : Long.MIN_VALUE;
+    }
+
+    /** @return true, if the timestamp of the given element is before {@link #expiredBefore} */
+    private boolean isExpired(AbstractKVStorable element) {
+        long timestamp = element.getTimestamp();
+        return timestamp >= 0 && timestamp < expiredBefore;
+    }
+
+    /**
+     * Sets the elements to read by {@link #next()}.
+     * 
+     * @param records
+     *            the ascending sorted elements
+     * @param from
+     *            the index of the first element to read
+     * @param to
+     *            the index behind the last element to read. Elements with equal keys must not be separated
+     */
+    void setRecords(ISortedRecords records, int from, int to) {
+        this.records = records;
+        this.recordIndex = from;
+        this.recordEnd = to;
+    }
+
+    /**
+     * Gets the next element from the bucket into {@link #bucketElement}. If the following elements have the same key,
+     * they are merged into one element. Only in this case objects are built.
+     * 
+     * @return the next element, or <code>null</code> if all elements were handled. The returned array is reused by
+     *         the next call.
+     */
+    byte[] next() {
+        if (recordIndex >= recordEnd) {
+            return null;
+        }
+        records.getRecord(recordIndex++, bucketElement);
+        AbstractKVStorable merged = null;
+        deletesDiskElement = false;
+        while (recordIndex < recordEnd) {
+            records.getRecord(recordIndex, lookahead);
+            if (KeyUtils.compareKey(bucketElement, lookahead, keyLength) != 0) {
+                break;
+            }
+            if (merged == null) {
+                bucketView.clear();
+                merged = diskObject.fromByteBuffer(bucketView);
+            }
+            if (checkDeleted && merged.isMarkedAsDeleted()) {
+                deletesDiskElement = true;
+            }
+            lookaheadView.clear();
+            merged = AbstractKVStorable.mergeInOrder(merged, diskObject.fromByteBuffer(lookaheadView));
+            recordIndex++;
+        }
+        if (merged != null) {
+            bucketView.clear();
+            merged.writeTo(bucketView);
+            tombstone = checkDeleted && merged.isMarkedAsDeleted();
+            expired = isExpired(merged);
+        } else if (checkDeleted) {
+            bucketView.clear();
+            bucketObject.initFromByteBuffer(bucketView);
+            tombstone = bucketObject.isMarkedAsDeleted();
+            expired = isExpired(bucketObject);
+        } else {
+            tombstone = false;
+            expired = false;
+        }
+        deletesDiskElement |= tombstone;
+        return bucketElement;
+    }
+
+    /**
+     * @return true, if the actual element from the bucket must not be written without an element from disk, because it
+     *         is a tombstone or expired
+     */
+    boolean isDropped() {
+        return tombstone || expired;
+    }
+
+    /**
+     * @return true, if the actual element from the bucket was added after a tombstone. So it replaces the element from
+     *         disk instead of being merged with it
+     */
+    boolean replacesDiskElement() {
+        return deletesDiskElement && !tombstone;
+    }
+
+    /**
+     * Merges the element from disk with the actual element from the bucket. The result replaces the actual element in
+     * {@link #bucketElement}. If the element from the bucket deletes the element from disk or the element from disk
+     * expired, they are not merged.
+     * 
+     * @param array
+     *            the array containing the element from disk
+     * @param offset
+     *            the position of the element in the array
+     * @return false, if the actual element from the bucket is a tombstone or the result expired, and nothing must be
+     *         written
+     */
+    boolean mergeWithDisk(byte[] array, int offset) {
+        if (deletesDiskElement) {
+            return !isDropped();
+        }
+        System.arraycopy(array, offset, diskElement, 0, elementSize);
+        diskView.clear();
+        diskObject.initFromByteBuffer(diskView);
+        if (isExpired(diskObject)) {
+            return !expired;
+        }
+        bucketView.clear();
+        bucketObject.initFromByteBuffer(bucketView);
+        AbstractKVStorable merged = diskObject.merge(bucketObject);
+        bucketView.clear();
+        merged.writeTo(bucketView);
+        return !isExpired(merged);
+    }
+
+    /**
+     * @param array
+     *            the array containing the element from disk
+     * @param offset
+     *            the position of the element in the array
+     * @return true, if the element is marked as deleted or expired. Always false, if elements can't be marked as
+     *         deleted and never expire
+     */
+    boolean isDeleted(byte[] array, int offset) {
+        if (!checkDeleted) {
+            return false;
+        }
+        System.arraycopy(array, offset, diskElement, 0, elementSize);
+        diskView.clear();
+        diskObject.initFromByteBuffer(diskView);
+        return diskObject.isMarkedAsDeleted() || isExpired(diskObject);
+    }
+}
@@ -0,0 +1,385 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.file.AbstractHeaderFile.AccessMode;
+import com.unister.semweb.drums.file.FileLockException;
+import com.unister.semweb.drums.file.HeaderIndexFile;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.file.SortedRuns.Run;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+import com.unister.semweb.drums.util.KeyUtils;
+import com.unister.semweb.drums.util.NamedThreadFactory;
+
+/**
+ * Merges the sorted runs of files in the background with a tiered policy. The newest runs of similar size are merged
+ * into one run, as soon as there are {@link DRUMSParameterSet#RUN_COMPACTION_FANOUT} of them. So each element is
+ * rewritten only a logarithmic number of times. All runs are merged into their file, if they reach a fraction of
+ * 1/{@link DRUMSParameterSet#RUN_COMPACTION_FANOUT} of its size, or if there are more than
+ * {@link DRUMSParameterSet#MAX_RUNS_PER_BUCKET} runs.<br>
+ * <br>
+ * Runs are merged by one thread. Elements with equal keys are merged in the order of their runs, the element of the
+ * older run first. Elements marked as deleted are kept, until the runs are merged into the file. An element added after
+ * a tombstone replaces the older elements, see {@link com.unister.semweb.drums.file.ReplacingElements}.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}
+ */
+class RunCompactor<Data extends AbstractKVStorable> {
+    private static final Logger log = LoggerFactory.getLogger(RunCompactor.class);
+
+    private final DRUMSParameterSet<Data> gp;
+
+    /** the thread merging the runs */
+    private final ExecutorService thread;
+
+    /** the runs, which are scheduled to be compacted, but not compacted yet */
+    private final Set<SortedRuns> scheduled = Collections.synchronizedSet(new LinkedHashSet<SortedRuns>());
+
+    /** all runs, which were ever scheduled. They are merged into their files, when the compactor is closed */
+    private final Set<SortedRuns> known = Collections.synchronizedSet(new LinkedHashSet<SortedRuns>());
+
+    /**
+     * @param gp
+     *            the parameters of the table
+     */
+    RunCompactor(DRUMSParameterSet<Data> gp) {
+        this.gp = gp;
+        this.thread = Executors.newSingleThreadExecutor(new NamedThreadFactory("RunCompactor"));
+    }
+
+    /**
+     * Schedules the compaction of the given runs. Does nothing, if they are scheduled already.
+     * 
+     * @param sortedRuns
+     *            the runs, which got a new run
+     */
+    void schedule(final SortedRuns sortedRuns) {
+        known.add(sortedRuns);
+        if (!scheduled.add(sortedRuns)) {
+            return;
+        }
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                // runs added from now on schedule a new compaction
+                scheduled.remove(sortedRuns);
+                try {
+                    compact(sortedRuns, false);
+                } catch (Exception e) {
+                    log.error("Can't compact the runs of {}.", sortedRuns.getDataFilename(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges all runs of the given file into the file. Must be called, before the file is changed by another
+     * synchronizer than a {@link RunSynchronizer}. Otherwise the runs would be older than the file and their elements
+     * would be merged over the newer ones later.
+     * 
+     * @param dataFilename
+     *            the name of the file
+     * @param gp
+     *            the parameters of the table
+     * @throws IOException
+     */
+    static <Data extends AbstractKVStorable> void mergeRunsIntoFile(String dataFilename, DRUMSParameterSet<Data> gp)
+            throws IOException {
+        SortedRuns sortedRuns = SortedRuns.get(dataFilename, gp);
+        if (!sortedRuns.isEmpty()) {
+            // the thread of this compactor is never started
+            new RunCompactor<Data>(gp).compact(sortedRuns, true);
+        }
+    }
+
+    /**
+     * Waits, until all scheduled compactions are done.
+     * 
+     * @throws InterruptedException
+     */
+    void await() throws InterruptedException {
+        await(thread.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+    }
+
+    /**
+     * Waits for all scheduled compactions and merges all runs into their files. The compactor can't be used
+     * afterwards.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void close() throws IOException, InterruptedException {
+        try {
+            await(thread.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    List<SortedRuns> all;
+                    synchronized (known) {
+                        all = new ArrayList<SortedRuns>(known);
+                    }
+                    for (SortedRuns sortedRuns : all) {
+                        compact(sortedRuns, true);
+                    }
+                    return null;
+                }
+            }));
+        } finally {
+            thread.shutdown();
+        }
+    }
+
+    private void await(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            log.error("Compaction failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Merges the runs by the tiered policy and merges them into their file, if they are large enough.
+     * 
+     * @param sortedRuns
+     *            the runs to compact
+     * @param intoFile
+     *            if true, all runs are merged into the file
+     * @throws IOException
+     */
+    void compact(SortedRuns sortedRuns, boolean intoFile) throws IOException {
+        Lock compactionLock = sortedRuns.getCompactionLock();
+        compactionLock.lock();
+        try {
+            List<Run> tier;
+            while ((tier = selectTier(sortedRuns.getRuns())) != null) {
+                merge(sortedRuns, tier);
+            }
+            List<Run> runs = sortedRuns.getRuns();
+            if (runs.isEmpty()) {
+                return;
+            }
+            long threshold = Math.max(getFileSize(sortedRuns.getDataFilename()) / getFanout(),
+                    getFanout() * gp.FILE_CHUNK_SIZE);
+            if (intoFile || runs.size() > gp.MAX_RUNS_PER_BUCKET || sortedRuns.getTotalSize() >= threshold) {
+                mergeIntoFile(sortedRuns, runs);
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /** @return the number of runs merged at once, at least 2 */
+    private int getFanout() {
+        return Math.max(2, gp.RUN_COMPACTION_FANOUT);
+    }
+
+    /**
+     * Walks from the newest run to the older ones, as long as the runs are not much larger than the newest run.
+     * 
+     * @return the found runs, if there are at least {@link DRUMSParameterSet#RUN_COMPACTION_FANOUT} of them. Otherwise
+     *         <code>null</code>
+     */
+    private List<Run> selectTier(List<Run> runs) {
+        int fanout = getFanout();
+        if (runs.size() < fanout) {
+            return null;
+        }
+        long limit = fanout * Math.max(runs.get(runs.size() - 1).size, gp.FILE_CHUNK_SIZE);
+        int from = runs.size() - 1;
+        while (from > 0 && runs.get(from - 1).size <= limit) {
+            from--;
+        }
+        return runs.size() - from >= fanout ? runs.subList(from, runs.size()) : null;
+    }
+
+    /**
+     * Merges the given consecutive runs into one run, which replaces them.
+     * 
+     * @return the merged run
+     * @throws IOException
+     */
+    private Run merge(SortedRuns sortedRuns, List<Run> runs) throws IOException {
+        int elementSize = gp.getElementSize();
+        int keyLength = gp.getKeySize();
+        long elements = 0;
+        RunRecords[] inputs = new RunRecords[runs.size()];
+        RunWriter<Data> writer = null;
+        boolean published = false;
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = new RunRecords(runs.get(i), gp);
+                elements += inputs[i].size();
+            }
+            log.debug("Merging {} runs of {} into one run.", runs.size(), sortedRuns.getDataFilename());
+            writer = new RunWriter<Data>(sortedRuns, elements, gp);
+            int[] positions = new int[inputs.length];
+            byte[][] heads = new byte[inputs.length][elementSize];
+            byte[] element = new byte[elementSize];
+            for (int i = 0; i < inputs.length; i++) {
+                if (inputs[i].size() > 0) {
+                    inputs[i].getRecord(0, heads[i]);
+                }
+                writer.updateGeneration(runs.get(i).generation);
+            }
+            while (true) {
+                // the smallest key, the oldest run first
+                int smallest = -1;
+                for (int i = 0; i < inputs.length; i++) {
+                    if (positions[i] < inputs[i].size()
+                            && (smallest < 0 || KeyUtils.compareKey(heads[i], heads[smallest], keyLength) < 0)) {
+                        smallest = i;
+                    }
+                }
+                if (smallest < 0) {
+                    break;
+                }
+                System.arraycopy(heads[smallest], 0, element, 0, elementSize);
+                advance(inputs, positions, heads, smallest);
+                // the runs present a tombstone in front of a replacing element, so a run might hold the key twice
+                AbstractKVStorable merged = null;
+                boolean replacing = false;
+                for (int i = smallest; i < inputs.length; i++) {
+                    while (positions[i] < inputs[i].size()
+                            && KeyUtils.compareKey(heads[i], element, keyLength) == 0) {
+                        if (merged == null) {
+                            merged = decode(element);
+                        }
+                        AbstractKVStorable newer = decode(heads[i]);
+                        if (merged.isMarkedAsDeleted() && !newer.isMarkedAsDeleted()) {
+                            merged = newer;
+                            replacing = true;
+                        } else {
+                            merged = AbstractKVStorable.mergeInOrder(merged, newer);
+                        }
+                        advance(inputs, positions, heads, i);
+                    }
+                }
+                if (merged != null) {
+                    ByteBuffer view = ByteBuffer.wrap(element);
+                    merged.writeTo(view);
+                }
+                writer.write(element, 0, replacing && !merged.isMarkedAsDeleted());
+            }
+            closeAll(inputs);
+            Run run = writer.replace(runs);
+            published = true;
+            return run;
+        } finally {
+            if (!published && writer != null) {
+                writer.abort();
+            }
+            closeAll(inputs);
+        }
+    }
+
+    /** closes the given inputs, which were not closed yet */
+    private void closeAll(RunRecords[] inputs) {
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i] != null) {
+                inputs[i].close();
+                inputs[i] = null;
+            }
+        }
+    }
+
+    /** moves the given input to its next element */
+    private void advance(RunRecords[] inputs, int[] positions, byte[][] heads, int i) {
+        if (++positions[i] < inputs[i].size()) {
+            inputs[i].getRecord(positions[i], heads[i]);
+        }
+    }
+
+    /** @return a new object of the given element */
+    private AbstractKVStorable decode(byte[] element) {
+        return gp.getPrototype().fromByteBuffer(ByteBuffer.wrap(element.clone()));
+    }
+
+    /**
+     * Merges the given runs into the file. The runs are merged into one run first. The file is synchronized with this
+     * run under the write lock of the runs, so readers never see an element twice. The run is marked as merging, until
+     * it is deleted, see {@link SortedRuns#markAsMerging(Run)}.
+     * 
+     * @throws IOException
+     */
+    private void mergeIntoFile(SortedRuns sortedRuns, List<Run> runs) throws IOException {
+        Run run = runs.size() == 1 ? runs.get(0) : merge(sortedRuns, runs);
+        log.debug("Merging the run {} into its file.", run.filename);
+        Lock lock = sortedRuns.getLock().writeLock();
+        lock.lock();
+        try {
+            sortedRuns.markAsMerging(run);
+            RunRecords records = new RunRecords(run, gp);
+            boolean merged = false;
+            try {
+                Synchronizer<Data> synchronizer = new Synchronizer<Data>(sortedRuns.getDataFilename(), gp);
+                synchronizer.setGeneration(run.generation);
+                synchronizer.ignoreRuns();
+                synchronizer.upsert(records);
+                merged = true;
+            } finally {
+                records.close();
+                if (!merged) {
+                    sortedRuns.unmarkAsMerging(run);
+                }
+            }
+            sortedRuns.replace(Collections.singletonList(run), null, 0, 0, null, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the filled size of the given file, 0 if it doesn't exist */
+    private long getFileSize(String filename) throws IOException {
+        if (!new File(filename).exists()) {
+            return 0;
+        }
+        try {
+            HeaderIndexFile<Data> file = new HeaderIndexFile<Data>(filename, AccessMode.READ_ONLY,
+                    gp.HEADER_FILE_LOCK_RETRY, gp);
+            try {
+                return file.getFilledUpFromContentStart();
+            } finally {
+                file.close();
+            }
+        } catch (FileLockException e) {
+            throw new IOException("Can't read the header of " + filename, e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.file.AbstractHeaderFile.AccessMode;
+import com.unister.semweb.drums.file.FileLockException;
+import com.unister.semweb.drums.file.HeaderIndexFile;
+import com.unister.semweb.drums.file.ReplacingElements;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * Presents the elements of a run as {@link ISortedRecords}. The run is mapped into memory in segments, so the elements
+ * are read by the operating system on demand. A compressed run is kept open and read through a window of
+ * {@link #WINDOW_SIZE} bytes per view, because the elements are mostly read in ascending order. The records must be
+ * closed after use.<br>
+ * <br>
+ * A tombstone is presented in front of each element, which replaces the older elements (see
+ * {@link ReplacingElements}). So the element is not merged with the element from disk.
+ * 
+ * @author Martin Nettling
+ */
+class RunRecords implements ISortedRecords, Closeable {
+    /** the maximal size of one mapped segment */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    /** the size of the window, a compressed run is read through */
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    /** the mapped segments of an uncompressed run, null if the run is compressed */
+    private final ByteBuffer[] segments;
+
+    /** the compressed run, shared by all views. null if the run is mapped */
+    private final HeaderIndexFile<?> compressedFile;
+
+    /** the window into the compressed run, each view has its own */
+    private final ByteBuffer window;
+
+    /** the index of the first element in {@link #window}, -1 if nothing was read yet */
+    private int windowStart = -1;
+
+    private final int elementSize;
+    private final int elementsPerSegment;
+    private final int size;
+
+    /** the indexes of the presented tombstones, ascending. Each is followed by the replacing element */
+    private final int[] tombstoneIndexes;
+
+    /** the presented tombstones, in the same order as {@link #tombstoneIndexes} */
+    private final byte[][] tombstones;
+
+    /**
+     * Maps the given run.
+     * 
+     * @param run
+     *            the run to read
+     * @param gp
+     *            the parameters of the table
+     * @throws IOException
+     */
+    <Data extends AbstractKVStorable> RunRecords(SortedRuns.Run run, DRUMSParameterSet<Data> gp) throws IOException {
+        this.elementSize = gp.getElementSize();
+        this.elementsPerSegment = SEGMENT_SIZE / elementSize;
+        int elements = (int) (run.size / elementSize);
+        ReplacingElements replacing = run.getReplacingElements();
+        this.size = elements + replacing.size();
+        this.tombstoneIndexes = new int[replacing.size()];
+        this.tombstones = new byte[replacing.size()][];
+        for (int i = 0; i < tombstones.length; i++) {
+            // the i tombstones in front are shifting the element
+            tombstoneIndexes[i] = replacing.getIndex(i) + i;
+            AbstractKVStorable tombstone = gp.getPrototype().clone();
+            tombstone.setKey(replacing.getKey(i).clone());
+            tombstone.markAsDeleted();
+            tombstones[i] = tombstone.toByteBuffer().array();
+        }
+        HeaderIndexFile<Data> file;
+        try {
+            file = new HeaderIndexFile<Data>(run.filename, AccessMode.READ_ONLY, gp.HEADER_FILE_LOCK_RETRY, gp);
+        } catch (FileLockException e) {
+            throw new IOException("Can't open the run " + run.filename, e);
+        }
+        if (file.isCompressed()) {
+            this.segments = null;
+            this.compressedFile = file;
+            this.window = ByteBuffer.allocate(Math.max(1, WINDOW_SIZE / elementSize) * elementSize);
+            return;
+        }
+        this.compressedFile = null;
+        this.window = null;
+        this.segments = new ByteBuffer[(elements + elementsPerSegment - 1) / elementsPerSegment];
+        try {
+            long segmentBytes = (long) elementsPerSegment * elementSize;
+            for (int i = 0; i < segments.length; i++) {
+                long offset = i * segmentBytes;
+                int length = (int) Math.min(segmentBytes, (long) elements * elementSize - offset);
+                segments[i] = file.map(offset, length);
+            }
+        } finally {
+            // the mapped segments stay valid
+            file.close();
+        }
+    }
+
+    private RunRecords(RunRecords other) {
+        this.elementSize = other.elementSize;
+        this.elementsPerSegment = other.elementsPerSegment;
+        this.size = other.size;
+        this.tombstoneIndexes = other.tombstoneIndexes;
+        this.tombstones = other.tombstones;
+        this.compressedFile = other.compressedFile;
+        if (other.segments == null) {
+            this.segments = null;
+            this.window = ByteBuffer.allocate(other.window.capacity());
+            return;
+        }
+        this.window = null;
+        this.segments = new ByteBuffer[other.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = other.segments[i].duplicate();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getElementSize() {
+        return elementSize;
+    }
+
+    @Override
+    public void getRecord(int index, byte[] dst) {
+        if (tombstones.length > 0) {
+            int found = Arrays.binarySearch(tombstoneIndexes, index);
+            if (found >= 0) {
+                System.arraycopy(tombstones[found], 0, dst, 0, elementSize);
+                return;
+            }
+            // skips the tombstones in front
+            index += found + 1;
+        }
+        if (segments == null) {
+            readFromWindow(index, dst);
+            return;
+        }
+        ByteBuffer segment = segments[index / elementsPerSegment];
+        segment.position((index % elementsPerSegment) * elementSize);
+        segment.get(dst, 0, elementSize);
+    }
+
+    /** copies the element with the given index from the compressed run. The window is moved, if it doesn't contain it */
+    private void readFromWindow(int index, byte[] dst) {
+        int elementsInWindow = window.capacity() / elementSize;
+        if (windowStart < 0 || index < windowStart || index >= windowStart + elementsInWindow) {
+            windowStart = index;
+            try {
+                // the views share the file
+                synchronized (compressedFile) {
+                    compressedFile.read((long) index * elementSize, window);
+                }
+            } catch (IOException e) {
+                windowStart = -1;
+                throw new IllegalStateException("Can't read the run at element " + index + ".", e);
+            }
+        }
+        window.position((index - windowStart) * elementSize);
+        window.get(dst, 0, elementSize);
+    }
+
+    @Override
+    public ISortedRecords view() {
+        return new RunRecords(this);
+    }
+
+    /** Closes a compressed run. The views can't be read afterwards. */
+    @Override
+    public void close() {
+        if (compressedFile != null) {
+            compressedFile.close();
+        }
+    }
+}
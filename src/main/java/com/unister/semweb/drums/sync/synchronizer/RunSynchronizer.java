@@ -0,0 +1,118 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.io.IOException;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * A {@link Synchronizer}, which doesn't merge the bucket with its file. The elements of the bucket are written as a
+ * new immutable sorted run next to the file instead, see {@link SortedRuns}. So a synchronization costs only the size
+ * of the bucket, independent of the size of the file. The runs are merged by a {@link RunCompactor} in the background.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}
+ */
+public class RunSynchronizer<Data extends AbstractKVStorable> extends Synchronizer<Data> {
+    private final RunCompactor<Data> compactor;
+
+    /** The number of elements written into the run by the last upsert. */
+    private long numberOfInsertedEntries;
+
+    /** The size of the run written by the last upsert. */
+    private long numberOfWrittenBytes;
+
+    /**
+     * @param dataFilename
+     *            the file, the runs belong to
+     * @param gp
+     *            a pointer to the {@link DRUMSParameterSet}
+     * @param compactor
+     *            the compactor, which merges the runs
+     */
+    RunSynchronizer(String dataFilename, DRUMSParameterSet<Data> gp, RunCompactor<Data> compactor) {
+        super(dataFilename, gp);
+        this.compactor = compactor;
+    }
+
+    /**
+     * Writes the given elements as a new run. Elements with equal keys are merged in the order they appear. An element
+     * added after a tombstone is marked as replacing the older elements.
+     * 
+     * @param toAdd
+     *            the ascending sorted elements to synchronize
+     * @throws IOException
+     */
+    @Override
+    public void upsert(ISortedRecords toAdd) throws IOException {
+        SortedRuns sortedRuns = SortedRuns.get(dataFilename, gp);
+        RunWriter<Data> writer = new RunWriter<Data>(sortedRuns, toAdd.size(), gp);
+        boolean published = false;
+        numberOfInsertedEntries = 0;
+        try {
+            RecordMerger merger = new RecordMerger(prototype);
+            merger.setRecords(toAdd, 0, toAdd.size());
+            for (byte[] element = merger.next(); element != null; element = merger.next()) {
+                if (writer.write(element, 0, merger.replacesDiskElement())) {
+                    numberOfInsertedEntries++;
+                }
+            }
+            writer.updateGeneration(getGeneration());
+            numberOfWrittenBytes = writer.publish().size;
+            published = true;
+        } finally {
+            if (!published) {
+                writer.abort();
+            }
+        }
+        compactor.schedule(sortedRuns);
+    }
+
+    /** @return the number of elements written into the run. Updates are not known before the runs are merged */
+    @Override
+    public long getNumberOfInsertedEntries() {
+        return numberOfInsertedEntries;
+    }
+
+    /** @return always 0, updates are not known before the runs are merged */
+    @Override
+    public long getNumberOfUpdatedEntries() {
+        return 0;
+    }
+
+    /** @return always 0, the file is not read */
+    @Override
+    public long getNumberOfReadBytes() {
+        return 0;
+    }
+
+    /** @return the size of the written run */
+    @Override
+    public long getNumberOfWrittenBytes() {
+        return numberOfWrittenBytes;
+    }
+
+    /** @return always 0, the costs of a synchronization don't depend on the size of the file */
+    @Override
+    public long getFileSize() {
+        return 0;
+    }
+}
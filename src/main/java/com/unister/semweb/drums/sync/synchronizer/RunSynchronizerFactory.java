@@ -0,0 +1,93 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * Creates {@link RunSynchronizer}s, which write each synchronized bucket as a new sorted run next to its file, see
+ * {@link SortedRuns}. All synchronizers of one factory share one {@link RunCompactor}, which merges the runs in the
+ * background. Set the
+ * factory by {@link com.unister.semweb.drums.api.DRUMS#setSynchronizerFactory(ISynchronizerFactory)} to use this
+ * log-structured layout instead of merging each bucket with its file.<br>
+ * <br>
+ * Only selects read the runs. Iterators and the sequential read methods only see the files, so all runs are merged into
+ * their files, when the factory is closed by closing the table. Runs left over from an earlier session are compacted
+ * with the next synchronization of their bucket. Other synchronizers and {@link UpdateOnlySynchronizer}s merge the
+ * runs of a file into it, before they change the file.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}
+ */
+public class RunSynchronizerFactory<Data extends AbstractKVStorable> implements ISynchronizerFactory<Data>, Closeable {
+    private RunCompactor<Data> compactor;
+
+    @Override
+    public synchronized Synchronizer<Data> createSynchronizer(String databaseFilename, DRUMSParameterSet<Data> gp)
+            throws IOException {
+        if (compactor == null) {
+            compactor = new RunCompactor<Data>(gp);
+        }
+        return new RunSynchronizer<Data>(databaseFilename, gp, compactor);
+    }
+
+    /**
+     * Waits, until all scheduled compactions are done.
+     * 
+     * @throws InterruptedException
+     */
+    public void awaitCompaction() throws InterruptedException {
+        RunCompactor<Data> actual = getCompactor();
+        if (actual != null) {
+            actual.await();
+        }
+    }
+
+    /**
+     * Waits for all scheduled compactions and merges all runs into their files. Must be called after the last
+     * synchronization.
+     * 
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        RunCompactor<Data> actual;
+        synchronized (this) {
+            actual = compactor;
+            // a new compactor is created, if the factory is used again
+            compactor = null;
+        }
+        if (actual == null) {
+            return;
+        }
+        try {
+            actual.close();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while compacting the runs.");
+        }
+    }
+
+    private synchronized RunCompactor<Data> getCompactor() {
+        return compactor;
+    }
+}
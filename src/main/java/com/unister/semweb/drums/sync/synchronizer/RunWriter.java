@@ -0,0 +1,150 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.file.ReplacingElements;
+import com.unister.semweb.drums.file.SortedFileWriter;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.storable.AbstractKVStorable;
+
+/**
+ * Writes ascending sorted elements into a new run of a {@link SortedRuns}. The run is written by a
+ * {@link SortedFileWriter} under a temporary name and only published, when it is complete. So the run is read like the
+ * file it belongs to.
+ * 
+ * @author Martin Nettling
+ * @param <Data>
+ *            an implementation of {@link AbstractKVStorable}
+ */
+class RunWriter<Data extends AbstractKVStorable> {
+    private final SortedRuns sortedRuns;
+
+    /** the name of the run, until it is published */
+    private final String tmpFilename;
+
+    private final SortedFileWriter<Data> writer;
+
+    /** the length of the keys */
+    private final int keyLength;
+
+    /** the number of elements written so far */
+    private int written;
+
+    /** collects the written elements, which replace older elements */
+    private final ReplacingElements.Builder replacingElements = new ReplacingElements.Builder();
+
+    /** the generation of the newest bucket written into the run */
+    private long generation;
+
+    /**
+     * @param sortedRuns
+     *            the runs, the new run belongs to
+     * @param expectedElements
+     *            the number of elements, which are written at most. Needed to size the Bloom filter
+     * @param gp
+     *            the parameters of the table
+     * @throws IOException
+     *             if the run can't be created
+     */
+    RunWriter(SortedRuns sortedRuns, long expectedElements, DRUMSParameterSet<Data> gp) throws IOException {
+        this.sortedRuns = sortedRuns;
+        this.tmpFilename = sortedRuns.newTmpFilename();
+        this.writer = new SortedFileWriter<Data>(tmpFilename, expectedElements, gp);
+        this.keyLength = gp.getKeySize();
+    }
+
+    /**
+     * Writes the element starting at the given offset of the given array. Elements with a null key are skipped.
+     * 
+     * @param array
+     *            the array containing the element
+     * @param offset
+     *            the position of the element in the array
+     * @return false, if the element was skipped
+     * @throws IOException
+     */
+    boolean write(byte[] array, int offset) throws IOException {
+        return write(array, offset, false);
+    }
+
+    /**
+     * Writes the element starting at the given offset of the given array. Elements with a null key are skipped.
+     * 
+     * @param array
+     *            the array containing the element
+     * @param offset
+     *            the position of the element in the array
+     * @param replacing
+     *            true, if the element replaces the older elements with the same key instead of being merged with them,
+     *            see {@link ReplacingElements}
+     * @return false, if the element was skipped
+     * @throws IOException
+     */
+    boolean write(byte[] array, int offset, boolean replacing) throws IOException {
+        if (!writer.write(array, offset)) {
+            return false;
+        }
+        if (replacing) {
+            replacingElements.add(written, array, offset, keyLength);
+        }
+        written++;
+        return true;
+    }
+
+    /**
+     * Raises the generation stored in the header of the run.
+     * 
+     * @param generation
+     *            the generation of a bucket written into the run
+     */
+    void updateGeneration(long generation) {
+        this.generation = Math.max(this.generation, generation);
+    }
+
+    /**
+     * Completes the run and publishes it as the newest run.
+     * 
+     * @return the published run
+     * @throws IOException
+     */
+    SortedRuns.Run publish() throws IOException {
+        long size = writer.close(generation);
+        return sortedRuns.add(tmpFilename, size, generation, writer.getBloomFilter(), replacingElements.build());
+    }
+
+    /**
+     * Completes the run and publishes it instead of the given runs, which were merged into it.
+     * 
+     * @param merged
+     *            the consecutive runs merged into this run
+     * @return the published run
+     * @throws IOException
+     */
+    SortedRuns.Run replace(List<SortedRuns.Run> merged) throws IOException {
+        long size = writer.close(generation);
+        return sortedRuns.replace(merged, tmpFilename, size, generation, writer.getBloomFilter(),
+                replacingElements.build());
+    }
+
+    /** Discards the run, if it was not published. */
+    void abort() {
+        writer.abort();
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.synchronizer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the tasks handed to it one after another, in the order they were handed over. The tasks are run by the threads
+ * of another executor, which might be shared with other {@link SerialExecutor}s. So the reads and writes of one file are
+ * ordered, while the files of several synchronizers are read and written in parallel.
+ * 
+ * @author Martin Nettling
+ */
+class SerialExecutor {
+    /** the executor running the tasks */
+    private final Executor executor;
+
+    /** the tasks, which are not started yet */
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+    /** the task, which is actually running or handed to {@link #executor}. null, if no task is running */
+    private Runnable active;
+
+    /** the last task handed over, null if none was handed over yet */
+    private Future<?> last;
+
+    /**
+     * @param executor
+     *            the executor running the tasks
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the given task, after all tasks handed over before are finished.
+     * 
+     * @param task
+     *            the task to run
+     * @return the result of the task
+     */
+    synchronized <T> Future<T> submit(Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<T>(task);
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        last = future;
+        if (active == null) {
+            scheduleNext();
+        }
+        return future;
+    }
+
+    /** @return the last task handed over, null if none was handed over yet */
+    synchronized Future<?> getLast() {
+        return last;
+    }
+
+    /** hands the next task to the executor */
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        }
+    }
+}
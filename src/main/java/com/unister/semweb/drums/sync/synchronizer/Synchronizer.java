@@ -20,25 +20,62 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.unister.semweb.drums.DRUMSParameterSet;
 import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.bucket.ISortedRecords;
+import com.unister.semweb.drums.file.BloomFilter;
 import com.unister.semweb.drums.file.FileLockException;
 import com.unister.semweb.drums.file.HeaderIndexFile;
 import com.unister.semweb.drums.file.IndexForHeaderIndexFile;
+import com.unister.semweb.drums.file.SortedRuns;
 import com.unister.semweb.drums.file.AbstractHeaderFile.AccessMode;
 import com.unister.semweb.drums.storable.AbstractKVStorable;
 import com.unister.semweb.drums.storable.GeneralStorable;
+import com.unister.semweb.drums.sync.SyncManager;
 import com.unister.semweb.drums.sync.SyncThread;
+import com.unister.semweb.drums.sync.synchronizer.RangeSplitter.Range;
 import com.unister.semweb.drums.util.KeyUtils;
 
 /**
  * Takes a list of {@link AbstractKVStorable} and synchronizes them with a file. A {@link Synchronizer} is instantiated
  * by a {@link SyncThread}. The core assumption is that the list of {@link AbstractKVStorable} and the entries in the
- * file are sorted ascended.
+ * file are sorted ascended.<br>
+ * <br>
+ * The merge starts at the chunk of the file, where the first element of the bucket belongs to. The chunks before
+ * are not touched. Elements from disk, which lie between the elements of the bucket, are copied as whole blocks. If
+ * the elements behind the last element of the bucket were not shifted, they are not rewritten. If all elements of the
+ * bucket are larger than the largest key in the index of the file, they are appended without reading the file. Mixed
+ * buckets merge the overlapping tail of the file and append the rest. The Bloom filter of the
+ * file is extended by the keys of the bucket. It is only rebuilt, and the whole file rewritten, if the filter is
+ * missing, outdated or too small.<br>
+ * <br>
+ * Tombstones of the bucket (see {@link RecordMerger}) drop the element with the same key from disk while it is copied.
+ * All elements behind it are shifted, and the content of the file is truncated behind the last written element.<br>
+ * <br>
+ * If {@link DRUMSParameterSet#TIME_TO_LIVE} is set, expired elements are dropped the same way, while the merged chunks
+ * are copied anyway. Elements behind the merged chunks are dropped by {@link #expire()}, which the {@link SyncManager}
+ * calls for one file after another in the background.<br>
+ * <br>
+ * The merge works on the raw bytes. The elements of the file are read chunk by chunk into one buffer and are copied
+ * from there directly into the write buffer. Objects are only built, if elements with equal keys must be merged. The
+ * largest key of each chunk of the file is set once, when the chunk is completely written. If
+ * {@link DRUMSParameterSet#PIPELINED_SYNC} is set and an executor was set by {@link #setIOExecutor}, a thread of this
+ * executor prefetches the next chunk and writes one of two write buffers, while the merge fills the other one. All
+ * reads and writes are done in the order they were handed over, so no element is overwritten before it was read.<br>
+ * <br>
+ * Large buckets are merged by several threads, if an executor was set by {@link #setMergeExecutor}. The merge is split
+ * into ranges by a {@link RangeSplitter}, each range is merged in memory by a {@link RangeMerge}, and the merged ranges
+ * are written back in ascending order.
  * 
  * @author Nils Thieme, Martin Nettling
  * @param <Data>
@@ -61,26 +98,76 @@ public class Synchronizer<Data extends AbstractKVStorable> {
     /** Actual position in the file where to write the data. */
     protected long writeOffset;
 
+    /** The position in the file, where the last upsert started to read and write. */
+    protected long startOffset;
+
+    /** The number of bytes read from the file by the last upsert. */
+    private long numberOfReadBytes;
+
+    /** The filled size of the file after the last upsert. */
+    private long fileSize;
+
+    /** true, if all elements of the bucket are appended to the file */
+    private boolean appendOnly;
+
     /** a buffer for writing always a bunch of elements */
     private ByteBuffer bufferedWriter;
 
-    /** a buffer for reading a chunk (with elements) */
+    /** the second write buffer of the pipelined merge. It is filled, while the other one is written */
+    private ByteBuffer spareWriter;
+
+    /** the executor reading and writing the files during a pipelined merge, might be shared. null if not set */
+    private ExecutorService ioExecutor;
+
+    /**
+     * does all reads and writes of the file during a pipelined merge, in the order they were handed over. null, if the
+     * file is read and written by the merging thread
+     */
+    private SerialExecutor ioThread;
+
+    /** the last write handed to {@link #ioThread}, or null */
+    private Future<Void> pendingWrite;
+
+    /** the read of the next chunk handed to {@link #ioThread}, or null */
+    private Future<ByteBuffer> prefetch;
+
+    /** the position in the file, where {@link #prefetch} reads */
+    private long prefetchOffset;
+
+    /** the buffer, the next chunk is prefetched into */
+    private ByteBuffer prefetchBuffer;
+
+    /**
+     * the elements read from the file, which are not written yet. The buffer is always in read mode, its position is
+     * the actual element from disk. It grows, if more elements are read than written.
+     */
     private ByteBuffer bufferedReader;
 
+    /** the number of bytes read from the file at once */
+    private int readChunkSize;
+
     /** the header of the bucket, something like an index */
     private IndexForHeaderIndexFile header;
 
     /** the largest key in the actual chunk for writing */
     private byte[] largestKeyInChunk;
 
+    /** the chunk of the file, which is actually written. -1 if nothing was written yet */
+    private int actualChunkId;
+
     /** The number of entries that were added to the file. */
     private long numberOfInsertedEntries;
 
     /** The number of entries that were updated within the file. */
     private long numberOfUpdateEntries;
+
+    /** The number of entries that were deleted from the file by tombstones or dropped, because they expired. */
+    private long numberOfDeletedEntries;
+
+    /** the end of the content after the merge, if all elements behind the start offset were rewritten. Otherwise -1 */
+    private long contentEnd;
     private long numberOfOldEntries = 0;
 
-    LinkedList<byte[]> pendingElements = new LinkedList<byte[]>();
     private long filledUpToWhenStarted;
 
     // TODO
@@ -92,6 +179,36 @@ public class Synchronizer<Data extends AbstractKVStorable> {
     /** A Pointer to the GlobalParameters used by the DRUMS containing this Synchronizer */
     DRUMSParameterSet<Data> gp;
 
+    /** reads the elements of the bucket and merges them with the elements from disk */
+    private RecordMerger merger;
+
+    /** the length of the keys */
+    private int keyLength;
+
+    /** elements with a timestamp before this time expired, see {@link RecordMerger#getExpiryTime(long)} */
+    private long expiredBefore;
+
+    /** true, if the file is swept by {@link #expire()}. All elements behind the start offset are rewritten */
+    private boolean sweep;
+
+    /** the generation of the synchronized bucket, stored in the header of the file. 0 if unknown */
+    private long generation;
+
+    /** the executor merging the ranges of large buckets in parallel, or null if buckets are merged sequentially */
+    private ExecutorService mergeExecutor;
+
+    /** the number of threads of {@link #mergeExecutor} */
+    private int parallelism;
+
+    /** the Bloom filter over all keys written to the file, or null if no filter is built */
+    private BloomFilter bloomFilter;
+
+    /** true, if {@link #bloomFilter} already contains all keys of the file and only new keys must be added */
+    private boolean incrementalBloomFilter;
+
+    /** true, if the sorted runs of the file are merged into it, before it is changed (see {@link SortedRuns}) */
+    private boolean mergeRuns = true;
+
     /**
      * This method constructs a {@link Synchronizer}. The name of the file were to write the elements to have to be
      * given.
@@ -106,9 +223,63 @@ public class Synchronizer<Data extends AbstractKVStorable> {
         this.prototype = gp.getPrototype();
         this.dataFilename = dataFilename;
         this.elementSize = prototype.getSize();
+        this.keyLength = prototype.getKey().length;
         this.numberOfEntriesInOneChunk = (int) Math.floor(gp.SYNC_CHUNK_SIZE / elementSize);
-        this.bufferedWriter = ByteBuffer.allocate(numberOfEntriesInOneChunk * elementSize);
-        this.bufferedReader = ByteBuffer.allocate(numberOfEntriesInOneChunk * elementSize);
+        this.readChunkSize = numberOfEntriesInOneChunk * elementSize;
+        this.bufferedWriter = ByteBuffer.allocate(readChunkSize);
+        this.bufferedReader = ByteBuffer.allocate(readChunkSize);
+    }
+
+    /**
+     * Sets the generation of the {@link Bucket}, whose elements are synchronized. The generation is stored in the
+     * header of the file by the next call of upsert.
+     * 
+     * @param generation
+     *            the generation of the bucket, see {@link Bucket#getGeneration()}
+     */
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /** @return the generation of the synchronized {@link Bucket}, 0 if unknown */
+    protected long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Doesn't merge the sorted runs of the file into it before it is changed. Used by the {@link RunCompactor}, which
+     * merges the runs itself.
+     */
+    void ignoreRuns() {
+        this.mergeRuns = false;
+    }
+
+    /**
+     * Sets the executor, which reads and writes the file during a pipelined merge (see
+     * {@link DRUMSParameterSet#PIPELINED_SYNC}). The reads and writes of this synchronizer are done one after another
+     * in the order they were handed over. Without an executor the file is read and written by the merging thread.
+     * 
+     * @param executor
+     *            the executor, may be shared by several {@link Synchronizer}s
+     */
+    public void setIOExecutor(ExecutorService executor) {
+        this.ioExecutor = executor;
+    }
+
+    /**
+     * Sets the executor, which merges large buckets in parallel. Buckets with at least
+     * {@link DRUMSParameterSet#PARALLEL_SYNC_THRESHOLD} elements are split into ranges at the borders of the chunks of
+     * the file, which are merged by the threads of the executor. Without an executor all buckets are merged by the
+     * calling thread.
+     * 
+     * @param executor
+     *            the executor, may be shared by several {@link Synchronizer}s
+     * @param parallelism
+     *            the number of threads of the executor
+     */
+    public void setMergeExecutor(ExecutorService executor, int parallelism) {
+        this.mergeExecutor = executor;
+        this.parallelism = parallelism;
     }
 
     /**
@@ -119,6 +290,28 @@ public class Synchronizer<Data extends AbstractKVStorable> {
      * @throws IOException
      */
     public void upsert(AbstractKVStorable[] toAdd) throws IOException {
+        upsert(new ArrayRecords(AbstractKVStorable.merge(toAdd)));
+    }
+
+    /**
+     * This method handles the given raw elements from a {@link Bucket}. It provides updates and inserts of those
+     * elements knowing all already stored {@link AbstractKVStorable}s in the <code>dataFile</code>. Elements with
+     * equal keys are merged in the order they appear. Objects are only built, if elements must be merged. Sorted runs
+     * left over by a {@link RunSynchronizer} are merged into the file first, because they are older than the elements.
+     * 
+     * @param toAdd
+     *            the ascending sorted elements to synchronize
+     * @throws IOException
+     */
+    public void upsert(ISortedRecords toAdd) throws IOException {
+        if (mergeRuns) {
+            RunCompactor.mergeRunsIntoFile(dataFilename, gp);
+        }
+        mergeWithFile(toAdd);
+    }
+
+    /** merges the given elements with the elements of the file */
+    private void mergeWithFile(ISortedRecords toAdd) throws IOException {
         try {
             /* Another thread can have access to this file in parallel. So we must wait to get exclusive access. */
             dataFile = new HeaderIndexFile<Data>(
@@ -132,186 +325,685 @@ public class Synchronizer<Data extends AbstractKVStorable> {
             log.error("Errror occurred while opening database file.", e);
         }
         try {
-            toAdd = AbstractKVStorable.merge(toAdd);
+            expiredBefore = RecordMerger.getExpiryTime(gp.TIME_TO_LIVE);
+            merger = new RecordMerger(prototype, expiredBefore);
+            merger.setRecords(toAdd, 0, toAdd.size());
+            largestKeyInChunk = new byte[keyLength];
+            actualChunkId = -1;
 
-            readOffset = 0;
             filledUpToWhenStarted = dataFile.getFilledUpFromContentStart(); // need to remember how a many "old" bytes
                                                                             // were written in the file (will be
                                                                             // overwritten)
-            writeOffset = 0; // at this position we want to start writing
+            prepareBloomFilter(toAdd.size());
+            if (sweep) {
+                // a new filter gets the keys in front of the start offset, while the file is searched
+                startOffset = findFirstDropped();
+                if (!merger.checkDeleted && !incrementalBloomFilter) {
+                    // the file wasn't read
+                    bloomFilter = null;
+                }
+            } else {
+                // a new filter needs the keys of the whole file
+                startOffset = bloomFilter == null || incrementalBloomFilter ? getStartOffset(toAdd) : 0;
+            }
+            appendOnly = !sweep && startOffset > 0 && startOffset == filledUpToWhenStarted;
+            readOffset = startOffset;
+            writeOffset = startOffset; // at this position we want to start writing
+            numberOfReadBytes = 0;
+            bufferedReader.clear();
+            bufferedReader.limit(0);
+
+            long bytesToMerge = filledUpToWhenStarted - startOffset + (long) toAdd.size() * elementSize;
+            if (gp.PIPELINED_SYNC && ioExecutor != null && bytesToMerge > 2L * readChunkSize) {
+                ioThread = new SerialExecutor(ioExecutor);
+            }
+            contentEnd = -1;
+            if (isMergedInParallel(toAdd)) {
+                mergeInParallel(toAdd);
+            } else {
+                merge();
+            }
+            awaitIO();
+            if (contentEnd >= 0 && contentEnd < dataFile.getFilledUpFromContentStart()) {
+                dataFile.truncate(contentEnd);
+            }
+            // a failure to write the last compressed block must fail the synchronization
+            dataFile.flush();
+            fileSize = dataFile.getFilledUpFromContentStart();
+
+            if (generation > dataFile.getSyncedGeneration()) {
+                dataFile.setSyncedGeneration(generation);
+            }
+            storeBloomFilter();
+        } finally {
+            merger = null;
+            stopIO();
+            // close the file
+            dataFile.close();
+        }
+    }
 
-            // readFirstChunkFromFile(toAdd[0]); // We read the chunk, where the first element has to be inserted or
-            // updated from the disk
-            readNextChunkFromFile();
+    /**
+     * Drops all elements of the file, which are marked as deleted or expired (see
+     * {@link DRUMSParameterSet#TIME_TO_LIVE}). The file is read until the first element to drop, only the chunks from
+     * there on are rewritten. Nothing is written, if no element must be dropped. The Bloom filter of the file is kept,
+     * or rebuilt from the read elements. Sorted runs of the file are merged into it first. Neither compactions nor
+     * readers access the file, while it is swept.
+     * 
+     * @throws IOException
+     */
+    public void expire() throws IOException {
+        SortedRuns sortedRuns = SortedRuns.get(dataFilename, gp);
+        Lock compactionLock = sortedRuns.getCompactionLock();
+        Lock writeLock = sortedRuns.getLock().writeLock();
+        // in the same order as the compactor
+        compactionLock.lock();
+        writeLock.lock();
+        sweep = true;
+        try {
+            if (mergeRuns) {
+                RunCompactor.mergeRunsIntoFile(dataFilename, gp);
+            }
+            mergeWithFile(new ArrayRecords(new AbstractKVStorable[0]));
+        } finally {
+            sweep = false;
+            writeLock.unlock();
+            compactionLock.unlock();
+        }
+    }
 
-            // We take one AbstractKVStorable from the chunk. The chunk will be automatically incremented
-            byte[] dateFromDisk = getFromDisk();
+    /**
+     * Reads the file from its start, until an element is found, which is marked as deleted or expired. The keys of the
+     * elements in front of it are added to a new Bloom filter.
+     * 
+     * @return the start of the chunk containing the first element to drop, or the end of the content if no element
+     *         must be dropped
+     * @throws IOException
+     */
+    private long findFirstDropped() throws IOException {
+        if (!merger.checkDeleted) {
+            return filledUpToWhenStarted;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(readChunkSize);
+        long offset = 0;
+        while (offset < filledUpToWhenStarted) {
+            int length = dataFile.read(offset, buffer);
+            if (length <= 0) {
+                break;
+            }
+            for (int i = 0; i + elementSize <= length; i += elementSize) {
+                if (merger.isDeleted(buffer.array(), i)) {
+                    return header.getStartOffsetOfChunk(dataFile.getChunkIndex(offset + i));
+                }
+                if (bloomFilter != null && !incrementalBloomFilter) {
+                    bloomFilter.add(buffer.array(), i, keyLength);
+                }
+            }
+            offset += length;
+        }
+        return filledUpToWhenStarted;
+    }
 
-            int indexOfToAdd = 0;
-            int keyLength = prototype.getKey().length;
+    /**
+     * Merges the elements of the bucket with the elements of the file by the calling thread.
+     * 
+     * @throws IOException
+     */
+    private void merge() throws IOException {
+        // We read the chunk, where the first element has to be inserted or updated from the disk
+        readNextChunkFromFile();
 
-            // handle all AbstractKVStorable (update or insert)
-            int compare;
-            for (indexOfToAdd = 0; indexOfToAdd < toAdd.length && dateFromDisk != null;) {
-                AbstractKVStorable dateFromBucket = toAdd[indexOfToAdd];
-                compare = KeyUtils.compareKey(dateFromBucket.getKey(), dateFromDisk, keyLength);
+        byte[] dateFromBucket = merger.next();
 
-                /* insert element from bucket */
-                if (compare < 0) {
-                    write(dateFromBucket.toByteBuffer().array(), false); // write date
-                    indexOfToAdd++;// next dateFromBucket
+        // handle all AbstractKVStorable (update or insert)
+        int compare;
+        while (dateFromBucket != null && hasElementFromDisk()) {
+            compare = KeyUtils.compareKey(dateFromBucket, bufferedReader.array(), bufferedReader.arrayOffset()
+                    + bufferedReader.position(), keyLength);
 
-                    // Incrementing the number of inserted entries.
+            /* insert element from bucket, tombstones without an element from disk are dropped */
+            if (compare < 0) {
+                if (!merger.isDropped() && write(dateFromBucket, 0)) {
                     numberOfInsertedEntries++;
-                    continue;
                 }
+                dateFromBucket = merger.next();// next dateFromBucket
+                continue;
+            }
 
-                /* merges element from bucket and element from disk */
-                if (compare == 0) {
-                    prototype.initFromByteBuffer(ByteBuffer.wrap(dateFromDisk));
-                    AbstractKVStorable newDate = prototype.merge(dateFromBucket);
-
-                    // TODO: think about update
-                    write(newDate.toByteBuffer().array(), true); // write date
-                    indexOfToAdd++; // next dateFromBucket
-                    dateFromDisk = getFromDisk(); // get next date from disk
-
+            /* merges element from bucket and element from disk, or drops both, if the element was deleted */
+            if (compare == 0) {
+                int position = bufferedReader.position();
+                bufferedReader.position(position + elementSize);
+                if (merger.mergeWithDisk(bufferedReader.array(), bufferedReader.arrayOffset() + position)) {
+                    write(dateFromBucket, 0);
                     // Incrementing the number of updated entries.
                     numberOfUpdateEntries++;
-                    continue;
+                } else {
+                    numberOfDeletedEntries++;
                 }
+                dateFromBucket = merger.next(); // next dateFromBucket
+                continue;
+            }
 
-                /* insert element from disk (pendingElements) */
-                if (compare > 0) {
-                    prototype.initFromByteBuffer(ByteBuffer.wrap(dateFromDisk));
-                    // if the dateFromDisk was marked as deleted
-                    if (!prototype.isMarkedAsDeleted()) {
-                        write(dateFromDisk, true); // write date
-                        dateFromDisk = getFromDisk(); // get next date from disk
-                        numberOfOldEntries++;
-                    }
-                    continue;
-                }
+            /* insert elements from disk */
+            copyRunFromDisk(dateFromBucket);
+        }
+
+        // end of the already stored elements, but there are still elements from bucket to insert
+        while (dateFromBucket != null) {
+            if (!merger.isDropped() && write(dateFromBucket, 0)) {
+                numberOfInsertedEntries++; // Incrementing the number of inserted entries.
             }
+            dateFromBucket = merger.next();
+        }
+
+        // all entries from bucket were added. If the remaining elements from disk were not shifted, they are
+        // already at their place and the index of their chunks is still valid. A sweep copies them anyway.
+        long diskPosition = readOffset - bufferedReader.remaining();
+        boolean shifted = sweep || diskPosition != writeOffset + bufferedWriter.position();
+        while (shifted && hasElementFromDisk()) {
+            copyRunFromDisk(null);
+        }
+
+        // write the remaining elements from the bufferedWriter to the disk
+        this.flushBuffer();
+        if (shifted) {
+            // elements were deleted, if the content ends before the old end of the file
+            contentEnd = writeOffset;
+        }
+        if (shifted || writeOffset >= filledUpToWhenStarted
+                || dataFile.getChunkIndex(writeOffset) != actualChunkId) {
+            finishChunk();
+        }
+    }
+
+    /**
+     * @return true, if the bucket is large enough to be merged in parallel and an executor for the merge was set. If
+     *         all elements are appended, the file is not read at all and nothing is gained by parallel merging.
+     */
+    private boolean isMergedInParallel(ISortedRecords toAdd) {
+        return mergeExecutor != null && parallelism > 1 && gp.PARALLEL_SYNC_THRESHOLD > 0
+                && toAdd.size() >= gp.PARALLEL_SYNC_THRESHOLD && !appendOnly;
+    }
+
+    /**
+     * Splits the merge into ranges (see {@link RangeSplitter}), which are merged in parallel by the merge executor.
+     * This thread reads the ranges from the file in ascending order and writes the merged ranges to their new place
+     * in the file in the same order. A range is read, before the write position reaches it, so no element is
+     * overwritten before it was read.
+     * 
+     * @throws IOException
+     */
+    private void mergeInParallel(ISortedRecords toAdd) throws IOException {
+        long totalBytes = filledUpToWhenStarted - startOffset + (long) toAdd.size() * elementSize;
+        long rangeSize = Math.min(Math.max(totalBytes / (parallelism * 4L), readChunkSize), 16L * readChunkSize);
+        List<Range> ranges = new RangeSplitter(dataFile, toAdd, keyLength).split(startOffset, filledUpToWhenStarted,
+                rangeSize);
+        // all keys behind the start offset are written again, the keys before are already in the filter
+        incrementalBloomFilter = false;
+        // the file is read by range, not by the sequential merge
+        readOffset = filledUpToWhenStarted;
 
-            // end of the already stored elements, but there are still elements from bucket to insert
-            if (dateFromDisk == null) {
-                for (; indexOfToAdd < toAdd.length; indexOfToAdd++) {
-                    if (write(toAdd[indexOfToAdd].toByteBuffer().array(), false)) {
-                        numberOfInsertedEntries++; // Incrementing the number of inserted entries.
-                    }
+        LinkedList<Future<RangeMerge>> running = new LinkedList<Future<RangeMerge>>();
+        int next = 0;
+        try {
+            while (next < ranges.size() || !running.isEmpty()) {
+                while (next < ranges.size() && running.size() < 2 * parallelism) {
+                    running.add(submit(ranges.get(next++), toAdd));
+                }
+                RangeMerge merged = running.removeFirst().get();
+                // the elements on disk, which are overwritten by this range, must be read before
+                long end = writeOffset + bufferedWriter.position() + merged.output.remaining();
+                while (next < ranges.size() && ranges.get(next).diskFrom < end) {
+                    running.add(submit(ranges.get(next++), toAdd));
                 }
+                ByteBuffer output = merged.output;
+                while (output.hasRemaining()) {
+                    int length = Math.min(output.remaining(), bufferedWriter.remaining());
+                    writeBlock(output.array(), output.arrayOffset() + output.position(), length);
+                    output.position(output.position() + length);
+                }
+                numberOfInsertedEntries += merged.numberOfInsertedEntries;
+                numberOfUpdateEntries += merged.numberOfUpdatedEntries;
+                numberOfDeletedEntries += merged.numberOfDeletedEntries;
+                numberOfOldEntries += merged.numberOfOldEntries;
             }
-
-            // all entries from bucket were added, but there are still pending elements .
-            while (dateFromDisk != null) {
-                write(dateFromDisk, true);
-                dateFromDisk = getFromDisk();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging " + dataFilename, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Merging a range of " + dataFilename + " failed.", e.getCause());
+        } finally {
+            for (Future<RangeMerge> future : running) {
+                future.cancel(true);
             }
+        }
+        flushBuffer();
+        finishChunk();
+        contentEnd = writeOffset;
+    }
 
-            // write the remaining elements from the bufferedWriter to the disk
-            this.writeBuffer(); // TODO: check if the data fits into one chunk
+    /** reads the given range from the file and submits its merge to the merge executor */
+    private Future<RangeMerge> submit(Range range, ISortedRecords toAdd) throws IOException {
+        ByteBuffer input = ByteBuffer.allocate((int) (range.diskTo - range.diskFrom));
+        if (input.capacity() > 0) {
+            read(range.diskFrom, input);
+            input.flip();
+            numberOfReadBytes += input.limit();
+        }
+        return mergeExecutor.submit(new RangeMerge(range, input, toAdd.view(), prototype, expiredBefore));
+    }
 
-            int lastChunkId = dataFile.getChunkIndex(writeOffset + bufferedWriter.position());
-            this.header.setLargestKey(lastChunkId, largestKeyInChunk);
-        } finally {
-            // close the file
-            dataFile.close();
+    /**
+     * Determines the position, where the merge starts. This is the start of the chunk, where the first element of the
+     * bucket belongs to. If the element is larger than the largest key in the index, the elements are appended.
+     * 
+     * @return the position in the file
+     */
+    private long getStartOffset(ISortedRecords toAdd) {
+        if (toAdd.size() == 0 || filledUpToWhenStarted == 0) {
+            return 0;
+        }
+        byte[] first = new byte[elementSize];
+        toAdd.getRecord(0, first);
+        int chunkId = header.getChunkId(Arrays.copyOf(first, keyLength));
+        if (chunkId < 0) {
+            return filledUpToWhenStarted;
+        }
+        int lastChunkId = dataFile.getChunkIndex(filledUpToWhenStarted - elementSize);
+        if (chunkId > lastChunkId) {
+            chunkId = lastChunkId;
+        }
+        return header.getStartOffsetOfChunk(chunkId);
+    }
+
+    /**
+     * Prepares the Bloom filter of the file. The stored filter is extended, if it belongs to the actual state of the
+     * file and still has at least half of the configured bits per key. Otherwise a new filter is built.
+     * 
+     * @param elementsToAdd
+     *            the number of elements, which are added at most
+     */
+    private void prepareBloomFilter(int elementsToAdd) {
+        bloomFilter = null;
+        incrementalBloomFilter = false;
+        if (gp.BLOOM_FILTER_BITS_PER_KEY <= 0) {
+            return;
+        }
+        long expectedKeys = filledUpToWhenStarted / elementSize + elementsToAdd;
+        if (filledUpToWhenStarted > 0) {
+            BloomFilter stored = BloomFilter.load(dataFilename);
+            if (stored != null && stored.isValidFor(filledUpToWhenStarted, dataFile.getSyncedGeneration())
+                    && stored.getNumberOfBits() >= expectedKeys * gp.BLOOM_FILTER_BITS_PER_KEY / 2) {
+                bloomFilter = stored;
+                incrementalBloomFilter = true;
+                return;
+            }
+        }
+        bloomFilter = new BloomFilter(expectedKeys, gp.BLOOM_FILTER_BITS_PER_KEY);
+    }
+
+    /**
+     * Stores the built Bloom filter next to the file. The filter is only an optimization, if it can't be stored the
+     * file is read without it.
+     */
+    private void storeBloomFilter() {
+        if (bloomFilter == null) {
+            return;
+        }
+        try {
+            bloomFilter.store(dataFilename, dataFile.getFilledUpFromContentStart(), dataFile.getSyncedGeneration());
+        } catch (IOException e) {
+            log.warn("Can't store the Bloom filter of {}.", dataFilename, e);
         }
     }
 
     /**
-     * writes the given {@link byte[]} to the given {@link FileChannel}. This method improves performance by 30%,
-     * because it is not needed anymore to create all AbstractKVStorable from byte-arrays. The given byte-array contains
-     * only one {@link AbstractKVStorable}.
+     * Writes the element starting at the given offset of the given array to the write buffer. Elements with a null key
+     * are skipped. The largest key of the actual chunk of the file is remembered, but set not before the chunk is
+     * finished. If the write buffer is full, it is written to the file.
      * 
-     * @param newData
-     * @param key
-     * @param alreadyExist
+     * @param array
+     *            the array containing the element
+     * @param offset
+     *            the position of the element in the array
+     * @return false, if the element was skipped
      * @throws IOException
      */
-    protected boolean write(byte[] newData, boolean alreadyExist) throws IOException {
+    protected boolean write(byte[] array, int offset) throws IOException {
         // If the data is invalid.
-        if (KeyUtils.isNull(newData, prototype.getKey().length)) {
-            // if(alreadyExist) System.err.println("invalid from disk");
+        if (KeyUtils.isNull(array, offset, keyLength)) {
             return false;
         }
-        // if the last readChunk was full
-        ByteBuffer toAdd = ByteBuffer.wrap(newData);
-        long positionOfToAddInFile = writeOffset + bufferedWriter.position();
-        bufferedWriter.put(toAdd);
-
-        largestKeyInChunk = Arrays.copyOfRange(newData, 0, prototype.getKey().length); // elements are stored ordered so we
-                                                                                  // can easily remember the largest key
-        int chunkId = dataFile.getChunkIndex(positionOfToAddInFile);
-        header.setLargestKey(chunkId, largestKeyInChunk);
+        if (bloomFilter != null) {
+            bloomFilter.add(array, offset, keyLength);
+        }
+        int chunkId = dataFile.getChunkIndex(writeOffset + bufferedWriter.position());
+        if (chunkId != actualChunkId) {
+            finishChunk();
+            actualChunkId = chunkId;
+        }
+        // elements are stored ordered so we can easily remember the largest key
+        System.arraycopy(array, offset, largestKeyInChunk, 0, keyLength);
+        bufferedWriter.put(array, offset, elementSize);
         if (bufferedWriter.remaining() == 0) {
             writeBuffer();
         }
         return true;
     }
 
+    /** Sets the largest key of the actually written chunk in the index of the file. */
+    private void finishChunk() {
+        if (actualChunkId >= 0) {
+            header.setLargestKey(actualChunkId, Arrays.copyOf(largestKeyInChunk, keyLength));
+        }
+    }
+
+    /**
+     * Writes the actual element from disk and moves to the next one. Elements marked as deleted or expired are
+     * dropped.
+     * 
+     * @throws IOException
+     */
+    private void copyFromDisk() throws IOException {
+        int position = bufferedReader.position();
+        // the position is moved first, because writing may read the next chunk into the buffer
+        bufferedReader.position(position + elementSize);
+        // if the dateFromDisk was marked as deleted or expired
+        if (merger.isDeleted(bufferedReader.array(), bufferedReader.arrayOffset() + position)) {
+            numberOfDeletedEntries++;
+            return;
+        }
+        numberOfOldEntries++;
+        write(bufferedReader.array(), bufferedReader.arrayOffset() + position);
+    }
+
+    /**
+     * Writes the elements from disk, which are smaller than the given key, as one block. At most as many bytes are
+     * written, as fit into the write buffer. If the elements must be decoded, only one element is written.
+     * 
+     * @param limitKey
+     *            the key of the next element from the bucket, or <code>null</code> to write all read elements
+     * @throws IOException
+     */
+    private void copyRunFromDisk(byte[] limitKey) throws IOException {
+        if (merger.checkDeleted) {
+            copyFromDisk();
+            return;
+        }
+        int position = bufferedReader.position();
+        int end = limitKey == null ? bufferedReader.limit() : findFirstNotSmaller(limitKey);
+        int length = Math.min(end - position, bufferedWriter.remaining());
+        // the position is moved first, because writing may read the next chunk into the buffer
+        bufferedReader.position(position + length);
+        numberOfOldEntries += length / elementSize;
+        writeBlock(bufferedReader.array(), bufferedReader.arrayOffset() + position, length);
+    }
+
+    /** @return the position of the first element in {@link #bufferedReader}, which is not smaller than the key */
+    private int findFirstNotSmaller(byte[] key) {
+        byte[] array = bufferedReader.array();
+        int base = bufferedReader.arrayOffset();
+        int low = 0, high = bufferedReader.remaining() / elementSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int offset = bufferedReader.position() + mid * elementSize;
+            if (KeyUtils.compareKey(key, array, base + offset, keyLength) > 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return bufferedReader.position() + low * elementSize;
+    }
+
     /**
-     * writes the remaining bytes in bufferedWriter to the given FileChannel
+     * Writes a block of elements from disk to the write buffer. The block must fit into the write buffer. The index is
+     * only touched, where the block crosses the borders of the chunks of the file.
+     * 
+     * @param array
+     *            the array containing the elements
+     * @param offset
+     *            the position of the first element in the array
+     * @param length
+     *            the number of bytes to write, a multiple of the element size
+     * @throws IOException
+     */
+    private void writeBlock(byte[] array, int offset, int length) throws IOException {
+        while (length > 0) {
+            long position = writeOffset + bufferedWriter.position();
+            int chunkId = dataFile.getChunkIndex(position);
+            if (chunkId != actualChunkId) {
+                finishChunk();
+                actualChunkId = chunkId;
+            }
+            int piece = (int) Math.min(length, header.getStartOffsetOfChunk(chunkId + 1) - position);
+            if (bloomFilter != null && !incrementalBloomFilter) {
+                for (int i = offset; i < offset + piece; i += elementSize) {
+                    bloomFilter.add(array, i, keyLength);
+                }
+            }
+            bufferedWriter.put(array, offset, piece);
+            System.arraycopy(array, offset + piece - elementSize, largestKeyInChunk, 0, keyLength);
+            offset += piece;
+            length -= piece;
+        }
+        if (bufferedWriter.remaining() == 0) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * writes the bytes in bufferedWriter to the file and reads the next chunk, before it is overwritten.
      * 
-     * @param FileChannel
      * @throws IOException
      */
     private void writeBuffer() throws IOException {
-        bufferedWriter.flip(); // position is set to zero in dataFile.write
-        dataFile.write(writeOffset, bufferedWriter);
-        writeOffset += bufferedWriter.limit();
-        bufferedWriter.clear();
+        flushBuffer();
         readNextChunkFromFile(); // before overwriting the next bucket. Read it.
     }
 
     /**
-     * Gets the next {@link AbstractKVStorable} from disk or from the cache. If the end of the cache is reached a new
-     * read will be made from the file.
+     * writes the remaining bytes in bufferedWriter to the file
      * 
-     * @return
      * @throws IOException
      */
-    private byte[] getFromDisk() throws IOException {
-        if (!pendingElements.isEmpty()) {
-            return pendingElements.pop();
+    private void flushBuffer() throws IOException {
+        if (bufferedWriter.position() == 0) {
+            return;
         }
-        return null;
+        bufferedWriter.flip(); // position is set to zero in dataFile.write
+        if (ioThread == null) {
+            writeToFile(writeOffset, bufferedWriter);
+            writeOffset += bufferedWriter.limit();
+            bufferedWriter.clear();
+            return;
+        }
+        // the spare buffer is reused, so its write must be finished
+        await(pendingWrite);
+        final long offset = writeOffset;
+        final ByteBuffer buffer = bufferedWriter;
+        pendingWrite = ioThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                writeToFile(offset, buffer);
+                return null;
+            }
+        });
+        writeOffset += buffer.limit();
+        if (spareWriter == null) {
+            spareWriter = ByteBuffer.allocate(readChunkSize);
+        }
+        bufferedWriter = spareWriter;
+        spareWriter = buffer;
+        bufferedWriter.clear();
+    }
+
+    /** writes the given buffer to the given position or appends it, if all elements are appended */
+    private void writeToFile(long offset, ByteBuffer buffer) throws IOException {
+        if (appendOnly) {
+            dataFile.append(buffer);
+        } else {
+            dataFile.write(offset, buffer);
+        }
+    }
+
+    /**
+     * @return true, if there is an element from disk, which is not written yet. Reads the next chunk from the file, if
+     *         needed.
+     * @throws IOException
+     */
+    private boolean hasElementFromDisk() throws IOException {
+        while (bufferedReader.remaining() < elementSize) {
+            if (!readNextChunkFromFile()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Reads one chunk from the file. It is possible that the chunk is not complete because the end of the file is
-     * reached. In this case the maximum number of {@link AbstractKVStorable} will be retrieved.
+     * Reads one chunk from the file and appends it to the elements from disk, which are not written yet. It is
+     * possible that the chunk is not complete because the end of the file is reached. In this case the maximum number
+     * of {@link AbstractKVStorable} will be retrieved.
      * 
-     * @return a chunk from the file
+     * @return false, if the end of the old content of the file was reached
      * @throws IOException
      */
     private boolean readNextChunkFromFile() throws IOException {
         if (readOffset >= filledUpToWhenStarted || readOffset < 0) {
             return false;
         }
+        int length = (int) Math.min(readChunkSize, filledUpToWhenStarted - readOffset);
+        ensureSpaceForReading(length);
 
-        bufferedReader.clear();
-        dataFile.read(readOffset, bufferedReader);
-        bufferedReader.position(0);
-        if (bufferedReader.limit() > 0) {
-            readOffset += bufferedReader.limit();
-            while (bufferedReader.remaining() > 0) {
-                byte[] dst = new byte[elementSize];
-                bufferedReader.get(dst);
-                pendingElements.add(dst);
+        // the file is read directly behind the elements, which are not written yet
+        int start = bufferedReader.limit();
+        ByteBuffer target = bufferedReader.duplicate();
+        target.limit(start + length).position(start);
+        target = target.slice();
+        if (ioThread == null) {
+            dataFile.read(readOffset, target);
+        } else {
+            if (prefetch == null || prefetchOffset != readOffset) {
+                prefetch(readOffset);
             }
+            ByteBuffer fetched = await(prefetch);
+            prefetch = null;
+            target.put(fetched);
+            // the next chunk is read, while this one is merged
+            prefetch(readOffset + target.position());
+        }
+        readOffset += target.position();
+        numberOfReadBytes += target.position();
+        bufferedReader.limit(start + target.position());
+        return target.position() > 0;
+    }
+
+    /** hands the read of the chunk at the given position to the {@link #ioThread} */
+    private void prefetch(final long offset) {
+        if (offset >= filledUpToWhenStarted) {
+            return;
+        }
+        if (prefetchBuffer == null) {
+            prefetchBuffer = ByteBuffer.allocate(readChunkSize);
+        }
+        final ByteBuffer target = prefetchBuffer.duplicate();
+        target.limit((int) Math.min(readChunkSize, filledUpToWhenStarted - offset));
+        prefetchOffset = offset;
+        prefetch = ioThread.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                ByteBuffer slice = target.slice();
+                dataFile.read(offset, slice);
+                slice.flip();
+                return slice;
+            }
+        });
+    }
+
+    /**
+     * Reads the given region of the file into the given buffer. During a pipelined merge the read is done by the
+     * {@link #ioThread} after all writes handed to it before.
+     */
+    private void read(final long offset, final ByteBuffer target) throws IOException {
+        if (ioThread == null) {
+            dataFile.read(offset, target);
+            return;
+        }
+        await(ioThread.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return dataFile.read(offset, target);
+            }
+        }));
+    }
+
+    /** @return the result of the given read or write of the {@link #ioThread}. null, if no future is given */
+    private <T> T await(Future<T> future) throws IOException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for I/O on " + dataFilename, e);
+        } catch (ExecutionException e) {
+            throw new IOException("I/O on " + dataFilename + " failed.", e.getCause());
         }
-        return true;
     }
 
-    @SuppressWarnings("unused")
-    private boolean readFirstChunkFromFile(AbstractKVStorable toAdd) throws IOException {
-        readOffset = header.getStartOffsetOfChunkByKey(toAdd.getKey());
-        if (readOffset < 0) {
-            readOffset = 0;
+    /** waits until all reads and writes handed to the {@link #ioThread} are finished */
+    private void awaitIO() throws IOException {
+        if (ioThread == null) {
+            return;
+        }
+        await(pendingWrite);
+        await(prefetch);
+        pendingWrite = null;
+        prefetch = null;
+    }
+
+    /** stops the {@link #ioThread}, after the reads and writes handed to it are finished */
+    private void stopIO() {
+        if (ioThread == null) {
+            return;
+        }
+        Future<?> last = ioThread.getLast();
+        if (last != null) {
+            try {
+                // the tasks are done one after another
+                last.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // the upsert failed already, the failure was thrown there
+            }
+        }
+        ioThread = null;
+        pendingWrite = null;
+        prefetch = null;
+    }
+
+    /**
+     * Makes sure, that the given number of bytes can be read behind the elements in {@link #bufferedReader}. The
+     * buffer is compacted, if at most as many bytes must be moved as are freed. Otherwise it is enlarged.
+     */
+    private void ensureSpaceForReading(int length) {
+        if (bufferedReader.capacity() - bufferedReader.limit() >= length) {
+            return;
+        }
+        int remaining = bufferedReader.remaining();
+        if (remaining <= bufferedReader.position() && bufferedReader.capacity() - remaining >= length) {
+            bufferedReader.compact();
+            bufferedReader.flip();
+        } else {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * bufferedReader.capacity(), remaining + length));
+            larger.put(bufferedReader);
+            larger.flip();
+            bufferedReader = larger;
         }
-        return readNextChunkFromFile();
     }
 
     /** Closes, if not yet closed, the dataFile */
@@ -331,4 +1023,54 @@ public class Synchronizer<Data extends AbstractKVStorable> {
     public long getNumberOfUpdatedEntries() {
         return numberOfUpdateEntries;
     }
-}
\ No newline at end of file
+
+    /** @return the number of entries that were deleted from the file by tombstones or dropped, because they expired. */
+    public long getNumberOfDeletedEntries() {
+        return numberOfDeletedEntries;
+    }
+
+    /** @return the number of bytes of the file, which were read by the last upsert. */
+    public long getNumberOfReadBytes() {
+        return numberOfReadBytes;
+    }
+
+    /** @return the number of bytes, which were written to the file by the last upsert. */
+    public long getNumberOfWrittenBytes() {
+        return writeOffset - startOffset;
+    }
+
+    /** @return the filled size of the file after the last upsert. */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /** Presents an ascending sorted array of {@link AbstractKVStorable}s as {@link ISortedRecords}. */
+    private class ArrayRecords implements ISortedRecords {
+        private final AbstractKVStorable[] elements;
+
+        ArrayRecords(AbstractKVStorable[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
+        }
+
+        @Override
+        public int getElementSize() {
+            return elementSize;
+        }
+
+        @Override
+        public void getRecord(int index, byte[] dst) {
+            System.arraycopy(elements[index].toByteBuffer().array(), 0, dst, 0, elementSize);
+        }
+
+        @Override
+        public ISortedRecords view() {
+            // the elements are only read
+            return this;
+        }
+    }
+}
@@ -75,6 +75,8 @@ public class UpdateOnlySynchronizer<Data extends AbstractKVStorable> {
         this.dataFilename = dataFilename;
         this.prototype = gp.getPrototype();
         try {
+            // the runs are newer than the file, they must not be merged over the updated elements later
+            RunCompactor.mergeRunsIntoFile(dataFilename, gp);
             /* Another thread can have access to this file in parallel. So we must wait to get exclusive access. */
             dataFile = new HeaderIndexFile<Data>(dataFilename, AccessMode.READ_WRITE, Integer.MAX_VALUE, gp);
             header = dataFile.getIndex(); // Pointer to the Index
@@ -141,6 +143,7 @@ public class UpdateOnlySynchronizer<Data extends AbstractKVStorable> {
             if (oldChunkOffset > -1) {
                 dataFile.write(oldChunkOffset, workingBuffer);
             }
+            dataFile.flush();
 
         } finally {
             // close the file
@@ -172,10 +175,10 @@ public class UpdateOnlySynchronizer<Data extends AbstractKVStorable> {
                 workingBuffer.get(b);
                 @SuppressWarnings("unchecked")
                 Data toUpdate = (Data)prototype.fromByteBuffer(ByteBuffer.wrap(b));
-                // update the old element and write it
-                toUpdate.update(data);
+                // update the old element with the values of the given one and write it
+                data.update(toUpdate);
                 workingBuffer.position(indexInChunk);
-                workingBuffer.put(data.toByteBuffer());
+                toUpdate.writeTo(workingBuffer);
                 return indexInChunk;
             } else if (compare < 0) {
                 maxElement = midElement - 1;
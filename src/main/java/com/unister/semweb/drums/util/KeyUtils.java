@@ -59,6 +59,26 @@ public class KeyUtils {
         return true;
     }
 
+    /**
+     * Checks if the elements of the key starting at the given offset of the array are 0.
+     * 
+     * @param array
+     *            the array containing the key
+     * @param offset
+     *            the position of the key in the array
+     * @param length
+     *            the length of the key
+     * @return true, if all elements of the key are 0.
+     */
+    public static boolean isNull(byte[] array, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (array[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Checks if the elements of the given key are 0, or the whole array is null.
      * 
@@ -108,6 +128,25 @@ public class KeyUtils {
         return Bytes.compareTo(key1, 0, length, key2, 0, length);
     }
 
+    /**
+     * Compares the given key with the key starting at the given offset of the array on the basis of unsigned bytes.
+     * 
+     * @param key
+     *            the first key
+     * @param array
+     *            the array containing the second key
+     * @param offset
+     *            the position of the second key in the array
+     * @param length
+     *            the length of the keys
+     * @return <0 if key < the second key<br>
+     *         0 if both keys are equal<br>
+     *         >0 if key > the second key
+     */
+    public static int compareKey(byte[] key, byte[] array, int offset, int length) {
+        return Bytes.compareTo(key, 0, length, array, offset, length);
+    }
+
     /**
      * Generates a {@link RangeHashFunction}.
      * 
@@ -192,8 +192,24 @@ public class TestUtils {
      * @throws IOException
      */
     public static void createFile(String dbFileName, DummyKVStorable[] linkDataList) throws IOException {
+        createFile(dbFileName, linkDataList, gp);
+    }
+
+    /**
+     * creates a file with the given filename and fills it with the given data, using the given parameters
+     * 
+     * @param dbFileName
+     *            the name of the file
+     * @param linkDataList
+     *            the array, containing LinkData
+     * @param gp
+     *            the parameters of the file
+     * @throws IOException
+     */
+    public static void createFile(String dbFileName, DummyKVStorable[] linkDataList,
+            DRUMSParameterSet<DummyKVStorable> gp) throws IOException {
         Arrays.sort(linkDataList, new AbstractKVStorableComparator());
-        Synchronizer<DummyKVStorable> sync = new Synchronizer<DummyKVStorable>(dbFileName, TestUtils.gp);
+        Synchronizer<DummyKVStorable> sync = new Synchronizer<DummyKVStorable>(dbFileName, gp);
         sync.upsert(linkDataList);
         sync.close();
     }
@@ -210,9 +226,26 @@ public class TestUtils {
      */
     public static boolean checkContentFile(String dbFileName, DummyKVStorable[] linkDataList) throws IOException,
             FileLockException {
+        return checkContentFile(dbFileName, linkDataList, gp);
+    }
+
+    /**
+     * This function checks, if the file with the given filename contains exactly the given LinkData-objects.
+     * 
+     * @param dbFileName
+     *            the name of the file
+     * @param linkDataList
+     *            the array, containing LinkData
+     * @param gp
+     *            the parameters of the file
+     * @throws IOException
+     * @throws FileLockException
+     */
+    public static boolean checkContentFile(String dbFileName, DummyKVStorable[] linkDataList,
+            DRUMSParameterSet<DummyKVStorable> gp) throws IOException, FileLockException {
         // load file
         DummyKVStorable prototype = gp.getPrototype();
-        HeaderIndexFile<DummyKVStorable> dbfile = new HeaderIndexFile<DummyKVStorable>(dbFileName, 1, TestUtils.gp);
+        HeaderIndexFile<DummyKVStorable> dbfile = new HeaderIndexFile<DummyKVStorable>(dbFileName, 1, gp);
         ByteBuffer buffer = ByteBuffer.allocate(prototype.getSize());
         long offset = 0;
         int k = 0;
@@ -23,7 +23,14 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
@@ -32,10 +39,22 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.unister.semweb.drums.DRUMSParameterSet;
 import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.bucket.DynamicMemoryAllocater;
 import com.unister.semweb.drums.bucket.hashfunction.AbstractHashFunction;
 import com.unister.semweb.drums.bucket.hashfunction.RangeHashFunction;
+import com.unister.semweb.drums.file.BloomFilter;
+import com.unister.semweb.drums.file.HeaderIndexFile;
+import com.unister.semweb.drums.file.SortedRuns;
+import com.unister.semweb.drums.file.WriteAheadLog;
+import com.unister.semweb.drums.storable.DeletableDummyKVStorable;
 import com.unister.semweb.drums.storable.DummyKVStorable;
+import com.unister.semweb.drums.storable.GeneralStorable;
+import com.unister.semweb.drums.storable.GeneralStructure;
+import com.unister.semweb.drums.storable.GeneralStructure.Basic_Field_Types;
+import com.unister.semweb.drums.sync.synchronizer.RunSynchronizerFactory;
+import com.unister.semweb.drums.sync.synchronizer.SynchronizerFactory;
 import com.unister.semweb.drums.util.AbstractKVStorableComparator;
 import com.unister.semweb.drums.util.Bytes;
 import com.unister.semweb.drums.util.KeyUtils;
@@ -140,6 +159,280 @@ public class DRUMSTest {
         assertEquals(bucket4_el2, db4.get(1));
     }
 
+    /**
+     * Adds serialized {@link DummyKVStorable}s to different Buckets without building objects.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void insertRawRecords() throws Exception {
+        DummyKVStorable bucket2_el1 = TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.5);
+        DummyKVStorable bucket4_el1 = TestUtils.createDummyData(Bytes.toBytes(29l), 9, 0.23);
+        DummyKVStorable bucket2_el2 = TestUtils.createDummyData(Bytes.toBytes(10l), 12, 0.3);
+
+        ByteBuffer records = ByteBuffer.allocate(3 * TestUtils.gp.getElementSize());
+        records.put(bucket2_el1.toByteBuffer().array());
+        records.put(bucket4_el1.toByteBuffer().array());
+        records.put(bucket2_el2.toByteBuffer().array());
+
+        DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+        table.insertOrMerge(records.array(), 1 * TestUtils.gp.getElementSize(), 2);
+        records.flip().limit(TestUtils.gp.getElementSize());
+        table.insertOrMerge(records);
+        table.close();
+
+        List<DummyKVStorable> db2 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/2.db", 1000);
+        List<DummyKVStorable> db4 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/4.db", 1000);
+
+        assertEquals(2, db2.size());
+        assertEquals(bucket2_el1, db2.get(0));
+        assertEquals(bucket2_el2, db2.get(1));
+        assertEquals(1, db4.size());
+        assertEquals(bucket4_el1, db4.get(0));
+    }
+
+    /**
+     * The future of an asynchronous insert is done, when the records were written to their files.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void insertAsync() throws Exception {
+        DummyKVStorable bucket2_el1 = TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.5);
+        DummyKVStorable bucket4_el1 = TestUtils.createDummyData(Bytes.toBytes(29l), 9, 0.23);
+
+        DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+        SyncFuture future = table.insertOrMergeAsync(bucket2_el1, bucket4_el1);
+        table.enableForceMode();
+        future.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(future.isDone());
+
+        List<DummyKVStorable> db2 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/2.db", 1000);
+        List<DummyKVStorable> db4 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/4.db", 1000);
+        table.close();
+
+        assertEquals(1, db2.size());
+        assertEquals(bucket2_el1, db2.get(0));
+        assertEquals(1, db4.size());
+        assertEquals(bucket4_el1, db4.get(0));
+    }
+
+    /**
+     * A bucket, which doesn't reach the minimal number of elements, is synchronized after the maximal storage time,
+     * without polling or closing the table.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void synchronizeAfterStorageTime() throws Exception {
+        DummyKVStorable bucket2_el1 = TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.5);
+        long maxStorageTime = TestUtils.gp.MAX_BUCKET_STORAGE_TIME;
+        TestUtils.gp.MAX_BUCKET_STORAGE_TIME = 100;
+        try {
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+            table.insertOrMergeAsync(bucket2_el1).get(10, TimeUnit.SECONDS);
+            List<DummyKVStorable> db2 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/2.db", 1000);
+            table.close();
+
+            assertEquals(1, db2.size());
+            assertEquals(bucket2_el1, db2.get(0));
+        } finally {
+            TestUtils.gp.MAX_BUCKET_STORAGE_TIME = maxStorageTime;
+        }
+    }
+
+    /**
+     * Records found in the write-ahead log, when a table is opened, are synchronized into their files.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void replayWriteAheadLog() throws Exception {
+        DummyKVStorable bucket2_el1 = TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.5);
+        DummyKVStorable bucket4_el1 = TestUtils.createDummyData(Bytes.toBytes(29l), 9, 0.23);
+        TestUtils.gp.WRITE_AHEAD_LOG = true;
+        try {
+            DRUMSInstantiator.createTable(hashFunction, TestUtils.gp).close();
+
+            // simulates a crash, after the records were logged, but before they were synchronized
+            WriteAheadLog log = new WriteAheadLog(TestUtils.gp.DATABASE_DIRECTORY, 4, TestUtils.gp.getElementSize(),
+                    TestUtils.gp.WAL_SEGMENT_SIZE, new long[4]);
+            ByteBuffer records = ByteBuffer.allocate(2 * TestUtils.gp.getElementSize());
+            records.put(bucket2_el1.toByteBuffer().array());
+            records.put(bucket4_el1.toByteBuffer().array());
+            records.flip();
+            log.sync(log.append(new int[] { 1, 3 }, new long[] { 1, 1 }, records));
+
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, TestUtils.gp);
+            table.close();
+        } finally {
+            TestUtils.gp.WRITE_AHEAD_LOG = false;
+        }
+
+        List<DummyKVStorable> db2 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/2.db", 1000);
+        List<DummyKVStorable> db4 = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/4.db", 1000);
+        assertEquals(1, db2.size());
+        assertEquals(bucket2_el1, db2.get(0));
+        assertEquals(1, db4.size());
+        assertEquals(bucket4_el1, db4.get(0));
+        Assert.assertFalse(new File(TestUtils.gp.DATABASE_DIRECTORY, WriteAheadLog.SEGMENT_PREFIX + "0").exists());
+    }
+
+    /**
+     * Records, which are not synchronized yet, are selected and merged with the records in the files.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void selectUnsynchronized() throws Exception {
+        TestUtils.gp.READ_FROM_BUCKETS = true;
+        try {
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+            table.insertOrMerge(TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.5));
+            table.close();
+
+            table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, TestUtils.gp);
+            table.insertOrMerge(TestUtils.createDummyData(Bytes.toBytes(5l), 2, 0.5));
+            table.insertOrMerge(TestUtils.createDummyData(Bytes.toBytes(29l), 9, 0.23),
+                    TestUtils.createDummyData(Bytes.toBytes(5l), 4, 0.5));
+            List<DummyKVStorable> unsynchronized = table.select(Bytes.toBytes(29l), Bytes.toBytes(5l),
+                    Bytes.toBytes(7l));
+            table.close();
+            List<DummyKVStorable> afterClose = table.select(Bytes.toBytes(29l), Bytes.toBytes(5l),
+                    Bytes.toBytes(7l));
+
+            Collections.sort(unsynchronized, new AbstractKVStorableComparator());
+            assertEquals(2, unsynchronized.size());
+            assertEquals(7, unsynchronized.get(0).getValueAsInt("parentCount"));
+            assertEquals(9, unsynchronized.get(1).getValueAsInt("parentCount"));
+            Collections.sort(afterClose, new AbstractKVStorableComparator());
+            assertEquals(afterClose, unsynchronized);
+        } finally {
+            TestUtils.gp.READ_FROM_BUCKETS = false;
+        }
+    }
+
+    /**
+     * Several threads insert distinct records, while the small buckets are replaced, sealed and synchronized
+     * concurrently. Every record must be in the files exactly once: none is lost while its bucket is sealed and none
+     * is synchronized twice, which would double its parent count.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void concurrentInsertWhileSynchronizing() throws Exception {
+        final int threads = 4, perThread = 20000, batchSize = 100;
+        // own parameters, so the small memory isn't shared with the tables of other tests
+        DRUMSParameterSet<DummyKVStorable> gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        gp.MEMORY_CHUNK = 100 * gp.getElementSize();
+        gp.MAX_MEMORY_PER_BUCKET = 10 * gp.MEMORY_CHUNK;
+        gp.BUCKET_MEMORY = 40 * gp.MEMORY_CHUNK;
+        gp.NUMBER_OF_SYNCHRONIZER_THREADS = 2;
+        RangeHashFunction ranges = new RangeHashFunction(8, gp.getKeySize(), "/tmp/hash.hs");
+        final DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(ranges, gp);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long firstKey = (long) t * perThread;
+            producers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        DummyKVStorable[] batch = new DummyKVStorable[batchSize];
+                        for (int i = 0; i < perThread; i += batchSize) {
+                            for (int b = 0; b < batchSize; b++) {
+                                batch[b] = TestUtils.createDummyData(Bytes.toBytes(scramble(firstKey + i + b)), 1, 0.5);
+                            }
+                            table.insertOrMerge(batch);
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        table.close();
+        Assert.assertNull(failure.get());
+
+        DRUMS<DummyKVStorable> read = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        DRUMSIterator<DummyKVStorable> iterator = read.getIterator();
+        Set<Long> keys = new HashSet<Long>();
+        while (iterator.hasNext()) {
+            DummyKVStorable record = iterator.next();
+            Assert.assertTrue(keys.add(record.getKeyAsLong("key")));
+            assertEquals(1, record.getValueAsInt("parentCount"));
+        }
+        iterator.close();
+        read.close();
+        assertEquals(threads * perThread, keys.size());
+    }
+
+    /**
+     * Spreads consecutive numbers over the whole key space. The mapping is a bijection, so the keys stay distinct. It
+     * never returns the null key, which the synchronization drops.
+     */
+    private static long scramble(long i) {
+        return (i + 1) * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Records are inserted into buckets, whose memory is allocated off the heap. They are selected from the buckets,
+     * then synchronized and selected from the files.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void offHeapBucketMemory() throws Exception {
+        // own parameters, so the memory isn't shared with the tables of other tests
+        DRUMSParameterSet<DummyKVStorable> gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        gp.BUCKET_MEMORY_OFF_HEAP = true;
+        gp.READ_FROM_BUCKETS = true;
+        DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        ByteBuffer chunk = DynamicMemoryAllocater.getInstance(gp.instanceID).allocateChunk();
+        Assert.assertTrue(chunk.isDirect());
+        DynamicMemoryAllocater.getInstance(gp.instanceID).releaseChunk(chunk);
+
+        table.insertOrMerge(TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.5),
+                TestUtils.createDummyData(Bytes.toBytes(29l), 9, 0.23));
+        table.insertOrMerge(TestUtils.createDummyData(Bytes.toBytes(5l), 2, 0.5));
+        List<DummyKVStorable> unsynchronized = table.select(Bytes.toBytes(29l), Bytes.toBytes(5l), Bytes.toBytes(7l));
+        table.close();
+        List<DummyKVStorable> afterClose = table.select(Bytes.toBytes(29l), Bytes.toBytes(5l), Bytes.toBytes(7l));
+
+        Collections.sort(unsynchronized, new AbstractKVStorableComparator());
+        assertEquals(2, unsynchronized.size());
+        assertEquals(3, unsynchronized.get(0).getValueAsInt("parentCount"));
+        assertEquals(9, unsynchronized.get(1).getValueAsInt("parentCount"));
+        Collections.sort(afterClose, new AbstractKVStorableComparator());
+        assertEquals(unsynchronized, afterClose);
+    }
+
+    /**
+     * The synchronization stores a Bloom filter next to each file. Keys, which are not in the filter, aren't found.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void selectWithBloomFilter() throws Exception {
+        DummyKVStorable data = TestUtils.createDummyData(Bytes.toBytes(5l), 1, 0.23);
+        DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+        table.insertOrMerge(data);
+        table.close();
+
+        Assert.assertTrue(new File(TestUtils.gp.DATABASE_DIRECTORY, "2.db" + BloomFilter.SUFFIX).exists());
+        List<DummyKVStorable> selectedData = table.select(Bytes.toBytes(6l), Bytes.toBytes(5l), Bytes.toBytes(7l));
+        Assert.assertEquals(1, selectedData.size());
+        Assert.assertEquals(data, selectedData.get(0));
+    }
+
     /**
      * Adds one element to the DRUM and select this element.
      * 
@@ -271,4 +564,604 @@ public class DRUMSTest {
         assertEquals(1, readSecondBucket.size());
         assertEquals(2, readSecondBucket.get(0).getValueAsInt("parentCount"));
     }
+
+    /**
+     * With a {@link RunSynchronizerFactory} each synchronization writes a sorted run. Selects merge the runs, four runs
+     * of the same size are merged into one and all runs are merged into the file, when the table is closed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void sortedRuns() throws Exception {
+        long maxStorageTime = TestUtils.gp.MAX_BUCKET_STORAGE_TIME;
+        long fileChunkSize = TestUtils.gp.FILE_CHUNK_SIZE;
+        TestUtils.gp.MAX_BUCKET_STORAGE_TIME = 100;
+        // the runs are merged into the file, when they reach the size of four chunks
+        TestUtils.gp.FILE_CHUNK_SIZE = 1000 * TestUtils.gp.getElementSize();
+        try {
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+            RunSynchronizerFactory<DummyKVStorable> factory = new RunSynchronizerFactory<DummyKVStorable>();
+            table.setSynchronizerFactory(factory);
+            String filename = TestUtils.gp.DATABASE_DIRECTORY + "/3.db";
+            SortedRuns runs = SortedRuns.get(filename, TestUtils.gp);
+            for (int i = 0; i < 3; i++) {
+                table.insertOrMergeAsync(TestUtils.createDummyData(11, 20)).get(10, TimeUnit.SECONDS);
+            }
+            factory.awaitCompaction();
+            assertEquals(3, runs.getRuns().size());
+            assertEquals(0, TestUtils.readFrom(filename, 1000).size());
+            assertSelected(table, 3);
+
+            table.insertOrMergeAsync(TestUtils.createDummyData(11, 20)).get(10, TimeUnit.SECONDS);
+            factory.awaitCompaction();
+            assertEquals(1, runs.getRuns().size());
+            assertSelected(table, 4);
+
+            table.close();
+            Assert.assertTrue(runs.getRuns().isEmpty());
+            assertEquals(9, TestUtils.readFrom(filename, 1000).size());
+            assertSelected(table, 4);
+        } finally {
+            TestUtils.gp.MAX_BUCKET_STORAGE_TIME = maxStorageTime;
+            TestUtils.gp.FILE_CHUNK_SIZE = fileChunkSize;
+        }
+    }
+
+    /**
+     * Like {@link #sortedRuns()}, but the runs are compressed, so they are read through a window while they are merged.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void compressedSortedRuns() throws Exception {
+        TestUtils.gp.COMPRESSED_CHUNKS = true;
+        try {
+            sortedRuns();
+        } finally {
+            TestUtils.gp.COMPRESSED_CHUNKS = false;
+        }
+    }
+
+    /**
+     * Runs left over by a {@link RunSynchronizerFactory} are merged into their file, before the file is updated or
+     * synchronized by another factory. So the older runs are never merged over the newer elements.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void runsAreMergedBeforeTheFileIsChanged() throws Exception {
+        long maxStorageTime = TestUtils.gp.MAX_BUCKET_STORAGE_TIME;
+        long fileChunkSize = TestUtils.gp.FILE_CHUNK_SIZE;
+        TestUtils.gp.MAX_BUCKET_STORAGE_TIME = 100;
+        // the runs are not merged into the file by the compactor
+        TestUtils.gp.FILE_CHUNK_SIZE = 1000 * TestUtils.gp.getElementSize();
+        try {
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+            RunSynchronizerFactory<DummyKVStorable> factory = new RunSynchronizerFactory<DummyKVStorable>();
+            table.setSynchronizerFactory(factory);
+            String filename = TestUtils.gp.DATABASE_DIRECTORY + "/3.db";
+            SortedRuns runs = SortedRuns.get(filename, TestUtils.gp);
+            for (int i = 0; i < 2; i++) {
+                table.insertOrMergeAsync(TestUtils.createDummyData(11, 20)).get(10, TimeUnit.SECONDS);
+            }
+            factory.awaitCompaction();
+            assertEquals(2, runs.getRuns().size());
+
+            table.update(TestUtils.createDummyData(Bytes.toBytes(15L), 100, 0.5));
+            Assert.assertTrue(runs.getRuns().isEmpty());
+            List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(new long[] { 11, 15 }));
+            Collections.sort(selected, new AbstractKVStorableComparator());
+            assertEquals(24, selected.get(0).getValueAsInt("parentCount"));
+            assertEquals(100, selected.get(1).getValueAsInt("parentCount"));
+
+            table.insertOrMergeAsync(TestUtils.createDummyData(11, 20)).get(10, TimeUnit.SECONDS);
+            factory.awaitCompaction();
+            assertEquals(1, runs.getRuns().size());
+            table.setSynchronizerFactory(new SynchronizerFactory<DummyKVStorable>());
+            table.insertOrMergeAsync(TestUtils.createDummyData(11, 20)).get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(runs.getRuns().isEmpty());
+            assertEquals(9, TestUtils.readFrom(filename, 1000).size());
+            selected = table.select(KeyUtils.toByteArray(new long[] { 11, 15 }));
+            Collections.sort(selected, new AbstractKVStorableComparator());
+            assertEquals(48, selected.get(0).getValueAsInt("parentCount"));
+            assertEquals(132, selected.get(1).getValueAsInt("parentCount"));
+            table.close();
+        } finally {
+            TestUtils.gp.MAX_BUCKET_STORAGE_TIME = maxStorageTime;
+            TestUtils.gp.FILE_CHUNK_SIZE = fileChunkSize;
+        }
+    }
+
+    /**
+     * Bulk loads shuffled records twice with a memory of 30 records, so several batches are spilled and merged. Keys
+     * beyond the last range belong to the first file.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void bulkLoad() throws Exception {
+        long bucketMemory = TestUtils.gp.BUCKET_MEMORY;
+        int memoryChunk = TestUtils.gp.MEMORY_CHUNK;
+        TestUtils.gp.MEMORY_CHUNK = 10 * TestUtils.gp.getElementSize();
+        TestUtils.gp.BUCKET_MEMORY = 30 * TestUtils.gp.getElementSize();
+        try {
+            List<DummyKVStorable> data = Arrays.asList(TestUtils.createDummyData(1, 40));
+            BulkLoader<DummyKVStorable> loader = DRUMSInstantiator.createBulkLoader(
+                    (RangeHashFunction) hashFunction, TestUtils.gp);
+            for (int i = 0; i < 2; i++) {
+                Collections.shuffle(data);
+                loader.add(data.toArray(new DummyKVStorable[data.size()]));
+            }
+            loader.finish();
+            for (String name : new File(TestUtils.gp.DATABASE_DIRECTORY).list()) {
+                Assert.assertFalse(name.startsWith("bulkload"));
+            }
+
+            List<DummyKVStorable> file = TestUtils.readFrom(TestUtils.gp.DATABASE_DIRECTORY + "/1.db", 1000);
+            assertEquals(9, file.size());
+            assertEquals(31, Bytes.toLong(file.get(0).getKey()));
+
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, TestUtils.gp);
+            assertEquals(39, table.size());
+            List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(new long[] { 1, 10, 11, 30, 39 }));
+            Collections.sort(selected, new AbstractKVStorableComparator());
+            assertEquals(5, selected.size());
+            assertEquals(2 * 2, selected.get(0).getValueAsInt("parentCount"));
+            assertEquals(2 * 40, selected.get(4).getValueAsInt("parentCount"));
+            table.close();
+        } finally {
+            TestUtils.gp.BUCKET_MEMORY = bucketMemory;
+            TestUtils.gp.MEMORY_CHUNK = memoryChunk;
+        }
+    }
+
+    /**
+     * Loads less records than fit into one memory chunk, so they are never spilled and most of the memory is never
+     * allocated.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void bulkLoadSmallerThanMemory() throws Exception {
+        long bucketMemory = TestUtils.gp.BUCKET_MEMORY;
+        int memoryChunk = TestUtils.gp.MEMORY_CHUNK;
+        TestUtils.gp.MEMORY_CHUNK = 100 * TestUtils.gp.getElementSize();
+        TestUtils.gp.BUCKET_MEMORY = 1000 * TestUtils.gp.getElementSize();
+        try {
+            List<DummyKVStorable> data = Arrays.asList(TestUtils.createDummyData(1, 40));
+            Collections.shuffle(data);
+            BulkLoader<DummyKVStorable> loader = DRUMSInstantiator.createBulkLoader(
+                    (RangeHashFunction) hashFunction, TestUtils.gp);
+            loader.add(data.toArray(new DummyKVStorable[data.size()]));
+            loader.finish();
+
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, TestUtils.gp);
+            assertEquals(39, table.size());
+            List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(new long[] { 1, 39 }));
+            assertEquals(2, selected.size());
+            table.close();
+        } finally {
+            TestUtils.gp.BUCKET_MEMORY = bucketMemory;
+            TestUtils.gp.MEMORY_CHUNK = memoryChunk;
+        }
+    }
+
+    /**
+     * Inserts the even and then the odd keys into a table with compressed chunks, so the second synchronization
+     * rewrites all chunks. The records are read by select, by a {@link DRUMSReader} and by a {@link DRUMSIterator}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void compressedChunks() throws Exception {
+        TestUtils.gp.COMPRESSED_CHUNKS = true;
+        insertAndReadCompressedTable();
+    }
+
+    /**
+     * Like {@link #compressedChunks()}, but the keys are prefix encoded, so select searches the encoded chunks.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void prefixEncodedKeys() throws Exception {
+        TestUtils.gp.PREFIX_ENCODED_KEYS = true;
+        TestUtils.gp.KEY_RESTART_INTERVAL = 4;
+        insertAndReadCompressedTable();
+    }
+
+    private void insertAndReadCompressedTable() throws Exception {
+        long fileChunkSize = TestUtils.gp.FILE_CHUNK_SIZE;
+        TestUtils.gp.FILE_CHUNK_SIZE = 10 * TestUtils.gp.getElementSize();
+        try {
+            DummyKVStorable[] data = TestUtils.createDummyData(1, 2001);
+            DummyKVStorable[] even = new DummyKVStorable[1000], odd = new DummyKVStorable[1000];
+            for (int i = 0; i < 1000; i++) {
+                odd[i] = data[2 * i];
+                even[i] = data[2 * i + 1];
+            }
+            DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+            table.insertOrMerge(even);
+            table.close();
+            table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, TestUtils.gp);
+            table.insertOrMerge(odd);
+            table.close();
+
+            HeaderIndexFile<DummyKVStorable> file = new HeaderIndexFile<DummyKVStorable>(
+                    TestUtils.gp.DATABASE_DIRECTORY + "/1.db", HeaderIndexFile.AccessMode.READ_ONLY, 1, TestUtils.gp);
+            Assert.assertTrue(file.isCompressed());
+            file.close();
+
+            table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, TestUtils.gp);
+            List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(new long[] { 5, 500, 1999, 3000 }));
+            Collections.sort(selected, new AbstractKVStorableComparator());
+            assertEquals(3, selected.size());
+            assertEquals(501, selected.get(1).getValueAsInt("parentCount"));
+
+            DRUMSReader<DummyKVStorable> reader = table.getReader();
+            List<DummyKVStorable> range = reader.getRange(Bytes.toBytes(100l), Bytes.toBytes(200l));
+            assertEquals(101, range.size());
+            assertEquals(data[99], range.get(0));
+            reader.closeFiles();
+
+            DRUMSIterator<DummyKVStorable> iterator = table.getIterator();
+            int count = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            iterator.close();
+            assertEquals(2000, count);
+        } finally {
+            TestUtils.gp.COMPRESSED_CHUNKS = false;
+            TestUtils.gp.PREFIX_ENCODED_KEYS = false;
+            TestUtils.gp.KEY_RESTART_INTERVAL = 16;
+            TestUtils.gp.FILE_CHUNK_SIZE = fileChunkSize;
+        }
+    }
+
+    /**
+     * Deletes keys of a table of {@link DummyKVStorable}s, whose structure has a deleted flag. A key inserted again
+     * after its delete replaces the deleted record instead of being merged with it. Without the flag, delete isn't
+     * supported.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void deleteGeneralStorable() throws Exception {
+        DummyKVStorable prototype = DummyKVStorable.getDeletableInstance();
+        DRUMSParameterSet<DummyKVStorable> gp = new DRUMSParameterSet<DummyKVStorable>(prototype);
+        DummyKVStorable[] data = new DummyKVStorable[39];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (DummyKVStorable) prototype.clone();
+            data[i].setKey("key", i + 1l);
+            data[i].setValue("parentCount", 1);
+        }
+        DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        table.insertOrMerge(data);
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        table.delete(KeyUtils.toByteArray(new long[] { 5, 6, 7, 35 }));
+        table.insertOrMerge((DummyKVStorable) data[6].clone());
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        assertEquals(39 - 3, table.size());
+        List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(new long[] { 4, 5, 6, 7, 35 }));
+        table.close();
+        assertEquals(2, selected.size());
+        for (DummyKVStorable record : selected) {
+            Assert.assertFalse(record.isMarkedAsDeleted());
+            assertEquals(1, record.getValueAsInt("parentCount"));
+        }
+        Assert.assertFalse(DummyKVStorable.getInstance().canBeMarkedAsDeleted());
+        try {
+            DummyKVStorable.getInstance().markAsDeleted();
+            Assert.fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    /**
+     * Deletes keys of a filled table. The tombstones drop the records from the files, a key inserted again after its
+     * delete replaces the deleted record.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void delete() throws Exception {
+        DRUMSParameterSet<DeletableDummyKVStorable> gp = new DRUMSParameterSet<DeletableDummyKVStorable>(
+                DeletableDummyKVStorable.getInstance(0, 0));
+        gp.DATABASE_DIRECTORY = TestUtils.gp.DATABASE_DIRECTORY;
+        DeletableDummyKVStorable[] data = new DeletableDummyKVStorable[39];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = DeletableDummyKVStorable.getInstance(i + 1, 1);
+        }
+        DRUMS<DeletableDummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        table.insertOrMerge(data);
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        table.delete(KeyUtils.toByteArray(new long[] { 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 35, 100 }));
+        table.insertOrMerge(DeletableDummyKVStorable.getInstance(7, 1), DeletableDummyKVStorable.getInstance(40, 1));
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        assertEquals(39 - 12 + 2, table.size());
+        long[] keys = new long[41];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        List<DeletableDummyKVStorable> selected = table.select(KeyUtils.toByteArray(keys));
+        Collections.sort(selected, new AbstractKVStorableComparator());
+        assertEquals(39 - 12 + 2, selected.size());
+        for (DeletableDummyKVStorable record : selected) {
+            long key = record.getKeyAsLong("key");
+            Assert.assertFalse(key >= 5 && key <= 15 && key != 7 || key == 35);
+            assertEquals(1, record.getValueAsInt("parentCount"));
+        }
+        DRUMSIterator<DeletableDummyKVStorable> iterator = table.getIterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Assert.assertFalse(iterator.next().isMarkedAsDeleted());
+            count++;
+        }
+        iterator.close();
+        assertEquals(39 - 12 + 2, count);
+    }
+
+    /**
+     * Deletes and re-inserts keys, while the buckets merge records with equal keys. The re-inserted records replace the
+     * records in the file.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void deleteAndReinsertWithBucketCombining() throws Exception {
+        DRUMSParameterSet<DeletableDummyKVStorable> gp = newDeletableParameters();
+        gp.BUCKET_COMBINING = true;
+        gp.READ_FROM_BUCKETS = true;
+        DRUMS<DeletableDummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        table.insertOrMerge(newDeletableData(11, 20));
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        table.insertOrMerge(DeletableDummyKVStorable.getInstance(15, 2));
+        table.delete(KeyUtils.toByteArray(new long[] { 15, 16 }));
+        table.insertOrMerge(DeletableDummyKVStorable.getInstance(15, 4), DeletableDummyKVStorable.getInstance(15, 8));
+        assertParentCounts(table, 12, 0);
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        assertEquals(8, table.size());
+        assertParentCounts(table, 12, 0);
+    }
+
+    /**
+     * Deletes and re-inserts keys with a {@link RunSynchronizerFactory}. The delete and the re-insert are written into
+     * the same run or into different runs, which are merged later. The re-inserted records replace the records in the
+     * file.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void deleteAndReinsertInRuns() throws Exception {
+        DRUMSParameterSet<DeletableDummyKVStorable> gp = newDeletableParameters();
+        gp.MAX_BUCKET_STORAGE_TIME = 100;
+        gp.FILE_CHUNK_SIZE = 1000 * gp.getElementSize();
+        DRUMS<DeletableDummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        table.insertOrMerge(newDeletableData(11, 20));
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        RunSynchronizerFactory<DeletableDummyKVStorable> factory =
+                new RunSynchronizerFactory<DeletableDummyKVStorable>();
+        table.setSynchronizerFactory(factory);
+        SortedRuns runs = SortedRuns.get(gp.DATABASE_DIRECTORY + "/3.db", gp);
+        table.insertOrMergeAsync(DeletableDummyKVStorable.getInstance(15, Integer.MIN_VALUE)).get(10,
+                TimeUnit.SECONDS);
+        table.insertOrMergeAsync(DeletableDummyKVStorable.getInstance(15, 4)).get(10, TimeUnit.SECONDS);
+        table.insertOrMergeAsync(DeletableDummyKVStorable.getInstance(16, Integer.MIN_VALUE),
+                DeletableDummyKVStorable.getInstance(16, 2)).get(10, TimeUnit.SECONDS);
+        factory.awaitCompaction();
+        assertEquals(3, runs.getRuns().size());
+        assertParentCounts(table, 4, 2);
+
+        // the fourth run lets all runs be merged into one
+        table.insertOrMergeAsync(DeletableDummyKVStorable.getInstance(15, 8)).get(10, TimeUnit.SECONDS);
+        factory.awaitCompaction();
+        assertEquals(1, runs.getRuns().size());
+        assertParentCounts(table, 12, 2);
+        table.close();
+        Assert.assertTrue(runs.getRuns().isEmpty());
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        assertEquals(9, table.size());
+        assertParentCounts(table, 12, 2);
+    }
+
+    private DRUMSParameterSet<DeletableDummyKVStorable> newDeletableParameters() throws IOException {
+        DRUMSParameterSet<DeletableDummyKVStorable> gp = new DRUMSParameterSet<DeletableDummyKVStorable>(
+                DeletableDummyKVStorable.getInstance(0, 0));
+        gp.DATABASE_DIRECTORY = TestUtils.gp.DATABASE_DIRECTORY;
+        return gp;
+    }
+
+    /** @return records with parentCount 1 for the keys from <code>firstKey</code> to <code>lastKey</code> - 1 */
+    private static DeletableDummyKVStorable[] newDeletableData(int firstKey, int lastKey) {
+        DeletableDummyKVStorable[] data = new DeletableDummyKVStorable[lastKey - firstKey];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = DeletableDummyKVStorable.getInstance(firstKey + i, 1);
+        }
+        return data;
+    }
+
+    /**
+     * Asserts the parentCounts of the keys 15 and 16. A parentCount of 0 means, that the key must not be found. All
+     * other keys from 11 to 19 must have the parentCount 1.
+     */
+    private static void assertParentCounts(DRUMS<DeletableDummyKVStorable> table, int parentCount15,
+            int parentCount16) throws Exception {
+        long[] keys = new long[] { 11, 12, 13, 14, 15, 16, 17, 18, 19 };
+        List<DeletableDummyKVStorable> selected = table.select(KeyUtils.toByteArray(keys));
+        Collections.sort(selected, new AbstractKVStorableComparator());
+        assertEquals(9 - (parentCount15 == 0 ? 1 : 0) - (parentCount16 == 0 ? 1 : 0), selected.size());
+        for (DeletableDummyKVStorable record : selected) {
+            long key = record.getKeyAsLong("key");
+            int expected = key == 15 ? parentCount15 : key == 16 ? parentCount16 : 1;
+            assertEquals("key " + key, expected, record.getValueAsInt("parentCount"));
+        }
+    }
+
+    /**
+     * Lets the odd keys of a filled table expire. The synchronization of a bucket drops the expired records of the
+     * merged chunks, the background sweep drops the remaining ones.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void expire() throws Exception {
+        GeneralStructure structure = new GeneralStructure();
+        structure.addKeyPart("key", Basic_Field_Types.Long);
+        structure.addValuePart("timestamp", Basic_Field_Types.Long);
+        Assert.assertTrue(structure.setTimestampPart("timestamp"));
+        GeneralStorable prototype = new GeneralStorable(structure);
+        DRUMSParameterSet<GeneralStorable> gp = new DRUMSParameterSet<GeneralStorable>(prototype);
+        gp.DATABASE_DIRECTORY = TestUtils.gp.DATABASE_DIRECTORY;
+
+        long now = System.currentTimeMillis();
+        long old = now - TimeUnit.HOURS.toMillis(2);
+        GeneralStorable[] data = new GeneralStorable[39];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = prototype.clone();
+            data[i].setKey(Bytes.toBytes((long) i + 1));
+            data[i].setValue("timestamp", i % 2 == 0 ? old : now);
+        }
+        DRUMS<GeneralStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        table.insertOrMerge(data);
+        table.close();
+
+        // the sync of the first bucket drops its expired records, the other files are not touched
+        gp.TIME_TO_LIVE = TimeUnit.HOURS.toMillis(1);
+        gp.EXPIRY_SWEEP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        GeneralStorable expired = prototype.clone();
+        expired.setKey(Bytes.toBytes(4L));
+        expired.setValue("timestamp", old);
+        GeneralStorable update = prototype.clone();
+        update.setKey(Bytes.toBytes(3L));
+        update.setValue("timestamp", now);
+        table.insertOrMerge(expired, update);
+        table.close();
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        assertEquals(39 - 5 - 1 + 1, table.size());
+        table.close();
+
+        // the sweep drops the expired records of the other files and rebuilds their missing Bloom filters
+        for (int i = 0; i < hashFunction.getNumberOfBuckets(); i++) {
+            new File(gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(i) + BloomFilter.SUFFIX).delete();
+        }
+        gp.EXPIRY_SWEEP_INTERVAL = 1;
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (table.size() > 18 + 1 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_ONLY, gp);
+        long[] keys = new long[40];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        List<GeneralStorable> selected = table.select(KeyUtils.toByteArray(keys));
+        assertEquals(18 + 1, selected.size());
+        for (GeneralStorable record : selected) {
+            long key = record.getKeyAsLong("key");
+            Assert.assertTrue(key == 3 || key % 2 == 0 && key != 4);
+            assertEquals(now, record.getTimestamp());
+        }
+        assertEquals(18 + 1, table.size());
+        table.close();
+        for (int i = 0; i < hashFunction.getNumberOfBuckets(); i++) {
+            if (i == hashFunction.getBucketId(Bytes.toBytes(4L))) {
+                continue;
+            }
+            String filename = gp.DATABASE_DIRECTORY + "/" + hashFunction.getFilename(i);
+            HeaderIndexFile<GeneralStorable> file = new HeaderIndexFile<GeneralStorable>(filename, 1, gp);
+            BloomFilter filter = BloomFilter.load(filename);
+            Assert.assertNotNull(filter);
+            Assert.assertTrue(filter.isValidFor(file.getFilledUpFromContentStart(), file.getSyncedGeneration()));
+            file.close();
+        }
+    }
+
+    /**
+     * Updates the files of all buckets in parallel. If the file of one bucket can't be updated, the failure is reported
+     * for this bucket and the other files are updated anyway.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void updateInParallel() throws Exception {
+        DRUMSParameterSet<DummyKVStorable> gp = new DRUMSParameterSet<DummyKVStorable>(
+                DummyKVStorable.getInstance());
+        gp.DATABASE_DIRECTORY = TestUtils.gp.DATABASE_DIRECTORY;
+        gp.NUMBER_OF_UPDATE_THREADS = 3;
+        DummyKVStorable[] data = new DummyKVStorable[39];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = TestUtils.createDummyData(Bytes.toBytes(i + 1L), 1, 0.5);
+        }
+        DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, gp);
+        table.insertOrMerge(data);
+        table.close();
+
+        table = DRUMSInstantiator.openTable(DRUMS.AccessMode.READ_WRITE, gp);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = TestUtils.createDummyData(Bytes.toBytes(i + 1L), 7, 0.5);
+        }
+        table.update(data);
+        long[] keys = new long[40];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(keys));
+        assertEquals(39, selected.size());
+        for (DummyKVStorable record : selected) {
+            assertEquals(7, record.getValueAsInt("parentCount"));
+        }
+
+        // the file of the second bucket, containing the keys 1 to 10, can't be opened anymore
+        File file = new File(gp.DATABASE_DIRECTORY + "/2.db");
+        Assert.assertTrue(file.delete());
+        Assert.assertTrue(file.mkdir());
+        UpdateFuture future = table.updateAsync(TestUtils.createDummyData(Bytes.toBytes(5L), 9, 0.5),
+                TestUtils.createDummyData(Bytes.toBytes(15L), 9, 0.5),
+                TestUtils.createDummyData(Bytes.toBytes(25L), 9, 0.5));
+        try {
+            future.get();
+            Assert.fail("The update of the second bucket must fail.");
+        } catch (ExecutionException ex) {
+            UpdateException cause = (UpdateException) ex.getCause();
+            assertEquals(Collections.singleton(1), cause.getFailures().keySet());
+        }
+        Assert.assertTrue(future.isDone());
+        selected = table.select(KeyUtils.toByteArray(new long[] { 15, 25 }));
+        assertEquals(2, selected.size());
+        for (DummyKVStorable record : selected) {
+            assertEquals(9, record.getValueAsInt("parentCount"));
+        }
+        table.close();
+    }
+
+    /** selects the keys 11 to 19, which were inserted the given number of times */
+    private void assertSelected(DRUMS<DummyKVStorable> table, int times) throws Exception {
+        List<DummyKVStorable> selected = table.select(KeyUtils.toByteArray(new long[] { 11, 15, 19, 25 }));
+        Collections.sort(selected, new AbstractKVStorableComparator());
+        assertEquals(3, selected.size());
+        assertEquals(times * 12, selected.get(0).getValueAsInt("parentCount"));
+        assertEquals(times * 16, selected.get(1).getValueAsInt("parentCount"));
+        assertEquals(times * 20, selected.get(2).getValueAsInt("parentCount"));
+    }
 }
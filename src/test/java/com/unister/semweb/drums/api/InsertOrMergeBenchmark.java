@@ -0,0 +1,109 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.api;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+
+import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.bucket.hashfunction.RangeHashFunction;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+import com.unister.semweb.drums.util.Bytes;
+
+/**
+ * Measures the throughput of {@link DRUMS#insertOrMerge(com.unister.semweb.drums.storable.AbstractKVStorable...)}
+ * with an increasing number of producing threads. Only the time for adding the elements to the buckets is measured,
+ * the synchronization with the files happens afterwards. This is not a unit test, run it by its main method.
+ * 
+ * @author Martin Nettling
+ */
+public class InsertOrMergeBenchmark {
+
+    /** the number of elements, each thread inserts */
+    private static final int ELEMENTS_PER_THREAD = 1000000;
+
+    /** the number of elements given to one call of insertOrMerge */
+    private static final int BATCH_SIZE = 1000;
+
+    /** the number of buckets of the benchmarked table */
+    private static final int NUMBER_OF_BUCKETS = 64;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        // warm up
+        run(1);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long elements = (long) threads * ELEMENTS_PER_THREAD;
+            long nanos = run(threads);
+            System.out.printf("%2d threads: %,12d elements in %8.1f ms, %,14.0f elements/s%n", threads, elements,
+                    nanos / 1e6, elements / (nanos / 1e9));
+        }
+    }
+
+    /**
+     * Creates a new table and lets the given number of threads insert their elements in parallel.
+     * 
+     * @return the time in nanoseconds all threads needed to insert their elements
+     */
+    private static long run(int threads) throws Exception {
+        FileUtils.deleteQuietly(new File(TestUtils.gp.DATABASE_DIRECTORY));
+        RangeHashFunction hashFunction = new RangeHashFunction(NUMBER_OF_BUCKETS, TestUtils.gp.getKeySize(),
+                "/tmp/benchmark.hs");
+        final DRUMS<DummyKVStorable> table = DRUMSInstantiator.createTable(hashFunction, TestUtils.gp);
+
+        final DummyKVStorable[][] data = new DummyKVStorable[threads][];
+        Random random = new Random(0);
+        for (int t = 0; t < threads; t++) {
+            data[t] = new DummyKVStorable[ELEMENTS_PER_THREAD];
+            for (int i = 0; i < ELEMENTS_PER_THREAD; i++) {
+                data[t][i] = TestUtils.createDummyData(Bytes.toBytes(random.nextLong()), i, i);
+            }
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final DummyKVStorable[] toInsert = data[t];
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        DummyKVStorable[] batch = new DummyKVStorable[BATCH_SIZE];
+                        for (int i = 0; i < toInsert.length; i += BATCH_SIZE) {
+                            System.arraycopy(toInsert, i, batch, 0, BATCH_SIZE);
+                            table.insertOrMerge(batch);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long nanos = System.nanoTime() - startTime;
+        table.close();
+        return nanos;
+    }
+}
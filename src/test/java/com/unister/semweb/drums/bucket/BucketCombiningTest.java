@@ -0,0 +1,151 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.storable.DeletableDummyKVStorable;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+import com.unister.semweb.drums.util.Bytes;
+
+/**
+ * Tests the merging of elements with equal keys while adding them to a {@link Bucket}.
+ * 
+ * @author Martin Nettling
+ */
+public class BucketCombiningTest {
+    private DRUMSParameterSet<DummyKVStorable> gp;
+
+    @Before
+    public void initialise() throws Exception {
+        gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        gp.MEMORY_CHUNK = 100 * gp.getElementSize();
+        gp.BUCKET_COMBINING = true;
+        DynamicMemoryAllocater.instantiate(gp);
+    }
+
+    @After
+    public void tearDown() {
+        DynamicMemoryAllocater.release(gp.instanceID);
+    }
+
+    /**
+     * Adds 10 elements for each of 1000 keys over several memory chunks. The bucket must contain one element per key
+     * with the summed up parentCount.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void equalKeysAreMerged() throws Exception {
+        Bucket<DummyKVStorable> bucket = new Bucket<DummyKVStorable>(0, gp);
+        DummyKVStorable[] added = new DummyKVStorable[10 * 1000];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = TestUtils.createDummyData(Bytes.toBytes((long) (i % 1000)), 1, 0.5);
+            Assert.assertTrue(bucket.add(added[i]));
+        }
+        Assert.assertEquals(1000, bucket.size());
+
+        ISortedRecords sorted = bucket.getSortedRecords();
+        byte[] record = new byte[sorted.getElementSize()];
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.getRecord(i, record);
+            DummyKVStorable date = (DummyKVStorable) gp.getPrototype().fromByteBuffer(ByteBuffer.wrap(record));
+            Assert.assertEquals(i, date.getKeyAsLong("key"));
+            Assert.assertEquals(10, date.getValueAsInt("parentCount"));
+        }
+        // the added elements themselves must not be changed
+        for (DummyKVStorable date : added) {
+            Assert.assertEquals(1, date.getValueAsInt("parentCount"));
+        }
+        bucket.freeMemory();
+    }
+
+    /**
+     * Serialized records are merged the same way.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void rawRecordsAreMerged() throws Exception {
+        Bucket<DummyKVStorable> bucket = new Bucket<DummyKVStorable>(0, gp);
+        ByteBuffer records = ByteBuffer.allocate(3 * gp.getElementSize());
+        records.put(TestUtils.createDummyData(Bytes.toBytes(7l), 2, 0.5).toByteBuffer().array());
+        records.put(TestUtils.createDummyData(Bytes.toBytes(7l), 3, 0.5).toByteBuffer().array());
+        records.put(TestUtils.createDummyData(Bytes.toBytes(8l), 1, 0.5).toByteBuffer().array());
+        records.clear();
+        while (records.hasRemaining()) {
+            Assert.assertTrue(bucket.add(records));
+        }
+        Assert.assertEquals(2, bucket.size());
+        DummyKVStorable date = (DummyKVStorable) gp.getPrototype().fromByteBuffer(bucket.getElementAt(0));
+        Assert.assertEquals(5, date.getValueAsInt("parentCount"));
+        bucket.freeMemory();
+    }
+
+    /**
+     * An element added after a tombstone is not merged into the tombstone. The tombstone is kept in front of it, so it
+     * still deletes the element on disk.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void tombstoneIsKeptBeforeReinsert() throws Exception {
+        DRUMSParameterSet<DeletableDummyKVStorable> deletable = new DRUMSParameterSet<DeletableDummyKVStorable>(
+                DeletableDummyKVStorable.getInstance(0, 0));
+        deletable.BUCKET_COMBINING = true;
+        DynamicMemoryAllocater.instantiate(deletable);
+        try {
+            Bucket<DeletableDummyKVStorable> bucket = new Bucket<DeletableDummyKVStorable>(0, deletable);
+            Assert.assertTrue(bucket.add(DeletableDummyKVStorable.getInstance(6, 1)));
+            Assert.assertTrue(bucket.add(DeletableDummyKVStorable.getInstance(5, 1)));
+            Assert.assertTrue(bucket.add(DeletableDummyKVStorable.getInstance(5, Integer.MIN_VALUE)));
+            Assert.assertTrue(bucket.add(DeletableDummyKVStorable.getInstance(5, 2)));
+            Assert.assertTrue(bucket.add(DeletableDummyKVStorable.getInstance(5, 4)));
+            Assert.assertTrue(bucket.add(DeletableDummyKVStorable.getInstance(4, 1)));
+            Assert.assertEquals(4, bucket.size());
+
+            List<byte[]> found = bucket.lookup(Bytes.toBytes(5l));
+            Assert.assertEquals(2, found.size());
+            Assert.assertTrue(decode(deletable, found.get(0)).isMarkedAsDeleted());
+            Assert.assertEquals(6, decode(deletable, found.get(1)).getValueAsInt("parentCount"));
+
+            ISortedRecords sorted = bucket.getSortedRecords();
+            byte[] record = new byte[sorted.getElementSize()];
+            int[] expected = { 1, Integer.MIN_VALUE, 6, 1 };
+            for (int i = 0; i < sorted.size(); i++) {
+                sorted.getRecord(i, record);
+                Assert.assertEquals(expected[i], decode(deletable, record).getValueAsInt("parentCount"));
+            }
+            // the indexes are rebuilt after sorting
+            Assert.assertEquals(2, bucket.lookup(Bytes.toBytes(5l)).size());
+            bucket.freeMemory();
+        } finally {
+            DynamicMemoryAllocater.release(deletable.instanceID);
+        }
+    }
+
+    private static DeletableDummyKVStorable decode(DRUMSParameterSet<DeletableDummyKVStorable> gp, byte[] record) {
+        return gp.getPrototype().fromByteBuffer(ByteBuffer.wrap(record));
+    }
+}
@@ -0,0 +1,109 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.bucket.hashfunction.RangeHashFunction;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+import com.unister.semweb.drums.util.KeyUtils;
+
+/**
+ * Tests the blocking behavior of the {@link BucketContainer}, when no memory is left.
+ * 
+ * @author Martin Nettling
+ */
+public class BucketContainerTest {
+    private DRUMSParameterSet<DummyKVStorable> gp;
+    private BucketContainer<DummyKVStorable> container;
+    private DummyKVStorable[] testdata;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void initialise() throws Exception {
+        // a new parameter set gets its own DynamicMemoryAllocater, which has only memory for one chunk
+        gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        gp.MEMORY_CHUNK = 100 * gp.getElementSize();
+        gp.BUCKET_MEMORY = gp.MEMORY_CHUNK;
+        DynamicMemoryAllocater.instantiate(gp);
+
+        Bucket<DummyKVStorable>[] buckets = new Bucket[] { new Bucket<DummyKVStorable>(0, gp) };
+        RangeHashFunction hashFunction = new RangeHashFunction(KeyUtils.toByteArray(new long[] { 0 }),
+                new String[] { "1.db" }, "/tmp/hash.hs");
+        container = new BucketContainer<DummyKVStorable>(buckets, hashFunction);
+        testdata = TestUtils.generateTestdata(101);
+    }
+
+    @After
+    public void tearDown() {
+        DynamicMemoryAllocater.release(gp.instanceID);
+    }
+
+    /** Only the elements fitting into the memory are added by tryAddToCache. */
+    @Test
+    public void tryAddStopsWhenFull() throws Exception {
+        Assert.assertEquals(100, container.tryAddToCache(testdata));
+        Assert.assertEquals(0, container.getNumberOfStalls());
+    }
+
+    /** A blocked producer continues, when the bucket was replaced and its memory freed. */
+    @Test
+    public void blockedProducerIsSignaled() throws Exception {
+        container.tryAddToCache(testdata);
+        final CountDownLatch added = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    container.addToCache(testdata[100]);
+                    added.countDown();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        };
+        producer.start();
+        Assert.assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+
+        Bucket<DummyKVStorable> full = container.getBucket(0);
+        container.setBucket(full.getEmptyBucketWithSameProperties());
+        full.freeMemory();
+        container.signalSpaceAvailable();
+
+        producer.join(1000);
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(added.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, container.getBucket(0).size());
+        Assert.assertTrue(container.getNumberOfStalls() > 0);
+    }
+
+    /** The insert fails, if no memory is freed within the timeout. */
+    @Test(expected = BucketContainerException.class)
+    public void timeout() throws Exception {
+        container.setInsertTimeout(50);
+        container.addToCache(testdata);
+    }
+}
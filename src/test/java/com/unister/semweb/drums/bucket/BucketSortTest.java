@@ -0,0 +1,127 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+import com.unister.semweb.drums.util.AbstractKVStorableComparator;
+import com.unister.semweb.drums.util.Bytes;
+
+/**
+ * Tests the sorting of the raw memory of a {@link Bucket}.
+ * 
+ * @author Martin Nettling
+ */
+public class BucketSortTest {
+
+    @Before
+    public void initialise() {
+        DynamicMemoryAllocater.instantiate(TestUtils.gp);
+    }
+
+    @After
+    public void tearDown() {
+        DynamicMemoryAllocater.release(TestUtils.gp.instanceID);
+    }
+
+    /**
+     * Fills a bucket over several memory chunks with random keys, including duplicates, and compares the sorted memory
+     * with a stable sort of the same objects.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void randomKeysOverSeveralChunks() throws Exception {
+        Random random = new Random(42);
+        DummyKVStorable[] testdata = new DummyKVStorable[50000];
+        for (int i = 0; i < testdata.length; i++) {
+            long key = random.nextInt(20000) * (random.nextBoolean() ? 1l : 1l << 40);
+            testdata[i] = TestUtils.createDummyData(Bytes.toBytes(key), i, i);
+        }
+        Bucket<DummyKVStorable> bucket = new Bucket<DummyKVStorable>(0, TestUtils.gp);
+        for (DummyKVStorable date : testdata) {
+            Assert.assertTrue(bucket.add(date));
+        }
+
+        ISortedRecords sorted = bucket.getSortedRecords();
+        Arrays.sort(testdata, new AbstractKVStorableComparator());
+
+        Assert.assertEquals(testdata.length, sorted.size());
+        byte[] record = new byte[sorted.getElementSize()];
+        for (int i = 0; i < testdata.length; i++) {
+            sorted.getRecord(i, record);
+            Assert.assertArrayEquals(testdata[i].toByteBuffer().array(), record);
+        }
+        bucket.freeMemory();
+    }
+
+    /**
+     * An already sorted bucket must not change.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void alreadySorted() throws Exception {
+        DummyKVStorable[] testdata = TestUtils.generateTestdata(10000);
+        Bucket<DummyKVStorable> bucket = new Bucket<DummyKVStorable>(0, TestUtils.gp);
+        for (DummyKVStorable date : testdata) {
+            bucket.add(date);
+        }
+        ISortedRecords sorted = bucket.getSortedRecords();
+        byte[] record = new byte[sorted.getElementSize()];
+        for (int i = 0; i < testdata.length; i++) {
+            sorted.getRecord(i, record);
+            Assert.assertArrayEquals(testdata[i].toByteBuffer().array(), record);
+        }
+        bucket.freeMemory();
+    }
+
+    /**
+     * The sorter gets more chunks than needed, the last ones are not allocated.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void unallocatedChunks() throws Exception {
+        int elementSize = TestUtils.gp.getElementSize();
+        DummyKVStorable[] testdata = TestUtils.createDummyData(1, 16);
+        ByteBuffer[] memory = new ByteBuffer[4];
+        for (int i = 0; i < testdata.length; i++) {
+            if (memory[i / 10] == null) {
+                memory[i / 10] = ByteBuffer.allocate(10 * elementSize);
+            }
+            // descending order
+            testdata[testdata.length - 1 - i].writeTo(memory[i / 10]);
+        }
+        new RecordSorter(memory, testdata.length, elementSize, TestUtils.gp.getKeySize()).sort();
+        for (int i = 0; i < testdata.length; i++) {
+            byte[] record = new byte[elementSize];
+            ByteBuffer chunk = memory[i / 10].duplicate();
+            chunk.position(i % 10 * elementSize);
+            chunk.get(record);
+            Assert.assertArrayEquals(testdata[i].toByteBuffer().array(), record);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.bucket;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+
+/**
+ * Tests the reuse of chunks and the global memory limit of the {@link DynamicMemoryAllocater}.
+ * 
+ * @author Martin Nettling
+ */
+public class DynamicMemoryAllocaterTest {
+    private static final int CHUNKS_PER_TABLE = 10;
+
+    @After
+    public void tearDown() {
+        DynamicMemoryAllocater.setGlobalMemoryLimit(Long.MAX_VALUE);
+    }
+
+    private DRUMSParameterSet<DummyKVStorable> newTable() throws Exception {
+        DRUMSParameterSet<DummyKVStorable> gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        gp.MEMORY_CHUNK = 100 * gp.getElementSize();
+        gp.BUCKET_MEMORY = CHUNKS_PER_TABLE * gp.MEMORY_CHUNK;
+        DynamicMemoryAllocater.instantiate(gp);
+        return gp;
+    }
+
+    /** A released chunk is handed out again. */
+    @Test
+    public void releasedChunksAreReused() throws Exception {
+        DRUMSParameterSet<DummyKVStorable> gp = newTable();
+        DynamicMemoryAllocater<?> allocater = DynamicMemoryAllocater.getInstance(gp.instanceID);
+        ByteBuffer chunk = allocater.allocateChunk();
+        chunk.put((byte) 1);
+        allocater.releaseChunk(chunk);
+        Assert.assertEquals(0, allocater.getUsedMemory());
+        Assert.assertEquals(1, allocater.getNumberOfFreeChunks());
+
+        ByteBuffer reused = allocater.allocateChunk();
+        Assert.assertSame(chunk, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(gp.MEMORY_CHUNK, allocater.getUsedMemory());
+        allocater.releaseChunk(reused);
+        DynamicMemoryAllocater.release(gp.instanceID);
+        Assert.assertNull(DynamicMemoryAllocater.getInstance(gp.instanceID));
+    }
+
+    /** With a global limit, one table may borrow free memory, but never the unused fair share of another table. */
+    @Test
+    public void fairShareOfGlobalLimit() throws Exception {
+        DRUMSParameterSet<DummyKVStorable> gp1 = newTable();
+        DRUMSParameterSet<DummyKVStorable> gp2 = newTable();
+        DRUMSParameterSet<DummyKVStorable> gp3 = newTable();
+        DynamicMemoryAllocater<?> first = DynamicMemoryAllocater.getInstance(gp1.instanceID);
+        DynamicMemoryAllocater<?> second = DynamicMemoryAllocater.getInstance(gp2.instanceID);
+        // two chunks for each of the three tables
+        DynamicMemoryAllocater.setGlobalMemoryLimit(6 * gp1.MEMORY_CHUNK);
+
+        // the first table can use its own share and takes nothing from the others
+        int allocated = 0;
+        while (first.allocateChunk() != null) {
+            allocated++;
+        }
+        Assert.assertEquals(2, allocated);
+        Assert.assertEquals(0, first.getFreeMemory());
+        Assert.assertEquals(2 * gp2.MEMORY_CHUNK, second.getFreeMemory());
+
+        // when the third table is closed, its share is free for borrowing
+        DynamicMemoryAllocater.release(gp3.instanceID);
+        Assert.assertNotNull(first.allocateChunk());
+        Assert.assertEquals(3 * gp1.MEMORY_CHUNK, first.getUsedMemory());
+        Assert.assertEquals(3 * gp1.MEMORY_CHUNK, DynamicMemoryAllocater.getGlobalUsedMemory());
+        Assert.assertEquals(3 * gp2.MEMORY_CHUNK, second.getFreeMemory());
+
+        first.freeMemory(first.getUsedMemory());
+        DynamicMemoryAllocater.release(gp1.instanceID);
+        DynamicMemoryAllocater.release(gp2.instanceID);
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.unister.semweb.drums.util.Bytes;
+
+/**
+ * Tests the {@link BloomFilter} and its storage next to a file.
+ * 
+ * @author Martin Nettling
+ */
+public class BloomFilterTest {
+    private static final int KEYS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** All added keys are found, only few other keys are reported. */
+    @Test
+    public void noFalseNegatives() {
+        BloomFilter filter = new BloomFilter(KEYS, 10);
+        for (long i = 0; i < KEYS; i++) {
+            filter.add(Bytes.toBytes(i * 2), 8);
+        }
+        int falsePositives = 0;
+        for (long i = 0; i < KEYS; i++) {
+            Assert.assertTrue(filter.mightContain(Bytes.toBytes(i * 2)));
+            if (filter.mightContain(Bytes.toBytes(i * 2 + 1))) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("too many false positives: " + falsePositives, falsePositives < KEYS * 0.03);
+    }
+
+    /** A stored filter is loaded again, but is only valid for the state of the file it was stored for. */
+    @Test
+    public void storeAndLoad() throws Exception {
+        String filename = new File(folder.getRoot(), "1.db").getPath();
+        Assert.assertNull(BloomFilter.load(filename));
+
+        BloomFilter filter = new BloomFilter(KEYS, 10);
+        for (long i = 0; i < KEYS; i++) {
+            filter.add(Bytes.toBytes(i), 8);
+        }
+        filter.store(filename, 4711, 3);
+
+        BloomFilter loaded = BloomFilter.load(filename);
+        Assert.assertTrue(loaded.isValidFor(4711, 3));
+        Assert.assertFalse(loaded.isValidFor(4711, 4));
+        Assert.assertFalse(loaded.isValidFor(4712, 3));
+        for (long i = 0; i < KEYS; i++) {
+            Assert.assertTrue(loaded.mightContain(Bytes.toBytes(i)));
+        }
+        Assert.assertFalse(new File(filename + BloomFilter.SUFFIX + ".tmp").exists());
+    }
+}
@@ -25,6 +25,7 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -164,6 +165,110 @@ public class HeaderIndexFileTest {
         Assert.assertTrue(Arrays.equals(b, r));
     }
 
+    /**
+     * Writes and overwrites random regions of a compressed file and compares all reads with the written bytes, also
+     * after reopening the file.
+     */
+    @Test
+    public void compressedChunks() throws IOException, FileLockException {
+        gp.COMPRESSED_CHUNKS = true;
+        int filled = writeAndReadRandomRegions();
+        Assert.assertTrue(file.getBlocksEnd() - file.contentStart < filled);
+    }
+
+    /**
+     * Writes and overwrites random regions of a file with prefix encoded keys, which are deflated afterwards.
+     */
+    @Test
+    public void prefixEncodedAndCompressedChunks() throws IOException, FileLockException {
+        gp.COMPRESSED_CHUNKS = true;
+        gp.PREFIX_ENCODED_KEYS = true;
+        int filled = writeAndReadRandomRegions();
+        Assert.assertTrue(file.getBlocksEnd() - file.contentStart < filled);
+    }
+
+    /** writes random regions of a new file and checks all reads, returns the number of written bytes */
+    private int writeAndReadRandomRegions() throws IOException, FileLockException {
+        file.delete();
+        gp.FILE_CHUNK_SIZE = 1024;
+        file = new HeaderIndexFile<DummyKVStorable>("test.db", HeaderIndexFile.AccessMode.READ_WRITE, 1, gp);
+        Assert.assertTrue(file.isCompressed());
+
+        Random random = new Random(42);
+        byte[] expected = new byte[64 * 1024];
+        int filled = 0;
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextInt(filled + 1);
+            byte[] b = new byte[1 + random.nextInt(Math.min(3000, expected.length - offset))];
+            for (int j = 0; j < b.length; j++) {
+                b[j] = (byte) random.nextInt(4);
+            }
+            file.write(offset, ByteBuffer.wrap(b));
+            System.arraycopy(b, 0, expected, offset, b.length);
+            filled = Math.max(filled, offset + b.length);
+
+            int from = random.nextInt(filled);
+            byte[] r = new byte[Math.min(2500, filled - from)];
+            file.read(from, ByteBuffer.wrap(r));
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, from, from + r.length), r);
+        }
+        file.close();
+
+        file = new HeaderIndexFile<DummyKVStorable>("test.db", HeaderIndexFile.AccessMode.READ_ONLY, 1, gp);
+        Assert.assertEquals(filled, file.getFilledUpFromContentStart());
+        byte[] r = new byte[filled];
+        file.read(0, ByteBuffer.wrap(r));
+        Assert.assertArrayEquals(Arrays.copyOf(expected, filled), r);
+        return filled;
+    }
+
+    /**
+     * Appends sorted records to a file with prefix encoded keys and searches them in the encoded chunks.
+     */
+    @Test
+    public void prefixEncodedKeys() throws IOException, FileLockException {
+        file.delete();
+        int elementSize = gp.getElementSize(), keySize = gp.getKeySize();
+        gp.PREFIX_ENCODED_KEYS = true;
+        gp.KEY_RESTART_INTERVAL = 8;
+        gp.FILE_CHUNK_SIZE = 32 * elementSize;
+        file = new HeaderIndexFile<DummyKVStorable>("test.db", HeaderIndexFile.AccessMode.READ_WRITE, 1, gp);
+        Assert.assertTrue(file.hasPrefixEncodedKeys());
+
+        ByteBuffer expected = ByteBuffer.allocate(1000 * elementSize);
+        for (long i = 0; i < 1000; i++) {
+            ByteBuffer record = ByteBuffer.allocate(elementSize);
+            record.putLong(3 * i);
+            record.putInt((int) i % 7);
+            record.clear();
+            file.append(record);
+            record.clear();
+            expected.put(record);
+        }
+        file.close();
+
+        file = new HeaderIndexFile<DummyKVStorable>("test.db", HeaderIndexFile.AccessMode.READ_ONLY, 1, gp);
+        Assert.assertEquals(expected.capacity(), file.getFilledUpFromContentStart());
+        Assert.assertTrue(file.getBlocksEnd() - file.contentStart < expected.capacity());
+        byte[] r = new byte[expected.capacity()];
+        file.read(0, ByteBuffer.wrap(r));
+        Assert.assertArrayEquals(expected.array(), r);
+
+        ByteBuffer chunk = ByteBuffer.allocate(file.getChunkSize());
+        byte[] record = new byte[elementSize];
+        Assert.assertTrue(file.readEncodedChunk(file.getChunkSize(), chunk));
+        for (long i = 32; i < 64; i++) {
+            Assert.assertTrue(PrefixEncodedChunk.find(chunk, ByteBuffer.allocate(keySize).putLong(3 * i).array(),
+                    elementSize, keySize, record));
+            Assert.assertArrayEquals(Arrays.copyOfRange(r, (int) i * elementSize, (int) (i + 1) * elementSize),
+                    record);
+            Assert.assertFalse(PrefixEncodedChunk.find(chunk,
+                    ByteBuffer.allocate(keySize).putLong(3 * i + 1).array(), elementSize, keySize, record));
+        }
+        Assert.assertFalse(PrefixEncodedChunk.find(chunk, ByteBuffer.allocate(keySize).putLong(0).array(),
+                elementSize, keySize, record));
+    }
+
 //    @Test
     /** test if the file is locked, and no other HeaderIndexFile can be instantiated on this OSFile. Also tests retries */
     public void lockTest() throws IOException, FileLockException {
@@ -0,0 +1,139 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests appending, replaying and truncating the {@link WriteAheadLog}.
+ * 
+ * @author Martin Nettling
+ */
+public class WriteAheadLogTest {
+    private static final String DIRECTORY = "/tmp/drums-wal-test";
+    private static final int ELEMENT_SIZE = 16;
+    private static final int BUCKETS = 4;
+
+    @Before
+    public void initialise() {
+        FileUtils.deleteQuietly(new File(DIRECTORY));
+    }
+
+    /** creates <code>count</code> records, each filled with its number */
+    private static ByteBuffer records(int first, int count) {
+        ByteBuffer records = ByteBuffer.allocate(count * ELEMENT_SIZE);
+        for (int i = 0; i < count * ELEMENT_SIZE; i++) {
+            records.put(i, (byte) (first + i / ELEMENT_SIZE));
+        }
+        return records;
+    }
+
+    /** collects the first byte of all replayed records */
+    private static class Collector implements ILogReplayer {
+        List<Integer> bucketIds = new ArrayList<Integer>();
+        List<Byte> records = new ArrayList<Byte>();
+
+        @Override
+        public long replay(int bucketId, ByteBuffer record) {
+            Assert.assertEquals(ELEMENT_SIZE, record.remaining());
+            bucketIds.add(bucketId);
+            records.add(record.get(record.position()));
+            return 10;
+        }
+    }
+
+    /** Only records of generations, which weren't synchronized, are replayed after a crash. */
+    @Test
+    public void replayUnsynchronizedRecords() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(DIRECTORY, BUCKETS, ELEMENT_SIZE, 1 << 20, new long[BUCKETS]);
+        log.sync(log.append(new int[] { 1, 2 }, new long[] { 1, 1 }, records(0, 2)));
+        log.sync(log.append(new int[] { 1 }, new long[] { 2 }, records(2, 1)));
+        // crash without closing the log. The files say, that generation 1 of bucket 1 was synchronized
+
+        WriteAheadLog reopened = new WriteAheadLog(DIRECTORY, BUCKETS, ELEMENT_SIZE, 1 << 20, new long[] { 0, 1, 0,
+                0 });
+        Assert.assertEquals(2, reopened.getMaxGeneration(1));
+        Assert.assertEquals(1, reopened.getMaxGeneration(2));
+        Collector collector = new Collector();
+        Assert.assertEquals(2, reopened.replay(collector));
+        Assert.assertEquals(2, (int) collector.bucketIds.get(0));
+        Assert.assertEquals(1, (byte) collector.records.get(0));
+        Assert.assertEquals(1, (int) collector.bucketIds.get(1));
+        Assert.assertEquals(2, (byte) collector.records.get(1));
+
+        // the replayed records are in generation 10 now, the old segment is kept till it was synchronized
+        reopened.bucketSynchronized(1, 10);
+        Assert.assertEquals(2, reopened.getNumberOfSegments());
+        reopened.bucketSynchronized(2, 10);
+        Assert.assertEquals(1, reopened.getNumberOfSegments());
+        reopened.close();
+        Assert.assertEquals(0, new File(DIRECTORY).list().length);
+    }
+
+    /** Finished segments are deleted, as soon as all their records were synchronized. */
+    @Test
+    public void deleteSynchronizedSegments() throws Exception {
+        // each append starts a new segment
+        WriteAheadLog log = new WriteAheadLog(DIRECTORY, BUCKETS, ELEMENT_SIZE, 1, new long[BUCKETS]);
+        log.append(new int[] { 0 }, new long[] { 1 }, records(0, 1));
+        log.append(new int[] { 3 }, new long[] { 1 }, records(1, 1));
+        log.append(new int[] { 0 }, new long[] { 2 }, records(2, 1));
+        Assert.assertEquals(4, log.getNumberOfSegments());
+
+        log.bucketSynchronized(0, 1);
+        Assert.assertEquals(3, log.getNumberOfSegments());
+        log.bucketSynchronized(0, 2);
+        Assert.assertEquals(2, log.getNumberOfSegments());
+        log.close();
+
+        // the record of bucket 3 is still unsynchronized
+        WriteAheadLog reopened = new WriteAheadLog(DIRECTORY, BUCKETS, ELEMENT_SIZE, 1, new long[BUCKETS]);
+        Collector collector = new Collector();
+        Assert.assertEquals(1, reopened.replay(collector));
+        Assert.assertEquals(3, (int) collector.bucketIds.get(0));
+        reopened.close();
+    }
+
+    /** A torn write at the end of a segment is cut off, the records before are replayed. */
+    @Test
+    public void cutOffCorruptedTail() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(DIRECTORY, BUCKETS, ELEMENT_SIZE, 1 << 20, new long[BUCKETS]);
+        log.sync(log.append(new int[] { 0, 1 }, new long[] { 1, 1 }, records(0, 2)));
+        log.close();
+        File segment = new File(DIRECTORY, WriteAheadLog.SEGMENT_PREFIX + "0");
+        long valid = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(valid);
+        file.writeInt(2 * (12 + ELEMENT_SIZE));
+        file.writeInt(4711);
+        file.write(new byte[7]);
+        file.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(DIRECTORY, BUCKETS, ELEMENT_SIZE, 1 << 20, new long[BUCKETS]);
+        Assert.assertEquals(valid, segment.length());
+        Assert.assertEquals(2, reopened.replay(new Collector()));
+        reopened.close();
+    }
+}
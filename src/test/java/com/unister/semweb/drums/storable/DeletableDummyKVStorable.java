@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012-2013 Unister GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.unister.semweb.drums.storable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DummyKVStorable}, which can be marked as deleted. A parentCount of {@link Integer#MIN_VALUE} marks the
+ * element as deleted.
+ * 
+ * @author Martin Nettling
+ */
+public class DeletableDummyKVStorable extends DummyKVStorable {
+    private static final long serialVersionUID = 2385938582010446257L;
+
+    protected DeletableDummyKVStorable(int keyLength, int valueLength, GeneralStructure s) {
+        super(keyLength, valueLength, s);
+    }
+
+    @Override
+    public boolean canBeMarkedAsDeleted() {
+        return true;
+    }
+
+    @Override
+    public boolean isMarkedAsDeleted() {
+        try {
+            return getValueAsInt("parentCount") == Integer.MIN_VALUE;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void markAsDeleted() {
+        try {
+            setValue("parentCount", Integer.MIN_VALUE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public DeletableDummyKVStorable fromByteBuffer(ByteBuffer bb) {
+        DeletableDummyKVStorable object = new DeletableDummyKVStorable(this.key.length, this.value.length,
+                super.structure);
+        object.initFromByteBuffer(bb);
+        return object;
+    }
+
+    /**
+     * @param key
+     *            the key of the element
+     * @param parentCount
+     *            the parentCount of the element
+     * @return a new element
+     */
+    public static DeletableDummyKVStorable getInstance(long key, int parentCount) {
+        DummyKVStorable structured = DummyKVStorable.getInstance();
+        DeletableDummyKVStorable element = new DeletableDummyKVStorable(structured.key.length,
+                structured.value.length, structured.structure);
+        element.setKey(ByteBuffer.allocate(element.key.length).putLong(key).array());
+        try {
+            element.setValue("parentCount", parentCount);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return element;
+    }
+}
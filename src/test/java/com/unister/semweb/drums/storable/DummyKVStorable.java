@@ -83,4 +83,21 @@ public class DummyKVStorable extends GeneralStorable {
         }
         return null;
     }
+
+    /**
+     * @return a {@link DummyKVStorable}, whose structure has the flag of {@link GeneralStructure#addDeletedFlag()}, so
+     *         it can be marked as deleted
+     */
+    public static DummyKVStorable getDeletableInstance() {
+        try {
+            GeneralStructure s = new GeneralStructure();
+            s.addKeyPart("key", Basic_Field_Types.Long);
+            s.addValuePart("parentCount", Basic_Field_Types.Integer);
+            s.addValuePart("relevanceScore", Basic_Field_Types.Double);
+            s.addDeletedFlag();
+            return new DummyKVStorable(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -19,6 +19,7 @@ package com.unister.semweb.drums.storable;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 
@@ -102,4 +103,24 @@ public class StructureTest {
         assertEquals(27, cur.key.length);
         assertEquals(27, cur.value.length);
     }
+
+    /**
+     * Tests declaring a value part of the type Long as timestamp
+     * @throws IOException 
+     */
+    @Test
+    public void timestampPart() throws IOException {
+        GeneralStructure s = new GeneralStructure();
+        s.addKeyPart("key", Basic_Field_Types.Long);
+        s.addValuePart("count", Basic_Field_Types.Integer);
+        s.addValuePart("time", Basic_Field_Types.Long);
+        GeneralStorable cur = new GeneralStorable(s);
+        cur.setValue("time", 1234L);
+        assertEquals(-1, cur.getTimestamp());
+
+        assertFalse(s.setTimestampPart("missing"));
+        assertFalse(s.setTimestampPart("count"));
+        assertTrue(s.setTimestampPart("time"));
+        assertEquals(1234, cur.getTimestamp());
+    }
 }
@@ -0,0 +1,105 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.sync.policy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.bucket.Bucket;
+import com.unister.semweb.drums.bucket.DynamicMemoryAllocater;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+
+/**
+ * Tests the choices of the different {@link ISyncPolicy}s.
+ * 
+ * @author Martin Nettling
+ */
+public class SyncPolicyTest {
+    private DRUMSParameterSet<DummyKVStorable> gp;
+    private Bucket<DummyKVStorable> large;
+    private Bucket<DummyKVStorable> small;
+
+    @Before
+    public void initialise() throws Exception {
+        gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        gp.MEMORY_CHUNK = 100 * gp.getElementSize();
+        gp.BUCKET_MEMORY = 10 * gp.MEMORY_CHUNK;
+        gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC = 8;
+        DynamicMemoryAllocater.instantiate(gp);
+        large = new Bucket<DummyKVStorable>(0, gp);
+        small = new Bucket<DummyKVStorable>(1, gp);
+        for (DummyKVStorable element : TestUtils.generateTestdata(10)) {
+            large.add(element);
+        }
+        for (DummyKVStorable element : TestUtils.generateTestdata(5)) {
+            small.add(element);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DynamicMemoryAllocater.release(gp.instanceID);
+    }
+
+    private SyncContext context(double memoryUsage, boolean memoryExhausted, long... fileSizes) {
+        return new SyncContext(System.currentTimeMillis(), (long) (memoryUsage * gp.BUCKET_MEMORY), gp.BUCKET_MEMORY,
+                memoryExhausted, false, Long.MAX_VALUE / 2, fileSizes, gp.getElementSize());
+    }
+
+    /** Small buckets wait for the threshold, unless no memory is left. */
+    @Test
+    public void largestFirst() throws Exception {
+        ISyncPolicy<DummyKVStorable> policy = AbstractSyncPolicy.create("LARGEST_FIRST", gp);
+        SyncContext context = context(0, false, 0, 0);
+        Assert.assertEquals(10, policy.getPriority(large, context), 0);
+        Assert.assertTrue(policy.getPriority(small, context) < 0);
+        Assert.assertEquals(5, policy.getPriority(small, context(1, true, 0, 0)), 0);
+    }
+
+    /** The bucket of the empty file is cheaper to synchronize than the larger bucket of the large file. */
+    @Test
+    public void bestRatio() throws Exception {
+        gp.MIN_ELEMENT_IN_BUCKET_BEFORE_SYNC = 1;
+        ISyncPolicy<DummyKVStorable> policy = AbstractSyncPolicy.create("BEST_RATIO", gp);
+        SyncContext context = context(0, false, 1000 * gp.getElementSize(), 0);
+        Assert.assertEquals(1, policy.getPriority(small, context), 0);
+        Assert.assertTrue(policy.getPriority(large, context) < policy.getPriority(small, context));
+    }
+
+    /** The threshold grows with expensive merges and free memory, and shrinks under memory pressure. */
+    @Test
+    public void adaptiveThreshold() throws Exception {
+        AdaptiveSyncPolicy<DummyKVStorable> policy = new AdaptiveSyncPolicy<DummyKVStorable>(gp);
+        int initial = policy.getThreshold();
+
+        policy.prepare(context(0.1, false, 0, 0));
+        // 10 elements merged into a file of 1000 elements
+        long fileSize = 1000 * gp.getElementSize();
+        policy.synchronizationFinished(0, 10, fileSize, fileSize + 10 * gp.getElementSize(), 1000000);
+        Assert.assertTrue(policy.getAmplification() > AdaptiveSyncPolicy.DEFAULT_TARGET_AMPLIFICATION);
+        int raised = policy.getThreshold();
+        Assert.assertTrue(raised > initial);
+        Assert.assertTrue(policy.getPriority(large, context(0.1, false, 0, 0)) < 0);
+
+        policy.prepare(context(0.9, false, 0, 0));
+        policy.synchronizationFinished(0, 10, fileSize, fileSize + 10 * gp.getElementSize(), 1000000);
+        Assert.assertTrue(policy.getThreshold() < raised);
+    }
+}
@@ -0,0 +1,288 @@
+/* Copyright (C) 2012-2013 Unister GmbH
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA. */
+package com.unister.semweb.drums.syncronizer;
+
+import java.io.File;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.unister.semweb.drums.DRUMSParameterSet;
+import com.unister.semweb.drums.TestUtils;
+import com.unister.semweb.drums.file.BloomFilter;
+import com.unister.semweb.drums.file.HeaderIndexFile;
+import com.unister.semweb.drums.storable.DeletableDummyKVStorable;
+import com.unister.semweb.drums.storable.DummyKVStorable;
+import com.unister.semweb.drums.sync.synchronizer.Synchronizer;
+import com.unister.semweb.drums.util.Bytes;
+
+/**
+ * Tests the merge of the {@link Synchronizer}.
+ * 
+ * @author Martin Nettling
+ */
+public class SynchronizerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DRUMSParameterSet<DummyKVStorable> gp;
+    private String dbFileName;
+
+    @Before
+    public void initialise() throws Exception {
+        gp = new DRUMSParameterSet<DummyKVStorable>(DummyKVStorable.getInstance());
+        dbFileName = new File(folder.getRoot(), "synchronizer.db").getPath();
+    }
+
+    /**
+     * Merges odd keys between the even keys of a file, which spans many read chunks. Far more elements are read from
+     * the file than written, so the read buffer must grow. Some keys exist in the file and must be merged. The file is
+     * read and written by a pool of I/O threads.
+     */
+    @Test
+    public void interleavedMerge() throws Exception {
+        gp.SYNC_CHUNK_SIZE = 100 * gp.getElementSize();
+        ExecutorService io = Executors.newFixedThreadPool(2);
+        try {
+            int n = 10000;
+            DummyKVStorable[] inFile = new DummyKVStorable[n];
+            for (int i = 0; i < n; i++) {
+                inFile[i] = TestUtils.createDummyData(Bytes.toBytes(2l * (i + 1)), 1, 0.5);
+            }
+            TestUtils.createFile(dbFileName, inFile, gp);
+
+            // all odd keys, and every tenth even key once more
+            DummyKVStorable[] toAdd = new DummyKVStorable[n + n / 10];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                toAdd[k++] = TestUtils.createDummyData(Bytes.toBytes(2l * i + 1), 1, 0.5);
+                if (i % 10 == 0) {
+                    toAdd[k++] = TestUtils.createDummyData(Bytes.toBytes(2l * (i + 1)), 1, 0.5);
+                }
+            }
+            Synchronizer<DummyKVStorable> synchronizer = new Synchronizer<DummyKVStorable>(dbFileName, gp);
+            synchronizer.setIOExecutor(io);
+            synchronizer.upsert(toAdd);
+            synchronizer.close();
+            Assert.assertEquals(n, synchronizer.getNumberOfInsertedEntries());
+            Assert.assertEquals(n / 10, synchronizer.getNumberOfUpdatedEntries());
+
+            DummyKVStorable[] expected = new DummyKVStorable[2 * n];
+            for (int i = 0; i < 2 * n; i++) {
+                int parentCount = i % 2 == 1 && (i / 2) % 10 == 0 ? 2 : 1;
+                expected[i] = TestUtils.createDummyData(Bytes.toBytes(i + 1l), parentCount, 0.5);
+            }
+            Assert.assertTrue(TestUtils.checkContentFile(dbFileName, expected, gp));
+
+            HeaderIndexFile<DummyKVStorable> file = new HeaderIndexFile<DummyKVStorable>(dbFileName, 1, gp);
+            Assert.assertEquals(2 * n * gp.getElementSize(), file.getFilledUpFromContentStart());
+            Assert.assertTrue(file.isConsitentWithIndex());
+            file.close();
+        } finally {
+            io.shutdown();
+        }
+    }
+
+    /** The same merge as {@link #interleavedMerge()}, but the merging thread reads and writes the file itself. */
+    @Test
+    public void synchronousMerge() throws Exception {
+        gp.PIPELINED_SYNC = false;
+        interleavedMerge();
+    }
+
+    /**
+     * Merges into the last quarter of a file. The chunks before aren't read, the Bloom filter still contains their
+     * keys. An update behind an insert doesn't rewrite the unchanged rest of the file.
+     */
+    @Test
+    public void sparseMerge() throws Exception {
+        gp.SYNC_CHUNK_SIZE = 100 * gp.getElementSize();
+        int n = 20000;
+        long fileSize = n * gp.getElementSize();
+        DummyKVStorable[] inFile = new DummyKVStorable[n];
+        for (int i = 0; i < n; i++) {
+            inFile[i] = TestUtils.createDummyData(Bytes.toBytes(2l * (i + 1)), 1, 0.5);
+        }
+        TestUtils.createFile(dbFileName, inFile, gp);
+
+        // inserts one key
+        Synchronizer<DummyKVStorable> synchronizer = new Synchronizer<DummyKVStorable>(dbFileName, gp);
+        synchronizer.upsert(new DummyKVStorable[] { TestUtils.createDummyData(Bytes.toBytes(30001l), 1, 0.5) });
+        synchronizer.close();
+        Assert.assertTrue(synchronizer.getNumberOfReadBytes() < fileSize / 2);
+        Assert.assertEquals(fileSize + gp.getElementSize(), synchronizer.getFileSize());
+
+        // updates one key, only the chunk containing it is rewritten
+        synchronizer = new Synchronizer<DummyKVStorable>(dbFileName, gp);
+        synchronizer.upsert(new DummyKVStorable[] { TestUtils.createDummyData(Bytes.toBytes(30002l), 1, 0.5) });
+        synchronizer.close();
+        Assert.assertTrue(synchronizer.getNumberOfWrittenBytes() <= gp.FILE_CHUNK_SIZE);
+
+        DummyKVStorable[] expected = new DummyKVStorable[n + 1];
+        for (int i = 0, k = 0; i < n; i++) {
+            long key = 2l * (i + 1);
+            expected[k++] = TestUtils.createDummyData(Bytes.toBytes(key), key == 30002 ? 2 : 1, 0.5);
+            if (key == 30000) {
+                expected[k++] = TestUtils.createDummyData(Bytes.toBytes(30001l), 1, 0.5);
+            }
+        }
+        Assert.assertTrue(TestUtils.checkContentFile(dbFileName, expected, gp));
+        HeaderIndexFile<DummyKVStorable> file = new HeaderIndexFile<DummyKVStorable>(dbFileName, 1, gp);
+        Assert.assertTrue(file.isConsitentWithIndex());
+        file.close();
+
+        BloomFilter bloomFilter = BloomFilter.load(dbFileName);
+        Assert.assertTrue(bloomFilter.mightContain(Bytes.toBytes(2l)));
+        Assert.assertTrue(bloomFilter.mightContain(Bytes.toBytes(30001l)));
+    }
+
+    /**
+     * Elements larger than all keys of the file are appended without reading the file. Mixed elements only read the
+     * tail of the file.
+     */
+    @Test
+    public void append() throws Exception {
+        int n = 10000;
+        TestUtils.createFile(dbFileName, TestUtils.createDummyData(1, n + 1), gp);
+
+        Synchronizer<DummyKVStorable> synchronizer = new Synchronizer<DummyKVStorable>(dbFileName, gp);
+        synchronizer.upsert(TestUtils.createDummyData(n + 1, n + 101));
+        synchronizer.close();
+        Assert.assertEquals(0, synchronizer.getNumberOfReadBytes());
+        Assert.assertEquals(100, synchronizer.getNumberOfInsertedEntries());
+
+        // updates the last element and appends one more
+        DummyKVStorable[] mixed = TestUtils.createDummyData(n + 100, n + 102);
+        synchronizer = new Synchronizer<DummyKVStorable>(dbFileName, gp);
+        synchronizer.upsert(mixed);
+        synchronizer.close();
+        Assert.assertTrue(synchronizer.getNumberOfReadBytes() <= gp.FILE_CHUNK_SIZE);
+        Assert.assertEquals(1, synchronizer.getNumberOfUpdatedEntries());
+
+        DummyKVStorable[] expected = TestUtils.createDummyData(1, n + 102);
+        expected[n + 99] = TestUtils.createDummyData(Bytes.toBytes(n + 100l), 2 * (n + 101), 1d / (n + 100));
+        Assert.assertTrue(TestUtils.checkContentFile(dbFileName, expected, gp));
+        HeaderIndexFile<DummyKVStorable> file = new HeaderIndexFile<DummyKVStorable>(dbFileName, 1, gp);
+        Assert.assertTrue(file.isConsitentWithIndex());
+        file.close();
+    }
+
+    /**
+     * Merges a bucket by several threads. Most elements of the bucket belong to the first chunk of the file or lie
+     * behind its largest key, so these elements must be split by their keys.
+     */
+    @Test
+    public void parallelMerge() throws Exception {
+        gp.SYNC_CHUNK_SIZE = 100 * gp.getElementSize();
+        gp.PARALLEL_SYNC_THRESHOLD = 1;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TreeMap<Long, DummyKVStorable> expected = new TreeMap<Long, DummyKVStorable>();
+            DummyKVStorable[] inFile = new DummyKVStorable[5000];
+            for (int i = 0; i < inFile.length; i++) {
+                inFile[i] = TestUtils.createDummyData(Bytes.toBytes(100l * (i + 1)), 1, 0.5);
+                expected.put(100l * (i + 1), inFile[i]);
+            }
+            TestUtils.createFile(dbFileName, inFile, gp);
+
+            TreeMap<Long, DummyKVStorable> bucket = new TreeMap<Long, DummyKVStorable>();
+            for (int i = 0; i < inFile.length; i += 7) {
+                long key = 100l * (i + 1);
+                bucket.put(key, TestUtils.createDummyData(Bytes.toBytes(key), 1, 0.5));
+                expected.put(key, TestUtils.createDummyData(Bytes.toBytes(key), 2, 0.5));
+            }
+            int updates = bucket.size();
+            for (long key = 50001; key < 70000; key++) {
+                if (key % 100 != 0) {
+                    bucket.put(key, TestUtils.createDummyData(Bytes.toBytes(key), 1, 0.5));
+                }
+            }
+            for (long key = 1000000; key < 1010000; key++) {
+                bucket.put(key, TestUtils.createDummyData(Bytes.toBytes(key), 1, 0.5));
+            }
+            for (Long key : bucket.keySet()) {
+                if (!expected.containsKey(key)) {
+                    expected.put(key, bucket.get(key));
+                }
+            }
+            DummyKVStorable[] toAdd = bucket.values().toArray(new DummyKVStorable[bucket.size()]);
+
+            Synchronizer<DummyKVStorable> synchronizer = new Synchronizer<DummyKVStorable>(dbFileName, gp);
+            synchronizer.setMergeExecutor(executor, 4);
+            synchronizer.upsert(toAdd);
+            synchronizer.close();
+            Assert.assertEquals(updates, synchronizer.getNumberOfUpdatedEntries());
+            Assert.assertEquals(toAdd.length - updates, synchronizer.getNumberOfInsertedEntries());
+            Assert.assertEquals(expected.size() * gp.getElementSize(), synchronizer.getFileSize());
+
+            Assert.assertTrue(TestUtils.checkContentFile(dbFileName,
+                    expected.values().toArray(new DummyKVStorable[expected.size()]), gp));
+            HeaderIndexFile<DummyKVStorable> file = new HeaderIndexFile<DummyKVStorable>(dbFileName, 1, gp);
+            Assert.assertTrue(file.isConsitentWithIndex());
+            file.close();
+            BloomFilter bloomFilter = BloomFilter.load(dbFileName);
+            Assert.assertTrue(bloomFilter.mightContain(Bytes.toBytes(50001l)));
+            Assert.assertTrue(bloomFilter.mightContain(Bytes.toBytes(1009999l)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Elements with equal keys are merged before the synchronization. An element added after a tombstone must not be
+     * merged with the element from the file, so the tombstone is kept in front of it.
+     */
+    @Test
+    public void deleteAndReinsert() throws Exception {
+        DRUMSParameterSet<DeletableDummyKVStorable> gp = new DRUMSParameterSet<DeletableDummyKVStorable>(
+                DeletableDummyKVStorable.getInstance(0, 0));
+        DeletableDummyKVStorable[] inFile = new DeletableDummyKVStorable[10];
+        for (int i = 0; i < inFile.length; i++) {
+            inFile[i] = DeletableDummyKVStorable.getInstance(i + 1, 1);
+        }
+        Synchronizer<DeletableDummyKVStorable> synchronizer = new Synchronizer<DeletableDummyKVStorable>(dbFileName,
+                gp);
+        synchronizer.upsert(inFile);
+        synchronizer.close();
+
+        DeletableDummyKVStorable[] toAdd = new DeletableDummyKVStorable[] {
+                DeletableDummyKVStorable.getInstance(3, Integer.MIN_VALUE),
+                DeletableDummyKVStorable.getInstance(5, 2),
+                DeletableDummyKVStorable.getInstance(5, Integer.MIN_VALUE),
+                DeletableDummyKVStorable.getInstance(5, 4),
+                DeletableDummyKVStorable.getInstance(5, 8),
+                DeletableDummyKVStorable.getInstance(6, 2) };
+        synchronizer = new Synchronizer<DeletableDummyKVStorable>(dbFileName, gp);
+        synchronizer.upsert(toAdd);
+        synchronizer.close();
+
+        List<DummyKVStorable> read = TestUtils.readFrom(dbFileName, 20);
+        Assert.assertEquals(9, read.size());
+        for (DummyKVStorable date : read) {
+            long key = date.getKeyAsLong("key");
+            Assert.assertTrue(key != 3);
+            int parentCount = key == 5 ? 12 : key == 6 ? 3 : 1;
+            Assert.assertEquals(parentCount, date.getValueAsInt("parentCount"));
+        }
+    }
+}